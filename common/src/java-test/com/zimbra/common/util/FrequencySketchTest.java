@@ -0,0 +1,58 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.common.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void increment() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        Assert.assertEquals(0, sketch.frequency("digest-1"));
+        sketch.increment("digest-1");
+        sketch.increment("digest-1");
+        sketch.increment("digest-1");
+        Assert.assertEquals(3, sketch.frequency("digest-1"));
+        Assert.assertTrue(sketch.frequency("digest-2") <= 3);
+    }
+
+    @Test
+    public void saturate() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("digest");
+        }
+        Assert.assertEquals(15, sketch.frequency("digest"));
+    }
+
+    @Test
+    public void aging() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("hot");
+        }
+        Assert.assertEquals(8, sketch.frequency("hot"));
+        // 160 additions trigger a reset, which halves every counter
+        for (int i = 0; i < 200; i++) {
+            sketch.increment("other-" + i);
+        }
+        Assert.assertTrue(sketch.frequency("hot") < 8);
+    }
+}
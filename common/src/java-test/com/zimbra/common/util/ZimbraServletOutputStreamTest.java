@@ -0,0 +1,67 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.common.util;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class ZimbraServletOutputStreamTest {
+
+    @Test
+    public void encode() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(bytes);
+        for (int i = 0; i < 3000; i++) {
+            String chunk = "<m id=\"" + i + "\">café 日本 😀</m>";
+            out.append(chunk);
+            expected.append(chunk);
+            // surrogate pairs appended one char at a time end up split across buffer flushes
+            out.append('\ud83d').append('\ude03');
+            expected.append("😃");
+        }
+        out.flush();
+        Assert.assertArrayEquals(expected.toString().getBytes(Charsets.UTF_8), bytes.toByteArray());
+    }
+
+    @Test
+    public void largeAppend() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append("éabc");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(bytes);
+        out.append("x").append(large, 1, large.length() - 1);
+        out.flush();
+        Assert.assertEquals("x" + large.substring(1, large.length() - 1), new String(bytes.toByteArray(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void loneSurrogate() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(bytes);
+        out.append("a\ud83d");
+        out.flush();
+        Assert.assertEquals("a?", new String(bytes.toByteArray(), Charsets.UTF_8));
+    }
+}
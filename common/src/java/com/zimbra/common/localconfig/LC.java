@@ -179,6 +179,15 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    public static final KnownKey zimbra_fd_cache_concurrency_level = KnownKey.newKey(16);
+
+    public static final KnownKey zimbra_message_cache_segments = KnownKey.newKey(16);
+    public static final KnownKey zimbra_message_cache_max_data_size_kb = KnownKey.newKey(102400); // KB
+    public static final KnownKey zimbra_message_cache_admission_filter = KnownKey.newKey(true);
+    public static final KnownKey zimbra_message_cache_offheap_size_mb = KnownKey.newKey(0); // MB, 0 disables
+    public static final KnownKey zimbra_message_cache_offheap_slab_size_mb = KnownKey.newKey(64); // MB
+    public static final KnownKey zimbra_message_cache_offheap_max_entry_size_kb = KnownKey.newKey(4096); // KB
+    public static final KnownKey zimbra_message_cache_offheap_file = KnownKey.newKey("");
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -192,6 +201,11 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    public static final KnownKey zimbra_mailbox_item_cache_budget_kb = KnownKey.newKey(262144); // KB, shared by all loaded mailboxes
+    public static final KnownKey zimbra_mailbox_item_cache_min_kb = KnownKey.newKey(512); // KB, per mailbox
+    // how often item caches of idle mailboxes are resized to the current share of the budget, 0 to disable
+    public static final KnownKey zimbra_mailbox_item_cache_rebalance_ms = KnownKey.newKey(30000);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -202,13 +216,51 @@ public final class LC {
     public static final KnownKey zimbra_mailbox_lock_timeout = KnownKey.newKey(60); // seconds
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
+    public static final KnownKey zimbra_mailbox_lock_stats_enabled = KnownKey.newKey(true);
+    public static final KnownKey zimbra_mailbox_lock_stats_top_holders = KnownKey.newKey(10);
+    // mailboxes tracked per stats period; when full, the half with the least hold time is dropped
+    public static final KnownKey zimbra_mailbox_lock_stats_max_mailboxes = KnownKey.newKey(1000);
+    // always-on only; the read/write lock lives under a different ZooKeeper path than the
+    // default mutex, so it must be turned on for the whole cluster at once
+    public static final KnownKey zimbra_mailbox_distributed_lock_readwrite = KnownKey.newKey(false);
+    // keep the distributed lock between operations until another server asks for it
+    public static final KnownKey zimbra_mailbox_distributed_lock_cache = KnownKey.newKey(true);
+
+    // most redo log data written with a single fsync by the group commit thread
+    public static final KnownKey zimbra_redolog_group_commit_max_batch_kb = KnownKey.newKey(1024);
+    // direct buffers redo logs are read through during replay
+    public static final KnownKey zimbra_redolog_buffer_kb = KnownKey.newKey(64);
+    public static final KnownKey zimbra_redolog_buffer_pool_size = KnownKey.newKey(8);
+    // threads replaying uncommitted ops after an unclean shutdown; 0 means one per processor
+    public static final KnownKey zimbra_redolog_crash_recovery_threads = KnownKey.newKey(0);
+    public static final KnownKey zimbra_redolog_crash_recovery_queue_capacity = KnownKey.newKey(100);
 
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
+    // index threads are added up to zimbra_index_threads while there is a backlog and CPU use stays within the budget
+    public static final KnownKey zimbra_index_min_threads = KnownKey.newKey(2);
+    public static final KnownKey zimbra_index_cpu_budget_percent = KnownKey.newKey(50);
+    // batch index tasks queued before new ones are deferred until the failure delay has passed
+    public static final KnownKey zimbra_index_queue_capacity = KnownKey.newKey(10000);
+    // how long a search waits for deferred items to be indexed before searching without them
+    public static final KnownKey zimbra_index_search_flush_wait_ms = KnownKey.newKey(3000);
+
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
 
+    // a full re-index builds up to this many index partitions in parallel, each of at least min_items items; 1 disables
+    public static final KnownKey zimbra_reindex_partitions = KnownKey.newKey(4);
+    public static final KnownKey zimbra_reindex_partition_min_items = KnownKey.newKey(10000);
+
+    // rewrite item metadata in the compact format when the item is modified; both formats are always readable, but
+    // releases without the compact format can't read it back, so only turn this on once the whole cluster has it
+    public static final KnownKey zimbra_metadata_compact_encoding = KnownKey.newKey(false);
+
+    // server-wide Lucene segment merge threads, and the write budget they share; 0 means unthrottled
+    public static final KnownKey zimbra_index_merge_threads = KnownKey.newKey(2);
+    public static final KnownKey zimbra_index_merge_max_kb_per_sec = KnownKey.newKey(20480);
+
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
 
@@ -264,6 +316,10 @@ public final class LC {
 
     @Supported
     public static final KnownKey zimbra_index_elasticsearch_url_base = KnownKey.newKey("http://localhost:9200/");
+    // ElasticSearch _bulk batching: send at this many documents or this much JSON; resend transient failures this many times
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_docs = KnownKey.newKey(500);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_kb = KnownKey.newKey(5120);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_retries = KnownKey.newKey(3);
 
     @Supported
     public static final KnownKey zimbra_index_wildcard_max_terms_expanded = KnownKey.newKey(20000);
@@ -491,6 +547,12 @@ public final class LC {
     public static final KnownKey ldap_cache_alwaysoncluster_maxsize = KnownKey.newKey(100);
     public static final KnownKey ldap_cache_alwaysoncluster_maxage = KnownKey.newKey(15);
 
+    // in the last part of an entry's maxage, it is reloaded from LDAP in the background while lookups keep using it
+    public static final KnownKey ldap_cache_refresh_ahead_percent = KnownKey.newKey(10);
+    // seconds for which an account, COS or server name that was not found in LDAP is not looked up again;
+    // a name created through another server is only seen here after this long, or after a FlushCache
+    public static final KnownKey ldap_cache_negative_maxage_sec = KnownKey.newKey(10);
+
     @Supported
     public static final KnownKey ldap_cache_timezone_maxsize = KnownKey.newKey(100);
     public static final KnownKey ldap_cache_xmppcomponent_maxsize = KnownKey.newKey(100);
@@ -706,6 +768,12 @@ public final class LC {
     public static final KnownKey nio_pop3_enabled = KnownKey.newKey(true);
 
     public static final KnownKey nio_max_write_queue_size = KnownKey.newKey(10000);
+    // send uncompressed message blobs to NIO clients with FileChannel.transferTo when
+    // no filter (TLS, SASL) needs to see the bytes
+    public static final KnownKey nio_file_transfer_enabled = KnownKey.newKey(true);
+    // direct buffers that blobs are read into when they can't be transferred as is
+    public static final KnownKey nio_transfer_buffer_size = KnownKey.newKey(64 * 1024);
+    public static final KnownKey nio_transfer_buffer_pool_size = KnownKey.newKey(64);
 
     public static final KnownKey imap_max_request_size = KnownKey.newKey(10 * 1024);
     public static final KnownKey imap_max_nesting_in_search_request = KnownKey.newKey(100);
@@ -726,6 +794,13 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // largest BODYSTRUCTURE plus ENVELOPE, in bytes, stored with a message so FETCH need not parse it; 0 disables
+    public static final KnownKey imap_precomputed_structure_max_size = KnownKey.newKey(16 * 1024);
+    // messages given a precomputed BODYSTRUCTURE and ENVELOPE per batch by the backfill thread; 0 disables it
+    public static final KnownKey imap_structure_backfill_batch_size = KnownKey.newKey(100);
+    public static final KnownKey imap_structure_backfill_sleep_ms = KnownKey.newKey(1000);
+    // pause between backfill passes over the loaded mailboxes
+    public static final KnownKey imap_structure_backfill_interval_ms = KnownKey.newKey(60 * 60 * 1000);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     public static final KnownKey pop3_write_timeout = KnownKey.newKey(10);
@@ -865,6 +940,9 @@ public final class LC {
 
     public static final KnownKey zimbra_waitset_initial_sleep_time = KnownKey.newKey(1000);
     public static final KnownKey zimbra_waitset_nodata_sleep_time = KnownKey.newKey(3000);
+    // commits an all-accounts waitset may fall behind before its client has to resync, and the threads catching up
+    public static final KnownKey zimbra_waitset_journal_size = KnownKey.newKey(16384);
+    public static final KnownKey zimbra_waitset_notify_threads = KnownKey.newKey(2);
 
     public static final KnownKey zimbra_csv_mapping_file = KnownKey.newKey("${zimbra_home}/conf/zimbra-contact-fields.xml");
 
@@ -1065,6 +1143,10 @@ public final class LC {
 
     @Supported
     public static final KnownKey contact_ranking_enabled = KnownKey.newKey(true);
+    // number of mailboxes whose contacts are kept in memory for autocomplete; 0 always searches the index
+    public static final KnownKey contact_autocomplete_cache_mailboxes = KnownKey.newKey(500);
+    // mailboxes with more contacts than this are always autocompleted from the index
+    public static final KnownKey contact_autocomplete_cache_max_contacts = KnownKey.newKey(10000);
 
 
     public static final KnownKey jdbc_results_streaming_enabled = KnownKey.newKey(true);
@@ -1079,6 +1161,10 @@ public final class LC {
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    // threads delivering messages to their local recipients in parallel; 1 delivers to one recipient at a time
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(8);
+    // file the Message-ID dedupe cache is saved to when LMTP shuts down and loaded from at startup; empty disables
+    public static final KnownKey zimbra_lmtp_dedupe_cache_file = KnownKey.newKey("");
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
@@ -1214,6 +1214,8 @@ public final class AdminConstants {
     public static final String A_NUM_FAILED = "numFailed";
     public static final String A_NUM_SKIPPED = "numSkipped";
     public static final String A_NUM_REMAINING = "numRemaining";
+    public static final String A_ITEMS_PER_SEC = "itemsPerSec";
+    public static final String A_ETA = "eta";
     public static final String A_DURATION = "duration";
 
     public static final String A_VOLUME_TYPE = "type";
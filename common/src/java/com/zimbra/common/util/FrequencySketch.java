@@ -0,0 +1,123 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.common.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate access-frequency counter used as a TinyLFU admission filter by
+ * bounded caches.  This is a count-min sketch with four hash functions and 4-bit
+ * saturating counters packed sixteen to a {@code long}.  Once the number of
+ * recorded accesses reaches ten times the capacity, every counter is halved so
+ * that the sketch follows changes in popularity instead of remembering items
+ * that were hot a long time ago.
+ * <p>
+ * All operations are lock-free.  Increments that race with a reset may be lost,
+ * which only makes the estimate slightly less accurate.
+ */
+public final class FrequencySketch {
+
+    private static final long[] SEEDS = new long[] {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param capacity the expected maximum number of entries in the cache
+     *                 this sketch is admitting for
+     */
+    public FrequencySketch(int capacity) {
+        int size = 16;
+        while (size < Math.max(capacity, 1) && size < (1 << 30)) {
+            size <<= 1;
+        }
+        table = new AtomicLongArray(size);
+        tableMask = size - 1;
+        sampleSize = (int) Math.min(10L * Math.max(capacity, 1), Integer.MAX_VALUE);
+    }
+
+    /** Returns the estimated number of times {@code key} was recorded, at most 15. */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            int count = (int) ((table.get(index) >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Records one access of {@code key}. */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i), offsetOf(hash, i));
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        long mask = 0xfL << offset;
+        while (true) {
+            long current = table.get(index);
+            if ((current & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, current, current + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        additions = 0;
+        for (int i = 0; i < table.length(); i++) {
+            long current = table.get(i);
+            table.set(i, (current >>> 1) & RESET_MASK);
+        }
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private int offsetOf(int hash, int i) {
+        // each long holds sixteen 4-bit counters; use a different nibble per hash function
+        return (((hash >>> (i << 3)) & 3) << 2) + (i << 4);
+    }
+
+    private static int spread(int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
@@ -25,6 +25,8 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
 
@@ -38,6 +40,15 @@ public class MapUtil {
         return new LruMap<K, V>(maxSize);
     }
 
+    /**
+     * Returns a new thread-safe map that evicts the least recently used entries once it holds more than
+     * {@code maxSize} of them.  Unlike {@link #newLruMap}, reads take no lock.
+     */
+    public static <K, V> ConcurrentMap<K, V> newConcurrentLruMap(int maxSize) {
+        Cache<K, V> cache = CacheBuilder.newBuilder().maximumSize(Math.max(maxSize, 0)).<K, V>build();
+        return cache.asMap();
+    }
+
     /**
      * Returns a new {@code Map} that maps a key to a {@code List} of values.
      * When {@code get()} is called on a key that does not exist in the map,
@@ -17,9 +17,16 @@
 package com.zimbra.common.util;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import javax.servlet.ServletOutputStream;
 
+import com.google.common.base.Charsets;
 import com.zimbra.common.localconfig.LC;
 
 
@@ -57,57 +64,102 @@ import com.zimbra.common.localconfig.LC;
  * This wrapper implements the append methods by converting data to UTF-8 and 
  * write to the ServletOutputStream.  This way IOexception won't be eaten(problem of doing 1), 
  * and we don't interfere with jetty's process in deciding on the transfer encoding(problem of doing 2).
+ *
+ * Chars are collected in a fixed buffer and encoded straight into bytes by a per-thread encoder, so writing a
+ * response allocates nothing beyond the buffer itself.
  */
 
 public class ZimbraServletOutputStream implements Appendable {
 
     private static final int BUFFER_SIZE = LC.zimbra_servlet_output_stream_buffer_size.intValueWithinRange(512, 20480);
-    ServletOutputStream mOut;
-    
-    // buffer to avoid frequent toString().getBytes()
-    StringBuilder mBuffer = new StringBuilder(BUFFER_SIZE);
-    
+
+    // encoding state is reset on every flush, so one encoder per thread can serve any number of streams
+    private static final ThreadLocal<Utf8Encoder> ENCODER = new ThreadLocal<Utf8Encoder>() {
+        @Override
+        protected Utf8Encoder initialValue() {
+            return new Utf8Encoder();
+        }
+    };
+
+    private static final class Utf8Encoder {
+        final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 3);
+    }
+
+    OutputStream mOut;
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mCount = 0;
+
     public ZimbraServletOutputStream(ServletOutputStream out) {
         mOut = out;
     }
-    
+
+    /** Encodes to any stream, e.g. to a {@link BufferStream} when the length has to be known up front. */
+    public ZimbraServletOutputStream(OutputStream out) {
+        mOut = out;
+    }
+
     public Appendable append(CharSequence csq) throws IOException {
         append(csq, 0, csq.length());
         return this;
     }
 
     public Appendable append(char c) throws IOException {
-        if (mBuffer.length() + 1 > BUFFER_SIZE)
-            flush();
-        mBuffer.append(c);
+        if (mCount == BUFFER_SIZE)
+            flushBuffer(false);
+        mBuffer[mCount++] = c;
         return this;
     }
 
     public Appendable append(CharSequence csq, int start, int end) throws IOException {
-        int lenToAppend = end - start;
-        
-        if (lenToAppend >= BUFFER_SIZE) {
-            // data to append itself exceeds our threshold, don't let the buffer grow(realloc)
-            flush(); // flush existing data in the buffer
-            write(csq.subSequence(start, end).toString()); // then directly flush this append data out without buffering
-        } else {
-            if (mBuffer.length() + lenToAppend > BUFFER_SIZE)
-                flush();
-            mBuffer.append(csq, start, end);
+        // data larger than the buffer goes out in buffer-sized pieces, so the buffer never grows(realloc)
+        while (start < end) {
+            if (mCount == BUFFER_SIZE)
+                flushBuffer(false);
+            int len = Math.min(end - start, BUFFER_SIZE - mCount);
+            if (csq instanceof String) {
+                ((String) csq).getChars(start, start + len, mBuffer, mCount);
+            } else if (csq instanceof StringBuilder) {
+                ((StringBuilder) csq).getChars(start, start + len, mBuffer, mCount);
+            } else {
+                for (int i = 0; i < len; i++)
+                    mBuffer[mCount + i] = csq.charAt(start + i);
+            }
+            mCount += len;
+            start += len;
         }
-        
         return this;
     }
-    
-    private void write(String str) throws IOException {
-        mOut.write(str.getBytes("utf-8"));
+
+    /**
+     * Encodes the buffered chars and writes them out.  Unless this is the end of the output, a trailing high
+     * surrogate stays in the buffer until the low surrogate it pairs with has been appended.
+     */
+    private void flushBuffer(boolean endOfInput) throws IOException {
+        if (mCount == 0)
+            return;
+        Utf8Encoder enc = ENCODER.get();
+        CharsetEncoder encoder = enc.encoder.reset();
+        ByteBuffer bytes = enc.bytes;
+        CharBuffer chars = CharBuffer.wrap(mBuffer, 0, mCount);
+        CoderResult result;
+        do {
+            bytes.clear();
+            result = encoder.encode(chars, bytes, endOfInput);
+            if (endOfInput && result.isUnderflow())
+                result = encoder.flush(bytes);
+            mOut.write(bytes.array(), 0, bytes.position());
+        } while (result.isOverflow());
+
+        int left = chars.remaining();
+        System.arraycopy(mBuffer, mCount - left, mBuffer, 0, left);
+        mCount = left;
     }
-    
+
     public void flush() throws IOException {
-        if (mBuffer.length() > 0) {
-            write(mBuffer.toString());
-            mBuffer.setLength(0);
-        }
+        flushBuffer(true);
     }
 
 }
@@ -47,6 +47,20 @@ public class ReindexProgressInfo {
     @XmlAttribute(name=AdminConstants.A_NUM_REMAINING /* numRemaining */, required=true)
     private final int numRemaining;
 
+    /**
+     * @zm-api-field-tag items-per-sec
+     * @zm-api-field-description Number of items re-indexed per second so far
+     */
+    @XmlAttribute(name=AdminConstants.A_ITEMS_PER_SEC /* itemsPerSec */, required=false)
+    private Long itemsPerSec;
+
+    /**
+     * @zm-api-field-tag eta
+     * @zm-api-field-description Estimated number of seconds until the re-index completes
+     */
+    @XmlAttribute(name=AdminConstants.A_ETA /* eta */, required=false)
+    private Long eta;
+
     /**
      * no-argument constructor wanted by JAXB
      */
@@ -65,4 +79,9 @@ public class ReindexProgressInfo {
     public int getNumSucceeded() { return numSucceeded; }
     public int getNumFailed() { return numFailed; }
     public int getNumRemaining() { return numRemaining; }
+
+    public void setItemsPerSec(Long itemsPerSec) { this.itemsPerSec = itemsPerSec; }
+    public void setEta(Long eta) { this.eta = eta; }
+    public Long getItemsPerSec() { return itemsPerSec; }
+    public Long getEta() { return eta; }
 }
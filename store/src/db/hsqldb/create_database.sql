@@ -74,7 +74,7 @@ CREATE TABLE *{DATABASE_NAME}.mail_item_dumpster (
    recipients    VARCHAR(128),
    subject       VARCHAR(255),
    name          VARCHAR(255),
-   metadata      VARCHAR(255),
+   metadata      VARCHAR(1000000),
    mod_metadata  INTEGER NOT NULL,
    change_date   INTEGER,
    mod_content   INTEGER NOT NULL,
@@ -93,7 +93,7 @@ CREATE TABLE *{DATABASE_NAME}.revision (
    locator       VARCHAR(1024),
    blob_digest   VARCHAR(44),
    name          VARCHAR(255),
-   metadata      VARCHAR(255),
+   metadata      VARCHAR(1000000),
    mod_metadata  INTEGER NOT NULL,
    change_date   INTEGER,
    mod_content   INTEGER NOT NULL,
@@ -113,7 +113,7 @@ CREATE TABLE *{DATABASE_NAME}.revision_dumpster (
    locator       VARCHAR(1024),
    blob_digest   VARCHAR(44),
    name          VARCHAR(255),
-   metadata      VARCHAR(255),
+   metadata      VARCHAR(1000000),
    mod_metadata  INTEGER NOT NULL,
    change_date   INTEGER,
    mod_content   INTEGER NOT NULL,
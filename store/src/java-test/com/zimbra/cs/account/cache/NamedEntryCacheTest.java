@@ -0,0 +1,133 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.account.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Cos;
+import com.zimbra.cs.account.MockCos;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+
+public class NamedEntryCacheTest {
+
+    private static Cos cos(String name, String id) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, id);
+        return new MockCos(name, id, attrs, null);
+    }
+
+    @Test
+    public void hit() {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 60000);
+        Cos cos = cos("cos1", "id1");
+        cache.put(cos);
+        Assert.assertSame(cos, cache.getByName("COS1"));
+        Assert.assertSame(cos, cache.getById("id1"));
+        Assert.assertNull(cache.getByName("cos2"));
+        Assert.assertEquals(1, cache.getSize());
+
+        cache.remove(cos);
+        Assert.assertNull(cache.getById("id1"));
+    }
+
+    @Test
+    public void refreshAhead() throws Exception {
+        final List<NamedEntry> reloaded = new ArrayList<NamedEntry>();
+        final AtomicReference<NamedEntryCache<Cos>> cacheRef = new AtomicReference<NamedEntryCache<Cos>>();
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 800,
+                new EntryRefresher(MoreExecutors.sameThreadExecutor(), 25) {
+            @Override
+            void reload(NamedEntry entry) {
+                reloaded.add(entry);
+                cacheRef.get().replace((Cos) entry);
+            }
+        });
+        cacheRef.set(cache);
+        Cos cos = cos("cos1", "id1");
+        cache.put(cos);
+        Assert.assertSame(cos, cache.getByName("cos1"));
+        Assert.assertTrue(reloaded.isEmpty());
+
+        Thread.sleep(650);
+        // the lookup is answered from the cache and the entry is reloaded in the background
+        Assert.assertSame(cos, cache.getByName("cos1"));
+        Assert.assertEquals(1, reloaded.size());
+        Assert.assertSame(cos, cache.getById("id1"));
+        Assert.assertEquals(1, reloaded.size());
+
+        // the reload extended the entry's life
+        Thread.sleep(450);
+        Assert.assertSame(cos, cache.getByName("cos1"));
+        Assert.assertEquals(1, reloaded.size());
+    }
+
+    @Test
+    public void refreshFailed() throws Exception {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 100,
+                new EntryRefresher(MoreExecutors.sameThreadExecutor(), 50) {
+            @Override
+            void reload(NamedEntry entry) throws ServiceException {
+                throw ServiceException.FAILURE("LDAP is down", null);
+            }
+        });
+        Cos cos = cos("cos1", "id1");
+        cache.put(cos);
+        Thread.sleep(75);
+        Assert.assertSame(cos, cache.getByName("cos1"));
+        // not reloaded by the end of the window
+        Thread.sleep(100);
+        Assert.assertNull(cache.getByName("cos1"));
+    }
+
+    @Test
+    public void expired() throws Exception {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 100);
+        cache.put(cos("cos1", "id1"));
+        Thread.sleep(150);
+        Assert.assertNull(cache.getByName("cos1"));
+        Assert.assertNull(cache.getByName("cos1"));
+    }
+
+    @Test
+    public void missing() {
+        NamedEntryCache<Cos> cache = new NamedEntryCache<Cos>(10, 60000, null, new MissingNames(10, 60000));
+        Assert.assertFalse(cache.isMissing("cos1"));
+        cache.putMissing("COS1");
+        Assert.assertTrue(cache.isMissing("cos1"));
+        cache.put(cos("cos1", "id1"));
+        Assert.assertFalse(cache.isMissing("cos1"));
+
+        cache.putMissing("cos2");
+        cache.removeMissing("Cos2");
+        Assert.assertFalse(cache.isMissing("cos2"));
+
+        cache = new NamedEntryCache<Cos>(10, 60000, null, new MissingNames(10, 0));
+        cache.putMissing("cos1");
+        Assert.assertFalse(cache.isMissing("cos1"));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+public class ImapFolderCodecTest {
+
+    private static ImapFolder folder(int count) {
+        List<ImapMessage> messages = new ArrayList<ImapMessage>();
+        for (int i = 0; i < count; i++) {
+            String[] tags = i % 10 == 0 ? new String[] { "work", i % 20 == 0 ? "urgent" : "later" } : null;
+            int flags = i % 3 == 0 ? Flag.BITMASK_UNREAD : Flag.BITMASK_FLAGGED;
+            ImapMessage i4msg = new ImapMessage(300 + i * 2, MailItem.Type.MESSAGE, 300 + i * 2 - (i % 7 == 0 ? 1 : 0),
+                    flags, tags);
+            i4msg.sequence = i + 1;
+            if (i == count - 1) {
+                i4msg.sflags = ImapMessage.FLAG_RECENT | ImapMessage.FLAG_SPAM;
+            }
+            messages.add(i4msg);
+        }
+        ImapFlagCache tags = new ImapFlagCache();
+        tags.cache(new ImapFlag("work", "work", 64, 0, true, true, true, 17));
+        tags.cache(new ImapFlag("urgent", "urgent", 65, 0, true, true, true, 18));
+        return new ImapFolder(2, 1234, null, ImapHandler.ITEM_TYPES, messages, tags);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder folder = folder(1000);
+        ImapFolder copy = ImapFolderCodec.decode(ImapFolderCodec.encode(folder));
+
+        Assert.assertEquals(2, copy.getId());
+        Assert.assertEquals(1234, copy.getUIDValidity());
+        Assert.assertFalse(copy.isVirtual());
+        Assert.assertSame(ImapHandler.ITEM_TYPES, copy.getTypeConstraint());
+        Assert.assertEquals(1000, copy.getSize());
+        for (int seq = 1; seq <= folder.getSize(); seq++) {
+            ImapMessage expected = folder.getBySequence(seq, true);
+            ImapMessage actual = copy.getBySequence(seq, true);
+            Assert.assertEquals(expected.sequence, actual.sequence);
+            Assert.assertEquals(expected.msgId, actual.msgId);
+            Assert.assertEquals(expected.imapUid, actual.imapUid);
+            Assert.assertEquals(expected.flags, actual.flags);
+            Assert.assertEquals(expected.sflags, actual.sflags);
+            Assert.assertArrayEquals(expected.tags, actual.tags);
+        }
+        ImapFlag work = copy.getTagset().getByImapName("work");
+        Assert.assertNotNull(work);
+        Assert.assertEquals(64, work.mId);
+        Assert.assertEquals(17, work.mModseq);
+        Assert.assertTrue(work.mPermanent);
+    }
+
+    @Test
+    public void searchFolder() throws Exception {
+        ImapFolder folder = new ImapFolder(257, -5, "in:inbox is:unread", EnumSet.of(MailItem.Type.MESSAGE),
+                new ArrayList<ImapMessage>(), new ImapFlagCache());
+        ImapFolder copy = ImapFolderCodec.decode(ImapFolderCodec.encode(folder));
+        Assert.assertEquals(-5, copy.getUIDValidity());
+        Assert.assertTrue(copy.isVirtual());
+        Assert.assertEquals("in:inbox is:unread", copy.getQuery());
+        Assert.assertEquals(EnumSet.of(MailItem.Type.MESSAGE), copy.getTypeConstraint());
+        Assert.assertEquals(0, copy.getSize());
+    }
+
+    @Test
+    public void smallerThanJavaSerialization() throws Exception {
+        ImapFolder folder = folder(10000);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(folder);
+        oout.close();
+        int encoded = ImapFolderCodec.encode(folder).length;
+        Assert.assertTrue(encoded + " vs " + bout.size(), encoded * 4 < bout.size());
+    }
+
+    @Test
+    public void rejectsForeignData() throws Exception {
+        byte[] data = ImapFolderCodec.encode(folder(10));
+        try {
+            ImapFolderCodec.decode(new byte[] { (byte) 0xac, (byte) 0xed, 0, 5 });
+            Assert.fail("decoded Java serialization stream");
+        } catch (IOException expected) {
+        }
+        try {
+            ImapFolderCodec.decode(Arrays.copyOf(data, data.length - 3));
+            Assert.fail("decoded truncated data");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void ehcacheSerializer() throws Exception {
+        ImapFolderCodec.EhcacheSerializer serializer = new ImapFolderCodec.EhcacheSerializer();
+        ImapFolder folder = folder(50);
+        ImapFolder copy = serializer.read(serializer.serialize(folder));
+        Assert.assertEquals(50, copy.getSize());
+        Assert.assertTrue(serializer.equals(folder, serializer.serialize(copy)));
+
+        // entries written by Ehcache's default Java serializer are still readable
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(folder);
+        oout.close();
+        copy = serializer.read(ByteBuffer.wrap(bout.toByteArray()));
+        Assert.assertEquals(50, copy.getSize());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+public final class ImapMessageTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static Message addMessage(Mailbox mbox) throws Exception {
+        InputStream is = ImapMessageTest.class.getResourceAsStream("calendar-bounce");
+        byte[] data = ByteUtil.getContent(is, -1);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        return mbox.addMessage(null, new ParsedMessage(data, false), dopt, null);
+    }
+
+    private static String serializeStructure(MimeMessage mm) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, false, "UTF-8");
+        ImapMessage.serializeStructure(ps, mm, true);
+        ps.flush();
+        return baos.toString("UTF-8");
+    }
+
+    private static String serializeEnvelope(MimeMessage mm) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, false, "UTF-8");
+        ImapMessage.serializeEnvelope(ps, mm);
+        ps.flush();
+        return baos.toString("UTF-8");
+    }
+
+    @Test
+    public void precomputedAtDelivery() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Message msg = addMessage(mbox);
+
+        MimeMessage mm = ImapMessage.getMimeMessage(msg);
+        Assert.assertEquals(serializeStructure(mm), msg.getImapBodyStructure());
+        Assert.assertEquals(serializeEnvelope(mm), msg.getImapEnvelope());
+    }
+
+    @Test
+    public void backfill() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        int maxSize = LC.imap_precomputed_structure_max_size.intValue();
+        Message msg;
+        LC.imap_precomputed_structure_max_size.setDefault(0);
+        try {
+            msg = addMessage(mbox);
+        } finally {
+            LC.imap_precomputed_structure_max_size.setDefault(maxSize);
+        }
+        Assert.assertNull(msg.getImapBodyStructure());
+        Assert.assertNull(msg.getImapEnvelope());
+
+        int modseq = msg.getModifiedSequence();
+        MimeMessage mm = ImapMessage.getMimeMessage(msg);
+        String bodystructure = serializeStructure(mm), envelope = serializeEnvelope(mm);
+        // content changed since the structure was computed: ignored
+        mbox.setImapStructure(msg.getId(), msg.getSavedSequence() - 1, bodystructure, envelope);
+        Assert.assertNull(mbox.getMessageById(null, msg.getId()).getImapBodyStructure());
+
+        mbox.setImapStructure(msg.getId(), msg.getSavedSequence(), bodystructure, envelope);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(bodystructure, msg.getImapBodyStructure());
+        Assert.assertEquals(envelope, msg.getImapEnvelope());
+        Assert.assertEquals(modseq, msg.getModifiedSequence());
+    }
+}
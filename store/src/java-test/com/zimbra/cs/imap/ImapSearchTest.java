@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public final class ImapSearchTest {
+    private ImapFolder i4folder;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Account acct = Provisioning.getInstance().getAccountByName("test@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        i4folder = new ImapFolder(new ImapPath(null, inbox, creds), (byte) 0, null);
+        for (int i = 0; i < 100; i++) {
+            int flags = (i % 3 == 0 ? Flag.BITMASK_UNREAD : 0) | (i % 5 == 0 ? Flag.BITMASK_FLAGGED : 0);
+            i4folder.cache(new ImapMessage(1000 + i, MailItem.Type.MESSAGE, 200 + i * 2, flags, null), false);
+        }
+        i4folder.getBySequence(10).setExpunged(true);
+    }
+
+    /** Checks that the bitmap evaluation matches the evaluation on message sets. */
+    private BitSet evaluate(ImapSearch i4search) throws Exception {
+        BitSet bits = i4search.evaluateBits(i4folder);
+        ImapMessage.ImapMessageSet expected = i4search.evaluate(i4folder);
+        expected.remove(null);
+        Assert.assertEquals(expected, i4folder.getMessages(bits));
+        return bits;
+    }
+
+    @Test
+    public void flags() throws Exception {
+        Assert.assertEquals(34, evaluate(new ImapSearch.NotOperation(new ImapSearch.FlagSearch("\\Seen"))).cardinality());
+        Assert.assertEquals(20, evaluate(new ImapSearch.FlagSearch("\\Flagged")).cardinality());
+        Assert.assertEquals(80, evaluate(new ImapSearch.NotOperation(new ImapSearch.FlagSearch("\\Flagged"))).cardinality());
+        Assert.assertTrue(evaluate(new ImapSearch.FlagSearch("nosuchflag")).isEmpty());
+        Assert.assertEquals(100, evaluate(new ImapSearch.AllSearch()).cardinality());
+        Assert.assertTrue(evaluate(new ImapSearch.NoneSearch()).isEmpty());
+    }
+
+    @Test
+    public void sequences() throws Exception {
+        // the expunged message is skipped
+        Assert.assertEquals(9, evaluate(new ImapSearch.SequenceSearch("1", "2:11", false)).cardinality());
+        Assert.assertEquals(2, evaluate(new ImapSearch.SequenceSearch("1", "1,*,500", false)).cardinality());
+        Assert.assertEquals(5, evaluate(new ImapSearch.SequenceSearch("1", "201:210", true)).cardinality());
+        Assert.assertEquals(3, evaluate(new ImapSearch.SequenceSearch("1", "1:202,398:*", true)).cardinality());
+        Assert.assertTrue(evaluate(new ImapSearch.SequenceSearch("1", "1000:2000", true)).isEmpty());
+    }
+
+    @Test
+    public void logical() throws Exception {
+        ImapSearch unseen = new ImapSearch.NotOperation(new ImapSearch.FlagSearch("\\Seen"));
+        ImapSearch flagged = new ImapSearch.FlagSearch("\\Flagged");
+        ImapSearch range = new ImapSearch.SequenceSearch("1", "1:50", false);
+        Assert.assertEquals(4, evaluate(new ImapSearch.AndOperation(unseen, flagged, range)).cardinality());
+        Assert.assertEquals(47, evaluate(new ImapSearch.OrOperation(unseen, flagged)).cardinality());
+        Assert.assertEquals(49, evaluate(new ImapSearch.OrOperation(range, new ImapSearch.NoneSearch())).cardinality());
+    }
+
+    @Test
+    public void splitAnd() throws Exception {
+        ImapSearch unseen = new ImapSearch.NotOperation(new ImapSearch.FlagSearch("\\Seen"));
+        ImapSearch text = new ImapSearch.ContentSearch("foo");
+        ImapSearch.AndOperation and = new ImapSearch.AndOperation(unseen, text);
+        Assert.assertFalse(and.canBeRunLocally());
+        Assert.assertEquals(unseen.evaluateBits(i4folder), and.evaluateLocalChildren(i4folder));
+        Assert.assertEquals(text, and.getIndexedChildren());
+
+        and = new ImapSearch.AndOperation(unseen, new ImapSearch.FlagSearch("\\Flagged"));
+        Assert.assertEquals(new ImapSearch.AllSearch(), and.getIndexedChildren());
+        Assert.assertNull(new ImapSearch.AndOperation(text).evaluateLocalChildren(i4folder));
+    }
+}
@@ -16,6 +16,25 @@
  */
 package com.zimbra.cs.index;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mime.ParsedContact;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +46,73 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void partitions() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Contact contact1 = createContact(mbox, "partition1@zimbra.com");
+        Contact contact2 = createContact(mbox, "partition2@zimbra.com");
+        mbox.index.indexDeferredItems(); // so that no background indexing races with the partitions
+        IndexStore index = mbox.index.getIndexStore();
+        index.deleteIndex();
+
+        Indexer first = index.openPartition(0);
+        Indexer second = index.openPartition(1);
+        first.addDocument(null, contact1, contact1.generateIndexData());
+        second.addDocument(null, contact2, contact2.generateIndexData());
+        Assert.assertEquals(1, first.maxDocs());
+
+        List<Indexer> partitions = Arrays.asList(first, second);
+        index.addPartitions(partitions);
+        ZimbraIndexSearcher searcher = index.openSearcher();
+        try {
+            ZimbraTopDocs result = searcher.search(
+                    new TermQuery(new Term(LuceneFields.L_CONTACT_DATA, "@zimbra.com")), 100);
+            Assert.assertEquals(2, result.getTotalHits());
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void discardPartition() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Contact contact = createContact(mbox, "discarded@zimbra.com");
+        mbox.index.indexDeferredItems();
+        IndexStore index = mbox.index.getIndexStore();
+        index.deleteIndex();
+
+        Indexer partition = index.openPartition(0);
+        partition.addDocument(null, contact, contact.generateIndexData());
+        partition.close(); // discarded without being added
+
+        index.addPartitions(Collections.<Indexer>emptyList());
+        ZimbraIndexSearcher searcher = index.openSearcher();
+        try {
+            Assert.assertEquals(0, searcher.getIndexReader().numDocs());
+        } finally {
+            searcher.close();
+        }
+    }
+
+    /**
+     * Deleting the index also deletes the partitions a crashed re-index left behind.
+     */
+    @Test
+    public void deleteLeftoverPartitions() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        IndexStore index = mbox.index.getIndexStore();
+        Volume volume = VolumeManager.getInstance().getVolume(mbox.getIndexVolume());
+        File leftover = new File(volume.getMailboxDir(mbox.getId(), Volume.TYPE_INDEX), "partition-3");
+        Assert.assertTrue(leftover.mkdirs());
+        Assert.assertTrue(new File(leftover, "segments_1").createNewFile());
+
+        index.deleteIndex();
+        Assert.assertFalse(leftover.exists());
+    }
+
+    private Contact createContact(Mailbox mbox, String email) throws Exception {
+        return mbox.createContact(null, new ParsedContact(Collections.singletonMap(ContactConstants.A_email, email)),
+                Mailbox.ID_FOLDER_CONTACTS, null);
+    }
 }
@@ -0,0 +1,115 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class LuceneMergeSchedulerTest {
+
+    @Test
+    public void smallestFirst() throws Exception {
+        LuceneMergeScheduler scheduler = new LuceneMergeScheduler(1, 0L);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        Assert.assertTrue(scheduler.submit(1, 10, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                }
+                order.add(1);
+                done.countDown();
+            }
+        }));
+        // wait for the first request to occupy the only thread
+        while (scheduler.getQueueSize() > 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        for (final int mbox : new int[] {2, 3, 4}) {
+            Assert.assertTrue(scheduler.submit(mbox, 1000 / mbox, new Runnable() {
+                @Override
+                public void run() {
+                    order.add(mbox);
+                    done.countDown();
+                }
+            }));
+        }
+        blocked.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(1, 4, 3, 2), order);
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        LuceneMergeScheduler scheduler = new LuceneMergeScheduler(1, 0L);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                }
+                done.countDown();
+            }
+        };
+        Assert.assertTrue(scheduler.submit(1, 10, task));
+        while (scheduler.getQueueSize() > 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        // the running request does not block a new one, but a queued request does
+        Assert.assertTrue(scheduler.submit(1, 10, task));
+        Assert.assertFalse(scheduler.submit(1, 10, task));
+        Assert.assertTrue(scheduler.getBacklog(1).isQueued());
+        blocked.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && scheduler.getBacklog(1) != null; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertNull(scheduler.getBacklog(1));
+    }
+
+    @Test
+    public void throttle() throws Exception {
+        LuceneMergeScheduler scheduler = new LuceneMergeScheduler(1, 1024L * 1024L);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            scheduler.throttle(128 * 1024);
+        }
+        // the first reservation starts immediately, the other four wait 125ms each
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue(String.valueOf(elapsed), elapsed >= 450);
+
+        scheduler = new LuceneMergeScheduler(1, 0L);
+        start = System.nanoTime();
+        scheduler.throttle(Long.MAX_VALUE / 2);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit test for {@link ElasticSearchBulkIndexer} against a stub {@code _bulk} endpoint.
+ */
+public final class ElasticSearchBulkIndexerTest {
+
+    private HttpServer server;
+    private String urlBase;
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    /** Item statuses for the next responses; missing statuses default to 201. */
+    private final LinkedBlockingQueue<int[]> statuses = new LinkedBlockingQueue<int[]>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/_bulk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), Charsets.UTF_8);
+                requests.add(body);
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                int[] codes = statuses.poll();
+                try {
+                    JSONArray items = new JSONArray();
+                    String[] lines = body.split("\n");
+                    boolean errors = false;
+                    for (int i = 0; i < lines.length / 2; i++) {
+                        int status = codes != null && i < codes.length ? codes[i] : 201;
+                        JSONObject result = new JSONObject().put("status", status);
+                        if (status >= 300) {
+                            result.put("error", "EsRejectedExecutionException");
+                            errors = true;
+                        }
+                        items.put(new JSONObject().put("index", result));
+                    }
+                    byte[] response = new JSONObject().put("took", 1).put("errors", errors).put("items", items)
+                            .toString().getBytes(Charsets.UTF_8);
+                    exchange.sendResponseHeaders(200, response.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                } catch (Exception e) {
+                    exchange.sendResponseHeaders(500, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        urlBase = String.format("http://127.0.0.1:%d/", server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static JSONObject doc(int n) throws Exception {
+        return new JSONObject().put("l.mbox_blob_id", String.valueOf(n));
+    }
+
+    private List<JSONObject> sources(String request) throws Exception {
+        List<JSONObject> result = new ArrayList<JSONObject>();
+        String[] lines = request.split("\n");
+        for (int i = 1; i < lines.length; i += 2) {
+            result.add(new JSONObject(lines[i]));
+        }
+        return result;
+    }
+
+    @Test
+    public void sizeTrigger() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 3, Long.MAX_VALUE, 3);
+        bulk.add("acct1", 257, 0, doc(257));
+        bulk.add("acct1", 300, 0, doc(300));
+        Assert.assertTrue(requests.isEmpty());
+        Assert.assertEquals(2, bulk.getPendingCount());
+        bulk.add("acct1", 258, 1, doc(258));
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals(0, bulk.getPendingCount());
+        Assert.assertEquals(3, bulk.flush());
+        Assert.assertEquals(1, requests.size());
+
+        String[] lines = requests.get(0).split("\n");
+        Assert.assertEquals(6, lines.length);
+        JSONObject meta = new JSONObject(lines[4]).getJSONObject("index");
+        Assert.assertEquals("acct1", meta.getString("_index"));
+        Assert.assertEquals("zimbra", meta.getString("_type"));
+        Assert.assertEquals("258_1", meta.getString("_id"));
+        Assert.assertEquals("258", new JSONObject(lines[5]).getString("l.mbox_blob_id"));
+    }
+
+    @Test
+    public void retryFailedItems() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 100, Long.MAX_VALUE, 2);
+        statuses.add(new int[] {201, 429, 201, 503});
+        for (int i = 0; i < 4; i++) {
+            bulk.add("acct1", i, 0, doc(i));
+        }
+        // the transient failures are resent right away
+        Assert.assertEquals(4, bulk.flush());
+        Assert.assertEquals(2, requests.size());
+        List<JSONObject> resent = sources(requests.get(1));
+        Assert.assertEquals(2, resent.size());
+        Assert.assertEquals("1", resent.get(0).getString("l.mbox_blob_id"));
+        Assert.assertEquals("3", resent.get(1).getString("l.mbox_blob_id"));
+    }
+
+    @Test
+    public void failedItems() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 100, Long.MAX_VALUE, 1);
+        statuses.add(new int[] {201, 400, 503});
+        statuses.add(new int[] {503});
+        for (int i = 0; i < 3; i++) {
+            bulk.add("acct1", i, 0, doc(i));
+        }
+        // a permanent failure, and a transient one that is out of retries
+        try {
+            bulk.flush();
+            Assert.fail("expected the flush to fail");
+        } catch (IOException e) {
+            Assert.assertEquals("2 of 3 documents could not be indexed", e.getMessage());
+        }
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(0, bulk.getPendingCount());
+        Assert.assertEquals(0, bulk.flush());
+    }
+
+    @Test
+    public void discardAndReuseConnection() throws Exception {
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 100, Long.MAX_VALUE, 3);
+        bulk.add("acct1", 1, 0, doc(1));
+        bulk.add("acct1", 1, 1, doc(1));
+        bulk.add("acct1", 2, 0, doc(2));
+        bulk.discard(Arrays.asList(1));
+        Assert.assertEquals(1, bulk.getPendingCount());
+        for (int i = 0; i < 5; i++) {
+            bulk.add("acct1", i, 1, doc(i));
+            bulk.flush();
+        }
+        Assert.assertEquals(5, requests.size());
+        Assert.assertEquals(2, sources(requests.get(0)).size());
+        Assert.assertEquals("connections: " + clientPorts, 1, clientPorts.size());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.lmtpserver;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageIdDedupeCacheTest {
+
+    @Test
+    public void addAndRemove() {
+        MessageIdDedupeCache cache = new MessageIdDedupeCache(100, 0);
+        cache.add("<1@example.com>", 1);
+        Assert.assertTrue(cache.contains("<1@example.com>", 1));
+        Assert.assertFalse(cache.contains("<1@example.com>", 2));
+        Assert.assertFalse(cache.contains("<2@example.com>", 1));
+
+        cache.add("<1@example.com>", 1);
+        Assert.assertEquals(1, cache.size());
+        cache.remove("<1@example.com>", 1);
+        Assert.assertFalse(cache.contains("<1@example.com>", 1));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void sizeLimit() {
+        MessageIdDedupeCache cache = new MessageIdDedupeCache(10, 0);
+        for (int i = 0; i < 100; i++) {
+            cache.add("<" + i + "@example.com>", 1);
+        }
+        Assert.assertEquals(10, cache.size());
+        Assert.assertFalse(cache.contains("<0@example.com>", 1));
+        Assert.assertTrue(cache.contains("<99@example.com>", 1));
+
+        // shrinking keeps the latest entries
+        cache.configure(5, 0);
+        Assert.assertEquals(5, cache.size());
+        Assert.assertTrue(cache.contains("<99@example.com>", 1));
+        Assert.assertFalse(cache.contains("<94@example.com>", 1));
+
+        cache.configure(0, 0);
+        cache.add("<100@example.com>", 1);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertFalse(cache.contains("<100@example.com>", 1));
+    }
+
+    @Test
+    public void manyMailboxes() {
+        // a message to a large distribution list counts once against the size limit
+        MessageIdDedupeCache cache = new MessageIdDedupeCache(10, 0);
+        for (int i = 5000; i > 0; i--) {
+            cache.add("<dl@example.com>", i * 3);
+        }
+        Assert.assertEquals(1, cache.size());
+        for (int i = 1; i <= 5000; i++) {
+            Assert.assertTrue(cache.contains("<dl@example.com>", i * 3));
+            Assert.assertFalse(cache.contains("<dl@example.com>", i * 3 + 1));
+        }
+        cache.remove("<dl@example.com>", 3);
+        Assert.assertFalse(cache.contains("<dl@example.com>", 3));
+        Assert.assertTrue(cache.contains("<dl@example.com>", 6));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void timeoutOnly() {
+        // with a timeout, the size limit doesn't apply
+        MessageIdDedupeCache cache = new MessageIdDedupeCache(10, 3600 * 1000L);
+        for (int i = 0; i < 1000; i++) {
+            cache.add("<" + i + "@example.com>", 1);
+        }
+        Assert.assertEquals(1000, cache.size());
+        Assert.assertTrue(cache.contains("<0@example.com>", 1));
+
+        cache.configure(10, 0);
+        Assert.assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void manySegments() {
+        MessageIdDedupeCache cache = new MessageIdDedupeCache(50000, 0);
+        for (int i = 0; i < 20000; i++) {
+            cache.add("<" + i + "@example.com>", i % 7);
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            cache.remove("<" + i + "@example.com>", i % 7);
+        }
+        Assert.assertEquals(10000, cache.size());
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertEquals(i % 2 == 1, cache.contains("<" + i + "@example.com>", i % 7));
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        MessageIdDedupeCache cache = new MessageIdDedupeCache(100, 1000);
+        cache.add("<1@example.com>", 1);
+        Assert.assertTrue(cache.contains("<1@example.com>", 1));
+        Thread.sleep(2100);
+        Assert.assertFalse(cache.contains("<1@example.com>", 1));
+        cache.add("<2@example.com>", 1);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertTrue(cache.contains("<2@example.com>", 1));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = File.createTempFile("dedupe", ".dat");
+        try {
+            MessageIdDedupeCache cache = new MessageIdDedupeCache(100, 0);
+            for (int i = 0; i < 20; i++) {
+                cache.add("<" + i + "@example.com>", 1);
+            }
+            cache.add("<0@example.com>", 2);
+            cache.remove("<3@example.com>", 1);
+            cache.save(file);
+
+            MessageIdDedupeCache loaded = new MessageIdDedupeCache(100, 0);
+            Assert.assertEquals(19, loaded.load(file));
+            Assert.assertTrue(loaded.contains("<0@example.com>", 1));
+            Assert.assertTrue(loaded.contains("<0@example.com>", 2));
+            Assert.assertTrue(loaded.contains("<19@example.com>", 1));
+            Assert.assertFalse(loaded.contains("<3@example.com>", 1));
+        } finally {
+            file.delete();
+        }
+        Assert.assertEquals(-1, new MessageIdDedupeCache(100, 0).load(file));
+    }
+}
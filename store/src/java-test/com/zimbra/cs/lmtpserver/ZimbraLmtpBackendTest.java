@@ -0,0 +1,72 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public final class ZimbraLmtpBackendTest {
+
+    private static final int RECIPIENTS = 20;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            prov.createAccount("rcpt" + i + "@zimbra.com", "secret", new HashMap<String, Object>());
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void deliverToManyRecipients() throws Exception {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@zimbra.com>", null, null));
+        for (int i = 0; i < RECIPIENTS; i++) {
+            env.addLocalRecipient(new LmtpAddress("<rcpt" + i + "@zimbra.com>", null, null));
+        }
+        byte[] data = ("From: sender@zimbra.com\r\nTo: list@zimbra.com\r\nSubject: parallel\r\n" +
+                "Message-ID: <parallel@zimbra.com>\r\n\r\nhello\r\n").getBytes("UTF-8");
+
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(data), data.length);
+
+        for (LmtpAddress recipient : env.getLocalRecipients()) {
+            Assert.assertEquals(recipient.getEmailAddress(), LmtpReply.DELIVERY_OK, recipient.getDeliveryStatus());
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(
+                    Provisioning.getInstance().getAccountByName(recipient.getEmailAddress()));
+            Assert.assertEquals(recipient.getEmailAddress(), 1,
+                    mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE).size());
+        }
+    }
+}
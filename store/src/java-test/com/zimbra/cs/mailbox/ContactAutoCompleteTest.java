@@ -269,4 +269,34 @@ public final class ContactAutoCompleteTest {
         ContactAutoComplete autocomplete = new ContactAutoComplete(mbox.getAccount(), new OperationContext(mbox));
         Assert.assertEquals(0, autocomplete.query("noex", null, 10).entries.size());
      }
+
+    @Test
+    public void contactChanges() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        ContactAutoComplete autocomplete = new ContactAutoComplete(mbox.getAccount(), new OperationContext(mbox));
+        Assert.assertEquals(0, autocomplete.query("first", null, 10).entries.size());
+
+        // the contacts are in memory now, later changes have to reach them
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put(ContactConstants.A_firstName, "First");
+        fields.put(ContactConstants.A_email, "test1@zimbra.com");
+        Contact contact = mbox.createContact(null, new ParsedContact(fields), Mailbox.ID_FOLDER_CONTACTS, null);
+        Assert.assertEquals(1, autocomplete.query("fir", null, 10).entries.size());
+        Assert.assertEquals(1, autocomplete.query("test1", null, 10).entries.size());
+        Assert.assertEquals(1, ContactPrefixIndex.get(mbox, autocomplete.getEmailKeys()).size());
+
+        fields.put(ContactConstants.A_firstName, "Second");
+        mbox.modifyContact(null, contact.getId(), new ParsedContact(fields));
+        Assert.assertEquals(0, autocomplete.query("fir", null, 10).entries.size());
+        Assert.assertEquals(1, autocomplete.query("sec", null, 10).entries.size());
+
+        mbox.move(null, contact.getId(), MailItem.Type.CONTACT, Mailbox.ID_FOLDER_TRASH);
+        Assert.assertEquals(0, autocomplete.query("sec", null, 10).entries.size());
+        mbox.move(null, contact.getId(), MailItem.Type.CONTACT, Mailbox.ID_FOLDER_CONTACTS);
+        Assert.assertEquals(1, autocomplete.query("sec", null, 10).entries.size());
+
+        mbox.delete(null, contact.getId(), MailItem.Type.CONTACT);
+        Assert.assertEquals(0, autocomplete.query("sec", null, 10).entries.size());
+        Assert.assertEquals(0, ContactPrefixIndex.get(mbox, autocomplete.getEmailKeys()).size());
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link IndexScheduler}.
+ */
+public final class IndexSchedulerTest {
+
+    private static final class Blocker implements Runnable {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Runnable record(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    /**
+     * Blocks the only index thread so that the test can queue up work behind it.
+     */
+    private static Blocker block(IndexScheduler scheduler) throws Exception {
+        Blocker blocker = new Blocker();
+        scheduler.submit(0, IndexScheduler.Priority.SEARCH, null, blocker);
+        Assert.assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        return blocker;
+    }
+
+    @Test
+    public void priority() throws Exception {
+        IndexScheduler scheduler = new IndexScheduler("IndexSchedulerTest", 1, 1, 100, 100);
+        Blocker blocker = block(scheduler);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.submit(1, IndexScheduler.Priority.REINDEX, null, record(log, "reindex"));
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, record(log, "delivery"));
+        Future<?> last = scheduler.submit(1, IndexScheduler.Priority.SEARCH, null, record(log, "search"));
+        Assert.assertEquals(3, scheduler.getQueueDepth());
+        blocker.release.countDown();
+        last.get(5, TimeUnit.SECONDS);
+        scheduler.submit(1, IndexScheduler.Priority.REINDEX, null, record(log, "end")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(4, log.size());
+        Assert.assertEquals("search", log.get(0));
+        Assert.assertEquals("delivery", log.get(1));
+        Assert.assertEquals("reindex", log.get(2));
+    }
+
+    @Test
+    public void fairness() throws Exception {
+        IndexScheduler scheduler = new IndexScheduler("IndexSchedulerTest", 1, 1, 100, 100);
+        Blocker blocker = block(scheduler);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, record(log, "1a"));
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, record(log, "1b"));
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, record(log, "1c"));
+        scheduler.submit(2, IndexScheduler.Priority.DELIVERY, null, record(log, "2a"));
+        Future<?> last = scheduler.submit(3, IndexScheduler.Priority.DELIVERY, null, record(log, "3a"));
+        blocker.release.countDown();
+        last.get(5, TimeUnit.SECONDS);
+        scheduler.submit(1, IndexScheduler.Priority.REINDEX, null, record(log, "end")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("[1a, 2a, 3a, 1b, 1c, end]", log.toString());
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        IndexScheduler scheduler = new IndexScheduler("IndexSchedulerTest", 1, 1, 100, 100);
+        Blocker blocker = block(scheduler);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        Object key = new Object();
+        Future<?> first = scheduler.submit(1, IndexScheduler.Priority.DELIVERY, key, record(log, "first"));
+        Future<?> second = scheduler.submit(1, IndexScheduler.Priority.DELIVERY, key, record(log, "second"));
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+        blocker.release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        // no longer queued, so the key is accepted again
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, key, record(log, "third")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("[first, third]", log.toString());
+    }
+
+    @Test
+    public void capacity() throws Exception {
+        IndexScheduler scheduler = new IndexScheduler("IndexSchedulerTest", 1, 1, 2, 100);
+        Blocker blocker = block(scheduler);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, record(log, "a"));
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, record(log, "b"));
+        try {
+            scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, record(log, "c"));
+            Assert.fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        // searches are never turned away
+        Future<?> search = scheduler.submit(1, IndexScheduler.Priority.SEARCH, null, record(log, "search"));
+        Assert.assertEquals(3, scheduler.getQueueDepth());
+        blocker.release.countDown();
+        search.get(5, TimeUnit.SECONDS);
+        scheduler.submit(1, IndexScheduler.Priority.REINDEX, null, record(log, "end")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("[search, a, b, end]", log.toString());
+    }
+
+    @Test
+    public void adjust() throws Exception {
+        IndexScheduler scheduler = new IndexScheduler("IndexSchedulerTest", 1, 3, 100, 50);
+        Blocker blocker = block(scheduler);
+        scheduler.submit(1, IndexScheduler.Priority.DELIVERY, null, blocker);
+        Assert.assertEquals(1, scheduler.getTargetThreads());
+        // backlog and CPU to spare: grow
+        scheduler.adjust(0.1);
+        Assert.assertEquals(2, scheduler.getTargetThreads());
+        // over budget: shrink even though there is a backlog
+        scheduler.adjust(0.9);
+        Assert.assertEquals(1, scheduler.getTargetThreads());
+        scheduler.adjust(0.9);
+        Assert.assertEquals(1, scheduler.getTargetThreads()); // never below the minimum
+        blocker.release.countDown();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link ItemCacheBudget}.
+ */
+public final class ItemCacheBudgetTest {
+
+    private static final EvictionListener<Integer, MailItem> NOOP = new EvictionListener<Integer, MailItem>() {
+        @Override
+        public void onEviction(Integer id, MailItem item) {
+        }
+    };
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void share() {
+        ItemCacheBudget budget = new ItemCacheBudget(1024 * 1024, 64 * 1024);
+        List<ConcurrentLinkedHashMap<Integer, MailItem>> maps = new ArrayList<ConcurrentLinkedHashMap<Integer, MailItem>>();
+        for (int i = 0; i < 4; i++) {
+            maps.add(budget.register(NOOP));
+        }
+        Assert.assertEquals(4, budget.getCacheCount());
+        Assert.assertEquals(256 * 1024, budget.getShare());
+        Assert.assertEquals(256 * 1024, maps.get(3).capacity());
+
+        // the first cache picks up its smaller share lazily
+        Assert.assertEquals(1024 * 1024, maps.get(0).capacity());
+        budget.adjust(maps.get(0));
+        Assert.assertEquals(256 * 1024, maps.get(0).capacity());
+
+        budget.unregister(maps.remove(0));
+        Assert.assertEquals(1024 * 1024 / 3, budget.getShare());
+
+        for (int i = 0; i < 100; i++) {
+            maps.add(budget.register(NOOP));
+        }
+        Assert.assertEquals("never below the per-mailbox floor", 64 * 1024, budget.getShare());
+
+        // idle caches are resized by the timer
+        budget.enforce();
+        for (ConcurrentLinkedHashMap<Integer, MailItem> map : maps) {
+            Assert.assertEquals(64 * 1024, map.capacity());
+        }
+    }
+
+    @Test
+    public void evict() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<MailItem> items = new ArrayList<MailItem>();
+        for (int i = 0; i < 10; i++) {
+            items.add(mbox.addMessage(null, new ParsedMessage(("Subject: message " + i).getBytes(), false), dopt, null));
+        }
+        int weight = ItemCacheBudget.weigh(items.get(0));
+        Assert.assertTrue(weight > 0);
+
+        final List<Integer> evicted = new ArrayList<Integer>();
+        ItemCacheBudget budget = new ItemCacheBudget(weight * 4, 1);
+        ConcurrentLinkedHashMap<Integer, MailItem> map = budget.register(new EvictionListener<Integer, MailItem>() {
+            @Override
+            public void onEviction(Integer id, MailItem item) {
+                evicted.add(id);
+            }
+        });
+        for (MailItem item : items) {
+            map.put(item.getId(), item);
+        }
+        Assert.assertEquals(4, map.size());
+        Assert.assertEquals(6, evicted.size());
+        Assert.assertEquals(6, budget.getEvictionCount());
+        Assert.assertEquals(items.get(0).getId(), evicted.get(0).intValue());
+        Assert.assertTrue(map.containsKey(items.get(9).getId()));
+        Assert.assertEquals(map.weightedSize(), budget.getWeightedSize());
+    }
+
+    /**
+     * An item that grows is weighed again when the change is committed.
+     */
+    @Test
+    public void reweigh() throws Exception {
+        ItemCacheBudget budget = MailboxManager.getItemCacheBudget();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, new ParsedMessage("Subject: reweigh".getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+        mbox.getMessageById(null, msg.getId());
+        long before = budget.getWeightedSize();
+
+        StringBuilder desc = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            desc.append("description ");
+        }
+        MailItem.CustomMetadata custom = new MailItem.CustomMetadata("test");
+        custom.put("desc", desc.toString());
+        mbox.setCustomData(null, msg.getId(), MailItem.Type.MESSAGE, custom);
+        Assert.assertTrue(budget.getWeightedSize() >= before + desc.length());
+    }
+
+    @Test
+    public void mailboxCache() throws Exception {
+        ItemCacheBudget budget = MailboxManager.getItemCacheBudget();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, new ParsedMessage("Subject: cached".getBytes(), false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+        int count = budget.getCacheCount();
+        Assert.assertTrue(count > 0);
+
+        mbox.releaseItemCache();
+        Assert.assertEquals(count - 1, budget.getCacheCount());
+        mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(count, budget.getCacheCount());
+    }
+}
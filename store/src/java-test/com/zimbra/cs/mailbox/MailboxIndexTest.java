@@ -0,0 +1,146 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.account.ProvisioningConstants;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.IndexStore;
+import com.zimbra.cs.index.Indexer;
+import com.zimbra.cs.index.LuceneFields;
+import com.zimbra.cs.index.ZimbraIndexSearcher;
+import com.zimbra.cs.mime.ParsedContact;
+
+/**
+ * Unit test for {@link MailboxIndex}.
+ */
+public final class MailboxIndexTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraDumpsterEnabled, ProvisioningConstants.FALSE); // deletes go to the index
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", attrs);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static Contact createContact(Mailbox mbox, String email) throws Exception {
+        return mbox.createContact(null, new ParsedContact(Collections.singletonMap(ContactConstants.A_email, email)),
+                Mailbox.ID_FOLDER_CONTACTS, null);
+    }
+
+    private static int count(Mailbox mbox, String email) throws IOException {
+        ZimbraIndexSearcher searcher = mbox.index.getIndexStore().openSearcher();
+        try {
+            return searcher.search(new TermQuery(new Term(LuceneFields.L_CONTACT_DATA, email)), 100).getTotalHits();
+        } finally {
+            searcher.close();
+        }
+    }
+
+    private static int numDocs(Mailbox mbox) throws IOException {
+        ZimbraIndexSearcher searcher = mbox.index.getIndexStore().openSearcher();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void reIndexPartitioned() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        for (int i = 0; i < 10; i++) {
+            createContact(mbox, "partitioned" + i + "@zimbra.com");
+        }
+        mbox.index.indexDeferredItems();
+
+        MailboxIndex.ReIndexStatus status = new MailboxIndex.ReIndexStatus();
+        mbox.index.reIndexAll(status, 3, 2);
+        Assert.assertEquals(3, status.getPartitions());
+        Assert.assertEquals(10, status.getProcessed());
+        Assert.assertEquals(0, status.getFailed());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(1, count(mbox, "partitioned" + i + "@zimbra.com"));
+        }
+        Assert.assertEquals(10, numDocs(mbox));
+
+        // every item is marked indexed, so nothing is indexed twice
+        mbox.index.indexDeferredItems();
+        Assert.assertEquals(10, numDocs(mbox));
+    }
+
+    /**
+     * Items changed or deleted while the partitions are built don't end up in the index with stale data.
+     */
+    @Test
+    public void touchedDuringReIndex() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Contact kept = createContact(mbox, "kept@zimbra.com");
+        Contact changed = createContact(mbox, "before@zimbra.com");
+        Contact deleted = createContact(mbox, "deleted@zimbra.com");
+        mbox.index.indexDeferredItems();
+
+        IndexStore index = mbox.index.getIndexStore();
+        index.deleteIndex();
+        mbox.index.setIndexingSuspended(true);
+        try {
+            mbox.index.trackChanges();
+            Indexer partition = index.openPartition(0);
+            for (Contact contact : Arrays.asList(kept, changed, deleted)) {
+                partition.addDocument(null, contact, contact.generateIndexData());
+            }
+            mbox.modifyContact(null, changed.getId(),
+                    new ParsedContact(Collections.singletonMap(ContactConstants.A_email, "after@zimbra.com")));
+            mbox.delete(null, deleted.getId(), MailItem.Type.CONTACT);
+
+            index.addPartitions(Collections.<Indexer>singletonList(partition));
+            List<Integer> ids = Arrays.asList(kept.getId(), changed.getId(), deleted.getId());
+            mbox.index.commitPartitions(Collections.singletonList(ids));
+        } finally {
+            mbox.index.setIndexingSuspended(false);
+        }
+        Assert.assertEquals(1, count(mbox, "kept@zimbra.com"));
+        Assert.assertEquals(0, count(mbox, "before@zimbra.com"));
+        Assert.assertEquals(0, count(mbox, "deleted@zimbra.com"));
+
+        // the changed item is still deferred
+        mbox.index.indexDeferredItems();
+        Assert.assertEquals(1, count(mbox, "after@zimbra.com"));
+        Assert.assertEquals(2, numDocs(mbox));
+    }
+}
@@ -205,27 +205,27 @@ public final class MailboxTest {
         @Override public void notify(ChangeNotification notification) {
             PendingModifications newPms = notification.mods;
 
+            // notifications are sealed and shared with other listeners, so accumulate them in a change set of our own
             if (this.pms == null) {
-                this.pms = newPms;
-            } else {
-                if (newPms.created != null) {
-                    if (pms.created == null) {
-                        pms.created = Maps.newLinkedHashMap();
-                    }
-                    pms.created.putAll(newPms.created);
+                this.pms = new PendingModifications();
+            }
+            if (newPms.created != null) {
+                if (pms.created == null) {
+                    pms.created = Maps.newLinkedHashMap();
                 }
-                if (newPms.modified != null) {
-                    if (pms.modified == null) {
-                        pms.modified = Maps.newHashMap();
-                    }
-                    pms.modified.putAll(newPms.modified);
+                pms.created.putAll(newPms.created);
+            }
+            if (newPms.modified != null) {
+                if (pms.modified == null) {
+                    pms.modified = Maps.newHashMap();
                 }
-                if (newPms.deleted != null) {
-                    if (pms.deleted == null) {
-                        pms.deleted = Maps.newHashMap();
-                    }
-                    pms.deleted.putAll(newPms.deleted);
+                pms.modified.putAll(newPms.modified);
+            }
+            if (newPms.deleted != null) {
+                if (pms.deleted == null) {
+                    pms.deleted = Maps.newHashMap();
                 }
+                pms.deleted.putAll(newPms.deleted);
             }
         }
 
@@ -178,6 +178,7 @@ public final class MailboxTestUtil {
     public static void clearData(String zimbraServerDir) throws Exception {
         HSQLDB.clearDatabase(zimbraServerDir);
         MailboxManager.getInstance().clearCache();
+        ContactPrefixIndex.clearCache();
         MailboxIndex.shutdown();
         File index = new File("build/test/index");
         if (index.isDirectory()) {
@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Unit test for {@link MetadataCodec}.
+ */
+public final class MetadataCodecTest {
+
+    private static Metadata sample() {
+        Metadata nested = new Metadata();
+        nested.put("g", "474b7021-cef6-469d-b5fb-54c96117efd1").put("r", 1).put("t", 1);
+        MetadataList list = new MetadataList();
+        list.add(-5L);
+        list.add("café 日本");
+        list.add(nested);
+        return new Metadata()
+                .put(Metadata.FN_MODSEQ, 628)
+                .put(Metadata.FN_TOTAL_SIZE, 7596456L)
+                .put(Metadata.FN_UIDNEXT, Long.MIN_VALUE)
+                .put(Metadata.FN_DRAFT, true)
+                .put(Metadata.FN_RAW_SUBJ, "Re: café")
+                .put("customKey", 1.5)
+                .put(Metadata.FN_RIGHTS_MAP, nested)
+                .put(Metadata.FN_ENTRIES, list);
+    }
+
+    @Test
+    public void roundTrip() throws ServiceException {
+        Metadata meta = sample();
+        String compact = MetadataCodec.encode(meta.map());
+        Assert.assertTrue(MetadataCodec.isEncoded(compact));
+        Assert.assertTrue(compact.length() < meta.toString().length());
+
+        Metadata decoded = new Metadata(compact);
+        Assert.assertEquals(meta.size(), decoded.size());
+        Assert.assertEquals(meta.toString(), decoded.toString());
+    }
+
+    @Test
+    public void lazy() throws ServiceException {
+        Metadata meta = new Metadata(MetadataCodec.encode(sample().map()));
+        Assert.assertEquals(628, meta.getInt(Metadata.FN_MODSEQ, 0));
+        Assert.assertEquals(Long.MIN_VALUE, meta.getLong(Metadata.FN_UIDNEXT));
+        Assert.assertTrue(meta.getBool(Metadata.FN_DRAFT));
+        Assert.assertEquals(1.5, meta.getDouble("customKey"), 0.0);
+        Assert.assertEquals("Re: café", meta.get(Metadata.FN_RAW_SUBJ));
+        Assert.assertEquals(1, meta.getMap(Metadata.FN_RIGHTS_MAP).getLong("r"));
+        MetadataList list = meta.getList(Metadata.FN_ENTRIES);
+        Assert.assertEquals(-5L, list.getLong(0));
+        Assert.assertEquals("café 日本", list.get(1));
+        Assert.assertFalse(meta.containsKey("missing"));
+        Assert.assertTrue(meta.containsKey(Metadata.FN_ENTRIES));
+        Assert.assertNull(meta.get("missing", null));
+        Assert.assertEquals(8, meta.size());
+
+        meta.put(Metadata.FN_MODSEQ, 629).remove(Metadata.FN_DRAFT);
+        Assert.assertEquals(629, meta.getInt(Metadata.FN_MODSEQ, 0));
+        Assert.assertEquals(7, new Metadata(meta.toStorageString()).size());
+    }
+
+    @Test
+    public void legacy() throws ServiceException {
+        String legacy = sample().toString();
+        Assert.assertFalse(MetadataCodec.isEncoded(legacy));
+        Assert.assertEquals(legacy, new Metadata(legacy).toString());
+
+        // compact writes are off unless turned on
+        Assert.assertEquals(legacy, sample().toStorageString());
+        boolean enabled = LC.zimbra_metadata_compact_encoding.booleanValue();
+        try {
+            LC.zimbra_metadata_compact_encoding.setDefault(true);
+            Assert.assertTrue(MetadataCodec.isEncoded(sample().toStorageString()));
+            Assert.assertEquals(legacy, new Metadata(sample().toStorageString()).toString());
+        } finally {
+            LC.zimbra_metadata_compact_encoding.setDefault(enabled);
+        }
+    }
+
+    @Test
+    public void corrupt() {
+        String compact = MetadataCodec.encode(sample().map());
+        for (String bad : new String[] {
+                compact.substring(0, compact.length() - 3),
+                compact + "x",
+                compact.charAt(0) + "\u0009" + compact.substring(2) }) {
+            try {
+                new Metadata(bad);
+                Assert.fail("accepted corrupt metadata");
+            } catch (MailServiceException e) {
+                Assert.assertEquals(MailServiceException.INVALID_METADATA, e.getCode());
+            }
+        }
+    }
+}
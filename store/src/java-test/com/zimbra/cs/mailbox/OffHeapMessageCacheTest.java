@@ -0,0 +1,159 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+
+public class OffHeapMessageCacheTest {
+
+    @Before
+    public void setUp() {
+        LC.zimbra_message_cache_offheap_size_mb.setDefault(2);
+        LC.zimbra_message_cache_offheap_slab_size_mb.setDefault(1);
+        LC.zimbra_message_cache_offheap_max_entry_size_kb.setDefault(512);
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_message_cache_offheap_size_mb.setDefault(0);
+        LC.zimbra_message_cache_offheap_slab_size_mb.setDefault(64);
+        LC.zimbra_message_cache_offheap_max_entry_size_kb.setDefault(4096);
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i + seed);
+        }
+        return content;
+    }
+
+    private static OffHeapMessageCache.ContentSource source(final byte[] content) {
+        return new OffHeapMessageCache.ContentSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(content);
+            }
+        };
+    }
+
+    private static void put(OffHeapMessageCache cache, String digest, byte[] content) throws IOException {
+        cache.put(digest, new ByteArrayInputStream(content), content.length);
+    }
+
+    private static byte[] get(OffHeapMessageCache cache, String digest) throws IOException {
+        InputStream in = cache.open(digest, null);
+        return in == null ? null : ByteUtil.getContent(in, -1);
+    }
+
+    @Test
+    public void disabled() {
+        LC.zimbra_message_cache_offheap_size_mb.setDefault(0);
+        Assert.assertNull(OffHeapMessageCache.create());
+    }
+
+    @Test
+    public void putGet() throws Exception {
+        OffHeapMessageCache cache = OffHeapMessageCache.create();
+        Assert.assertNotNull(cache);
+        byte[] content = content(1000, 7);
+        put(cache, "digest", content);
+        Assert.assertArrayEquals(content, get(cache, "digest"));
+        Assert.assertNull(get(cache, "other"));
+
+        // the stream doesn't match the declared size
+        Assert.assertFalse(cache.put("longer", new ByteArrayInputStream(content), 999));
+        Assert.assertNull(get(cache, "longer"));
+
+        cache.remove("digest");
+        Assert.assertNull(get(cache, "digest"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        OffHeapMessageCache cache = OffHeapMessageCache.create();
+        Assert.assertFalse(cache.accepts(600 * 1024));
+        put(cache, "digest", content(600 * 1024, 0));
+        Assert.assertNull(get(cache, "digest"));
+    }
+
+    @Test
+    public void recycle() throws Exception {
+        OffHeapMessageCache cache = OffHeapMessageCache.create();
+        // two 1MB slabs hold at most 8 entries of 256KB
+        for (int i = 0; i < 12; i++) {
+            put(cache, "digest-" + i, content(256 * 1024, i));
+        }
+        Assert.assertNull("oldest slab was recycled", get(cache, "digest-0"));
+        Assert.assertArrayEquals(content(256 * 1024, 11), get(cache, "digest-11"));
+        Assert.assertTrue(cache.getSize() <= 8);
+    }
+
+    @Test
+    public void substreams() throws Exception {
+        OffHeapMessageCache cache = OffHeapMessageCache.create();
+        byte[] content = content(1000, 3);
+        put(cache, "digest", content);
+        InputStream in = cache.open("digest", null);
+        Assert.assertEquals(100, in.skip(100));
+        Assert.assertEquals(100, ((SharedInputStream) in).getPosition());
+        InputStream sub = ((SharedInputStream) in).newStream(100, 200);
+        Assert.assertEquals(content[100] & 0xFF, sub.read());
+        Assert.assertEquals(99, ByteUtil.getContent(sub, -1).length);
+        InputStream rest = ((SharedInputStream) in).newStream(990, -1);
+        Assert.assertEquals(10, ByteUtil.getContent(rest, -1).length);
+    }
+
+    @Test
+    public void recycleWhileReading() throws Exception {
+        OffHeapMessageCache cache = OffHeapMessageCache.create();
+        byte[] content = content(256 * 1024, 5);
+        put(cache, "digest", content);
+        InputStream in = cache.open("digest", source(content));
+        InputStream sub = ((SharedInputStream) in).newStream(1000, 2000);
+        byte[] head = new byte[500];
+        Assert.assertEquals(500, in.read(head));
+
+        for (int i = 0; i < 12; i++) {
+            put(cache, "digest-" + i, content(256 * 1024, i));
+        }
+        Assert.assertNull(cache.open("digest", null));
+        // open streams carry on from the original content
+        Assert.assertEquals(content[500] & 0xFF, in.read());
+        byte[] rest = ByteUtil.getContent(in, -1);
+        Assert.assertEquals(content.length - 501, rest.length);
+        Assert.assertEquals(content[content.length - 1], rest[rest.length - 1]);
+        byte[] range = ByteUtil.getContent(sub, -1);
+        Assert.assertEquals(1000, range.length);
+        Assert.assertEquals(content[1000], range[0]);
+        Assert.assertEquals(content[1999], range[999]);
+    }
+}
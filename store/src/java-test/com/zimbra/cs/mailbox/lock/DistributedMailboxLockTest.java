@@ -0,0 +1,233 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Closeables;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Unit test and benchmark for {@link DistributedMailboxLock}, run against an in-process ZooKeeper server.  Each
+ * {@link CuratorFramework} client stands in for one mailbox server.
+ */
+public final class DistributedMailboxLockTest {
+    private static final String PATH = "/rwlocks/test";
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    private TestingServer server;
+    private CuratorFramework node1;
+    private CuratorFramework node2;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        node1 = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+        node2 = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+        node1.start();
+        node2.start();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        Closeables.closeQuietly(node1);
+        Closeables.closeQuietly(node2);
+        Closeables.closeQuietly(server);
+    }
+
+    @Test
+    public void readersShare() throws Exception {
+        DistributedMailboxLock lock1 = new DistributedMailboxLock(node1, PATH, false);
+        DistributedMailboxLock lock2 = new DistributedMailboxLock(node2, PATH, false);
+        Assert.assertTrue(lock1.acquire(false, 5, TimeUnit.SECONDS));
+        Assert.assertTrue(lock2.acquire(false, 1, TimeUnit.SECONDS));
+        lock1.release();
+        lock2.release();
+        Assert.assertFalse(lock1.isHeld());
+        Assert.assertFalse(lock2.isHeld());
+    }
+
+    @Test
+    public void writerExcludes() throws Exception {
+        DistributedMailboxLock lock1 = new DistributedMailboxLock(node1, PATH, false);
+        DistributedMailboxLock lock2 = new DistributedMailboxLock(node2, PATH, false);
+        Assert.assertTrue(lock1.acquire(true, 5, TimeUnit.SECONDS));
+        Assert.assertFalse(lock2.acquire(false, 200, TimeUnit.MILLISECONDS));
+        lock1.release();
+        Assert.assertTrue(lock2.acquire(true, 5, TimeUnit.SECONDS));
+        Assert.assertFalse(lock1.acquire(false, 200, TimeUnit.MILLISECONDS));
+        lock2.release();
+    }
+
+    @Test
+    public void cachedHold() throws Exception {
+        final DistributedMailboxLock lock1 = new DistributedMailboxLock(node1, PATH, true);
+        final DistributedMailboxLock lock2 = new DistributedMailboxLock(node2, PATH, true);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(lock1.acquire(true, 5, TimeUnit.SECONDS));
+            lock1.release();
+        }
+        Assert.assertTrue(lock1.isHeld());
+        Assert.assertEquals(1, lock1.getAcquireCount());
+        Assert.assertEquals(9, lock1.getReuseCount());
+
+        // the idle hold is given up as soon as another server asks for the lock
+        Assert.assertTrue(lock2.acquire(false, 5, TimeUnit.SECONDS));
+        Assert.assertFalse(lock1.isHeld());
+        lock2.release();
+        Assert.assertTrue(lock2.isHeld());
+
+        // a busy hold is given up when its last local user is done
+        Assert.assertTrue(lock1.acquire(false, 5, TimeUnit.SECONDS));
+        Future<Boolean> writer = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return lock2.acquire(true, 10, TimeUnit.SECONDS);
+            }
+        });
+        Thread.sleep(200);
+        Assert.assertFalse(writer.isDone());
+        lock1.release();
+        Assert.assertTrue(writer.get(10, TimeUnit.SECONDS));
+        Assert.assertFalse(lock1.isHeld());
+        lock2.release();
+    }
+
+    @Test
+    public void busyHoldYields() throws Exception {
+        final DistributedMailboxLock lock1 = new DistributedMailboxLock(node1, PATH, true);
+        final DistributedMailboxLock lock2 = new DistributedMailboxLock(node2, PATH, true);
+        final AtomicBoolean stop = new AtomicBoolean();
+        List<Future<Void>> readers = new ArrayList<Future<Void>>();
+        // overlapping local readers, so that the hold never goes idle by itself
+        for (int i = 0; i < 3; i++) {
+            readers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (!stop.get()) {
+                        Assert.assertTrue(lock1.acquire(false, 10, TimeUnit.SECONDS));
+                        Thread.sleep(20);
+                        lock1.release();
+                    }
+                    return null;
+                }
+            }));
+            Thread.sleep(7);
+        }
+        Thread.sleep(200);
+        Assert.assertTrue(lock1.isHeld());
+        try {
+            long start = System.nanoTime();
+            Assert.assertTrue(lock2.acquire(true, 5, TimeUnit.SECONDS));
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 2);
+            Assert.assertTrue(lock2.isHeld());
+            lock2.release();
+        } finally {
+            stop.set(true);
+        }
+        for (Future<Void> reader : readers) {
+            reader.get(15, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void upgrade() throws Exception {
+        DistributedMailboxLock lock1 = new DistributedMailboxLock(node1, PATH, true);
+        DistributedMailboxLock lock2 = new DistributedMailboxLock(node2, PATH, true);
+        Assert.assertTrue(lock1.acquire(false, 5, TimeUnit.SECONDS));
+        lock1.release();
+        Assert.assertTrue(lock1.acquire(true, 5, TimeUnit.SECONDS));
+        Assert.assertFalse(lock2.acquire(false, 200, TimeUnit.MILLISECONDS));
+        lock1.release();
+    }
+
+    /**
+     * Compares single-server acquire/release throughput of the legacy semaphore mutex with the read/write lock, with
+     * and without hold caching, and the throughput of two servers reading the same mailbox concurrently.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        final InterProcessSemaphoreMutex mutex = new InterProcessSemaphoreMutex(node1, "/locks/benchmark");
+        long mutexRate = run(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                mutex.acquire(5, TimeUnit.SECONDS);
+                mutex.release();
+                return null;
+            }
+        });
+        long uncachedRate = run(loop(new DistributedMailboxLock(node1, PATH + "-uncached", false), false));
+        long cachedRate = run(loop(new DistributedMailboxLock(node1, PATH + "-cached", true), false));
+
+        final Callable<Void> reader1 = loop(new DistributedMailboxLock(node1, PATH + "-shared", false), false);
+        final Callable<Void> reader2 = loop(new DistributedMailboxLock(node2, PATH + "-shared", false), false);
+        long sharedRate = run(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Future<Void> other = executor.submit(reader2);
+                reader1.call();
+                other.get();
+                return null;
+            }
+        }) * 2;
+
+        ZimbraLog.test.info("distributed lock ops/sec: semaphore mutex=%d, rw lock=%d, rw lock cached=%d, "
+                + "rw lock read on two servers=%d", mutexRate, uncachedRate, cachedRate, sharedRate);
+        Assert.assertTrue(cachedRate > uncachedRate);
+    }
+
+    private Callable<Void> loop(final DistributedMailboxLock lock, final boolean write) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Assert.assertTrue(lock.acquire(write, 5, TimeUnit.SECONDS));
+                lock.release();
+                return null;
+            }
+        };
+    }
+
+    private long run(Callable<Void> op) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            op.call();
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        return BENCHMARK_ITERATIONS * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LockStats}.
+ */
+public final class LockStatsTest {
+
+    @Test
+    public void operations() {
+        LockStats stats = new LockStats(true, 10, 100);
+        long now = System.nanoTime();
+        stats.acquired(1, true, now, now);
+        stats.setOperation(1, "AddMessage");
+        stats.setOperation(1, "getItemById"); // nested transaction doesn't rename the hold
+        now += TimeUnit.MILLISECONDS.toNanos(5);
+        stats.released(1, now);
+
+        stats.acquired(2, false, now, now);
+        stats.released(2, now);
+
+        LockStats.Snapshot snapshot = stats.drain();
+        Assert.assertEquals(1, snapshot.operations.get("AddMessage").hold.getCount());
+        Assert.assertTrue(snapshot.operations.get("AddMessage").hold.getMaxMillis() >= 5);
+        Assert.assertNull(snapshot.operations.get("getItemById"));
+        Assert.assertEquals(1, snapshot.operations.get(LockStats.UNKNOWN).hold.getCount());
+        Assert.assertEquals(2, snapshot.mailboxes.size());
+        Assert.assertEquals(Integer.valueOf(1), snapshot.busiestMailboxes().get(0).getKey());
+
+        Assert.assertTrue(stats.drain().operations.isEmpty());
+    }
+
+    @Test
+    public void slowestHolders() {
+        LockStats stats = new LockStats(true, 2, 100);
+        long now = System.nanoTime();
+        for (int i = 1; i <= 3; i++) {
+            stats.acquired(i, true, now, now);
+            now += TimeUnit.MILLISECONDS.toNanos(i * 10);
+            stats.released(i, now);
+        }
+        List<LockStats.Holder> slowest = stats.drainSlowestHolders();
+        Assert.assertEquals(2, slowest.size());
+        Assert.assertEquals(3, slowest.get(0).mailboxId);
+        Assert.assertEquals(2, slowest.get(1).mailboxId);
+        Assert.assertTrue(stats.drainSlowestHolders().isEmpty());
+    }
+
+    @Test
+    public void activeHolders() {
+        LockStats stats = new LockStats(true, 10, 100);
+        stats.acquired(1, false, System.nanoTime());
+        stats.acquired(2, true, System.nanoTime());
+        stats.setOperation(2, "MoveItem");
+        List<LockStats.Holder> active = stats.getActiveHolders();
+        Assert.assertEquals(2, active.size());
+        stats.released(2);
+        active = stats.getActiveHolders();
+        Assert.assertEquals(1, active.size());
+        Assert.assertEquals(1, active.get(0).mailboxId);
+        stats.released(1);
+        Assert.assertTrue(stats.getActiveHolders().isEmpty());
+        for (LockStats.Holder holder : stats.drainSlowestHolders()) {
+            Assert.assertEquals(holder.mailboxId == 2 ? "MoveItem" : LockStats.UNKNOWN, holder.op);
+        }
+    }
+
+    @Test
+    public void maxMailboxes() throws Exception {
+        LockStats stats = new LockStats(true, 2, 4);
+        stats.acquired(1, true, System.nanoTime());
+        Thread.sleep(5);
+        stats.released(1);
+        for (int i = 2; i <= 10; i++) {
+            stats.acquired(i, false, System.nanoTime());
+            stats.released(i);
+        }
+        LockStats.Snapshot snapshot = stats.drain();
+        Assert.assertTrue(snapshot.mailboxes.size() <= 4);
+        Assert.assertEquals(Integer.valueOf(1), snapshot.busiestMailboxes().get(0).getKey());
+        Assert.assertEquals(10, snapshot.operations.get(LockStats.UNKNOWN).hold.getCount());
+    }
+
+    @Test
+    public void histogram() {
+        LockStats.Histogram histogram = new LockStats.Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(500000L); // 0.5ms
+        }
+        histogram.record(100000000L); // 100ms
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(1, histogram.getPercentileMillis(50));
+        Assert.assertEquals(1, histogram.getPercentileMillis(99));
+        Assert.assertEquals(128, histogram.getPercentileMillis(100));
+        Assert.assertEquals(100.0, histogram.getMaxMillis(), 0.001);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.pop3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+
+public final class DotStuffingTest {
+
+    private static String scan(String content, int maxEdits) throws Exception {
+        File file = File.createTempFile("dotstuffing", ".msg");
+        FileInputStream in = null;
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(content.getBytes("ISO-8859-1"));
+            out.close();
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            DotStuffing stuffing = DotStuffing.scan(channel, channel.size(), maxEdits);
+            return stuffing == null ? null : stuffing.toString();
+        } finally {
+            ByteUtil.closeStream(in);
+            file.delete();
+        }
+    }
+
+    @Test
+    public void clean() throws Exception {
+        Assert.assertEquals("", scan("", 10));
+        Assert.assertEquals("", scan("Subject: test\r\n\r\nbody.\r\n", 10));
+    }
+
+    @Test
+    public void edits() throws Exception {
+        Assert.assertEquals("DOT@0", scan(".\r\n", 10));
+        Assert.assertEquals("CRLF@1 DOT@2", scan("a\n.b\r\n", 10));
+        Assert.assertEquals("CRLF@1 DOT@2 CRLF@END", scan("a\r.b", 10));
+        Assert.assertEquals("CRLF@0 CRLF@3", scan("\r\r\n\n", 10));
+        Assert.assertEquals("CRLF@1", scan("a\r", 10));
+    }
+
+    @Test
+    public void tooManyEdits() throws Exception {
+        Assert.assertEquals("CRLF@1 CRLF@3", scan("a\nb\n", 2));
+        Assert.assertNull(scan("a\nb\nc\n", 2));
+        Assert.assertNull(scan(".a\nb\n", 2));
+    }
+}
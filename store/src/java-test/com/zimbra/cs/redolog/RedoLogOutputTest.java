@@ -0,0 +1,182 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RedoLogOutputTest {
+
+    private static void writeSample(RedoLogOutput out, String big) throws Exception {
+        out.writeBoolean(true);
+        out.writeByte((byte) -3);
+        out.writeShort((short) -2);
+        out.writeInt(0x12345678);
+        out.writeLong(-1234567890123L);
+        out.writeDouble(3.25);
+        out.writeUTF("rédo");
+        out.writeUTF(null);
+        out.writeUTFArray(new String[] { "a", "", big });
+        out.write(new byte[] { 1, 2, 3 });
+    }
+
+    private static void readSample(RedoLogInput in, String big) throws Exception {
+        Assert.assertTrue(in.readBoolean());
+        Assert.assertEquals(-3, in.readByte());
+        Assert.assertEquals(-2, in.readShort());
+        Assert.assertEquals(0x12345678, in.readInt());
+        Assert.assertEquals(-1234567890123L, in.readLong());
+        Assert.assertEquals(3.25, in.readDouble(), 0.0);
+        Assert.assertEquals("rédo", in.readUTF());
+        Assert.assertNull(in.readUTF());
+        Assert.assertArrayEquals(new String[] { "a", "", big }, in.readUTFArray());
+        byte[] b = new byte[3];
+        in.readFully(b);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, b);
+    }
+
+    private static String bigString(int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serializing into memory produces the same bytes as a stream, including data that
+     * outgrows the initial buffer, and a reused buffer starts out empty.
+     */
+    @Test
+    public void sameFormat() throws Exception {
+        String big = bigString(3000);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeSample(new RedoLogOutput(baos), big);
+
+        for (int i = 0; i < 2; i++) {
+            RedoLogOutput out = new RedoLogOutput();
+            writeSample(out, big);
+            byte[] data = out.toByteArray();
+            out.close();
+
+            Assert.assertArrayEquals(baos.toByteArray(), data);
+            readSample(new RedoLogInput(new ByteArrayInputStream(data)), big);
+        }
+    }
+
+    /**
+     * The DataOutput and DataInput methods redo ops don't use still match the stream
+     * implementations.
+     */
+    @Test
+    public void dataOutputAndInput() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        BufferDataOutput out = new BufferDataOutput();
+        for (DataOutput o : new DataOutput[] { dos, out }) {
+            o.writeUTF("r\u00e9do \u20ac\u0000");
+            o.writeChars("ab");
+            o.writeBytes("line one\r\nline two\rline three\n\nlast");
+        }
+        byte[] data = out.toByteArray();
+        out.close();
+        Assert.assertArrayEquals(baos.toByteArray(), data);
+
+        File file = File.createTempFile("redoinput", ".bin");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ChannelDataInput in = new ChannelDataInput(raf.getChannel(), 0, new RedoBufferPool(16, 1));
+            Assert.assertEquals("r\u00e9do \u20ac\u0000", in.readUTF());
+            Assert.assertEquals('a', in.readChar());
+            Assert.assertEquals('b', in.readChar());
+            Assert.assertEquals("line one", in.readLine());
+            Assert.assertEquals("line two", in.readLine());
+            Assert.assertEquals("line three", in.readLine());
+            Assert.assertEquals("", in.readLine());
+            Assert.assertEquals("last", in.readLine());
+            Assert.assertNull(in.readLine());
+            in.close();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reading a file through a small channel buffer returns the same data as reading the
+     * RandomAccessFile directly, and tracks the file position across refills and skips.
+     */
+    @Test
+    public void channelInput() throws Exception {
+        String big = bigString(100);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RedoLogOutput out = new RedoLogOutput(baos);
+        out.writeInt(7);
+        for (int i = 0; i < 10; i++) {
+            writeSample(out, big);
+        }
+        File file = File.createTempFile("redoinput", ".bin");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(baos.toByteArray());
+        fos.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            RedoBufferPool pool = new RedoBufferPool(64, 1);
+            RedoLogInput in = new RedoLogInput(raf.getChannel(), 0, file.getPath(), pool);
+            Assert.assertEquals(file.getPath(), in.getPath());
+            Assert.assertEquals(7, in.readInt());
+            for (int i = 0; i < 10; i++) {
+                readSample(in, big);
+            }
+            Assert.assertEquals(file.length(), in.getFilePointer());
+            Assert.assertEquals(0, raf.getFilePointer());
+
+            in.seek(0);
+            Assert.assertEquals(4, in.skipBytes(4));
+            long pos = in.getFilePointer();
+            readSample(in, big);
+            long len = in.getFilePointer() - pos;
+            Assert.assertEquals(len * 8, in.skipBytes((int) len * 8));
+            readSample(in, big);
+            Assert.assertEquals(0, in.skipBytes(10));
+            try {
+                in.readInt();
+                Assert.fail();
+            } catch (java.io.EOFException expected) {
+            }
+            in.close();
+            Assert.assertEquals(1, pool.getPooledCount());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.SetRetentionPolicy;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.soap.mail.type.Policy;
+import com.zimbra.soap.mail.type.RetentionPolicy;
+
+public class FileLogWriterTest {
+
+    private static final File DIR = new File("build/test/redo-writer");
+    private static final File LOG = new File(DIR, "redo.log");
+
+    private RedoLogManager redoLogManager;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DIR.mkdirs();
+        LOG.delete();
+        redoLogManager = new RedoLogManager(LOG, DIR, false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LOG.delete();
+    }
+
+    private static RedoableOp newOp(int mailboxId, int itemId) {
+        RetentionPolicy rp = new RetentionPolicy(Arrays.asList(Policy.newSystemPolicy("123")),
+                Arrays.asList(Policy.newUserPolicy("45m")));
+        RedoableOp op = new SetRetentionPolicy(mailboxId, MailItem.Type.FOLDER, itemId, rp);
+        op.start(System.currentTimeMillis());
+        op.setChangeId(itemId);
+        return op;
+    }
+
+    /**
+     * Logs from many threads at once and verifies that every entry made it to the file,
+     * in the order each thread logged it, with fewer fsyncs than synchronous entries.
+     */
+    @Test
+    public void groupCommit() throws Exception {
+        final FileLogWriter writer = new FileLogWriter(redoLogManager, LOG, 10);
+        writer.open();
+
+        final int threads = 8;
+        final int perThread = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] loggers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int mailboxId = t + 1;
+            loggers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 1; i <= perThread; i++) {
+                            RedoableOp op = newOp(mailboxId, i);
+                            writer.log(op, op.getInputStream(), i % 4 != 0);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            loggers[t].start();
+        }
+        long fsyncsBefore = ZimbraPerf.COUNTER_REDO_GROUP_COMMIT.getCount();
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread logger : loggers) {
+            logger.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        Assert.assertNull(failure.get());
+        long fsyncs = ZimbraPerf.COUNTER_REDO_GROUP_COMMIT.getCount() - fsyncsBefore;
+        writer.close();
+
+        ZimbraLog.test.info("logged %d entries in %dms with %d group commits",
+                threads * perThread, elapsed / 1000000, fsyncs);
+        Assert.assertTrue(fsyncs > 0);
+        Assert.assertTrue(fsyncs <= threads * perThread * 3 / 4);
+
+        Map<Integer, Integer> lastItem = new HashMap<Integer, Integer>();
+        FileLogReader reader = new FileLogReader(LOG);
+        reader.open();
+        try {
+            Assert.assertTrue(reader.getHeader().getFirstOpTstamp() > 0);
+            int count = 0;
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                count++;
+                Integer last = lastItem.get(op.getMailboxId());
+                int item = op.getChangeId();
+                Assert.assertEquals((last == null ? 0 : last) + 1, item);
+                lastItem.put(op.getMailboxId(), item);
+            }
+            Assert.assertEquals(threads * perThread, count);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Asynchronously logged entries are on disk once flush() returns.
+     */
+    @Test
+    public void flush() throws Exception {
+        FileLogWriter writer = new FileLogWriter(redoLogManager, LOG, 1000);
+        writer.open();
+        try {
+            long size = writer.getSize();
+            for (int i = 1; i <= 10; i++) {
+                RedoableOp op = newOp(1, i);
+                writer.log(op, op.getInputStream(), false);
+            }
+            writer.flush();
+            Assert.assertTrue(writer.getSize() > size);
+            Assert.assertEquals(writer.getSize(), LOG.length());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Without an fsync interval the caller writes and fsyncs inline.
+     */
+    @Test
+    public void inline() throws Exception {
+        FileLogWriter writer = new FileLogWriter(redoLogManager, LOG, 0);
+        writer.open();
+        RedoableOp op = newOp(1, 1);
+        writer.log(op, op.getInputStream(), true);
+        Assert.assertEquals(writer.getSize(), LOG.length());
+        writer.close();
+
+        FileLogReader reader = new FileLogReader(LOG);
+        reader.open();
+        try {
+            Assert.assertNotNull(reader.getNextOp());
+            Assert.assertNull(reader.getNextOp());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The reader skips junk between two ops and picks up at the next op marker.
+     */
+    @Test
+    public void skipJunk() throws Exception {
+        FileLogWriter writer = new FileLogWriter(redoLogManager, LOG, 0);
+        writer.open();
+        RedoableOp op = newOp(1, 1);
+        writer.log(op, op.getInputStream(), true);
+        writer.close();
+
+        FileOutputStream out = new FileOutputStream(LOG, true);
+        try {
+            out.write(new byte[] { 'Z', 'M', 'x', 0, 1, 2, 3 });
+            out.write(ByteUtil.getContent(newOp(1, 2).getInputStream(), 1024));
+        } finally {
+            out.close();
+        }
+
+        FileLogReader reader = new FileLogReader(LOG);
+        reader.open();
+        try {
+            Assert.assertEquals(1, reader.getNextOp().getChangeId());
+            long junkAt = reader.position();
+            Assert.assertEquals(2, reader.getNextOp().getChangeId());
+            Assert.assertEquals(junkAt + 7, reader.getLastOpStartOffset());
+            Assert.assertEquals(LOG.length(), reader.position());
+            Assert.assertNull(reader.getNextOp());
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RedoLogOutput;
+import com.zimbra.cs.redolog.op.AbortTxn;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+public class ParallelRedoPlayerTest {
+
+    private static final AtomicInteger executed = new AtomicInteger();
+    private static final ConcurrentHashMap<Integer, List<Integer>> executedByMailbox = new ConcurrentHashMap<Integer, List<Integer>>();
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    /** Op that records the order it was executed in. */
+    private static class TestOp extends RedoableOp {
+        private final int seq;
+        private final int executedBefore;   // for multi-mailbox ops: ops that must have run first
+        private final boolean fail;
+        volatile int sawExecuted = -1;
+
+        TestOp(int mailboxId, int seq, int executedBefore, boolean fail) {
+            super(MailboxOperation.CreateVolume);
+            setMailboxId(mailboxId);
+            this.seq = seq;
+            this.executedBefore = executedBefore;
+            this.fail = fail;
+        }
+
+        @Override
+        public void redo() throws Exception {
+            if (executedBefore >= 0) {
+                sawExecuted = executed.get();
+            } else {
+                Thread.sleep(1);
+            }
+            List<Integer> list = executedByMailbox.get(getMailboxId());
+            if (list == null) {
+                list = new CopyOnWriteArrayList<Integer>();
+                List<Integer> existing = executedByMailbox.putIfAbsent(getMailboxId(), list);
+                if (existing != null)
+                    list = existing;
+            }
+            list.add(seq);
+            executed.incrementAndGet();
+            if (fail)
+                throw new Exception("failed on purpose");
+        }
+
+        @Override
+        protected String getPrintableData() {
+            return "seq=" + seq;
+        }
+
+        @Override
+        protected void serializeData(RedoLogOutput out) throws IOException {
+        }
+
+        @Override
+        protected void deserializeData(RedoLogInput in) throws IOException {
+        }
+    }
+
+    /** Exposes the replay hooks used by scanLog and runCrashRecovery. */
+    private static class Player extends ParallelRedoPlayer {
+        Player(int threads) {
+            super(false, true, true, false, threads, 10, false);
+        }
+
+        void play(RedoableOp op) throws Exception {
+            playOp(op);
+        }
+
+        void recover(RedoLogManager mgr, RedoableOp op) {
+            recoverOp(mgr, op);
+        }
+
+        void await() throws Exception {
+            awaitPlayback();
+        }
+    }
+
+    /** Counts the commit and abort records written during crash recovery. */
+    private static class RecordingRedoLogManager extends RedoLogManager {
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger aborts = new AtomicInteger();
+
+        RecordingRedoLogManager() {
+            super(new File("build/test/redo/redo.log"), new File("build/test/redo"), false);
+        }
+
+        @Override
+        protected void logOnly(RedoableOp op, boolean synchronous) {
+            if (op instanceof CommitTxn) {
+                commits.incrementAndGet();
+            } else if (op instanceof AbortTxn) {
+                aborts.incrementAndGet();
+            }
+        }
+    }
+
+    private static void reset() {
+        executed.set(0);
+        executedByMailbox.clear();
+    }
+
+    /**
+     * Ops of one mailbox run in log order, and a multi-mailbox op runs only after
+     * every op queued before it.
+     */
+    @Test
+    public void ordering() throws Exception {
+        reset();
+        int mailboxes = 20;
+        int perMailbox = 25;
+        Player player = new Player(4);
+        TestOp global = null;
+        try {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < perMailbox; i++) {
+                if (i == perMailbox / 2) {
+                    global = new TestOp(RedoableOp.MAILBOX_ID_ALL, 0, mailboxes * i, false);
+                    player.play(global);
+                }
+                for (int m = 1; m <= mailboxes; m++) {
+                    player.play(new TestOp(m, i, -1, false));
+                }
+            }
+            player.await();
+            long elapsed = System.currentTimeMillis() - start;
+            ZimbraLog.test.info("replayed %d ops in %dms", mailboxes * perMailbox + 1, elapsed);
+        } finally {
+            player.shutdown();
+        }
+
+        Assert.assertEquals(mailboxes * perMailbox + 1, executed.get());
+        Assert.assertEquals(mailboxes * perMailbox + 1, player.getPlayedOpCount());
+        Assert.assertEquals(mailboxes * (perMailbox / 2), global.sawExecuted);
+        for (int m = 1; m <= mailboxes; m++) {
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < perMailbox; i++) {
+                expected.add(i);
+            }
+            Assert.assertEquals(expected, executedByMailbox.get(m));
+        }
+    }
+
+    /**
+     * Crash recovery commits the ops that could be redone and aborts the rest, and all of
+     * them are done once awaitPlayback() returns.
+     */
+    @Test
+    public void recovery() throws Exception {
+        reset();
+        RecordingRedoLogManager mgr = new RecordingRedoLogManager();
+        Player player = new Player(3);
+        try {
+            for (int i = 0; i < 30; i++) {
+                player.recover(mgr, new TestOp(i % 5 + 1, i, -1, i % 10 == 0));
+            }
+            TestOp global = new TestOp(RedoableOp.MAILBOX_ID_ALL, 0, 30, false);
+            player.recover(mgr, global);
+            Assert.assertEquals(30, global.sawExecuted);
+            player.await();
+        } finally {
+            player.shutdown();
+        }
+        Assert.assertEquals(31, executed.get());
+        Assert.assertEquals(28, mgr.commits.get());
+        Assert.assertEquals(3, mgr.aborts.get());
+    }
+}
@@ -16,14 +16,26 @@
  */
 package com.zimbra.cs.server;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.Assert;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.FileRegion;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.DummySession;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
 import org.junit.Test;
 
+import com.zimbra.common.util.ByteUtil;
+
 /**
  * Unit test for {@link NioOutputStream}.
  *
@@ -82,6 +94,70 @@ public final class NioOutputStreamTest {
         out.close();
     }
 
+    @Test
+    public void transferFileRegion() throws Exception {
+        Assert.assertEquals("head 3456789 tail", transfer("codec", FileRegion.class));
+    }
+
+    @Test
+    public void transferFileOverFilter() throws Exception {
+        Assert.assertEquals("head 3456789 tail", transfer("ssl", IoBuffer.class));
+    }
+
+    /**
+     * Transfers part of a file through a session whose only filter is called
+     * {@code filterName} and checks that it was written as {@code type}.
+     */
+    private static String transfer(String filterName, Class<?> type) throws Exception {
+        File file = File.createTempFile("transfer", ".msg");
+        FileInputStream in = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write("0123456789".getBytes());
+            fos.close();
+
+            DummySession session = new DummySession();
+            CaptureFilter capture = new CaptureFilter();
+            session.getFilterChain().addLast(filterName, capture);
+            NioOutputStream out = new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            out.write("head ");
+            in = new FileInputStream(file);
+            out.transferFrom(in.getChannel(), 3, 7);
+            out.write(" tail");
+            out.flush();
+            out.closeWhenWritten(in);
+            Assert.assertFalse(in.getChannel().isOpen());
+            Assert.assertTrue(type.isAssignableFrom(capture.types.get(1)));
+            return capture.out.toString();
+        } finally {
+            ByteUtil.closeStream(in);
+            file.delete();
+        }
+    }
+
+    private static final class CaptureFilter extends IoFilterAdapter {
+        private final List<Class<?>> types = new ArrayList<Class<?>>();
+        private final StringBuilder out = new StringBuilder();
+
+        @Override
+        public void filterWrite(NextFilter next, IoSession session, WriteRequest req) throws Exception {
+            Object message = req.getMessage();
+            types.add(message.getClass());
+            if (message instanceof FileRegion) {
+                FileRegion region = (FileRegion) message;
+                ByteBuffer bb = ByteBuffer.allocate((int) region.getRemainingBytes());
+                region.getFileChannel().read(bb, region.getPosition());
+                out.append(new String(bb.array(), 0, bb.position()));
+            } else {
+                IoBuffer buf = ((IoBuffer) message).duplicate();
+                while (buf.hasRemaining()) {
+                    out.append((char) buf.get());
+                }
+            }
+            next.filterWrite(session, req);
+        }
+    }
+
     private static final class TestIoHandler extends IoHandlerAdapter {
         private int writes = 0;
         private StringBuilder out = new StringBuilder();
@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.session;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ChangeJournal}.
+ */
+public final class ChangeJournalTest {
+
+    private static final class Collector implements ChangeJournal.Reader {
+        final List<String> entries = new ArrayList<String>();
+
+        @Override
+        public void read(String accountId, String commitId) {
+            entries.add(accountId + ":" + commitId);
+        }
+    }
+
+    @Test
+    public void order() {
+        ChangeJournal journal = new ChangeJournal(4);
+        Collector collector = new Collector();
+        // go around the ring a few times
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(journal.append("a" + i, "c" + i));
+            Assert.assertTrue(journal.append("b" + i, "d" + i));
+            Assert.assertEquals(2, journal.size());
+            Assert.assertEquals(2, journal.drain(collector));
+        }
+        Assert.assertEquals(20, collector.entries.size());
+        Assert.assertEquals("a0:c0", collector.entries.get(0));
+        Assert.assertEquals("b9:d9", collector.entries.get(19));
+        Assert.assertFalse(journal.isOverflowed());
+    }
+
+    @Test
+    public void overflow() {
+        ChangeJournal journal = new ChangeJournal(3); // rounded up to 4
+        Assert.assertEquals(4, journal.capacity());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(journal.append("a", String.valueOf(i)));
+        }
+        Assert.assertFalse(journal.append("a", "4"));
+        Assert.assertTrue(journal.isOverflowed());
+
+        Collector collector = new Collector();
+        Assert.assertEquals(4, journal.drain(collector));
+        Assert.assertEquals("[a:0, a:1, a:2, a:3]", collector.entries.toString());
+        journal.clearOverflow();
+        Assert.assertTrue(journal.append("a", "5"));
+        Assert.assertFalse(journal.isOverflowed());
+    }
+
+    @Test
+    public void concurrentAppend() throws Exception {
+        final int threads = 4;
+        final int perThread = 5000;
+        final ChangeJournal journal = new ChangeJournal(threads * perThread);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> appenders = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final String account = "acct" + t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        journal.append(account, String.valueOf(i));
+                    }
+                }
+            };
+            thread.start();
+            appenders.add(thread);
+        }
+        final Set<String> seen = new HashSet<String>();
+        ChangeJournal.Reader reader = new ChangeJournal.Reader() {
+            @Override
+            public void read(String accountId, String commitId) {
+                Assert.assertTrue(seen.add(accountId + ":" + commitId));
+            }
+        };
+        start.countDown();
+        for (Thread thread : appenders) {
+            while (thread.isAlive()) {
+                journal.drain(reader);
+            }
+            thread.join();
+        }
+        journal.drain(reader);
+        Assert.assertEquals(threads * perThread, seen.size());
+        Assert.assertFalse(journal.isOverflowed());
+    }
+}
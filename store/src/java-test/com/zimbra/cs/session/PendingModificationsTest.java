@@ -0,0 +1,101 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+
+/**
+ * Unit test for {@link PendingModifications}.
+ */
+public final class PendingModificationsTest {
+
+    private static final String ACCOUNT = "4a2b4c6e-0000-0000-0000-000000000001";
+
+    private static PendingModifications changes() {
+        PendingModifications pms = new PendingModifications();
+        pms.recordDeleted(ACCOUNT, 300, MailItem.Type.MESSAGE);
+        pms.recordModified(new ModificationKey(ACCOUNT, 260), new Change(MailItem.Type.MESSAGE, Change.FLAGS, null));
+        pms.recordModified(new ModificationKey(ACCOUNT, 257), new Change(MailItem.Type.MESSAGE, Change.TAGS, null));
+        pms.recordModified(new ModificationKey(ACCOUNT, 260), new Change(MailItem.Type.MESSAGE, Change.UNREAD, null));
+        return pms;
+    }
+
+    @Test
+    public void lookup() {
+        PendingModifications pms = changes().seal();
+        Assert.assertTrue(pms.isSealed());
+        Assert.assertTrue(pms.isDeleted(300));
+        Assert.assertFalse(pms.isDeleted(260));
+        Assert.assertTrue(pms.isModified(257));
+        Assert.assertTrue(pms.isModified(260));
+        Assert.assertFalse(pms.isModified(300));
+        Assert.assertFalse(pms.isCreated(257));
+        Assert.assertEquals(Change.FLAGS | Change.UNREAD, pms.getChangeReason(260));
+        Assert.assertEquals(Change.TAGS, pms.getChangeReason(257));
+        Assert.assertEquals(Change.NONE, pms.getChangeReason(258));
+        Assert.assertTrue(pms.overlapsWithAccount(ACCOUNT));
+        Assert.assertTrue(pms.overlapsWithAccount(ACCOUNT.toUpperCase()));
+        Assert.assertFalse(pms.overlapsWithAccount("4a2b4c6e-0000-0000-0000-000000000002"));
+    }
+
+    @Test
+    public void immutable() {
+        PendingModifications pms = changes().seal();
+        try {
+            pms.recordModified(new ModificationKey(ACCOUNT, 301), new Change(MailItem.Type.MESSAGE, Change.FLAGS, null));
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            pms.changedTypes.add(MailItem.Type.CONTACT);
+            Assert.fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            pms.clear();
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(2, pms.modified.size());
+    }
+
+    @Test
+    public void merge() {
+        PendingModifications sealed = changes().seal();
+        PendingModifications merged = new PendingModifications();
+        merged.add(sealed);
+        merged.recordModified(new ModificationKey(ACCOUNT, 257), new Change(MailItem.Type.MESSAGE, Change.FOLDER, null));
+        merged.recordDeleted(ACCOUNT, 257, MailItem.Type.MESSAGE);
+        merged.seal();
+        Assert.assertTrue(merged.isDeleted(257));
+        Assert.assertFalse(merged.isModified(257));
+        // the shared change set is untouched by the merge
+        Assert.assertEquals(Change.TAGS, sealed.getChangeReason(257));
+        Assert.assertFalse(sealed.isDeleted(257));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unsealed() {
+        changes().isModified(257);
+    }
+}
@@ -20,11 +20,13 @@ package com.zimbra.cs.store;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.ClosedByInterruptException;
 import java.util.List;
 import java.util.zip.GZIPOutputStream;
 
@@ -34,6 +36,7 @@ import org.junit.Test;
 
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
@@ -64,7 +67,7 @@ public class FileDescriptorCacheTest {
     public void testUncompressedCache()
     throws Exception {
         FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
-        FileDescriptorCache fdc = new FileDescriptorCache(uc);
+        FileDescriptorCache fdc = new FileDescriptorCache(uc, MoreExecutors.sameThreadExecutor());
         fdc.setMaxSize(2);
 
         File file1 = File.createTempFile(NAME_PREFIX, ".tmp.gz");
@@ -122,6 +125,72 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void evictWhileReading()
+    throws Exception {
+        FileDescriptorCache fdc = new FileDescriptorCache(null, MoreExecutors.sameThreadExecutor());
+        fdc.setMaxSize(1);
+
+        File file1 = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file1);
+        File file2 = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file2);
+        Files.write("Up The Junction".getBytes(), file1);
+        Files.write("Annie Get Your Gun".getBytes(), file2);
+
+        byte[] buf = new byte[5];
+        assertEquals(5, fdc.read(file1.getPath(), file1.length(), 3, buf, 0, buf.length));
+        assertEquals("The J", new String(buf));
+        assertEquals(1, fdc.getOpenCount());
+
+        // a reader that is still using file1 while it is aged out
+        SharedFile shared = fdc.getSharedFile(file1.getPath(), file1.length());
+        fdc.read(file2.getPath(), file2.length(), 0, buf, 0, buf.length);
+        assertEquals("Annie", new String(buf));
+        assertEquals(1, fdc.getSize());
+        assertFalse(fdc.contains(file1.getPath()));
+        assertEquals("aged out descriptor stays open while it is read", 2, fdc.getOpenCount());
+        assertEquals(5, shared.read(0, buf, 0, buf.length));
+        assertEquals("Up Th", new String(buf));
+        fdc.doneReading(file1.getPath(), shared);
+        assertTrue("last reader of a retired file closes it", shared.isClosed());
+        assertEquals(1, fdc.getOpenCount());
+
+        fdc.remove(file2.getPath());
+        assertEquals(0, fdc.getSize());
+        assertEquals(0, fdc.getOpenCount());
+    }
+
+    @Test
+    public void interruptedRead()
+    throws Exception {
+        FileDescriptorCache fdc = new FileDescriptorCache(null, MoreExecutors.sameThreadExecutor());
+        File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        Files.write("Cool For Cats".getBytes(), file);
+
+        byte[] buf = new byte[4];
+        SharedFile shared = fdc.getSharedFile(file.getPath(), file.length());
+        Thread.currentThread().interrupt();
+        try {
+            fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+            fail("interrupted read should fail");
+        } catch (ClosedByInterruptException e) {
+        } finally {
+            Thread.interrupted();
+        }
+
+        // the other reader of the same descriptor is not affected
+        assertEquals(4, shared.read(5, buf, 0, buf.length));
+        assertEquals("For ", new String(buf));
+        fdc.doneReading(file.getPath(), shared);
+        assertEquals(4, fdc.read(file.getPath(), file.length(), 9, buf, 0, buf.length));
+        assertEquals("Cats", new String(buf));
+        assertEquals(1, fdc.getOpenCount());
+        fdc.remove(file.getPath());
+        assertEquals(0, fdc.getOpenCount());
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
@@ -23,149 +23,175 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.util.MapUtil;
-import com.zimbra.common.stats.Counter;
-import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 
 public class AccountCache implements IAccountCache {
-    
-    private Map<String, CacheEntry> mNameCache;
-    private Map<String, CacheEntry> mIdCache;
-    private Map<String, CacheEntry> mAliasCache;
-    private Map<String, CacheEntry> mForeignPrincipalCache;
-    private Counter mHitRate = new HitRateCounter();
-
-    private long mRefreshTTL;
-
-    static class CacheEntry {
-        long mLifetime;
-        Account mEntry;
-        CacheEntry(Account entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
+
+    private final ConcurrentMap<String, CachedEntry<Account>> mNameCache;
+    private final ConcurrentMap<String, CachedEntry<Account>> mIdCache;
+    private final ConcurrentMap<String, CachedEntry<Account>> mAliasCache;
+    private final ConcurrentMap<String, CachedEntry<Account>> mForeignPrincipalCache;
+    private final MissingNames mMissingNames;
+    private final EntryCacheStats mStats = new EntryCacheStats();
+
+    private final long mRefreshTTL;
+    private final EntryRefresher mRefresher;
+
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public AccountCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mAliasCache = MapUtil.newLruMap(maxItems); 
-        mForeignPrincipalCache = MapUtil.newLruMap(maxItems);  
-        
+        this(maxItems, refreshTTL, null);
+    }
+
+    /**
+     * @param refresher reloads accounts in the background before they expire, or null to let them expire
+     */
+    public AccountCache(int maxItems, long refreshTTL, EntryRefresher refresher) {
+        this(maxItems, refreshTTL, refresher, new MissingNames(maxItems));
+    }
+
+    AccountCache(int maxItems, long refreshTTL, EntryRefresher refresher, MissingNames missingNames) {
+        mNameCache = MapUtil.newConcurrentLruMap(maxItems);
+        mIdCache = MapUtil.newConcurrentLruMap(maxItems);
+        mAliasCache = MapUtil.newConcurrentLruMap(maxItems);
+        mForeignPrincipalCache = MapUtil.newConcurrentLruMap(maxItems);
+        mMissingNames = missingNames;
+
         mRefreshTTL = refreshTTL;
+        mRefresher = refresher;
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
         mNameCache.clear();
         mIdCache.clear();
         mAliasCache.clear();
         mForeignPrincipalCache.clear();
+        mMissingNames.clear();
     }
 
     @Override
-    public synchronized void remove(Account entry) {
+    public void remove(Account entry) {
         if (entry != null) {
             mNameCache.remove(entry.getName());
             mIdCache.remove(entry.getId());
-            
-            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);            
+            mMissingNames.remove(entry.getName());
+
+            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
             for (String alias : aliases) {
                 mAliasCache.remove(alias);
+                mMissingNames.remove(alias);
             }
-            
-            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);            
+
+            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);
             for (String fp : fps) {
                 mForeignPrincipalCache.remove(fp);
             }
         }
     }
-    
+
     @Override
-    public synchronized void put(Account entry) {
+    public void put(Account entry) {
         if (entry != null) {
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
+            CachedEntry<Account> cacheEntry = new CachedEntry<Account>(entry, mRefreshTTL, mRefresher);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
-            
-            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);            
+            mMissingNames.remove(entry.getName());
+
+            String aliases[] = entry.getMultiAttr(Provisioning.A_zimbraMailAlias);
             for (String alias : aliases) {
-                mAliasCache.put(alias, cacheEntry); 
+                mAliasCache.put(alias, cacheEntry);
+                mMissingNames.remove(alias);
             }
-            
-            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);            
+
+            String fps[] = entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal);
             for (String fp : fps) {
-                mForeignPrincipalCache.put(fp, cacheEntry); 
+                mForeignPrincipalCache.put(fp, cacheEntry);
             }
         }
     }
-    
+
+    /**
+     * Removes the aliases and foreign principals the account no longer has, and caches it again.  The name and id
+     * mappings are overwritten rather than removed first, so that concurrent lookups never see the account missing.
+     */
     @Override
-    public synchronized void replace(Account entry) {
-        remove(entry);
-        put(entry);
-    }
-
-    private Account get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
+    public void replace(Account entry) {
+        if (entry != null) {
+            CachedEntry<Account> old = mIdCache.get(entry.getId());
+            if (old != null && old.entry != entry) {
+                if (!old.entry.getName().equals(entry.getName())) {
+                    mNameCache.remove(old.entry.getName());
+                }
+                for (String alias : old.entry.getMultiAttr(Provisioning.A_zimbraMailAlias)) {
+                    mAliasCache.remove(alias);
+                }
+                for (String fp : old.entry.getMultiAttr(Provisioning.A_zimbraForeignPrincipal)) {
+                    mForeignPrincipalCache.remove(fp);
+                }
             }
-        } else {
-            mHitRate.increment(0);
-            return null;
+            put(entry);
         }
     }
-    
+
     @Override
-    public synchronized Account getById(String key) {
-        return get(key, mIdCache);
+    public Account getById(String key) {
+        return mStats.get(mIdCache, key);
     }
-    
+
     @Override
-    public synchronized Account getByName(String key) {
-        Account acct = get(key.toLowerCase(), mNameCache);
-        if (acct != null) {
-            return acct;
-        } else {
-            return get(key.toLowerCase(), mAliasCache);
-        }
+    public Account getByName(String key) {
+        String name = key.toLowerCase();
+        CachedEntry<Account> ce = mNameCache.get(name);
+        return mStats.get(ce != null ? ce : mAliasCache.get(name));
+    }
+
+    @Override
+    public void putMissing(String name) {
+        mMissingNames.put(name);
+    }
+
+    @Override
+    public boolean isMissing(String name) {
+        return mMissingNames.contains(name);
+    }
+
+    @Override
+    public void removeMissing(String name) {
+        mMissingNames.remove(name);
     }
-    
+
     @Override
-    public synchronized Account getByForeignPrincipal(String key) {
-        return get(key, mForeignPrincipalCache);
+    public Account getByForeignPrincipal(String key) {
+        return mStats.get(mForeignPrincipalCache, key);
     }
-    
+
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
-    
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
-    	 return mHitRate.getAverage();
+    public double getHitRate() {
+        return mStats.getHitRate();
     }
-}
 
+    @Override
+    public double getRefreshRate() {
+        return mStats.getRefreshRate();
+    }
+
+    @Override
+    public double getMissRate() {
+        return mStats.getMissRate();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * An LDAP entry in one of the provisioning caches, with its refresh schedule.
+ * <p>
+ * Without an {@link EntryRefresher}, the entry expires once its maxage has passed and the next lookup reloads it.
+ * With one, the first lookup in the refresh window has the entry reloaded in the background, and all lookups keep
+ * getting the cached entry until the reload puts a fresh one in its place.  If no reload has succeeded by the end of
+ * the window, lookups miss.
+ */
+final class CachedEntry<E extends NamedEntry> {
+
+    /** time a background reload has before another one is started */
+    static final long REFRESH_TIMEOUT = 10 * Constants.MILLIS_PER_SECOND;
+
+    final E entry;
+    private final long refreshAt;
+    private final long staleUntil;
+    private final EntryRefresher refresher;
+    private final AtomicLong refreshStarted = new AtomicLong(); // 0 if no reload was started
+
+    CachedEntry(E entry, long refreshTTL, EntryRefresher refresher) {
+        this.entry = entry;
+        this.refresher = refresher;
+        if (refreshTTL <= 0) {
+            refreshAt = staleUntil = Long.MAX_VALUE;
+        } else {
+            long expires = System.currentTimeMillis() + refreshTTL;
+            long ahead = refresher == null ? 0 : refreshTTL * refresher.getRefreshAheadPercent() / 100;
+            refreshAt = expires - ahead;
+            staleUntil = expires + ahead;
+        }
+    }
+
+    /**
+     * Returns the entry, or null if the caller has to reload it from LDAP.
+     */
+    E get(EntryCacheStats stats) {
+        long now = System.currentTimeMillis();
+        if (now < refreshAt) {
+            stats.hit();
+            return entry;
+        } else if (now >= staleUntil) {
+            stats.refresh();
+            return null;
+        }
+        long started = refreshStarted.get();
+        if ((started == 0 || now - started >= REFRESH_TIMEOUT) && refreshStarted.compareAndSet(started, now)) {
+            stats.refresh();
+            refresher.refreshLater(entry);
+        } else {
+            stats.hit();
+        }
+        return entry;
+    }
+}
@@ -23,12 +23,10 @@
  */
 package com.zimbra.cs.account.cache;
 
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.account.Key.DomainBy;
-import com.zimbra.common.stats.Counter;
-import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Provisioning;
 
@@ -37,14 +35,15 @@ import com.zimbra.cs.account.Provisioning;
  **/
 public class DomainCache implements IDomainCache {
     
-    private Map mNameCache;
-    private Map mIdCache;
-    private Map mVirtualHostnameCache;
-    private Map mForeignNameCache;
-    private Map mKrb5RealmCache;
+    private final ConcurrentMap<String, CachedEntry<Domain>> mNameCache;
+    private final ConcurrentMap<String, CachedEntry<Domain>> mIdCache;
+    private final ConcurrentMap<String, CachedEntry<Domain>> mVirtualHostnameCache;
+    private final ConcurrentMap<String, CachedEntry<Domain>> mForeignNameCache;
+    private final ConcurrentMap<String, CachedEntry<Domain>> mKrb5RealmCache;
     
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
+    private final long mRefreshTTL;
+    private final EntryRefresher mRefresher;
+    private final EntryCacheStats mStats = new EntryCacheStats();
 
     
     public enum GetFromDomainCacheOption {
@@ -61,19 +60,6 @@ public class DomainCache implements IDomainCache {
      */
     private NegativeCache mNegativeCache;
 
-    static class CacheEntry {
-        long mLifetime;
-        Domain mEntry;
-        CacheEntry(Domain entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
     public static class NonExistingDomain extends Domain {
         private NonExistingDomain() {
             super(null, null, null, null, null);
@@ -82,11 +68,11 @@ public class DomainCache implements IDomainCache {
     
 
     class NegativeCache {
-        private Map mNegativeNameCache;
-        private Map mNegativeIdCache;
-        private Map mNegativeVirtualHostnameCache;
-        private Map mNegativeForeignNameCache;
-        private Map mNegativeKrb5RealmCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeNameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeIdCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeVirtualHostnameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeForeignNameCache;
+        private final ConcurrentMap<String, NonExistingDomain> mNegativeKrb5RealmCache;
 
         private long mNERefreshTTL;
         
@@ -97,11 +83,11 @@ public class DomainCache implements IDomainCache {
         private boolean mEnabled = true;
         
         private NegativeCache(int maxItems, long refreshTTL) {
-            mNegativeNameCache = MapUtil.newLruMap(maxItems);
-            mNegativeIdCache = MapUtil.newLruMap(maxItems);
-            mNegativeVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeForeignNameCache = MapUtil.newLruMap(maxItems);  
-            mNegativeKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+            mNegativeNameCache = MapUtil.newConcurrentLruMap(maxItems);
+            mNegativeIdCache = MapUtil.newConcurrentLruMap(maxItems);
+            mNegativeVirtualHostnameCache = MapUtil.newConcurrentLruMap(maxItems);  
+            mNegativeForeignNameCache = MapUtil.newConcurrentLruMap(maxItems);  
+            mNegativeKrb5RealmCache = MapUtil.newConcurrentLruMap(maxItems);   
             mNERefreshTTL = refreshTTL;
         }
         
@@ -136,15 +122,15 @@ public class DomainCache implements IDomainCache {
             
             switch (domainBy) {
             case name:
-                return (NonExistingDomain)mNegativeNameCache.get(key);
+                return mNegativeNameCache.get(key);
             case id:
-                return (NonExistingDomain)mNegativeIdCache.get(key);
+                return mNegativeIdCache.get(key);
             case virtualHostname:
-                return (NonExistingDomain)mNegativeVirtualHostnameCache.get(key);
+                return mNegativeVirtualHostnameCache.get(key);
             case foreignName:
-                return (NonExistingDomain)mNegativeForeignNameCache.get(key);
+                return mNegativeForeignNameCache.get(key);
             case krb5Realm:
-                return (NonExistingDomain)mNegativeKrb5RealmCache.get(key);
+                return mNegativeKrb5RealmCache.get(key);
             }
             return null;
         }
@@ -204,18 +190,27 @@ public class DomainCache implements IDomainCache {
  * @param refreshTTL
  */
     public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-        mForeignNameCache = MapUtil.newLruMap(maxItems); 
-        mKrb5RealmCache = MapUtil.newLruMap(maxItems);   
+        this(maxItems, refreshTTL, maxItemsNegative, refreshTTLNegative, null);
+    }
+
+    /**
+     * @param refresher reloads domains in the background before they expire, or null to let them expire
+     */
+    public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative,
+            EntryRefresher refresher) {
+        mNameCache = MapUtil.newConcurrentLruMap(maxItems);
+        mIdCache = MapUtil.newConcurrentLruMap(maxItems);
+        mVirtualHostnameCache = MapUtil.newConcurrentLruMap(maxItems);  
+        mForeignNameCache = MapUtil.newConcurrentLruMap(maxItems); 
+        mKrb5RealmCache = MapUtil.newConcurrentLruMap(maxItems);   
         mRefreshTTL = refreshTTL;
+        mRefresher = refresher;
         
         mNegativeCache = new NegativeCache(maxItemsNegative, refreshTTLNegative);
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
         mNameCache.clear();
         mIdCache.clear();
         mVirtualHostnameCache.clear();
@@ -226,7 +221,7 @@ public class DomainCache implements IDomainCache {
     }
 
     @Override
-    public synchronized void remove(Domain entry) {
+    public void remove(Domain entry) {
         if (entry != null) {
             mNameCache.remove(entry.getName());
             mIdCache.remove(entry.getId());
@@ -246,23 +241,24 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized void replace(Domain entry) {
+    public void replace(Domain entry) {
+        // lookups racing with the replace can miss the domain and load it from LDAP, which is harmless
         remove(entry);
         put(DomainBy.id, entry.getId(), entry);
     }
     
     @Override
-    public synchronized void removeFromNegativeCache(DomainBy domainBy, String key) {
+    public void removeFromNegativeCache(DomainBy domainBy, String key) {
         mNegativeCache.remove(domainBy, key);
     }
     
     @Override
-    public synchronized void put(DomainBy domainBy, String key, Domain entry) {
+    public void put(DomainBy domainBy, String key, Domain entry) {
         if (entry != null) {
             // clean it from the non-existing cache first
             mNegativeCache.clean(domainBy, key, entry);
             
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
+            CachedEntry<Domain> cacheEntry = new CachedEntry<Domain>(entry, mRefreshTTL, mRefresher);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
             
@@ -282,25 +278,12 @@ public class DomainCache implements IDomainCache {
         }
     }
 
-    private Domain get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
-            }
-        } else {
-            mHitRate.increment(0);
-            return null;
-        }
+    private Domain get(String key, ConcurrentMap<String, CachedEntry<Domain>> cache) {
+        return mStats.get(cache, key);
     }
     
     @Override
-    public synchronized Domain getById(String key, GetFromDomainCacheOption option) {
+    public Domain getById(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -318,7 +301,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByName(String key, GetFromDomainCacheOption option) {
+    public Domain getByName(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -336,7 +319,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
+    public Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -354,7 +337,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByForeignName(String key, GetFromDomainCacheOption option) {
+    public Domain getByForeignName(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -372,7 +355,7 @@ public class DomainCache implements IDomainCache {
     }
     
     @Override
-    public synchronized Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
+    public Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
         
         switch (option) {
         case POSITIVE:
@@ -390,7 +373,7 @@ public class DomainCache implements IDomainCache {
     }
 
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
     
@@ -398,7 +381,7 @@ public class DomainCache implements IDomainCache {
      * Returns the cache hit rate as a value between 0 and 100.<br />
      */
     @Override
-    public synchronized double getHitRate() {
-    	 return mHitRate.getAverage();
+    public double getHitRate() {
+        return mStats.getHitRate();
     }
 }
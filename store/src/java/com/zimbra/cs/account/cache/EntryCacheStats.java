@@ -0,0 +1,78 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.account.cache;
+
+import java.util.Map;
+
+import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.HitRateCounter;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * Splits the lookups of a provisioning cache into hits, refreshes (the entry was cached but has to be reloaded) and
+ * misses (nothing was cached).  Each rate is a percentage of the lookups since it was last read.
+ */
+final class EntryCacheStats {
+    private final Counter hitRate = new HitRateCounter();
+    private final Counter refreshRate = new HitRateCounter();
+    private final Counter missRate = new HitRateCounter();
+
+    void hit() {
+        record(100, 0, 0);
+    }
+
+    void refresh() {
+        record(0, 100, 0);
+    }
+
+    void miss() {
+        record(0, 0, 100);
+    }
+
+    private void record(int hit, int refresh, int miss) {
+        hitRate.increment(hit);
+        refreshRate.increment(refresh);
+        missRate.increment(miss);
+    }
+
+    /** Looks up a key in one of the cache maps. */
+    <E extends NamedEntry> E get(Map<String, CachedEntry<E>> cache, String key) {
+        return get(key == null ? null : cache.get(key));
+    }
+
+    /** Returns the entry, or null if it is not cached or has to be reloaded. */
+    <E extends NamedEntry> E get(CachedEntry<E> ce) {
+        if (ce == null) {
+            miss();
+            return null;
+        }
+        return ce.get(this);
+    }
+
+    double getHitRate() {
+        return hitRate.getAverage();
+    }
+
+    double getRefreshRate() {
+        return refreshRate.getAverage();
+    }
+
+    double getMissRate() {
+        return missRate.getAverage();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Reloads cached LDAP entries on a background thread.
+ * <p>
+ * A cache built with a refresher starts reloading an entry during the last {@code ldap_cache_refresh_ahead_percent}
+ * of its maxage, and keeps returning the cached entry until the reload has put a fresh one in its place.  Lookups
+ * only wait for LDAP once the entry is as far past its maxage as the refresh started ahead of it.
+ */
+public class EntryRefresher {
+
+    /**
+     * Reloads entries from the LDAP replicas with {@link Provisioning#reload(com.zimbra.cs.account.Entry, boolean)},
+     * which puts them back in their cache.  Only for caches whose entries {@code LdapProvisioning} caches again after a
+     * reload.
+     */
+    public static final EntryRefresher PROVISIONING = new EntryRefresher(Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("LdapCacheRefresher").setDaemon(true).build()),
+            LC.ldap_cache_refresh_ahead_percent.intValueWithinRange(0, 50));
+
+    private final Executor executor;
+    private final int refreshAheadPercent;
+
+    EntryRefresher(Executor executor, int refreshAheadPercent) {
+        this.executor = executor;
+        this.refreshAheadPercent = refreshAheadPercent;
+    }
+
+    int getRefreshAheadPercent() {
+        return refreshAheadPercent;
+    }
+
+    void refreshLater(final NamedEntry entry) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reload(entry);
+                } catch (Throwable t) {
+                    ZimbraLog.account.warn("unable to refresh cached entry %s", entry.getName(), t);
+                }
+            }
+        });
+    }
+
+    void reload(NamedEntry entry) throws ServiceException {
+        Provisioning.getInstance().reload(entry, false);
+    }
+}
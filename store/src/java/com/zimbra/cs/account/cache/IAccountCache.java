@@ -26,4 +26,16 @@ public interface IAccountCache extends IEntryCache {
     public Account getById(String key);
     public Account getByName(String key);
     public Account getByForeignPrincipal(String key);
+
+    /** Remembers for a while that there is no account or alias with this name. */
+    public void putMissing(String name);
+    /** Returns true if the name was recently looked up and not found. */
+    public boolean isMissing(String name);
+    /** Forgets that the name was not found. */
+    public void removeMissing(String name);
+
+    /** Returns the percentage of lookups that found a cached account due to be reloaded from LDAP. */
+    public double getRefreshRate();
+    /** Returns the percentage of lookups that found no cached account. */
+    public double getMissRate();
 }
@@ -29,4 +29,11 @@ public interface INamedEntryCache<E extends NamedEntry> extends IEntryCache {
     public void put(List<E> entries, boolean clear);
     public E getById(String key);
     public E getByName(String key);
+
+    /** Remembers for a while that there is no entry with this name. */
+    public void putMissing(String name);
+    /** Returns true if the name was recently looked up and not found. */
+    public boolean isMissing(String name);
+    /** Forgets that the name was not found. */
+    public void removeMissing(String name);
 }
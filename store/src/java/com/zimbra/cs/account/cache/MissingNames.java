@@ -0,0 +1,77 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.MapUtil;
+
+/**
+ * Names that were recently looked up in LDAP and not found.
+ * <p>
+ * A name is only remembered on the server that looked it up, so an entry created through another server stays
+ * missing here until {@code ldap_cache_negative_maxage_sec} has passed or the name is flushed from the cache.  That
+ * maxage is kept to seconds for this reason.  Caching the entry, or removing it, forgets that it was missing.
+ */
+final class MissingNames {
+    // lower-cased name -> time until which it is reported missing
+    private final ConcurrentMap<String, Long> names;
+    private final long ttl;
+
+    MissingNames(int maxItems) {
+        this(maxItems, LC.ldap_cache_negative_maxage_sec.longValue() * Constants.MILLIS_PER_SECOND);
+    }
+
+    MissingNames(int maxItems, long ttl) {
+        this.names = MapUtil.newConcurrentLruMap(maxItems);
+        this.ttl = ttl;
+    }
+
+    void put(String name) {
+        if (ttl > 0 && name != null) {
+            names.put(name.toLowerCase(), System.currentTimeMillis() + ttl);
+        }
+    }
+
+    boolean contains(String name) {
+        if (name == null) {
+            return false;
+        }
+        String key = name.toLowerCase();
+        Long until = names.get(key);
+        if (until == null) {
+            return false;
+        } else if (until < System.currentTimeMillis()) {
+            names.remove(key, until);
+            return false;
+        }
+        return true;
+    }
+
+    void remove(String name) {
+        if (name != null) {
+            names.remove(name.toLowerCase());
+        }
+    }
+
+    void clear() {
+        names.clear();
+    }
+}
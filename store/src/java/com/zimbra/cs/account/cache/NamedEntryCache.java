@@ -24,85 +24,93 @@
 package com.zimbra.cs.account.cache;
 
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import com.zimbra.common.util.MapUtil;
-import com.zimbra.common.stats.Counter;
-import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.NamedEntry;
 
 /**
  * @author schemers
  **/
 public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
-   
-
-    static class CacheEntry<E extends NamedEntry> {
-        long mLifetime;
-        E mEntry;
-        CacheEntry(E entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
+
+    private final ConcurrentMap<String, CachedEntry<E>> mNameCache;
+    private final ConcurrentMap<String, CachedEntry<E>> mIdCache;
+    private final MissingNames mMissingNames;
+
+    private final long mRefreshTTL;
+    private final EntryRefresher mRefresher;
+    private final EntryCacheStats mStats = new EntryCacheStats();
+
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public NamedEntryCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
+        this(maxItems, refreshTTL, null);
+    }
+
+    /**
+     * @param refresher reloads entries in the background before they expire, or null to let them expire
+     */
+    public NamedEntryCache(int maxItems, long refreshTTL, EntryRefresher refresher) {
+        this(maxItems, refreshTTL, refresher, new MissingNames(maxItems));
+    }
+
+    NamedEntryCache(int maxItems, long refreshTTL, EntryRefresher refresher, MissingNames missingNames) {
+        mNameCache = MapUtil.newConcurrentLruMap(maxItems);
+        mIdCache = MapUtil.newConcurrentLruMap(maxItems);
+        mMissingNames = missingNames;
         mRefreshTTL = refreshTTL;
+        mRefresher = refresher;
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
         mNameCache.clear();
         mIdCache.clear();
+        mMissingNames.clear();
     }
 
     @Override
-    public synchronized void remove(String name, String id) {
-        mNameCache.remove(name);
-        mIdCache.remove(id);
+    public void remove(String name, String id) {
+        // unlike the maps this cache used to be built on, concurrent maps do not take null keys
+        if (name != null) {
+            mNameCache.remove(name);
+            mMissingNames.remove(name);
+        }
+        if (id != null) {
+            mIdCache.remove(id);
+        }
     }
-    
+
     @Override
-    public synchronized void remove(E entry) {
+    public void remove(E entry) {
         if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
+            remove(entry.getName(), entry.getId());
         }
     }
-    
+
     @Override
-    public synchronized void put(E entry) {
-        if (entry != null) {
-            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL);
+    public void put(E entry) {
+        if (entry != null && entry.getName() != null && entry.getId() != null) {
+            CachedEntry<E> cacheEntry = new CachedEntry<E>(entry, mRefreshTTL, mRefresher);
             mNameCache.put(entry.getName(), cacheEntry);
             mIdCache.put(entry.getId(), cacheEntry);
+            mMissingNames.remove(entry.getName());
         }
     }
-    
+
+    /**
+     * Replaces the cached entry in place, so that concurrent lookups never see it missing.
+     */
     @Override
-    public synchronized void replace(E entry) {
-        remove(entry);
+    public void replace(E entry) {
         put(entry);
     }
 
     @Override
-    public synchronized void put(List<E> entries, boolean clear) {
+    public void put(List<E> entries, boolean clear) {
         if (entries != null) {
             if (clear) clear();
             for (E e: entries)
@@ -110,45 +118,41 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private E get(String key, Map cache) {
-        CacheEntry<E> ce = (CacheEntry<E>) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
-            }
-        } else {
-            mHitRate.increment(0);
-            return null;
-        }
+    @Override
+    public void putMissing(String name) {
+        mMissingNames.put(name);
+    }
+
+    @Override
+    public boolean isMissing(String name) {
+        return mMissingNames.contains(name);
+    }
+
+    @Override
+    public void removeMissing(String name) {
+        mMissingNames.remove(name);
     }
-    
+
     @Override
-    public synchronized E getById(String key) {
-        return get(key, mIdCache);
+    public E getById(String key) {
+        return mStats.get(mIdCache, key);
     }
-    
+
     @Override
-    public synchronized E getByName(String key) {
-        return get(key.toLowerCase(), mNameCache);
+    public E getByName(String key) {
+        return mStats.get(mNameCache, key.toLowerCase());
     }
-    
+
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
-    
-  
+
     /**
      * Returns the cache hit rate as a value between 0 and 100.
      */
     @Override
-    public synchronized double getHitRate() {
-        return mHitRate.getAverage();
+    public double getHitRate() {
+        return mStats.getHitRate();
     }
 }
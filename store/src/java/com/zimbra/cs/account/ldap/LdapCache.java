@@ -37,6 +37,7 @@ import com.zimbra.cs.account.XMPPComponent;
 import com.zimbra.cs.account.cache.AccountCache;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
+import com.zimbra.cs.account.cache.EntryRefresher;
 import com.zimbra.cs.account.cache.IAccountCache;
 import com.zimbra.cs.account.cache.IDomainCache;
 import com.zimbra.cs.account.cache.IMimeTypeCache;
@@ -72,13 +73,16 @@ abstract class LdapCache {
         private final IAccountCache accountCache =
             new AccountCache(
                     LC.ldap_cache_account_maxsize.intValue(),
-                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    EntryRefresher.PROVISIONING);
 
         private final INamedEntryCache<LdapCos> cosCache =
             new NamedEntryCache<LdapCos>(
                     LC.ldap_cache_cos_maxsize.intValue(),
-                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    EntryRefresher.PROVISIONING);
 
+        // reloading a share locator or a group does not cache it again, so those caches are left to expire
         private final INamedEntryCache<ShareLocator> shareLocatorCache =
                 new NamedEntryCache<ShareLocator>(
                         LC.ldap_cache_share_locator_maxsize.intValue(),
@@ -89,24 +93,28 @@ abstract class LdapCache {
                     LC.ldap_cache_domain_maxsize.intValue(),
                     LC.ldap_cache_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
                     LC.ldap_cache_external_domain_maxsize.intValue(),
-                    LC.ldap_cache_external_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_external_domain_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    EntryRefresher.PROVISIONING);
 
         private final IMimeTypeCache mimeTypeCache = new LdapMimeTypeCache();
 
         private final INamedEntryCache<Server> serverCache =
             new NamedEntryCache<Server>(
                     LC.ldap_cache_server_maxsize.intValue(),
-                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    EntryRefresher.PROVISIONING);
 
         private final INamedEntryCache<UCService> ucServiceCache =
             new NamedEntryCache<UCService>(
                     LC.ldap_cache_ucservice_maxsize.intValue(),
-                    LC.ldap_cache_ucservice_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_ucservice_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    EntryRefresher.PROVISIONING);
 
         private final INamedEntryCache<LdapZimlet> zimletCache =
             new NamedEntryCache<LdapZimlet>(
                     LC.ldap_cache_zimlet_maxsize.intValue(),
-                    LC.ldap_cache_zimlet_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_zimlet_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    EntryRefresher.PROVISIONING);
 
 
         private final INamedEntryCache<Group> groupCache =
@@ -117,12 +125,14 @@ abstract class LdapCache {
         private final INamedEntryCache<XMPPComponent> xmppComponentCache =
             new NamedEntryCache<XMPPComponent>(
                     LC.ldap_cache_xmppcomponent_maxsize.intValue(),
-                    LC.ldap_cache_xmppcomponent_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_xmppcomponent_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    EntryRefresher.PROVISIONING);
 
         private final INamedEntryCache<AlwaysOnCluster> alwaysOnClusterCache =
                 new NamedEntryCache<AlwaysOnCluster>(
                         LC.ldap_cache_alwaysoncluster_maxsize.intValue(),
-                        LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                        LC.ldap_cache_alwaysoncluster_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                        EntryRefresher.PROVISIONING);
 
         @Override
         IAccountCache accountCache() {
@@ -223,11 +233,26 @@ abstract class LdapCache {
             @Override
             public Account getByForeignPrincipal(String key) { return null; }
 
+            @Override
+            public void putMissing(String name) {}
+
+            @Override
+            public boolean isMissing(String name) { return false; }
+
+            @Override
+            public void removeMissing(String name) {}
+
             @Override
             public int getSize() { return 0; }
 
             @Override
             public double getHitRate() { return 0; }
+
+            @Override
+            public double getRefreshRate() { return 0; }
+
+            @Override
+            public double getMissRate() { return 0; }
         }
 
         static class NoopDomainCache implements IDomainCache {
@@ -281,6 +306,15 @@ abstract class LdapCache {
             @Override
             public E getByName(String key) { return null; }
 
+            @Override
+            public void putMissing(String name) {}
+
+            @Override
+            public boolean isMissing(String name) { return false; }
+
+            @Override
+            public void removeMissing(String name) {}
+
             @Override
             public double getHitRate() { return 0; }
 
@@ -75,6 +75,8 @@ public abstract class LdapProv extends Provisioning {
 
     public abstract int getAccountCacheSize();
     public abstract double getAccountCacheHitRate();
+    public abstract double getAccountCacheRefreshRate();
+    public abstract double getAccountCacheMissRate();
     public abstract int getCosCacheSize();
     public abstract double getCosCacheHitRate();
     public abstract int getDomainCacheSize();
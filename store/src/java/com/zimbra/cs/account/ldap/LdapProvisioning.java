@@ -327,6 +327,12 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     @Override
     public double getAccountCacheHitRate() { return accountCache.getHitRate(); }
 
+    @Override
+    public double getAccountCacheRefreshRate() { return accountCache.getRefreshRate(); }
+
+    @Override
+    public double getAccountCacheMissRate() { return accountCache.getMissRate(); }
+
     @Override
     public int getCosCacheSize() { return cosCache.getSize(); }
 
@@ -1123,11 +1129,18 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
 
         Account account = accountCache.getByName(emailAddress);
         if (account == null) {
+            if (!loadFromMaster && accountCache.isMissing(emailAddress)) {
+                return null;
+            }
             account = getAccountByQuery(
                     mDIT.mailBranchBaseDN(),
                     filterFactory.accountByName(emailAddress),
                     null, loadFromMaster);
-            accountCache.put(account);
+            if (account != null) {
+                accountCache.put(account);
+            } else {
+                accountCache.putMissing(emailAddress);
+            }
         }
         return account;
     }
@@ -3209,6 +3222,8 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         LdapCos cos = cosCache.getByName(name);
         if (cos != null)
             return cos;
+        if (cosCache.isMissing(name))
+            return null;
 
         try {
             String dn = mDIT.cosNametoDN(name);
@@ -3218,6 +3233,7 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
             cosCache.put(cos);
             return cos;
         } catch (LdapEntryNotFoundException e) {
+            cosCache.putMissing(name);
             return null;
         } catch (ServiceException e) {
             throw ServiceException.FAILURE("unable to lookup COS by name: " + name +
@@ -4158,6 +4174,8 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
             Server s = serverCache.getByName(name);
             if (s != null)
                 return s;
+            if (serverCache.isMissing(name))
+                return null;
         }
 
         try {
@@ -4167,6 +4185,7 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
             serverCache.put(s);
             return s;
         } catch (LdapEntryNotFoundException e) {
+            serverCache.putMissing(name);
             return null;
         } catch (ServiceException e) {
             throw ServiceException.FAILURE("unable to lookup server by name: "+name+" message: "+e.getMessage(), e);
@@ -8679,6 +8698,8 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
                      */
                     if (account != null) {
                         removeFromCache(account);
+                    } else if (accountBy == AccountBy.name) {
+                        accountCache.removeMissing(entry.mEntryIdentity);
                     }
                 }
             } else {
@@ -8719,6 +8740,8 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
                     Cos cos = getFromCache(cosBy, entry.mEntryIdentity);
                     if (cos != null)
                         reload(cos, false);
+                    else if (cosBy == Key.CosBy.name)
+                        cosCache.removeMissing(entry.mEntryIdentity);
                 }
             } else
                 cosCache.clear();
@@ -8745,6 +8768,8 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
             if (entries != null) {
                 for (CacheEntry entry : entries) {
                     Key.ServerBy serverBy = (entry.mEntryBy==Key.CacheEntryBy.id)? Key.ServerBy.id : Key.ServerBy.name;
+                    if (serverBy == Key.ServerBy.name)
+                        serverCache.removeMissing(entry.mEntryIdentity);
                     Server server = get(serverBy, entry.mEntryIdentity);
                     if (server != null)
                         reload(server, false);
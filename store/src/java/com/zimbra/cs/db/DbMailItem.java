@@ -1003,7 +1003,7 @@ public class DbMailItem {
             int pos = 1;
             stmt.setLong(pos++, item.getSize());
             stmt.setInt(pos++, item.getUnreadCount());
-            stmt.setString(pos++, checkMetadataLength(metadata.toString()));
+            stmt.setString(pos++, checkMetadataLength(metadata.toStorageString()));
             stmt.setInt(pos++, item.getModifiedSequence());
             if (item.getChangeDate() > 0) {
                 stmt.setInt(pos++, (int) (item.getChangeDate() / 1000));
@@ -1071,7 +1071,7 @@ public class DbMailItem {
             if (isFolder) {
                 stmt.setInt(pos++, folderId);
             }
-            stmt.setString(pos++, metadata.toString());
+            stmt.setString(pos++, metadata.toStorageString());
             stmt.setInt(pos++, mbox.getOperationChangeID());
             stmt.setInt(pos++, mbox.getOperationTimestamp());
             pos = setMailboxId(stmt, mbox, pos);
@@ -1132,7 +1132,7 @@ public class DbMailItem {
             stmt.setString(pos++, item.getSortRecipients());
             stmt.setString(pos++, item.getSortSubject());
             stmt.setString(pos++, name);
-            stmt.setString(pos++, checkMetadataLength(metadata.toString()));
+            stmt.setString(pos++, checkMetadataLength(metadata.toStorageString()));
             stmt.setInt(pos++, mailbox.getOperationChangeID());
             stmt.setInt(pos++, mailbox.getOperationTimestamp());
             stmt.setInt(pos++, item.getSavedSequence());
@@ -4740,7 +4740,9 @@ public class DbMailItem {
             if (data.name != dbdata.name && (data.name == null || !data.name.equals(dbdata.name))) {
                 failures += " NAME";
             }
-            if (metadata != dbdata.metadata && (metadata == null || !metadata.equals(dbdata.metadata))) {
+            if (metadata != dbdata.metadata && (metadata == null || dbdata.metadata == null ||
+                    !new Metadata(metadata).toString().equals(new Metadata(dbdata.metadata).toString()))) {
+                // compare decoded, as the column may hold either the legacy or the compact encoding
                 failures += " METADATA";
             }
 
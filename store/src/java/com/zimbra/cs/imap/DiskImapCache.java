@@ -17,11 +17,8 @@
 package com.zimbra.cs.imap;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 
@@ -89,19 +86,18 @@ final class DiskImapCache implements ImapSessionManager.Cache {
         if (pagefile.exists()) {
             return;
         }
+        byte[] data;
+        synchronized (folder) {
+            data = ImapFolderCodec.encode(folder);
+        }
         FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(fos = new FileOutputStream(pagefile));
-            synchronized (folder) {
-                oos.writeObject(folder);
-            }
+            fos = new FileOutputStream(pagefile);
+            fos.write(data);
         } catch (IOException e) {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
             pagefile.delete();
         } finally {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
         }
     }
@@ -112,20 +108,12 @@ final class DiskImapCache implements ImapSessionManager.Cache {
         if (!pagefile.exists()) {
             return null;
         }
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
         try {
-            // read serialized ImapFolder from cache
-            ois = new ObjectInputStream(fis = new FileInputStream(pagefile));
-            return (ImapFolder) ois.readObject();
+            // read encoded ImapFolder from cache; files left behind by Java serialization fail to decode and are dropped
+            return ImapFolderCodec.decode(ByteUtil.getContent(pagefile));
         } catch (Exception e) {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
             pagefile.delete();
             return null;
-        } finally {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
         }
     }
 
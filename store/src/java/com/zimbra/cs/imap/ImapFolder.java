@@ -18,6 +18,7 @@ package com.zimbra.cs.imap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -123,6 +124,19 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         this.tags = new ImapFlagCache();
     }
 
+    /** Rebuilds a detached ImapFolder from its cached state.  As with a
+     *  deserialized folder, {@link #restore} must be called before use.
+     *  @see ImapFolderCodec */
+    ImapFolder(int folderId, int uidValidity, String query, Set<MailItem.Type> typeConstraint,
+            List<ImapMessage> messages, ImapFlagCache tags) {
+        this.folderId = folderId;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.sequence.addAll(messages);
+        this.tags = tags;
+    }
+
     void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
@@ -710,6 +724,89 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         return result;
     }
 
+    /** Returns a bitmap of the folder's {@link #sequence} message list with a bit
+     *  set for every message.  Bit <tt>n</tt> stands for the message with sequence
+     *  number <tt>n + 1</tt>. */
+    synchronized BitSet getAllMessageBits() {
+        BitSet bits = new BitSet(getSize());
+        bits.set(0, getSize());
+        return bits;
+    }
+
+    /** Returns a bitmap of the messages that match the flag.
+     * @see #getAllMessageBits() */
+    synchronized BitSet getFlaggedBits(ImapFlag i4flag) {
+        BitSet bits = new BitSet(getSize());
+        if (i4flag != null) {
+            for (int i = 0; i < sequence.size(); i++) {
+                ImapMessage i4msg = sequence.get(i);
+                if (i4msg != null && i4flag.matches(i4msg)) {
+                    bits.set(i);
+                }
+            }
+        }
+        return bits;
+    }
+
+    /** Returns a bitmap of the messages in the given collection.
+     * @see #getAllMessageBits() */
+    synchronized BitSet getBits(Collection<ImapMessage> i4set) {
+        BitSet bits = new BitSet(getSize());
+        for (ImapMessage i4msg : i4set) {
+            int index = i4msg == null ? -1 : i4msg.sequence - 1;
+            if (index >= 0 && index < getSize() && sequence.get(index) == i4msg) {
+                bits.set(index);
+            }
+        }
+        return bits;
+    }
+
+    /** Returns the messages whose bits are set in the bitmap.
+     * @see #getAllMessageBits() */
+    synchronized ImapMessageSet getMessages(BitSet bits) {
+        ImapMessageSet result = new ImapMessageSet();
+        for (int i = bits.nextSetBit(0); i >= 0 && i < getSize(); i = bits.nextSetBit(i + 1)) {
+            ImapMessage i4msg = sequence.get(i);
+            if (i4msg != null) {
+                result.add(i4msg);
+            }
+        }
+        return result;
+    }
+
+    /** Returns a bitmap of the non-expunged messages in the subsequence.  Unlike
+     *  {@link #getSubsequence(String, String, boolean)}, sequence numbers that are
+     *  out of range are ignored rather than rejected.
+     * @see #getAllMessageBits() */
+    synchronized BitSet getSubsequenceBits(String subseqStr, boolean byUID) {
+        if (subseqStr != null && subseqStr.equals("$")) {
+            return getBits(getSavedSearchResults());
+        }
+        BitSet bits = new BitSet(getSize());
+        for (Pair<Integer, Integer> range : normalizeSubsequence(subseqStr, byUID)) {
+            int start, end;
+            if (byUID) {
+                start = uidSearch(range.getFirst());
+                end = uidSearch(range.getSecond());
+                if (start < 0) {
+                    start = -start - 1;
+                }
+                if (end < 0) {
+                    end = -end - 2;
+                }
+            } else {
+                start = Math.max(range.getFirst(), 1) - 1;
+                end = Math.min(range.getSecond(), getSize()) - 1;
+            }
+            for (int i = start; i <= end; i++) {
+                if (checkRemoved(sequence.get(i)) != null) {
+                    bits.set(i);
+                }
+            }
+        }
+        return bits;
+    }
+
     private static int parseId(String id) {
         // valid values will always be positive ints, so force it there...
         try {
@@ -24,6 +24,7 @@ import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -88,6 +89,7 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.Mountpoint;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.SearchFolder;
@@ -3336,27 +3338,46 @@ abstract class ImapHandler {
             if (unsorted && i4search.canBeRunLocally()) {
                 mbox.lock.lock(false);
                 try {
-                    hits = i4search.evaluate(i4folder);
-                    hits.remove(null);
+                    hits = i4folder.getMessages(i4search.evaluateBits(i4folder));
                 } finally {
                     mbox.lock.release();
                 }
             } else {
-                ZimbraQueryResults zqr = runSearch(i4search, i4folder, sort,
-                        requiresMODSEQ ? SearchParams.Fetch.MODSEQ : SearchParams.Fetch.IDS);
+                // flag, UID and sequence criteria ANDed with the rest are matched against
+                // the cached folder state, and only the rest is sent to the index
+                BitSet filter = null;
+                ImapSearch indexed = i4search;
+                if (i4search instanceof ImapSearch.AndOperation) {
+                    mbox.lock.lock(false);
+                    try {
+                        filter = ((ImapSearch.AndOperation) i4search).evaluateLocalChildren(i4folder);
+                    } finally {
+                        mbox.lock.release();
+                    }
+                    if (filter != null) {
+                        indexed = ((ImapSearch.AndOperation) i4search).getIndexedChildren();
+                    }
+                }
                 hits = unsorted ? new ImapMessageSet() : new ArrayList<ImapMessage>();
-                try {
-                    for (ZimbraHit hit = zqr.getNext(); hit != null; hit = zqr.getNext()) {
-                        ImapMessage i4msg = i4folder.getById(hit.getItemId());
-                        if (i4msg == null || i4msg.isExpunged()) {
-                            continue;
+                if (filter == null || !filter.isEmpty()) {
+                    ZimbraQueryResults zqr = runSearch(indexed, i4folder, sort,
+                            requiresMODSEQ ? SearchParams.Fetch.MODSEQ : SearchParams.Fetch.IDS);
+                    try {
+                        for (ZimbraHit hit = zqr.getNext(); hit != null; hit = zqr.getNext()) {
+                            ImapMessage i4msg = i4folder.getById(hit.getItemId());
+                            if (i4msg == null || i4msg.isExpunged()) {
+                                continue;
+                            }
+                            if (filter != null && !filter.get(i4msg.sequence - 1)) {
+                                continue;
+                            }
+                            hits.add(i4msg);
+                            if (requiresMODSEQ)
+                                modseq = Math.max(modseq, hit.getModifiedSequence());
                         }
-                        hits.add(i4msg);
-                        if (requiresMODSEQ)
-                            modseq = Math.max(modseq, hit.getModifiedSequence());
+                    } finally {
+                        Closeables.closeQuietly(zqr);
                     }
-                } finally {
-                    Closeables.closeQuietly(zqr);
                 }
             }
         } catch (ServiceException e) {
@@ -3777,7 +3798,17 @@ abstract class ImapHandler {
                     }
 
                     if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
+                        // use the BODYSTRUCTURE and ENVELOPE stored with the message, if any,
+                        // and only read and parse the blob for what's left
+                        String bodystructure = null, envelope = null;
+                        if (item instanceof Message) {
+                            bodystructure = ((Message) item).getImapBodyStructure();
+                            envelope = ((Message) item).getImapEnvelope();
+                        }
+                        boolean needMime = (parts != null && !parts.isEmpty()) || (attributes & FETCH_BODY) != 0 ||
+                                ((attributes & FETCH_BODYSTRUCTURE) != 0 && bodystructure == null) ||
+                                ((attributes & FETCH_ENVELOPE) != 0 && envelope == null);
+                        mm = needMime ? ImapMessage.getMimeMessage(item) : null;
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
@@ -3787,13 +3818,21 @@ abstract class ImapHandler {
                         if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                            if (bodystructure != null) {
+                                result.print(bodystructure);
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, true);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_ENVELOPE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                            if (envelope != null) {
+                                result.print(envelope);
+                            } else {
+                                ImapMessage.serializeEnvelope(result, mm);
+                            }
                             empty = false;
                         }
                         if (parts != null) {
@@ -47,7 +47,9 @@ import org.apache.commons.codec.EncoderException;
 import org.apache.commons.codec.net.BCodec;
 import org.apache.commons.codec.net.QCodec;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.ContentDisposition;
 import com.zimbra.common.mime.ContentType;
 import com.zimbra.common.mime.MimeCompoundHeader;
@@ -56,6 +58,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ArrayUtil;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
 import com.zimbra.cs.mailbox.Contact;
 import com.zimbra.cs.mailbox.Flag;
@@ -698,6 +701,45 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         }
     }
 
+    /**
+     * Serializes the {@code BODYSTRUCTURE} and {@code ENVELOPE} of a message so that
+     * they can be stored with it and returned by FETCH without parsing the blob.
+     *
+     * @return the BODYSTRUCTURE and the ENVELOPE, or {@code null} if the message
+     *         can't be parsed or they are larger than {@code imap_precomputed_structure_max_size}
+     */
+    public static Pair<String, String> precomputeStructure(MimeMessage mm) {
+        int maxSize = LC.imap_precomputed_structure_max_size.intValue();
+        if (maxSize <= 0) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+            PrintStream ps = new PrintStream(baos, false, MimeConstants.P_CHARSET_UTF8);
+            serializeStructure(ps, mm, true);
+            ps.flush();
+            int structureLength = baos.size();
+            serializeEnvelope(ps, mm);
+            ps.flush();
+            if (baos.size() > maxSize) {
+                return null;
+            }
+            byte[] bytes = baos.toByteArray();
+            return new Pair<String, String>(new String(bytes, 0, structureLength, Charsets.UTF_8),
+                    new String(bytes, structureLength, bytes.length - structureLength, Charsets.UTF_8));
+        } catch (IOException e) {
+            ZimbraLog.imap.debug("unable to precompute BODYSTRUCTURE", e);
+            return null;
+        } catch (MessagingException e) {
+            ZimbraLog.imap.debug("unable to precompute BODYSTRUCTURE", e);
+            return null;
+        } catch (RuntimeException e) {
+            // malformed MIME can make the parser throw unchecked exceptions
+            ZimbraLog.imap.debug("unable to precompute BODYSTRUCTURE", e);
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper("").
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -37,7 +38,10 @@ import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.store.file.FileBlobStore;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -135,6 +139,9 @@ class ImapPartSpecifier {
     }
 
     void write(PrintStream ps, OutputStream os, Object obj) throws IOException, BinaryDecodingException, ServiceException {
+        if (os instanceof NioOutputStream && obj instanceof Message && transfer(ps, (NioOutputStream) os, (Message) obj)) {
+            return;
+        }
         InputStream is = null;
         try {
             Pair<Long, InputStream> contents = getContent(obj);
@@ -179,6 +186,33 @@ class ImapPartSpecifier {
         }
     }
 
+    /**
+     * Sends an entire message straight from its blob file when it is stored
+     * uncompressed on a local volume.  Returns {@code false} if the content has to be
+     * streamed by {@link #write(PrintStream, OutputStream, Object)} instead.
+     */
+    private boolean transfer(PrintStream ps, NioOutputStream os, Message msg) throws IOException, ServiceException {
+        if (!isEntireMessage() || octetStart >= 0 || command.startsWith("BINARY")) {
+            return false;
+        }
+        long length = msg.getSize();
+        FileChannel channel = FileBlobStore.openUncompressed(msg.getBlob(), length);
+        if (channel == null) {
+            return false;
+        }
+        try {
+            ps.print(this);
+            ps.print(" {");
+            ps.print(length);
+            ps.write('}');
+            os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+            os.transferFrom(channel, 0, length);
+        } finally {
+            os.closeWhenWritten(channel);
+        }
+        return true;
+    }
+
     Pair<Long, InputStream> getContent(Object obj) throws IOException, BinaryDecodingException, ServiceException {
         Pair<Long, InputStream> contents;
         if (obj instanceof MimeMessage) {
@@ -18,6 +18,7 @@ package com.zimbra.cs.imap;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -33,6 +34,13 @@ abstract class ImapSearch {
     abstract ImapMessageSet evaluate(ImapFolder i4folder) throws ImapParseException;
     boolean requiresMODSEQ()  { return false; }
 
+    /** Evaluates a search that {@link #canBeRunLocally()} against the folder's cached
+     *  message state, as a bitmap over the folder's sequence numbers.
+     * @see ImapFolder#getAllMessageBits() */
+    BitSet evaluateBits(ImapFolder i4folder) throws ImapParseException {
+        return i4folder.getBits(evaluate(i4folder));
+    }
+
     static boolean isAllMessages(ImapFolder i4folder, Set<ImapMessage> i4set) {
         int size = i4set.size() - (i4set.contains(null) ? 1 : 0);
         return size == i4folder.getSize();
@@ -147,6 +155,53 @@ abstract class ImapSearch {
             }
             return matched;
         }
+
+        @Override BitSet evaluateBits(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
+            for (ImapSearch i4search : mChildren) {
+                if (matched == null) {
+                    matched = i4search.evaluateBits(i4folder);
+                } else {
+                    matched.and(i4search.evaluateBits(i4folder));
+                }
+
+                if (matched.isEmpty())
+                    break;
+            }
+            return matched;
+        }
+
+        /** Evaluates the children that can be run locally, or returns <tt>null</tt>
+         *  if there are none.  The other children are left for the index; see
+         *  {@link #getIndexedChildren()}. */
+        BitSet evaluateLocalChildren(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
+            for (ImapSearch i4search : mChildren) {
+                if (!i4search.canBeRunLocally()) {
+                    continue;
+                } else if (matched == null) {
+                    matched = i4search.evaluateBits(i4folder);
+                } else {
+                    matched.and(i4search.evaluateBits(i4folder));
+                }
+            }
+            return matched;
+        }
+
+        /** Returns the conjunction of the children that can't be run locally. */
+        ImapSearch getIndexedChildren() {
+            AndOperation indexed = new AndOperation();
+            for (ImapSearch i4search : mChildren) {
+                if (!i4search.canBeRunLocally()) {
+                    indexed.addChild(i4search);
+                }
+            }
+            switch (indexed.mChildren.size()) {
+                case 0:   return new AllSearch();
+                case 1:   return indexed.mChildren.get(0);
+                default:  return indexed;
+            }
+        }
     }
 
     static class OrOperation extends LogicalOperation {
@@ -174,6 +229,21 @@ abstract class ImapSearch {
             }
             return matched;
         }
+
+        @Override BitSet evaluateBits(ImapFolder i4folder) throws ImapParseException {
+            BitSet matched = null;
+            for (ImapSearch i4search : mChildren) {
+                if (matched == null) {
+                    matched = i4search.evaluateBits(i4folder);
+                } else {
+                    matched.or(i4search.evaluateBits(i4folder));
+                }
+
+                if (matched.cardinality() == i4folder.getSize())
+                    break;
+            }
+            return matched;
+        }
     }
 
     static class NotOperation extends LogicalOperation {
@@ -189,12 +259,19 @@ abstract class ImapSearch {
             matches.removeAll(mChildren.get(0).evaluate(i4folder));
             return matches;
         }
+
+        @Override BitSet evaluateBits(ImapFolder i4folder) throws ImapParseException {
+            BitSet matches = i4folder.getAllMessageBits();
+            matches.andNot(mChildren.get(0).evaluateBits(i4folder));
+            return matches;
+        }
     }
 
     static class AllSearch extends ImapSearch {
         @Override boolean canBeRunLocally()                     { return true; }
         @Override String toZimbraSearch(ImapFolder i4folder)    { return "item:all"; }
         @Override ImapMessageSet evaluate(ImapFolder i4folder)  { return i4folder.getAllMessages(); }
+        @Override BitSet evaluateBits(ImapFolder i4folder)      { return i4folder.getAllMessageBits(); }
 
         @Override
         public boolean equals(Object obj) {
@@ -211,6 +288,7 @@ abstract class ImapSearch {
         @Override boolean canBeRunLocally()                     { return true; }
         @Override String toZimbraSearch(ImapFolder i4folder)    { return "item:none"; }
         @Override ImapMessageSet evaluate(ImapFolder i4folder)  { return new ImapMessageSet(); }
+        @Override BitSet evaluateBits(ImapFolder i4folder)      { return new BitSet(); }
 
         @Override
         public boolean equals(Object obj) {
@@ -239,6 +317,10 @@ abstract class ImapSearch {
             return i4folder.getSubsequence(mTag, mSubSequence, mIsUidSearch, true);
         }
 
+        @Override BitSet evaluateBits(ImapFolder i4folder) {
+            return i4folder.getSubsequenceBits(mSubSequence, mIsUidSearch);
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -305,6 +387,19 @@ abstract class ImapSearch {
             }
         }
 
+        @Override BitSet evaluateBits(ImapFolder i4folder) {
+            ImapFlag i4flag = i4folder.getFlagByName(mFlagName);
+            if (i4flag == null) {
+                return new BitSet();
+            } else if (i4flag.mPositive) {
+                return i4folder.getFlaggedBits(i4flag);
+            } else {
+                BitSet matched = i4folder.getAllMessageBits();
+                matched.andNot(i4folder.getFlaggedBits(i4flag));
+                return matched;
+            }
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
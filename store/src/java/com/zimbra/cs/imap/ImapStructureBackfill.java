@@ -0,0 +1,198 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.Metadata;
+import com.zimbra.cs.mailbox.Mountpoint;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Stores the IMAP BODYSTRUCTURE and ENVELOPE with messages that were added before
+ * they were precomputed at delivery.  Only mailboxes that are loaded are worked on,
+ * newest messages first, {@code imap_structure_backfill_batch_size} messages at a
+ * time.  Progress is saved in the mailbox config so that a restart picks up where
+ * the last run stopped.
+ */
+public final class ImapStructureBackfill extends Thread {
+
+    private static final String CONFIG_SECTION = "imap-structure";
+    // all messages with an id at or above this one have been done
+    private static final String FN_NEXT_ID = "next";
+    private static final String FN_DONE = "done";
+
+    private static volatile ImapStructureBackfill instance;
+
+    private volatile boolean shutdownRequested = false;
+
+    private ImapStructureBackfill() {
+        setName("ImapStructureBackfill");
+        setDaemon(true);
+    }
+
+    public static synchronized void startup() {
+        if (instance != null) {
+            ZimbraLog.imap.warn("BODYSTRUCTURE backfill thread is already running");
+            return;
+        }
+        if (LC.imap_structure_backfill_batch_size.intValue() <= 0 ||
+                LC.imap_precomputed_structure_max_size.intValue() <= 0) {
+            ZimbraLog.imap.info("not starting BODYSTRUCTURE backfill thread because it is disabled");
+            return;
+        }
+        instance = new ImapStructureBackfill();
+        instance.start();
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.shutdownRequested = true;
+            instance.interrupt();
+            instance = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        ZimbraLog.imap.info("starting BODYSTRUCTURE backfill thread");
+        if (!pause(LC.purge_initial_sleep_ms.longValue())) {
+            return;
+        }
+        while (!shutdownRequested) {
+            try {
+                for (int mailboxId : MailboxManager.getInstance().getMailboxIds()) {
+                    if (shutdownRequested) {
+                        break;
+                    }
+                    if (!MailboxManager.getInstance().isMailboxLoadedAndAvailable(mailboxId)) {
+                        continue;
+                    }
+                    ZimbraLog.addMboxToContext(mailboxId);
+                    try {
+                        backfill(MailboxManager.getInstance().getMailboxById(mailboxId));
+                    } catch (ServiceException e) {
+                        ZimbraLog.imap.warn("unable to backfill BODYSTRUCTURE for mailbox %d", mailboxId, e);
+                    } finally {
+                        ZimbraLog.clearContext();
+                    }
+                }
+            } catch (OutOfMemoryError oome) {
+                Zimbra.halt("Ran out of memory while backfilling BODYSTRUCTURE", oome);
+            } catch (Throwable t) {
+                ZimbraLog.imap.warn("error in BODYSTRUCTURE backfill thread", t);
+            }
+            if (!pause(LC.imap_structure_backfill_interval_ms.longValue())) {
+                break;
+            }
+        }
+        ZimbraLog.imap.info("BODYSTRUCTURE backfill thread exiting");
+    }
+
+    private void backfill(Mailbox mbox) throws ServiceException {
+        Metadata config = mbox.getConfig(null, CONFIG_SECTION);
+        if (config != null && config.getBool(FN_DONE, false)) {
+            return;
+        }
+        int nextId = config == null ? Integer.MAX_VALUE : config.getInt(FN_NEXT_ID, Integer.MAX_VALUE);
+        List<Integer> ids = listMessageIds(mbox, nextId);
+        int batchSize = Math.max(LC.imap_structure_backfill_batch_size.intValue(), 1);
+        int count = 0;
+        for (int start = 0; start < ids.size(); start += batchSize) {
+            for (int id : ids.subList(start, Math.min(start + batchSize, ids.size()))) {
+                if (backfill(mbox, id)) {
+                    count++;
+                }
+                nextId = id;
+            }
+            mbox.setConfig(null, CONFIG_SECTION, new Metadata().put(FN_NEXT_ID, nextId));
+            if (!pause(LC.imap_structure_backfill_sleep_ms.longValue())) {
+                return;
+            }
+        }
+        // messages added from now on get their BODYSTRUCTURE at delivery
+        mbox.setConfig(null, CONFIG_SECTION, new Metadata().put(FN_NEXT_ID, nextId).put(FN_DONE, true));
+        ZimbraLog.imap.info("backfilled BODYSTRUCTURE for %d of %d messages", count, ids.size());
+    }
+
+    /** Returns the ids of all messages in the mailbox below {@code nextId}, newest first. */
+    private static List<Integer> listMessageIds(Mailbox mbox, int nextId) throws ServiceException {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Folder folder : mbox.getFolderList(null, SortBy.NONE)) {
+            if (folder instanceof Mountpoint) {
+                continue;
+            }
+            for (int id : mbox.listItemIds(null, MailItem.Type.MESSAGE, folder.getId())) {
+                if (id < nextId) {
+                    ids.add(id);
+                }
+            }
+        }
+        Collections.sort(ids, Collections.reverseOrder());
+        return ids;
+    }
+
+    private static boolean backfill(Mailbox mbox, int id) {
+        try {
+            Message msg = mbox.getMessageById(null, id);
+            if (msg.getImapBodyStructure() != null) {
+                return false;
+            }
+            int savedSequence = msg.getSavedSequence();
+            MimeMessage mm = ImapMessage.getMimeMessage(msg);
+            Pair<String, String> structure = ImapMessage.precomputeStructure(mm);
+            if (structure == null) {
+                return false;
+            }
+            mbox.setImapStructure(id, savedSequence, structure.getFirst(), structure.getSecond());
+            return true;
+        } catch (MailServiceException.NoSuchItemException e) {
+            return false;
+        } catch (ServiceException e) {
+            ZimbraLog.imap.debug("unable to backfill BODYSTRUCTURE for message %d", id, e);
+            return false;
+        }
+    }
+
+    /** Returns {@code false} if the thread was asked to shut down. */
+    private boolean pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                shutdownRequested = true;
+            }
+        }
+        return !shutdownRequested;
+    }
+}
@@ -18,6 +18,7 @@ package com.zimbra.cs.index;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
@@ -83,6 +84,29 @@ public abstract class IndexStore {
      */
     public abstract boolean verify(PrintStream out) throws IOException;
 
+    /**
+     * Returns the estimated number of bytes that queued and running background merges still have to process for this
+     * index, or 0 if the IndexStore does not merge in the background.
+     */
+    public long getMergeBacklogBytes() {
+        return 0L;
+    }
+
+    /**
+     * Opens an indexer that writes to a private partition of this index rather than to the index itself, so that
+     * several partitions can be built in parallel. The documents of a partition become searchable once it is passed to
+     * {@link #addPartitions(List)}. {@link Indexer#close()} must be called after use, which discards the partition.
+     *
+     * @param partition partition number, unique among the partitions built at the same time
+     * @return partition indexer, or null if the IndexStore does not support partitions
+     */
+    public abstract Indexer openPartition(int partition) throws IOException;
+
+    /**
+     * Adds all documents of partitions opened by {@link #openPartition(int)} to this index, then closes them.
+     */
+    public abstract void addPartitions(List<Indexer> partitions) throws IOException;
+
     public static Factory getFactory() {
         if (factory == null) {
             setFactory(LC.zimbra_class_index_store_factory.value());
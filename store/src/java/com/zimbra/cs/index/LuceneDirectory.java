@@ -266,6 +266,7 @@ public final class LuceneDirectory extends Directory {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(1);
             }
             output.writeByte(b);
+            LuceneMergeScheduler.written(1);
         }
 
         @Override
@@ -274,6 +275,7 @@ public final class LuceneDirectory extends Directory {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
             output.writeBytes(b, len);
+            LuceneMergeScheduler.written(len);
         }
 
         @Override
@@ -282,6 +284,7 @@ public final class LuceneDirectory extends Directory {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
             output.writeBytes(b, offset, len);
+            LuceneMergeScheduler.written(len);
         }
 
         @Override
@@ -17,6 +17,7 @@
 package com.zimbra.cs.index;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
@@ -48,6 +49,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
@@ -62,6 +64,7 @@ import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
@@ -86,6 +89,8 @@ public final class LuceneIndex extends IndexStore {
     @SuppressWarnings("deprecation")
     public static final Version VERSION = Version.LUCENE_24;
 
+    // re-index partitions are built in sibling directories of the index named by this prefix and the partition number
+    private static final String PARTITION_PREFIX = "partition-";
     private static final Semaphore READER_THROTTLE = new Semaphore(LC.zimbra_index_max_readers.intValue());
     private static final Semaphore WRITER_THROTTLE = new Semaphore(LC.zimbra_index_max_writers.intValue());
 
@@ -237,6 +242,33 @@ public final class LuceneIndex extends IndexStore {
         for (String file : files) {
             luceneDirectory.deleteFile(file);
         }
+        deletePartitions();
+    }
+
+    private File getPartitionDirectory(int partition) {
+        return new File(luceneDirectory.getDirectory().getParentFile(), PARTITION_PREFIX + partition);
+    }
+
+    /**
+     * Deletes the partitions a crashed or cancelled re-index left next to the index.
+     */
+    private void deletePartitions() {
+        File[] dirs = luceneDirectory.getDirectory().getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().startsWith(PARTITION_PREFIX);
+            }
+        });
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            try {
+                FileUtil.deleteDir(dir);
+            } catch (IOException e) {
+                ZimbraLog.index.warn("Failed to delete index partition %s", dir, e);
+            }
+        }
     }
 
     /**
@@ -518,10 +550,11 @@ public final class LuceneIndex extends IndexStore {
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             }
-            mailbox.index.submit(task); // merge must run in background
-            success = true;
+            // merge must run in background; if a merge is already queued for this mailbox, it covers this commit too
+            success = LuceneMergeScheduler.getInstance().submit(
+                    mailbox.getId(), writerInfo.getWriterRef().get().maxDoc(), task);
         } catch (RejectedExecutionException e) {
-            ZimbraLog.index.warn("Skipping merge because all index threads are busy");
+            ZimbraLog.index.warn("Skipping merge because the merge scheduler is shut down");
         } finally {
             if (!success) {
                 writerInfo.getWriterRef().dec();
@@ -581,12 +614,71 @@ public final class LuceneIndex extends IndexStore {
         return status.clean;
     }
 
+    /**
+     * Opens a partition in a sibling directory of the index, replacing whatever an interrupted re-index left there.
+     */
+    @Override
+    public Indexer openPartition(int partition) throws IOException {
+        File dir = getPartitionDirectory(partition);
+        if (dir.exists()) {
+            FileUtil.deleteDir(dir);
+        }
+        LuceneDirectory directory = LuceneDirectory.open(dir);
+        IndexWriterConfig config = getWriterConfig()
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+                .setMergeScheduler(new SerialMergeScheduler());
+        return new PartitionIndexer(directory, new IndexWriter(directory, config));
+    }
+
+    /**
+     * Copies the segments of the partitions into the index with a single commit, so that searches see either none or
+     * all of them.
+     */
+    @Override
+    public void addPartitions(List<Indexer> partitions) throws IOException {
+        Directory[] dirs = new Directory[partitions.size()];
+        try {
+            for (int i = 0; i < dirs.length; i++) {
+                PartitionIndexer partition = (PartitionIndexer) partitions.get(i);
+                partition.finish();
+                dirs[i] = partition.directory;
+            }
+            LuceneIndexerImpl indexer = (LuceneIndexerImpl) openIndexer();
+            try {
+                ZimbraLog.index.info("Adding %d index partitions", dirs.length);
+                indexer.writer.get().addIndexes(dirs);
+            } finally {
+                indexer.close();
+            }
+        } finally {
+            for (Indexer partition : partitions) {
+                try {
+                    partition.close();
+                } catch (IOException e) {
+                    ZimbraLog.index.warn("Failed to delete index partition %s", partition, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getMergeBacklogBytes() {
+        LuceneMergeScheduler.Backlog backlog = LuceneMergeScheduler.getInstance().getBacklog(mailbox.getId());
+        return backlog == null ? 0L : backlog.getPendingBytes();
+    }
+
     /**
      * Only one background thread that holds the lock may process a merge for the given writer. Other concurrent
-     * attempts simply skip the merge.
+     * attempts simply skip the merge. Merges run on the locking thread through {@link LuceneMergeScheduler}, which
+     * throttles them and tracks the mailbox merge backlog.
      */
-    private static final class MergeScheduler extends SerialMergeScheduler {
+    private static final class MergeScheduler extends org.apache.lucene.index.MergeScheduler {
         private final ReentrantLock lock = new ReentrantLock();
+        private final int mailboxId;
+
+        MergeScheduler(int mailboxId) {
+            this.mailboxId = mailboxId;
+        }
 
         /**
          * Acquires the lock.
@@ -617,16 +709,12 @@ public final class LuceneIndex extends IndexStore {
         @Override
         public void merge(IndexWriter writer) throws CorruptIndexException, IOException {
             if (lock.isHeldByCurrentThread()) {
-                super.merge(writer);
+                LuceneMergeScheduler.getInstance().merge(mailboxId, writer);
             }
         }
 
-        /**
-         * Removes the Thread-to-IndexWriter reference.
-         */
         @Override
         public void close() {
-            super.close();
             release();
         }
     }
@@ -635,7 +723,8 @@ public final class LuceneIndex extends IndexStore {
      * In order to minimize delay caused by merges, merges are processed only in background threads. Writers triggered
      * by batch threshold or search commit the changes before processing merges, so that the changes are available to
      * readers without long delay that merges likely cause. Merge threads don't block other writer threads running in
-     * foreground. Another indexing using the same writer may start even while the merge is in progress.
+     * foreground. Another indexing using the same writer may start even while the merge is in progress. Merge tasks run
+     * in the server-wide {@link LuceneMergeScheduler} pool, not in the index threads.
      */
     private final class MergeTask extends MailboxIndex.IndexTask {
         private final IndexWriterRef ref;
@@ -678,7 +767,7 @@ public final class LuceneIndex extends IndexStore {
 
     private IndexWriterConfig getWriterConfig() {
         IndexWriterConfig config = new IndexWriterConfig(VERSION, mailbox.index.getAnalyzer());
-        config.setMergeScheduler(new MergeScheduler());
+        config.setMergeScheduler(new MergeScheduler(mailbox.getId()));
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
         config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
@@ -873,17 +962,7 @@ public final class LuceneIndex extends IndexStore {
                     assert false : item.getIndexId();
             }
 
-            for (IndexDocument doc : docs) {
-                // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
-                synchronized (doc) {
-                    setFields(item, doc);
-                    Document luceneDoc = doc.toDocument();
-                    if (ZimbraLog.index.isTraceEnabled()) {
-                        ZimbraLog.index.trace("Adding lucene document %s", luceneDoc.toString());
-                    }
-                    writer.get().addDocument(luceneDoc);
-                }
-            }
+            addDocuments(writer.get(), item, docs);
         }
 
         /**
@@ -903,6 +982,93 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    private static void addDocuments(IndexWriter writer, MailItem item, List<IndexDocument> docs) throws IOException {
+        for (IndexDocument doc : docs) {
+            // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
+            synchronized (doc) {
+                setFields(item, doc);
+                Document luceneDoc = doc.toDocument();
+                if (ZimbraLog.index.isTraceEnabled()) {
+                    ZimbraLog.index.trace("Adding lucene document %s", luceneDoc.toString());
+                }
+                writer.addDocument(luceneDoc);
+            }
+        }
+    }
+
+    /**
+     * Writes to a separate Lucene index next to the mailbox index, which {@link LuceneIndex#addPartitions(List)} adds to
+     * the mailbox index once complete. The partition merges its own segments on the thread that writes to it.
+     */
+    private static final class PartitionIndexer implements Indexer {
+        private final LuceneDirectory directory;
+        private final IndexWriter writer;
+        private boolean finished = false;
+        private boolean closed = false;
+
+        PartitionIndexer(LuceneDirectory directory, IndexWriter writer) {
+            this.directory = directory;
+            this.writer = writer;
+        }
+
+        @Override
+        public String toString() {
+            return directory.toString();
+        }
+
+        @Override
+        public synchronized void addDocument(Folder folder, MailItem item, List<IndexDocument> docs)
+                throws IOException {
+            if (docs == null || docs.isEmpty()) {
+                return;
+            }
+            addDocuments(writer, item, docs);
+        }
+
+        @Override
+        public synchronized void deleteDocument(List<Integer> ids) throws IOException {
+            for (Integer id : ids) {
+                writer.deleteDocuments(new Term(LuceneFields.L_MAILBOX_BLOB_ID, id.toString()));
+            }
+        }
+
+        @Override
+        public void compact() {
+            // a partition is built from scratch, there are no deletes worth expunging
+        }
+
+        @Override
+        public synchronized int maxDocs() {
+            return writer.maxDoc();
+        }
+
+        /**
+         * Commits the partition and closes its writer, ready to be added to the mailbox index.
+         */
+        synchronized void finish() throws IOException {
+            if (!finished) {
+                finished = true;
+                writer.close();
+            }
+        }
+
+        /**
+         * Deletes the partition.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!finished) {
+                finished = true;
+                writer.rollback(); // also closes the writer
+            }
+            FileUtil.deleteDir(directory.getDirectory());
+        }
+    }
+
     /**
      * {@link IndexWriter} wrapper that supports a reference counter.
      */
@@ -0,0 +1,340 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Server-wide scheduler for Lucene segment merges.
+ * <p>
+ * Merges of all mailbox indexes run in a small dedicated thread pool instead of the index threads that serve live
+ * indexing, so that compacting a large index never holds up new mail. Queued merge requests are ordered by index
+ * size, smallest first, and at most one request per mailbox is queued at a time; later requests coalesce into it.
+ * Bytes written by merges are throttled against a single server-wide budget.
+ *
+ * @see LuceneIndex
+ */
+final class LuceneMergeScheduler {
+
+    private static final LuceneMergeScheduler INSTANCE = new LuceneMergeScheduler(
+            LC.zimbra_index_merge_threads.intValue(), LC.zimbra_index_merge_max_kb_per_sec.longValue() * 1024L);
+
+    /** Merge writes are charged against the budget in chunks of this size. */
+    private static final int THROTTLE_CHUNK = 64 * 1024;
+
+    /** Set while the current thread runs merges, see {@link #written(int)}. */
+    private static final ThreadLocal<Charge> CHARGE = new ThreadLocal<Charge>();
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Integer, Backlog> backlogs = new HashMap<Integer, Backlog>(); // guarded by this
+    private final long maxBytesPerSec;
+    private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime());
+
+    LuceneMergeScheduler(int threads, long maxBytesPerSec) {
+        threads = Math.max(threads, 1);
+        this.maxBytesPerSec = maxBytesPerSec;
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("IndexMerge-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static LuceneMergeScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Merge work known for one mailbox: whether a merge request is queued, and the merges that were picked from the
+     * index writer and have not completed yet.
+     */
+    static final class Backlog {
+        private boolean queued;
+        private boolean running;
+        private int pendingMerges;
+        private long pendingBytes;
+
+        boolean isQueued() {
+            return queued;
+        }
+
+        int getPendingMerges() {
+            return pendingMerges;
+        }
+
+        long getPendingBytes() {
+            return pendingBytes;
+        }
+
+        private boolean isIdle() {
+            return !queued && !running && pendingMerges == 0;
+        }
+    }
+
+    /**
+     * Queues a merge request for a mailbox index.
+     *
+     * @param mailboxId mailbox that owns the index
+     * @param size size of the index, used to run merges of small indexes first
+     * @param task runs {@link IndexWriter#maybeMerge()} on the index writer
+     * @return false if a request for the same mailbox is already queued, in which case {@code task} will not run
+     * @throws RejectedExecutionException the scheduler is shut down
+     */
+    boolean submit(int mailboxId, long size, Runnable task) {
+        Backlog backlog;
+        synchronized (this) {
+            backlog = backlogs.get(mailboxId);
+            if (backlog == null) {
+                backlogs.put(mailboxId, backlog = new Backlog());
+            } else if (backlog.queued) {
+                return false;
+            }
+            backlog.queued = true;
+        }
+        try {
+            executor.execute(new Request(mailboxId, size, sequence.incrementAndGet(), backlog, task));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                backlog.queued = false;
+                release(mailboxId, backlog);
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of the merge backlog of a mailbox, or null if it has none.
+     */
+    synchronized Backlog getBacklog(int mailboxId) {
+        Backlog backlog = backlogs.get(mailboxId);
+        if (backlog == null) {
+            return null;
+        }
+        Backlog copy = new Backlog();
+        copy.queued = backlog.queued;
+        copy.running = backlog.running;
+        copy.pendingMerges = backlog.pendingMerges;
+        copy.pendingBytes = backlog.pendingBytes;
+        return copy;
+    }
+
+    /** Returns the number of queued merge requests across all mailboxes. */
+    int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Runs the merges the writer has pending, including merges that cascade from them, on the calling thread. The
+     * bytes they write are throttled and they are counted in the mailbox backlog until they complete.
+     */
+    void merge(int mailboxId, IndexWriter writer) throws IOException {
+        boolean throttled = CHARGE.get() == null && maxBytesPerSec > 0;
+        if (throttled) {
+            CHARGE.set(new Charge(this));
+        }
+        boolean success = false;
+        try {
+            List<OneMerge> merges = nextMerges(writer);
+            while (!merges.isEmpty()) {
+                long[] sizes = new long[merges.size()];
+                long total = 0L;
+                for (int i = 0; i < sizes.length; i++) {
+                    total += sizes[i] = estimateBytes(merges.get(i));
+                }
+                addPending(mailboxId, merges.size(), total);
+                for (int i = 0; i < sizes.length; i++) {
+                    long start = ZimbraPerf.STOPWATCH_IDX_MERGE.start();
+                    try {
+                        writer.merge(merges.get(i));
+                    } finally {
+                        ZimbraPerf.STOPWATCH_IDX_MERGE.stop(start);
+                        addPending(mailboxId, -1, -sizes[i]);
+                    }
+                }
+                merges = nextMerges(writer);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                clearPending(mailboxId);
+            }
+            if (throttled) {
+                CHARGE.remove();
+            }
+        }
+    }
+
+    private static List<OneMerge> nextMerges(IndexWriter writer) {
+        List<OneMerge> merges = new ArrayList<OneMerge>();
+        for (OneMerge merge = writer.getNextMerge(); merge != null; merge = writer.getNextMerge()) {
+            merges.add(merge);
+        }
+        return merges;
+    }
+
+    private static long estimateBytes(OneMerge merge) {
+        try {
+            return merge.totalBytesSize();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private synchronized void addPending(int mailboxId, int merges, long bytes) {
+        Backlog backlog = backlogs.get(mailboxId);
+        if (backlog == null) { // merge outside of a scheduled request, e.g. compaction
+            if (merges <= 0) {
+                return;
+            }
+            backlogs.put(mailboxId, backlog = new Backlog());
+        }
+        backlog.pendingMerges = Math.max(backlog.pendingMerges + merges, 0);
+        backlog.pendingBytes = Math.max(backlog.pendingBytes + bytes, 0L);
+        release(mailboxId, backlog);
+    }
+
+    private synchronized void clearPending(int mailboxId) {
+        Backlog backlog = backlogs.get(mailboxId);
+        if (backlog != null) {
+            backlog.pendingMerges = 0;
+            backlog.pendingBytes = 0L;
+            release(mailboxId, backlog);
+        }
+    }
+
+    private void release(int mailboxId, Backlog backlog) {
+        assert Thread.holdsLock(this);
+        if (backlog.isIdle() && backlogs.get(mailboxId) == backlog) {
+            backlogs.remove(mailboxId);
+        }
+    }
+
+    /**
+     * Called for every write to an index file. Writes made by a merge on the current thread are charged to the
+     * server-wide budget, sleeping whenever merges are writing faster than it allows.
+     */
+    static void written(int len) {
+        Charge charge = CHARGE.get();
+        if (charge == null) {
+            return;
+        }
+        charge.pending += len;
+        if (charge.pending >= THROTTLE_CHUNK) {
+            long bytes = charge.pending;
+            charge.pending = 0L;
+            charge.scheduler.throttle(bytes);
+        }
+    }
+
+    /** Bytes written by the merges running on one thread and not yet charged to the budget. */
+    private static final class Charge {
+        private final LuceneMergeScheduler scheduler;
+        private long pending;
+
+        Charge(LuceneMergeScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+    }
+
+    /**
+     * Reserves the time needed to write {@code bytes} at the budgeted rate, and sleeps until the reservation starts.
+     * Reservations of concurrent merge threads queue up behind each other, so the budget is shared by all of them.
+     */
+    void throttle(long bytes) {
+        if (maxBytesPerSec <= 0) {
+            return;
+        }
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSec;
+        long now = System.nanoTime();
+        long start;
+        while (true) {
+            long next = nextFreeNanos.get();
+            start = next - now > 0 ? next : now;
+            if (nextFreeNanos.compareAndSet(next, start + cost)) {
+                break;
+            }
+        }
+        long wait = start - now;
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class Request implements Runnable, Comparable<Request> {
+        private final int mailboxId;
+        private final long size;
+        private final long seq;
+        private final Backlog backlog;
+        private final Runnable task;
+
+        Request(int mailboxId, long size, long seq, Backlog backlog, Runnable task) {
+            this.mailboxId = mailboxId;
+            this.size = size;
+            this.seq = seq;
+            this.backlog = backlog;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (LuceneMergeScheduler.this) {
+                backlog.queued = false;
+                backlog.running = true;
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (LuceneMergeScheduler.this) {
+                    backlog.running = false;
+                    release(mailboxId, backlog);
+                }
+                ZimbraLog.index.debug("Merge request done mbox=%d,queue=%d", mailboxId, getQueueSize());
+            }
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (size != other.size) {
+                return size < other.size ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+}
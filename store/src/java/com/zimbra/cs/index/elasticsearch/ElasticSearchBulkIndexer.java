@@ -0,0 +1,257 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Sends the documents added through one {@link ElasticSearchIndex} indexer to ElasticSearch in {@code _bulk}
+ * requests.
+ * <p>
+ * Documents are buffered until the buffer holds {@code maxDocs} documents or {@code maxBytes} bytes of JSON, at which
+ * point the batch is sent, and {@link #flush()} sends the rest when the indexer is closed.  Each document is given an
+ * ID derived from its item, so that resending a document overwrites the earlier copy instead of adding a duplicate.
+ * Documents that ElasticSearch rejects with a transient error (rejected execution, unavailable shard), or that were
+ * part of a request that failed as a whole, are resent up to {@code maxRetries} times.  If a document still could
+ * not be indexed, {@link #flush()} fails, so that its items stay in the deferred index queue and are indexed again
+ * later.
+ * <p>
+ * Not thread safe; an indexer is used by one thread at a time.
+ */
+final class ElasticSearchBulkIndexer {
+
+    private static final String TYPE = "zimbra";
+
+    private final String bulkUrl;
+    private final int maxDocs;
+    private final long maxBytes;
+    private final int maxRetries;
+
+    private List<Action> pending = new ArrayList<Action>();
+    private long pendingBytes = 0L;
+    private int sent = 0;
+    private int failed = 0;
+
+    ElasticSearchBulkIndexer(String urlBase, int maxDocs, long maxBytes, int maxRetries) {
+        this.bulkUrl = urlBase + "_bulk";
+        this.maxDocs = Math.max(maxDocs, 1);
+        this.maxBytes = maxBytes;
+        this.maxRetries = maxRetries;
+    }
+
+    static ElasticSearchBulkIndexer create() {
+        return new ElasticSearchBulkIndexer(LC.zimbra_index_elasticsearch_url_base.value(),
+                LC.zimbra_index_elasticsearch_bulk_max_docs.intValue(),
+                LC.zimbra_index_elasticsearch_bulk_max_kb.longValue() * 1024L,
+                LC.zimbra_index_elasticsearch_bulk_max_retries.intValue());
+    }
+
+    /**
+     * Buffers a document for indexing.
+     *
+     * @param index name of the ElasticSearch index
+     * @param itemId item the document belongs to
+     * @param position position of the document among the documents of the item
+     * @param doc document source
+     */
+    void add(String index, int itemId, int position, JSONObject doc) {
+        Action action = new Action(index, itemId, String.format("%d_%d", itemId, position), doc.toString());
+        pending.add(action);
+        pendingBytes += action.size();
+        if (pending.size() >= maxDocs || pendingBytes >= maxBytes) {
+            send(takePending());
+        }
+    }
+
+    /**
+     * Drops buffered documents of items that are being deleted, so that they aren't sent after the delete.
+     */
+    void discard(Collection<Integer> itemIds) {
+        for (Iterator<Action> it = pending.iterator(); it.hasNext();) {
+            Action action = it.next();
+            if (itemIds.contains(action.itemId)) {
+                it.remove();
+                pendingBytes -= action.size();
+            }
+        }
+    }
+
+    /**
+     * Sends everything buffered so far, resending documents that failed with a transient error.
+     *
+     * @return number of documents that were indexed since the last flush
+     * @throws IOException if any document added since the last flush could not be indexed
+     */
+    int flush() throws IOException {
+        while (!pending.isEmpty()) {
+            send(takePending());
+        }
+        int indexed = sent;
+        int lost = failed;
+        sent = 0;
+        failed = 0;
+        if (lost > 0) {
+            throw new IOException(String.format("%d of %d documents could not be indexed", lost, indexed + lost));
+        }
+        return indexed;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    private List<Action> takePending() {
+        List<Action> batch = pending;
+        pending = new ArrayList<Action>();
+        pendingBytes = 0L;
+        return batch;
+    }
+
+    /**
+     * Sends a batch.  Documents to be retried go back into the buffer.
+     */
+    private void send(List<Action> batch) {
+        StringBuilder body = new StringBuilder();
+        for (Action action : batch) {
+            action.appendTo(body);
+        }
+        PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(bulkUrl));
+        List<Action> retry = new ArrayList<Action>();
+        try {
+            method.setRequestEntity(new StringRequestEntity(body.toString(),
+                    MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
+            ElasticSearchConnector connector = new ElasticSearchConnector();
+            int statusCode = connector.executeMethod(method);
+            if (statusCode != HttpStatus.SC_OK) {
+                ZimbraLog.elasticsearch.warn("Bulk index request of %d documents failed httpstatus=%d",
+                        batch.size(), statusCode);
+                retryAll(batch, retry);
+            } else {
+                checkItems(batch, connector.getJSONBody(), retry);
+            }
+        } catch (IOException e) {
+            ZimbraLog.elasticsearch.warn("Bulk index request of %d documents failed", batch.size(), e);
+            retryAll(batch, retry);
+        } catch (JSONException e) {
+            ZimbraLog.elasticsearch.warn("Unexpected response to bulk index request of %d documents",
+                    batch.size(), e);
+            retryAll(batch, retry);
+        }
+        ZimbraLog.elasticsearch.debug("Sent bulk index request docs=%d,retry=%d", batch.size(), retry.size());
+        for (Action action : retry) {
+            pending.add(action);
+            pendingBytes += action.size();
+        }
+    }
+
+    private void retryAll(List<Action> batch, List<Action> retry) {
+        for (Action action : batch) {
+            if (action.shouldRetry(maxRetries)) {
+                retry.add(action);
+            } else {
+                ZimbraLog.elasticsearch.error("Giving up indexing document %s/%s after %d attempts",
+                        action.index, action.id, action.attempts);
+                failed++;
+            }
+        }
+    }
+
+    /**
+     * Collects the documents that failed with a transient error. The bulk response lists one item per action, in the
+     * order of the request.
+     */
+    private void checkItems(List<Action> batch, JSONObject response, List<Action> retry) throws JSONException {
+        if (!response.optBoolean("errors", true)) {
+            sent += batch.size();
+            return;
+        }
+        JSONArray items = response.getJSONArray("items");
+        if (items.length() != batch.size()) {
+            throw new JSONException("expected " + batch.size() + " items, got " + items.length());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            JSONObject result = item.optJSONObject("index");
+            if (result == null) {
+                result = item.optJSONObject("create");
+            }
+            int status = result == null ? HttpStatus.SC_OK : result.optInt("status", HttpStatus.SC_OK);
+            if (result == null || (!result.has("error") && status < HttpStatus.SC_MULTIPLE_CHOICES)) {
+                sent++;
+                continue;
+            }
+            Action action = batch.get(i);
+            boolean transientError = status == 429 || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+            if (transientError && action.shouldRetry(maxRetries)) {
+                retry.add(action);
+            } else {
+                ZimbraLog.elasticsearch.error("Problem indexing document %s/%s httpstatus=%d error=%s",
+                        action.index, action.id, status, result.opt("error"));
+                failed++;
+            }
+        }
+    }
+
+    private static final class Action {
+        private final String index;
+        private final int itemId;
+        private final String id;
+        private final String source;
+        private int attempts = 0;
+
+        Action(String index, int itemId, String id, String source) {
+            this.index = index;
+            this.itemId = itemId;
+            this.id = id;
+            this.source = source;
+        }
+
+        long size() {
+            return source.length() + index.length() + id.length() + 48;
+        }
+
+        boolean shouldRetry(int maxRetries) {
+            return ++attempts <= maxRetries;
+        }
+
+        void appendTo(StringBuilder body) {
+            JSONObject meta = new JSONObject();
+            try {
+                meta.put("index", new JSONObject().put("_index", index).put("_type", TYPE).put("_id", id));
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            body.append(meta.toString()).append('\n').append(source).append('\n');
+        }
+    }
+}
@@ -100,6 +100,8 @@ public final class ElasticSearchIndex extends IndexStore {
     private final String key;
     private final String indexUrl;
     private boolean haveMappingInfo = false;
+    /** Documents were indexed since the last refresh, so a search has to refresh the index to see them. */
+    private volatile boolean refreshNeeded = false;
 
     private ElasticSearchIndex(Mailbox mbox) {
         this.mailbox = mbox;
@@ -318,6 +320,10 @@ public final class ElasticSearchIndex extends IndexStore {
 
     @Override
     public ZimbraIndexSearcher openSearcher() {
+        if (refreshNeeded) {
+            refreshNeeded = false;
+            refreshIndexIfNecessary(); // make the documents just indexed visible to this search
+        }
         final ElasticIndexReader reader = new ElasticIndexReader();
         return new ZimbraElasticIndexSearcher(reader);
     }
@@ -372,6 +378,21 @@ public final class ElasticSearchIndex extends IndexStore {
         return true;
     }
 
+    /**
+     * ElasticSearch indexes are not partitioned; documents are always sent to the mailbox index.
+     */
+    @Override
+    public Indexer openPartition(int partition) {
+        return null;
+    }
+
+    @Override
+    public void addPartitions(List<Indexer> partitions) {
+        if (!partitions.isEmpty()) {
+            throw new IllegalArgumentException("not a partition of this index: " + partitions.get(0));
+        }
+    }
+
     public int getDocCount() {
         refreshIndexIfNecessary();
         String url = String.format("%s%s/docs/", indexUrl, "_stats");
@@ -441,9 +462,17 @@ public final class ElasticSearchIndex extends IndexStore {
     }
 
     private final class ElasticSearchIndexer implements Indexer {
+        private final ElasticSearchBulkIndexer bulk = ElasticSearchBulkIndexer.create();
 
+        /**
+         * Sends the buffered documents.  Fails if any of them could not be indexed, so that their items are not
+         * marked as indexed.
+         */
         @Override
-        public void close() {
+        public void close() throws IOException {
+            if (bulk.flush() > 0) {
+                refreshNeeded = true;
+            }
         }
 
         @Override
@@ -575,10 +604,8 @@ public final class ElasticSearchIndex extends IndexStore {
                     assert false : item.getIndexId();
             }
 
+            int position = 0;
             for (IndexDocument doc : docs) {
-                // Note: using automatic ID generation
-                String url = String.format("%s%s/", indexUrl, indexType);
-                PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(url));
                 JSONObject jsonObj = new JSONObject();
                 // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
                 synchronized (doc) {
@@ -588,20 +615,8 @@ public final class ElasticSearchIndex extends IndexStore {
                         addFieldToDocument(jsonObj, field);
                     }
                 }
-                try {
-                    method.setRequestEntity(new StringRequestEntity(jsonObj.toString(),
-                            MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
-                    ElasticSearchConnector connector = new ElasticSearchConnector();
-                    int statusCode = connector.executeMethod(method);
-                    if (statusCode != HttpStatus.SC_CREATED) {
-                        ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d",
-                                item.getId(), statusCode);
-                    }
-                } catch (HttpException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
-                } catch (IOException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
-                }
+                // documents are sent in batches by the bulk indexer; the ID makes a resend overwrite the earlier copy
+                bulk.add(key, item.getId(), position++, jsonObj);
             }
         }
 
@@ -610,6 +625,8 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public void deleteDocument(List<Integer> ids) {
+            // buffered documents of these items must not reach the index after the delete
+            bulk.discard(ids);
             refreshIndexIfNecessary();
             String url = String.format("%s%s/_query", indexUrl, indexType);
             for (Integer id : ids) {
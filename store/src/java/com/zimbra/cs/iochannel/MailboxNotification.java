@@ -127,7 +127,7 @@ public class MailboxNotification extends Message {
                     log.debug("notifying session %s", session.toString());
                     if (pms == null) {
                         try {
-                            pms = PendingModifications.deserialize(session.getMailbox(), message.getPayload());
+                            pms = PendingModifications.deserialize(session.getMailbox(), message.getPayload()).seal();
                         } catch (IOException e) {
                             log.warn("could not deserialize notification", e);
                             return;
@@ -0,0 +1,502 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.lmtpserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Remembers which mailboxes a Message-ID has already been delivered to.
+ * <p>
+ * Each Message-ID is reduced to a 64-bit fingerprint, so an entry takes a few
+ * dozen bytes no matter how long the Message-ID is, plus four bytes for each
+ * mailbox it was delivered to.  Entries are spread over independently locked
+ * segments; each segment keeps its fingerprints in a ring buffer in insertion
+ * order, indexed by an open-addressed hash table.
+ * <p>
+ * Like the maps this cache replaces, it is bounded either by time or by size:
+ * with a timeout, entries are evicted once they are older than the timeout and
+ * the cache grows as needed; without one, the oldest Message-ID is evicted when
+ * the cache holds {@code maxSize} of them.
+ */
+final class MessageIdDedupeCache {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int MAGIC = 0x5a444450; // "ZDDP"
+    private static final int VERSION = 2;
+    // entry times are stored as seconds since 2016-01-01 to fit in an int
+    private static final long EPOCH = 1451606400L;
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MIN_SEGMENT_SIZE = 256;
+    // segment count and initial segment capacity of a cache that is only bounded by time
+    private static final int UNBOUNDED_SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile Segment[] segments;
+    private volatile int maxSize;
+    private volatile long timeoutSecs;
+
+    /**
+     * @param maxSize maximum number of Message-IDs when there is no timeout, 0 disables the cache
+     * @param timeout entry lifetime in milliseconds, 0 to bound the cache by size instead
+     */
+    MessageIdDedupeCache(int maxSize, long timeout) {
+        this.maxSize = Math.max(maxSize, 0);
+        this.timeoutSecs = toSeconds(timeout);
+        segments = newSegments();
+    }
+
+    /**
+     * Updates the size and timeout limits, keeping the most recent entries.
+     * Called for every delivery, so unchanged limits are detected without locking.
+     */
+    void configure(int maxSize, long timeout) {
+        maxSize = Math.max(maxSize, 0);
+        long secs = toSeconds(timeout);
+        if (maxSize != this.maxSize || secs != timeoutSecs) {
+            reconfigure(maxSize, secs);
+        }
+    }
+
+    private synchronized void reconfigure(int maxSize, long secs) {
+        if (maxSize == this.maxSize && secs == timeoutSecs) {
+            return; // another thread got here first
+        }
+        boolean rebuild = (secs > 0) != (timeoutSecs > 0) || (secs == 0 && maxSize != this.maxSize);
+        this.maxSize = maxSize;
+        this.timeoutSecs = secs;
+        if (rebuild) {
+            // copy from oldest to newest so that a smaller cache keeps the latest entries
+            List<Entry> entries = new ArrayList<Entry>();
+            for (Segment segment : segments) {
+                segment.collect(entries);
+            }
+            Collections.sort(entries);
+            Segment[] newSegments = newSegments();
+            for (Entry entry : entries) {
+                Segment segment = newSegments[(int) (entry.key >>> 32) & (newSegments.length - 1)];
+                for (int i = 1; i <= entry.mailboxes[0]; i++) {
+                    segment.add(entry.key, entry.mailboxes[i], entry.time);
+                }
+            }
+            segments = newSegments;
+        }
+    }
+
+    private static long toSeconds(long timeout) {
+        return timeout > 0 ? Math.max(timeout / 1000L, 1L) : 0L;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    boolean contains(String msgid, int mboxId) {
+        long key = fingerprint(msgid);
+        return segmentFor(key).contains(key, mboxId, now());
+    }
+
+    void add(String msgid, int mboxId) {
+        long key = fingerprint(msgid);
+        segmentFor(key).add(key, mboxId, now());
+    }
+
+    void remove(String msgid, int mboxId) {
+        long key = fingerprint(msgid);
+        segmentFor(key).remove(key, mboxId);
+    }
+
+    /** Returns the number of Message-IDs, evicting the ones that have expired. */
+    int size() {
+        int now = now();
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size(now);
+        }
+        return size;
+    }
+
+    /**
+     * Writes the current entries to {@code file}.  The file is written under a
+     * temporary name and then renamed, so a crash never leaves a truncated cache.
+     */
+    synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Segment segment : segments) {
+                segment.writeTo(out);
+            }
+        } finally {
+            ByteUtil.closeStream(out);
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("unable to rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Adds the entries saved in {@code file} that have not expired yet.
+     *
+     * @return the number of Message-IDs read, or -1 if the file does not exist
+     */
+    synchronized int load(File file) throws IOException {
+        if (!file.exists()) {
+            return -1;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int count = 0;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a dedupe cache file: " + file);
+            }
+            int now = now();
+            while (true) {
+                long key;
+                try {
+                    key = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int time = in.readInt();
+                int mailboxes = in.readInt();
+                boolean live = key != 0 && !expired(time, now);
+                for (int i = 0; i < mailboxes; i++) {
+                    int mboxId = in.readInt();
+                    if (live) {
+                        segmentFor(key).add(key, mboxId, time);
+                    }
+                }
+                if (live) {
+                    count++;
+                }
+            }
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+        return count;
+    }
+
+    private Segment segmentFor(long key) {
+        Segment[] segs = segments;
+        return segs[(int) (key >>> 32) & (segs.length - 1)];
+    }
+
+    private boolean expired(int time, int now) {
+        long timeout = timeoutSecs;
+        return timeout > 0 && now - time >= timeout;
+    }
+
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 1000L - EPOCH);
+    }
+
+    static long fingerprint(String msgid) {
+        long key = HASH.newHasher().putString(msgid, Charsets.UTF_8).hash().asLong();
+        // 0 marks an empty slot
+        return key == 0 ? 1 : key;
+    }
+
+    private Segment[] newSegments() {
+        if (timeoutSecs > 0) {
+            Segment[] segs = new Segment[UNBOUNDED_SEGMENTS];
+            for (int i = 0; i < segs.length; i++) {
+                segs[i] = new Segment(INITIAL_CAPACITY, false);
+            }
+            return segs;
+        }
+        int size = maxSize;
+        int count = 1;
+        while (count < MAX_SEGMENTS && (long) count * 2 * MIN_SEGMENT_SIZE <= size) {
+            count <<= 1;
+        }
+        Segment[] segs = new Segment[count];
+        int capacity = (size + count - 1) / count;
+        for (int i = 0; i < count; i++) {
+            segs[i] = new Segment(capacity, true);
+        }
+        return segs;
+    }
+
+    /**
+     * Ring buffer of fingerprints, their insertion times and the mailboxes they were
+     * delivered to, oldest at {@code head}.  Removed entries leave a 0 in the ring
+     * until the head passes them.  The hash table maps a fingerprint to its ring
+     * slot + 1, with 0 marking a free bucket.  A bounded segment evicts its oldest
+     * entry when it is full; an unbounded one grows.
+     * <p>
+     * The mailboxes of an entry are kept as a sorted set in an int array: element 0
+     * holds the number of mailboxes, followed by the mailbox ids.
+     */
+    private final class Segment {
+        private final boolean bounded;
+        private long[] keys;
+        private int[] times;
+        private int[][] mailboxes;
+        private int[] table;
+        private int mask;
+        private int head;
+        private int count; // occupied ring slots, including removed ones
+        private int live;
+
+        Segment(int capacity, boolean bounded) {
+            this.bounded = bounded;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            times = new int[capacity];
+            mailboxes = new int[capacity][];
+            int tableSize = 2;
+            while (tableSize < capacity * 2) {
+                tableSize <<= 1;
+            }
+            table = new int[tableSize];
+            mask = tableSize - 1;
+            head = 0;
+            count = 0;
+            live = 0;
+        }
+
+        synchronized boolean contains(long key, int mboxId, int now) {
+            int bucket = find(key);
+            if (bucket < 0) {
+                return false;
+            }
+            int slot = table[bucket] - 1;
+            return !expired(times[slot], now) && indexOf(mailboxes[slot], mboxId) >= 0;
+        }
+
+        synchronized void add(long key, int mboxId, int time) {
+            if (keys.length == 0) {
+                return;
+            }
+            int bucket = find(key);
+            if (bucket >= 0) {
+                int slot = table[bucket] - 1;
+                if (!expired(times[slot], time)) {
+                    mailboxes[slot] = addMailbox(mailboxes[slot], mboxId);
+                    return;
+                }
+                deleteBucket(bucket);
+                clear(slot);
+            }
+            while (count > 0 && (keys[head] == 0 || expired(times[head], time))) {
+                evictHead();
+            }
+            if (count == keys.length) {
+                if (bounded) {
+                    evictHead();
+                } else {
+                    grow();
+                }
+            }
+            append(key, time, new int[] {1, mboxId});
+        }
+
+        synchronized void remove(long key, int mboxId) {
+            int bucket = find(key);
+            if (bucket < 0) {
+                return;
+            }
+            int slot = table[bucket] - 1;
+            int[] set = mailboxes[slot];
+            int pos = indexOf(set, mboxId);
+            if (pos < 0) {
+                return;
+            }
+            System.arraycopy(set, pos + 1, set, pos, set[0] - pos);
+            if (--set[0] == 0) {
+                deleteBucket(bucket);
+                clear(slot);
+            }
+        }
+
+        synchronized int size(int now) {
+            while (count > 0 && (keys[head] == 0 || expired(times[head], now))) {
+                evictHead();
+            }
+            return live;
+        }
+
+        synchronized void collect(List<Entry> entries) {
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % keys.length;
+                if (keys[slot] != 0) {
+                    entries.add(new Entry(keys[slot], times[slot], mailboxes[slot].clone()));
+                }
+            }
+        }
+
+        synchronized void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % keys.length;
+                if (keys[slot] != 0) {
+                    out.writeLong(keys[slot]);
+                    out.writeInt(times[slot]);
+                    int[] set = mailboxes[slot];
+                    out.writeInt(set[0]);
+                    for (int j = 1; j <= set[0]; j++) {
+                        out.writeInt(set[j]);
+                    }
+                }
+            }
+        }
+
+        private void append(long key, int time, int[] set) {
+            int slot = (head + count) % keys.length;
+            keys[slot] = key;
+            times[slot] = time;
+            mailboxes[slot] = set;
+            count++;
+            live++;
+            int i = home(key);
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = slot + 1;
+        }
+
+        /** Doubles the capacity, dropping the removed entries. */
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldTimes = times;
+            int[][] oldMailboxes = mailboxes;
+            int oldHead = head;
+            int oldCount = count;
+            allocate(Math.max(oldKeys.length * 2, INITIAL_CAPACITY));
+            for (int i = 0; i < oldCount; i++) {
+                int slot = (oldHead + i) % oldKeys.length;
+                if (oldKeys[slot] != 0) {
+                    append(oldKeys[slot], oldTimes[slot], oldMailboxes[slot]);
+                }
+            }
+        }
+
+        private void clear(int slot) {
+            keys[slot] = 0;
+            mailboxes[slot] = null;
+            live--;
+        }
+
+        private void evictHead() {
+            long key = keys[head];
+            if (key != 0) {
+                deleteBucket(find(key));
+                clear(head);
+            }
+            head = (head + 1) % keys.length;
+            count--;
+        }
+
+        private int home(long key) {
+            return (int) key & mask;
+        }
+
+        /** Returns the table bucket holding {@code key}, or -1. */
+        private int find(long key) {
+            for (int i = home(key); table[i] != 0; i = (i + 1) & mask) {
+                if (keys[table[i] - 1] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Empties a bucket, shifting back later entries of the probe sequence so lookups still find them. */
+        private void deleteBucket(int i) {
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (table[j] == 0) {
+                    break;
+                }
+                int k = home(keys[table[j] - 1]);
+                // leave the entry alone if its home bucket lies cyclically in (i, j]
+                if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+                    continue;
+                }
+                table[i] = table[j];
+                i = j;
+            }
+            table[i] = 0;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final long key;
+        final int time;
+        final int[] mailboxes;
+
+        Entry(long key, int time, int[] mailboxes) {
+            this.key = key;
+            this.time = time;
+            this.mailboxes = mailboxes;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return time < other.time ? -1 : (time == other.time ? 0 : 1);
+        }
+    }
+
+    /** Returns the position of a mailbox in a mailbox set, or a negative number. */
+    private static int indexOf(int[] set, int mboxId) {
+        return Arrays.binarySearch(set, 1, set[0] + 1, mboxId);
+    }
+
+    /** Adds a mailbox to a mailbox set, returning the set, which may have been reallocated. */
+    private static int[] addMailbox(int[] set, int mboxId) {
+        int pos = indexOf(set, mboxId);
+        if (pos >= 0) {
+            return set;
+        }
+        pos = -pos - 1;
+        int size = set[0];
+        if (size + 1 == set.length) {
+            set = Arrays.copyOf(set, set.length * 2);
+        }
+        System.arraycopy(set, pos, set, pos + 1, size + 1 - pos);
+        set[pos] = mboxId;
+        set[0] = size + 1;
+        return set;
+    }
+}
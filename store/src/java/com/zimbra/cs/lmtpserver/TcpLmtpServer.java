@@ -44,6 +44,12 @@ public final class TcpLmtpServer extends TcpServer implements LmtpServer, Realti
         return new TcpLmtpHandler(this);
     }
 
+    @Override
+    public void stop(int forceShutdownAfterSeconds) {
+        super.stop(forceShutdownAfterSeconds);
+        ZimbraLmtpBackend.saveDedupeCache();
+    }
+
     @Override
     public LmtpConfig getConfig() {
         return (LmtpConfig) super.getConfig();
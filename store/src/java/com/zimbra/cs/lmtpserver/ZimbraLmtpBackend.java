@@ -18,16 +18,22 @@
 package com.zimbra.cs.lmtpserver;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -39,6 +45,8 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -50,9 +58,6 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.BufferStream;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.CopyInputStream;
-import com.zimbra.common.util.LruMap;
-import com.zimbra.common.util.MapUtil;
-import com.zimbra.common.util.TimeoutMap;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Config;
@@ -83,8 +88,11 @@ import com.zimbra.cs.util.Zimbra;
 public class ZimbraLmtpBackend implements LmtpBackend {
 
     private static List<LmtpCallback> callbacks = new CopyOnWriteArrayList<LmtpCallback>();
-    private static Map<String, Set<Integer>> receivedMessageIDs;
+    private static volatile MessageIdDedupeCache receivedMessageIDs;
     private static final Map<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
+    private static final int DELIVERY_THREADS = Math.max(LC.zimbra_lmtp_delivery_threads.intValue(), 1);
+    // delivers to the recipients of a message in parallel, shared by all LMTP connections
+    private static final ExecutorService DELIVERY_EXECUTOR = createDeliveryExecutor();
 
     private final LmtpConfig config;
 
@@ -121,6 +129,14 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         return new MapMaker().makeComputingMap(lockCreator);
     }
 
+    private static ExecutorService createDeliveryExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DELIVERY_THREADS, DELIVERY_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @Override public LmtpReply getAddressStatus(LmtpAddress address) {
         String addr = address.getEmailAddress();
 
@@ -194,13 +210,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         if (msgid == null || msgid.equals(""))
             return false;
 
-        synchronized (ZimbraLmtpBackend.class) {
-            Set<Integer> mboxIds = receivedMessageIDs.get(msgid);
-            if (mboxIds != null && mboxIds.contains(mbox.getId())) {
-                return true;
-            }
-        }
-        return false;
+        return receivedMessageIDs.contains(msgid, mbox.getId());
     }
 
     /**
@@ -223,53 +233,72 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     }
 
     /**
-     * If the configured Message-ID cache size has changed, create a new cache and copy
-     * values from the old one.
+     * Applies the configured Message-ID cache size and timeout, creating the cache
+     * on first use.  A smaller cache keeps the most recent entries of the old one.
      */
     private void checkDedupeCacheSize() {
+        int cacheSize = 0;
+        long entryTimeout = 0;
         try {
             Config config = Provisioning.getInstance().getConfig();
-            int cacheSize = config.getMessageIdDedupeCacheSize();
-            long entryTimeout = config.getMessageIdDedupeCacheTimeout();
-            synchronized (ZimbraLmtpBackend.class) {
-                Map<String, Set<Integer>> newMap = null;
-                if (receivedMessageIDs == null) {
-                    // if non-zero entry timeout is specified then use a timeout map, else use an lru map
-                    receivedMessageIDs = entryTimeout == 0 ?
-                            new LruMap<String, Set<Integer>>(cacheSize) :
-                            new TimeoutMap<String, Set<Integer>>(entryTimeout);
-                } else if (receivedMessageIDs instanceof LruMap) {
-                    if (entryTimeout != 0) {
-                        // change to a timeout map
-                        newMap = MapUtil.newTimeoutMap(entryTimeout);
-                    } else if (((LruMap) receivedMessageIDs).getMaxSize() != cacheSize) {
-                        // adjust lru map size
-                        newMap = MapUtil.newLruMap(cacheSize);
-                    }
-                } else if (receivedMessageIDs instanceof TimeoutMap) {
-                    if (entryTimeout == 0) {
-                        // change to a lru map
-                        newMap = MapUtil.newLruMap(cacheSize);
-                    } else {
-                        ((TimeoutMap) receivedMessageIDs).setTimeout(entryTimeout);
-                    }
-                }
-                if (newMap != null) {
-                    // Copy entries from the old map to the new one.  The old map
-                    // is iterated in order from least-recently accessed to last accessed.
-                    // If the new map size is smaller, we'll get the latest entries.
-                    newMap.putAll(receivedMessageIDs);
-                    receivedMessageIDs = newMap;
-                }
-            }
+            cacheSize = config.getMessageIdDedupeCacheSize();
+            entryTimeout = config.getMessageIdDedupeCacheTimeout();
         } catch (ServiceException e) {
             ZimbraLog.lmtp.warn("Unable to update dedupe cache size.", e);
-            // create an empty lru map if it doesn't exist already.
+            if (receivedMessageIDs != null) {
+                return;
+            }
+            // create an empty cache if it doesn't exist already.
+        }
+        MessageIdDedupeCache cache = receivedMessageIDs;
+        if (cache == null) {
             synchronized (ZimbraLmtpBackend.class) {
                 if (receivedMessageIDs == null) {
-                    receivedMessageIDs = new LruMap<String, Set<Integer>>(0);
+                    cache = new MessageIdDedupeCache(cacheSize, entryTimeout);
+                    loadDedupeCache(cache);
+                    receivedMessageIDs = cache;
                 }
+                cache = receivedMessageIDs;
+            }
+        }
+        cache.configure(cacheSize, entryTimeout);
+    }
+
+    private static File getDedupeCacheFile() {
+        String path = LC.zimbra_lmtp_dedupe_cache_file.value();
+        return Strings.isNullOrEmpty(path) ? null : new File(path);
+    }
+
+    private static void loadDedupeCache(MessageIdDedupeCache cache) {
+        File file = getDedupeCacheFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            int count = cache.load(file);
+            if (count >= 0) {
+                ZimbraLog.lmtp.info("Loaded %d entries into the Message-ID dedupe cache from %s", count, file);
             }
+        } catch (IOException e) {
+            ZimbraLog.lmtp.warn("Unable to load the Message-ID dedupe cache from %s", file, e);
+        }
+    }
+
+    /**
+     * Saves the Message-ID dedupe cache so that it survives a restart, if
+     * {@code zimbra_lmtp_dedupe_cache_file} is set.
+     */
+    static void saveDedupeCache() {
+        MessageIdDedupeCache cache = receivedMessageIDs;
+        File file = getDedupeCacheFile();
+        if (cache == null || file == null) {
+            return;
+        }
+        try {
+            cache.save(file);
+            ZimbraLog.lmtp.info("Saved %d entries of the Message-ID dedupe cache to %s", cache.size(), file);
+        } catch (IOException e) {
+            ZimbraLog.lmtp.warn("Unable to save the Message-ID dedupe cache to %s", file, e);
         }
     }
 
@@ -280,26 +309,14 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         if (msgid == null || msgid.equals(""))
             return;
 
-        synchronized (ZimbraLmtpBackend.class) {
-            Set<Integer> mboxIds = receivedMessageIDs.get(msgid);
-            if (mboxIds == null) {
-                mboxIds = new HashSet<Integer>();
-                receivedMessageIDs.put(msgid, mboxIds);
-            }
-            mboxIds.add(mbox.getId());
-        }
+        receivedMessageIDs.add(msgid, mbox.getId());
     }
 
     private void removeFromDedupeCache(String msgid, Mailbox mbox) {
         if (mbox == null || Strings.isNullOrEmpty(msgid))
             return;
 
-        synchronized (ZimbraLmtpBackend.class) {
-            Set<Integer> mboxIds = receivedMessageIDs.get(msgid);
-            if (mboxIds != null) {
-                mboxIds.remove(mbox.getId());
-            }
-        }
+        receivedMessageIDs.remove(msgid, mbox.getId());
     }
 
     private enum DeliveryAction {
@@ -417,7 +434,6 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         throws ServiceException, IOException {
 
         List<LmtpAddress> recipients = env.getLocalRecipients();
-        String envSender = env.getSender().getEmailAddress();
 
         boolean shared = recipients.size() > 1;
         List<Integer> targetMailboxIds = new ArrayList<Integer>(recipients.size());
@@ -530,177 +546,17 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             sharedDeliveryCtxt.setIncomingBlob(blob);
 
             // We now know which addresses are valid and which ParsedMessage
-            // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd.account != null)
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                if (rd.mbox != null)
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-
-                boolean success = false;
-                try {
-                    if (rd != null) {
-                        switch (rd.action) {
-                        case discard:
-                            ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                    envSender, rcptEmail);
-                            if (rd.account.getPrefMailForwardingAddress() != null) {
-                                // mail forwarding is set up
-                                for (LmtpCallback callback : callbacks) {
-                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                    callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case deliver:
-                            Account account = rd.account;
-                            Mailbox mbox = rd.mbox;
-                            ParsedMessage pm = rd.pm;
-                            List<ItemId> addedMessageIds = null;
-                            ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                            boolean acquiredLock;
-                            try {
-                                // Wait for the lock, up to the timeout
-                                acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                            } catch (InterruptedException e) {
-                                acquiredLock = false;
-                            }
-                            if (!acquiredLock) {
-                                ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                        envSender, rcptEmail);
-                                reply = LmtpReply.TEMPORARY_FAILURE;
-                                break;
-                            }
-                            try {
-                                if (dedupe(pm, mbox)) {
-                                    // message was already delivered to this mailbox
-                                    ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                                } else if (mbox.dedupeForSelfMsg(pm)) {
-                                    ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                                } else if (recipient.getSkipFilters()) {
-                                    msgId = pm.getMessageID();
-                                    int folderId = Mailbox.ID_FOLDER_INBOX;
-                                    if (recipient.getFolder() != null) {
-                                        try {
-                                            Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                            folderId = folder.getId();
-                                        } catch (ServiceException se) {
-                                            if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                                Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                        new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                                folderId = folder.getId();
-                                            } else {
-                                                throw se;
-                                            }
-                                        }
-                                    }
-                                    int flags = Flag.BITMASK_UNREAD;
-                                    if (recipient.getFlags() != null) {
-                                        flags = Flag.toBitmask(recipient.getFlags());
-                                    }
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                    dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                } else if (!DebugConfig.disableIncomingFilter) {
-                                    // Get msgid first, to avoid having to reopen and reparse the blob
-                                    // file if Mailbox.addMessageInternal() closes it.
-                                    pm.getMessageID();
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                            null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                            Mailbox.ID_FOLDER_INBOX, false, true);
-                                } else {
-                                    pm.getMessageID();
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                    dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                }
-                                success = true;
-                                if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                    addToDedupeCache(pm, mbox);
-                                }
-                            } finally {
-                                lock.unlock();
-                            }
-
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                // Execute callbacks
-                                for (LmtpCallback callback : callbacks) {
-                                    for (ItemId id : addedMessageIds) {
-                                        if (id.belongsTo(mbox)) {
-                                            // Message was added to the local mailbox, as opposed to a mountpoint.
-                                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                            try {
-                                                Message msg = mbox.getMessageById(null, id.getId());
-                                                callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                            } catch (Throwable t) {
-                                                if (t instanceof OutOfMemoryError) {
-                                                    Zimbra.halt("LMTP callback failed", t);
-                                                } else {
-                                                    ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case defer:
-                            // Delivery to mailbox skipped.  Let MTA retry again later.
-                            // This case happens for shared delivery to a mailbox in
-                            // backup mode.
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                    } else {
-                        // Account or mailbox not found.
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                    } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
-                    }
-                }
+            // version each recipient needs.  Deliver to one recipient at a time
+            // until the message is stored in a mailbox: that first delivery logs
+            // the blob for redo and stores the copy the other mailboxes link to.
+            int next = 0;
+            while (next < recipients.size() && sharedDeliveryCtxt.isFirst()) {
+                LmtpAddress recipient = recipients.get(next++);
+                deliverMessageToRecipient(recipient, rcptMap.get(recipient), null, blob, data, env, sharedDeliveryCtxt);
+            }
+            if (next < recipients.size()) {
+                deliverMessageToRecipients(recipients.subList(next, recipients.size()), rcptMap, blob, data, mm,
+                        env, sharedDeliveryCtxt);
             }
 
             // If this message is being streamed from disk, cache it
@@ -735,6 +591,290 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    /**
+     * Delivers the message to the recipients, in parallel on up to {@code zimbra_lmtp_delivery_threads} threads.
+     * Recipients in the same mailbox are delivered to by the same thread, in order.
+     */
+    private void deliverMessageToRecipients(List<LmtpAddress> recipients, Map<LmtpAddress, RecipientDetail> rcptMap,
+            Blob blob, byte[] data, MimeMessage mm, LmtpEnvelope env, DeliveryContext sharedDeliveryCtxt) {
+        // group the recipients by mailbox
+        Map<Object, List<LmtpAddress>> groups = new LinkedHashMap<Object, List<LmtpAddress>>();
+        for (LmtpAddress recipient : recipients) {
+            RecipientDetail rd = rcptMap.get(recipient);
+            Object key = rd != null && rd.mbox != null ? rd.mbox.getId() : recipient;
+            List<LmtpAddress> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<LmtpAddress>(1);
+                groups.put(key, group);
+            }
+            group.add(recipient);
+        }
+
+        // a MimeMessage can't be parsed again, so it can't be delivered from more than one thread
+        int nthreads = mm != null ? 1 : Math.min(DELIVERY_THREADS, groups.size());
+        List<List<LmtpAddress>> batches = new ArrayList<List<LmtpAddress>>(Math.max(nthreads, 1));
+        for (int i = 0; i < nthreads; i++) {
+            batches.add(new ArrayList<LmtpAddress>());
+        }
+        int i = 0;
+        for (List<LmtpAddress> group : groups.values()) {
+            batches.get(i++ % nthreads).addAll(group);
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(nthreads - 1);
+        for (List<LmtpAddress> batch : batches.subList(1, nthreads)) {
+            futures.add(DELIVERY_EXECUTOR.submit(new DeliveryTask(batch, rcptMap, blob, data, env, sharedDeliveryCtxt)));
+        }
+        // this thread delivers the first batch itself
+        for (LmtpAddress recipient : batches.get(0)) {
+            deliverMessageToRecipient(recipient, rcptMap.get(recipient), null, blob, data, env, sharedDeliveryCtxt);
+        }
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                ZimbraLog.lmtp.warn("Exception delivering mail", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Delivers to a batch of recipients on a delivery thread.  A {@link ParsedMessage} is not thread-safe and is
+     * adjusted to each recipient, so the thread parses the message once for itself.
+     */
+    private final class DeliveryTask implements Runnable {
+        private final List<LmtpAddress> recipients;
+        private final Map<LmtpAddress, RecipientDetail> rcptMap;
+        private final Blob blob;
+        private final byte[] data;
+        private final LmtpEnvelope env;
+        private final DeliveryContext sharedDeliveryCtxt;
+
+        DeliveryTask(List<LmtpAddress> recipients, Map<LmtpAddress, RecipientDetail> rcptMap, Blob blob, byte[] data,
+                LmtpEnvelope env, DeliveryContext sharedDeliveryCtxt) {
+            this.recipients = recipients;
+            this.rcptMap = rcptMap;
+            this.blob = blob;
+            this.data = data;
+            this.env = env;
+            this.sharedDeliveryCtxt = sharedDeliveryCtxt;
+        }
+
+        @Override
+        public void run() {
+            Map<ParsedMessage, ParsedMessage> parsed = new IdentityHashMap<ParsedMessage, ParsedMessage>(2);
+            try {
+                for (LmtpAddress recipient : recipients) {
+                    try {
+                        deliverMessageToRecipient(recipient, rcptMap.get(recipient), parsed, blob, data, env,
+                                sharedDeliveryCtxt);
+                    } catch (RuntimeException e) {
+                        ZimbraLog.lmtp.warn("try again for message to=%s", recipient.getEmailAddress(), e);
+                        recipient.setDeliveryStatus(LmtpReply.TEMPORARY_FAILURE);
+                    }
+                }
+            } finally {
+                ZimbraLog.clearContext();
+            }
+        }
+    }
+
+    /**
+     * Delivers the message to one recipient, and sets the recipient's delivery status.
+     *
+     * @param parsed if not null, this thread's own copies of the {@link ParsedMessage}s in the recipient details
+     */
+    private void deliverMessageToRecipient(LmtpAddress recipient, RecipientDetail rd,
+            Map<ParsedMessage, ParsedMessage> parsed, Blob blob, byte[] data, LmtpEnvelope env,
+            DeliveryContext sharedDeliveryCtxt) {
+        String envSender = env.getSender().getEmailAddress();
+        boolean shared = sharedDeliveryCtxt.getShared();
+        String msgId = null;
+        String rcptEmail = recipient.getEmailAddress();
+        LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+        if (rd != null && rd.account != null)
+            ZimbraLog.addAccountNameToContext(rd.account.getName());
+        if (rd != null && rd.mbox != null)
+            ZimbraLog.addMboxToContext(rd.mbox.getId());
+
+        boolean success = false;
+        try {
+            if (rd != null) {
+                // delivery threads use their own copy of the message
+                ParsedMessage pm = parsed == null || rd.pm == null ? rd.pm : getParsedMessage(rd.pm, parsed, blob, data);
+                switch (rd.action) {
+                case discard:
+                    ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                            envSender, rcptEmail);
+                    if (rd.account.getPrefMailForwardingAddress() != null) {
+                        // mail forwarding is set up
+                        for (LmtpCallback callback : callbacks) {
+                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                            callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, pm);
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case deliver:
+                    Account account = rd.account;
+                    Mailbox mbox = rd.mbox;
+                    msgId = pm.getMessageID();
+                    List<ItemId> addedMessageIds = null;
+                    ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                    boolean acquiredLock;
+                    try {
+                        // Wait for the lock, up to the timeout
+                        acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        acquiredLock = false;
+                    }
+                    if (!acquiredLock) {
+                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                                envSender, rcptEmail);
+                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        break;
+                    }
+                    try {
+                        if (dedupe(pm, mbox)) {
+                            // message was already delivered to this mailbox
+                            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                        } else if (mbox.dedupeForSelfMsg(pm)) {
+                            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                pm.getMessageID());
+
+                        } else if (recipient.getSkipFilters()) {
+                            int folderId = Mailbox.ID_FOLDER_INBOX;
+                            if (recipient.getFolder() != null) {
+                                try {
+                                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                    folderId = folder.getId();
+                                } catch (ServiceException se) {
+                                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                        folderId = folder.getId();
+                                    } else {
+                                        throw se;
+                                    }
+                                }
+                            }
+                            int flags = Flag.BITMASK_UNREAD;
+                            if (recipient.getFlags() != null) {
+                                flags = Flag.toBitmask(recipient.getFlags());
+                            }
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        } else if (!DebugConfig.disableIncomingFilter) {
+                            // Get msgid first, to avoid having to reopen and reparse the blob
+                            // file if Mailbox.addMessageInternal() closes it.
+                            pm.getMessageID();
+                            addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                    null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
+                                    Mailbox.ID_FOLDER_INBOX, false, true);
+                        } else {
+                            pm.getMessageID();
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        }
+                        success = true;
+                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                            addToDedupeCache(pm, mbox);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        // Execute callbacks
+                        for (LmtpCallback callback : callbacks) {
+                            for (ItemId id : addedMessageIds) {
+                                if (id.belongsTo(mbox)) {
+                                    // Message was added to the local mailbox, as opposed to a mountpoint.
+                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                    try {
+                                        Message msg = mbox.getMessageById(null, id.getId());
+                                        callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                    } catch (Throwable t) {
+                                        if (t instanceof OutOfMemoryError) {
+                                            Zimbra.halt("LMTP callback failed", t);
+                                        } else {
+                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case defer:
+                    // Delivery to mailbox skipped.  Let MTA retry again later.
+                    // This case happens for shared delivery to a mailbox in
+                    // backup mode.
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+            } else {
+                // Account or mailbox not found.
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
+                        envSender, rcptEmail);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (DeliveryServiceException e) {
+            ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+            reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+        } catch (ServiceException e) {
+            if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                if (config.isPermanentFailureWhenOverQuota()) {
+                    reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                } else {
+                    reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                }
+            } else if (e.isReceiversFault()) {
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+            } else {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (Exception e) {
+            reply = LmtpReply.TEMPORARY_FAILURE;
+            ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+        } finally {
+            if (rd != null && rd.action == DeliveryAction.deliver && !success) {
+                // Message was not delivered.  Remove it from the dedupe
+                // cache so we don't dedupe it on LMTP retry.
+                removeFromDedupeCache(msgId, rd.mbox);
+            }
+            recipient.setDeliveryStatus(reply);
+            if (shared && rd != null && rd.esd) {
+                rd.mbox.endSharedDelivery();
+                rd.esd = false;
+            }
+        }
+    }
+
+    /**
+     * Returns this thread's copy of a {@link ParsedMessage}, parsing the message if necessary.
+     */
+    private static ParsedMessage getParsedMessage(ParsedMessage original, Map<ParsedMessage, ParsedMessage> parsed,
+            Blob blob, byte[] data) throws IOException, ServiceException {
+        ParsedMessage pm = parsed.get(original);
+        if (pm == null) {
+            pm = new ParsedMessage(new ParsedMessageOptions(blob, data, original.getReceivedDate(),
+                    original.isAttachmentIndexingEnabled()));
+            parsed.put(original, pm);
+        }
+        return pm;
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
@@ -21,6 +21,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -420,19 +421,38 @@ public class ContactAutoComplete {
         Pair<List<Folder>, Map<ItemId, Mountpoint>> pFolders = getLocalRemoteContactFolders(folders);
         List<Folder> listFolders = pFolders.getFirst();
         Map<ItemId, Mountpoint> mountpoints = pFolders.getSecond();
-        final String searchContactFolderQuery = generateFolderQuery(listFolders);
+        ContactPrefixIndex prefixIndex = getPrefixIndex(str, listFolders);
 
         long t0 = System.currentTimeMillis();
-        //Search in ranking table first.
-        addExistingContactsFromRankingTable(str, searchContactFolderQuery, mountpoints, limit, result);
-        long t1 = System.currentTimeMillis();
+        long t1, t2;
+        if (prefixIndex != null) {
+            Set<Integer> folderIds = new HashSet<Integer>();
+            for (Folder folder : listFolders) {
+                folderIds.add(folder.getId());
+            }
+            //Search in ranking table first.
+            addExistingContactsFromRankingTable(str, prefixIndex, folderIds, limit, result);
+            t1 = System.currentTimeMillis();
+
+            // search other folders
+            if (result.entries.size() < limit) {
+                String prefix = TOKEN_SPLITTER.split(str).iterator().next();
+                addMatchedContacts(str, prefixIndex.search(prefix, folderIds), result);
+            }
+            t2 = System.currentTimeMillis();
+        } else {
+            final String searchContactFolderQuery = generateFolderQuery(listFolders);
+            //Search in ranking table first.
+            addExistingContactsFromRankingTable(str, searchContactFolderQuery, mountpoints, limit, result);
+            t1 = System.currentTimeMillis();
 
-        // search other folders
-        if (result.entries.size() < limit) {
-            String query = searchContactFolderQuery + generateQuery(str);
-            queryFolders(str, query, mountpoints, limit, result);
+            // search other folders
+            if (result.entries.size() < limit) {
+                String query = searchContactFolderQuery + generateQuery(str);
+                queryFolders(str, query, mountpoints, limit, result);
+            }
+            t2 = System.currentTimeMillis();
         }
-        long t2 = System.currentTimeMillis();
 
         if (mIncludeGal && result.entries.size() < limit) {
             queryGal(str, result);
@@ -445,6 +465,41 @@ public class ContactAutoComplete {
         return result;
     }
 
+    /**
+     * Returns the in-memory prefix index of the requested mailbox's contacts, or null if the query has to go to the
+     * search index: shared address books are searched on their own servers, and full contact data is only in the
+     * contacts themselves.
+     */
+    private ContactPrefixIndex getPrefixIndex(String str, List<Folder> folders) {
+        if (returnFullContactData || !TOKEN_SPLITTER.split(str).iterator().hasNext()) {
+            return null;
+        }
+        for (Folder folder : folders) {
+            if (folder instanceof Mountpoint) {
+                return null;
+            }
+        }
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(getRequestedAcctId());
+            return ContactPrefixIndex.get(mbox, mEmailKeys);
+        } catch (ServiceException e) {
+            ZimbraLog.gal.warn("cannot load contacts for autocomplete, searching the index", e);
+            return null;
+        }
+    }
+
+    private void addMatchedContacts(String str, List<ContactPrefixIndex.IndexedContact> contacts,
+            AutoCompleteResult result) {
+        for (ContactPrefixIndex.IndexedContact contact : contacts) {
+            ZimbraLog.gal.debug("hit: %d", contact.id);
+            addMatchedContacts(str, contact.fields, contact.folderId, new ItemId(getRequestedAcctId(), contact.id),
+                    result);
+            if (!result.canBeCached) {
+                return;
+            }
+        }
+    }
+
     /**
      * ranking table and local contact matches don't have group indicator persisted on them,
      * cross-ref GAL to check if the address is a group.
@@ -908,6 +963,27 @@ public class ContactAutoComplete {
         return buf.toString();
     }
 
+    /**
+     * Get matching entries from ranking table and adds the contacts with those email addresses from the prefix index.
+     */
+    private void addExistingContactsFromRankingTable(String str, ContactPrefixIndex prefixIndex,
+            Set<Integer> folderIds, int limit, AutoCompleteResult result) {
+        Collection<ContactEntry> rankingTableEntires = result.rankings.search(str);
+        List<String> emailAddress = Lists.newArrayListWithExpectedSize(limit+1);
+        int batchSize = limit;
+        for (ContactEntry contactEntry : rankingTableEntires) {
+            if (batchSize-- == 0) {
+                break;
+            }
+            if (!StringUtil.isNullOrEmpty(contactEntry.mEmail)) {
+                emailAddress.add(contactEntry.mEmail);
+            }
+        }
+        if (!emailAddress.isEmpty()) {
+            addMatchedContacts(str, prefixIndex.searchEmails(emailAddress, folderIds), result);
+        }
+    }
+
     /**
      * Get matching entries from ranking table and validates each matching email address in contact ranking table has corresponding contact.
      * @param str
@@ -0,0 +1,382 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.MapUtil;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+
+/**
+ * In-memory prefix lookup over the contacts of a mailbox, used by {@link ContactAutoComplete} instead of a search
+ * index query.
+ * <p>
+ * Every word of a contact's name fields and every email address is a token.  The tokens are kept in a sorted
+ * {@code String[]} with a parallel {@code int[]} of contact ids, so that all contacts with a token starting with a
+ * prefix are found with a binary search.  Contacts are added, replaced and removed as the mailbox notifies its
+ * changes; the arrays are re-sorted on the first lookup after a change.
+ * <p>
+ * The lookup only narrows down the candidates: {@link ContactAutoComplete} still decides which of them match, the
+ * same way it does for index hits.  Only the fields autocomplete looks at are kept.  The number of mailboxes kept in
+ * memory is bounded by {@code contact_autocomplete_cache_mailboxes}, and mailboxes with more than
+ * {@code contact_autocomplete_cache_max_contacts} contacts are not kept at all.
+ */
+final class ContactPrefixIndex {
+
+    private static final Splitter TOKEN_SPLITTER =
+            Splitter.on(CharMatcher.WHITESPACE).omitEmptyStrings().trimResults();
+
+    /** fields whose words are tokens */
+    private static final List<String> NAME_FIELDS = ImmutableList.of(
+            ContactConstants.A_firstName, ContactConstants.A_middleName, ContactConstants.A_lastName,
+            ContactConstants.A_fullName, ContactConstants.A_nickname,
+            ContactConstants.A_phoneticFirstName, ContactConstants.A_phoneticLastName);
+
+    /** other fields autocomplete needs to build its results */
+    private static final List<String> RESULT_FIELDS = ImmutableList.of(
+            ContactConstants.A_company, ContactConstants.A_fileAs, ContactConstants.A_type);
+
+    private static final ConcurrentMap<String, ContactPrefixIndex> CACHE =
+            MapUtil.newConcurrentLruMap(LC.contact_autocomplete_cache_mailboxes.intValue());
+
+    /** The autocomplete view of a contact. */
+    static final class IndexedContact {
+        final int id;
+        final int folderId;
+        final Map<String, String> fields;
+
+        IndexedContact(int id, int folderId, Map<String, String> fields) {
+            this.id = id;
+            this.folderId = folderId;
+            this.fields = fields;
+        }
+    }
+
+    /** Tokens sorted in ascending order, and the id of the contact each of them came from. */
+    private static final class Tokens {
+        final String[] tokens;
+        final int[] ids;
+
+        Tokens(String[] tokens, int[] ids) {
+            this.tokens = tokens;
+            this.ids = ids;
+        }
+    }
+
+    private static final Comparator<Pair<String, Integer>> POSTING_ORDER = new Comparator<Pair<String, Integer>>() {
+        @Override
+        public int compare(Pair<String, Integer> a, Pair<String, Integer> b) {
+            return a.getFirst().compareTo(b.getFirst());
+        }
+    };
+
+    private final int mailboxId;
+    private final Set<String> emailKeys;
+    private final int maxContacts;
+    private final Map<Integer, IndexedContact> contacts = new HashMap<Integer, IndexedContact>();
+    private volatile Tokens tokens; // null after a change until the next lookup
+    private boolean overflow;
+
+    @VisibleForTesting
+    ContactPrefixIndex(int mailboxId, Collection<String> emailKeys, int maxContacts) {
+        this.mailboxId = mailboxId;
+        this.emailKeys = ImmutableSet.copyOf(emailKeys);
+        this.maxContacts = maxContacts;
+    }
+
+    /**
+     * Returns the prefix index of the mailbox's contacts, loading it if necessary, or null if the contacts of the
+     * mailbox are not kept in memory.
+     */
+    static ContactPrefixIndex get(Mailbox mbox, Collection<String> emailKeys) throws ServiceException {
+        if (LC.contact_autocomplete_cache_mailboxes.intValue() <= 0) {
+            return null;
+        }
+        String accountId = mbox.getAccountId();
+        ContactPrefixIndex index = CACHE.get(accountId);
+        if (index == null || index.mailboxId != mbox.getId() || !index.emailKeys.containsAll(emailKeys)) {
+            index = load(mbox, emailKeys);
+        }
+        return index.isOverflow() ? null : index;
+    }
+
+    private static ContactPrefixIndex load(Mailbox mbox, Collection<String> emailKeys) throws ServiceException {
+        ContactPrefixIndex index = new ContactPrefixIndex(mbox.getId(), emailKeys,
+                LC.contact_autocomplete_cache_max_contacts.intValue());
+        // hold the mailbox lock until the index is in the cache, so that it sees every change committed after
+        // the contacts were listed
+        mbox.lock.lock();
+        try {
+            List<MailItem> items = mbox.getItemList(null, MailItem.Type.CONTACT);
+            if (items.size() > index.maxContacts) {
+                index.overflow = true;
+            } else {
+                for (MailItem item : items) {
+                    index.put((Contact) item);
+                }
+            }
+            CACHE.put(mbox.getAccountId(), index);
+        } finally {
+            mbox.lock.release();
+        }
+        ZimbraLog.gal.debug("loaded %d contacts of mailbox %d for autocomplete%s", index.size(), index.mailboxId,
+                index.isOverflow() ? " (too many, using the index)" : "");
+        return index;
+    }
+
+    static void purge(String accountId) {
+        CACHE.remove(accountId);
+    }
+
+    @VisibleForTesting
+    static void clearCache() {
+        CACHE.clear();
+    }
+
+    synchronized boolean isOverflow() {
+        return overflow;
+    }
+
+    synchronized int size() {
+        return contacts.size();
+    }
+
+    synchronized void put(Contact contact) {
+        if (overflow) {
+            return;
+        }
+        Map<String, String> all = contact.getFields();
+        ImmutableMap.Builder<String, String> fields = ImmutableMap.builder();
+        for (String key : NAME_FIELDS) {
+            putField(all, key, fields);
+        }
+        for (String key : RESULT_FIELDS) {
+            putField(all, key, fields);
+        }
+        for (String key : emailKeys) {
+            putField(all, key, fields);
+        }
+        contacts.put(contact.getId(), new IndexedContact(contact.getId(), contact.getFolderId(), fields.build()));
+        if (contacts.size() > maxContacts) {
+            overflow = true;
+            contacts.clear();
+        }
+        tokens = null;
+    }
+
+    private static void putField(Map<String, String> all, String key, ImmutableMap.Builder<String, String> fields) {
+        String value = all.get(key);
+        if (value != null) {
+            fields.put(key, value);
+        }
+    }
+
+    synchronized void remove(int id) {
+        if (contacts.remove(id) != null) {
+            tokens = null;
+        }
+    }
+
+    /** Applies the changes to contacts committed in the mailbox. */
+    void apply(PendingModifications mods) {
+        if (mods.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : mods.deleted.entrySet()) {
+                if (entry.getValue().what == MailItem.Type.CONTACT) {
+                    remove(entry.getKey().getItemId());
+                }
+            }
+        }
+        if (mods.created != null) {
+            for (MailItem item : mods.created.values()) {
+                if (item instanceof Contact) {
+                    put((Contact) item);
+                }
+            }
+        }
+        if (mods.modified != null) {
+            for (Change change : mods.modified.values()) {
+                if (change.what instanceof Contact) {
+                    put((Contact) change.what);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the contacts in the given folders that have a name word or an email address starting with the
+     * prefix, in id order.
+     */
+    List<IndexedContact> search(String prefix, Set<Integer> folderIds) {
+        Tokens t = getTokens();
+        int[] ids = new int[16];
+        int count = 0;
+        for (int i = lowerBound(t.tokens, prefix); i < t.tokens.length && t.tokens[i].startsWith(prefix); i++) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = t.ids[i];
+        }
+        return toContacts(ids, count, folderIds);
+    }
+
+    /** Returns the contacts in the given folders with one of these email addresses. */
+    List<IndexedContact> searchEmails(Collection<String> emails, Set<Integer> folderIds) {
+        Tokens t = getTokens();
+        int[] ids = new int[16];
+        int count = 0;
+        for (String email : emails) {
+            String token = email.toLowerCase();
+            for (int i = lowerBound(t.tokens, token); i < t.tokens.length && t.tokens[i].equals(token); i++) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                ids[count++] = t.ids[i];
+            }
+        }
+        return toContacts(ids, count, folderIds);
+    }
+
+    private synchronized List<IndexedContact> toContacts(int[] ids, int count, Set<Integer> folderIds) {
+        Arrays.sort(ids, 0, count);
+        List<IndexedContact> result = new ArrayList<IndexedContact>(count);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && ids[i] == ids[i - 1]) {
+                continue;
+            }
+            IndexedContact contact = contacts.get(ids[i]);
+            if (contact != null && folderIds.contains(contact.folderId)) {
+                result.add(contact);
+            }
+        }
+        return result;
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Tokens getTokens() {
+        Tokens t = tokens;
+        if (t == null) {
+            synchronized (this) {
+                t = tokens;
+                if (t == null) {
+                    tokens = t = buildTokens();
+                }
+            }
+        }
+        return t;
+    }
+
+    /** Caller must hold the monitor. */
+    private Tokens buildTokens() {
+        List<Pair<String, Integer>> postings = new ArrayList<Pair<String, Integer>>(contacts.size() * 4);
+        for (IndexedContact contact : contacts.values()) {
+            for (String token : tokenize(contact)) {
+                postings.add(new Pair<String, Integer>(token, contact.id));
+            }
+        }
+        Collections.sort(postings, POSTING_ORDER);
+        String[] sorted = new String[postings.size()];
+        int[] ids = new int[postings.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = postings.get(i).getFirst();
+            ids[i] = postings.get(i).getSecond();
+        }
+        return new Tokens(sorted, ids);
+    }
+
+    private Set<String> tokenize(IndexedContact contact) {
+        Set<String> result = new LinkedHashSet<String>();
+        for (String key : NAME_FIELDS) {
+            String value = contact.fields.get(key);
+            if (value != null) {
+                for (String word : TOKEN_SPLITTER.split(value)) {
+                    result.add(word.toLowerCase());
+                }
+            }
+        }
+        for (String key : emailKeys) {
+            String value = contact.fields.get(key);
+            if (value != null && !value.isEmpty()) {
+                result.add(value.toLowerCase());
+            }
+        }
+        return result;
+    }
+
+    /** Keeps the cached indexes up to date with the contacts of their mailboxes. */
+    static final class Listener extends MailboxListener {
+        private static final Set<MailItem.Type> TYPES = EnumSet.of(MailItem.Type.CONTACT);
+
+        @Override
+        public void notify(ChangeNotification notification) {
+            ContactPrefixIndex index = CACHE.get(notification.mailboxAccount.getId());
+            if (index == null) {
+                return;
+            }
+            if (index.isOverflow()) {
+                if (notification.mods.deleted != null && !notification.mods.deleted.isEmpty()) {
+                    // it may fit now, check again on the next lookup
+                    CACHE.remove(notification.mailboxAccount.getId(), index);
+                }
+                return;
+            }
+            index.apply(notification.mods);
+        }
+
+        @Override
+        public Set<MailItem.Type> registerForItemTypes() {
+            return TYPES;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Runs indexing work of all mailboxes on a shared, self-sizing set of index threads.
+ * <p>
+ * Work is queued by {@link Priority}: index flushes for interactive searches run before indexing of delivered mail,
+ * which runs before re-index work. Within a priority, mailboxes take turns, one task each, so that a mailbox with a
+ * lot of queued work cannot starve the others. A task submitted with a key is dropped while a task with the same key
+ * is still queued, because the queued task picks up the new work as well.
+ * <p>
+ * The queue is bounded. Delivery work is rejected when it is full, and re-index work waits for room; search work is
+ * always accepted. Every second, the number of index threads is adjusted between the configured minimum and
+ * maximum: a thread is added while work is waiting and the index threads use less CPU than their budget, and one is
+ * retired when they use more, or when there is nothing to do.
+ */
+final class IndexScheduler {
+
+    enum Priority {
+        SEARCH, DELIVERY, REINDEX
+    }
+
+    private static final long ADJUST_INTERVAL_MILLIS = 1000L;
+
+    private final String name;
+    private final int minThreads;
+    private final int maxThreads;
+    private final int capacity;
+    private final double cpuBudget; // fraction of all processors
+    private final int processors = Runtime.getRuntime().availableProcessors();
+
+    // guarded by this
+    private final Map<Priority, LinkedHashMap<Integer, Deque<Entry>>> queues =
+            new HashMap<Priority, LinkedHashMap<Integer, Deque<Entry>>>();
+    private final Map<Object, Entry> keyed = new HashMap<Object, Entry>();
+    private final Map<Thread, Long> workers = new HashMap<Thread, Long>(); // worker -> CPU time at the last adjustment
+    private int depth = 0;
+    private int targetThreads;
+    private int idleThreads = 0;
+    private int workerSeq = 0;
+    private boolean started = false;
+    private long lastAdjustNanos;
+
+    private ScheduledExecutorService controller;
+
+    IndexScheduler(String name, int minThreads, int maxThreads, int capacity, int cpuBudgetPercent) {
+        this.name = name;
+        this.maxThreads = Math.max(maxThreads, 1);
+        this.minThreads = Math.max(Math.min(minThreads, this.maxThreads), 1);
+        this.capacity = Math.max(capacity, 1);
+        this.cpuBudget = Math.max(cpuBudgetPercent, 1) / 100.0;
+        this.targetThreads = this.minThreads;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new LinkedHashMap<Integer, Deque<Entry>>());
+        }
+    }
+
+    /**
+     * Starts the minimum number of index threads, and the thread that resizes the pool.
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        lastAdjustNanos = System.nanoTime();
+        while (workers.size() < targetThreads) {
+            startWorker();
+        }
+        controller = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-Scaler").setDaemon(true).build());
+        controller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adjust(measureCpuUsage());
+                } catch (Throwable t) {
+                    ZimbraLog.index.warn("Failed to resize index threads", t);
+                }
+            }
+        }, ADJUST_INTERVAL_MILLIS, ADJUST_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param mailboxId mailbox the task works on
+     * @param key if not null, the task is dropped while another task with an equal key is queued
+     * @return the task's future, or the future of the queued task with the same key
+     * @throws RejectedExecutionException delivery work was submitted while the queue is full
+     */
+    Future<?> submit(int mailboxId, Priority priority, Object key, Runnable task) {
+        return submit(mailboxId, priority, key, new FutureTask<Void>(task, null));
+    }
+
+    synchronized Future<?> submit(int mailboxId, Priority priority, Object key, FutureTask<?> task) {
+        if (!started) {
+            start();
+        }
+        if (key != null) {
+            Entry queued = keyed.get(key);
+            if (queued != null) {
+                return queued.task;
+            }
+        }
+        if (priority == Priority.DELIVERY && depth >= capacity) {
+            throw new RejectedExecutionException("index queue is full");
+        }
+        while (priority == Priority.REINDEX && depth >= capacity) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while waiting for room in the index queue");
+            }
+        }
+        Entry entry = new Entry(mailboxId, key, task);
+        LinkedHashMap<Integer, Deque<Entry>> queue = queues.get(priority);
+        Deque<Entry> tasks = queue.get(mailboxId);
+        if (tasks == null) {
+            queue.put(mailboxId, tasks = new ArrayDeque<Entry>());
+        }
+        tasks.add(entry);
+        if (key != null) {
+            keyed.put(key, entry);
+        }
+        depth++;
+        notifyAll();
+        return task;
+    }
+
+    synchronized int getQueueDepth() {
+        return depth;
+    }
+
+    synchronized int getThreadCount() {
+        return workers.size();
+    }
+
+    /**
+     * Takes the next task: the highest priority wins, and within a priority the mailbox that has waited longest.
+     */
+    private Entry poll() {
+        assert Thread.holdsLock(this);
+        for (Priority priority : Priority.values()) {
+            LinkedHashMap<Integer, Deque<Entry>> queue = queues.get(priority);
+            if (queue.isEmpty()) {
+                continue;
+            }
+            Map.Entry<Integer, Deque<Entry>> first = queue.entrySet().iterator().next();
+            Deque<Entry> tasks = first.getValue();
+            Entry entry = tasks.poll();
+            // move the mailbox to the back of the line, or drop it if it has nothing left
+            queue.remove(first.getKey());
+            if (!tasks.isEmpty()) {
+                queue.put(first.getKey(), tasks);
+            }
+            if (entry.key != null) {
+                keyed.remove(entry.key);
+            }
+            depth--;
+            notifyAll();
+            return entry;
+        }
+        return null;
+    }
+
+    private synchronized Entry take() throws InterruptedException {
+        while (true) {
+            if (workers.size() > targetThreads) {
+                workers.remove(Thread.currentThread()); // retire
+                return null;
+            }
+            Entry entry = poll();
+            if (entry != null) {
+                return entry;
+            }
+            idleThreads++;
+            try {
+                wait();
+            } finally {
+                idleThreads--;
+            }
+        }
+    }
+
+    private void startWorker() {
+        assert Thread.holdsLock(this);
+        Thread thread = new Thread(new Worker(), name + "-" + workerSeq++);
+        thread.setDaemon(true);
+        workers.put(thread, cpuTime(thread));
+        thread.start();
+    }
+
+    /**
+     * Returns the CPU used by the index threads since the last call, as a fraction of all processors.
+     */
+    private synchronized double measureCpuUsage() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - lastAdjustNanos, 1L);
+        lastAdjustNanos = now;
+        long used = 0L;
+        for (Map.Entry<Thread, Long> worker : workers.entrySet()) {
+            long cpu = cpuTime(worker.getKey());
+            used += Math.max(cpu - worker.getValue(), 0L);
+            worker.setValue(cpu);
+        }
+        return (double) used / elapsed / processors;
+    }
+
+    /**
+     * Resizes the pool by at most one thread toward the CPU budget.
+     *
+     * @param cpuUsage CPU used by the index threads, as a fraction of all processors
+     */
+    @VisibleForTesting
+    synchronized void adjust(double cpuUsage) {
+        if (cpuUsage > cpuBudget || (depth == 0 && idleThreads > 0)) {
+            if (targetThreads > minThreads) {
+                targetThreads--;
+                notifyAll(); // an idle thread retires
+                ZimbraLog.index.debug("Index threads down to %d, cpu=%.2f,depth=%d", targetThreads, cpuUsage, depth);
+            }
+        } else if (depth > 0 && idleThreads == 0 && targetThreads < maxThreads) {
+            targetThreads++;
+            if (started) {
+                startWorker();
+            }
+            ZimbraLog.index.debug("Index threads up to %d, cpu=%.2f,depth=%d", targetThreads, cpuUsage, depth);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getTargetThreads() {
+        return targetThreads;
+    }
+
+    private static long cpuTime(Thread thread) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!mx.isThreadCpuTimeSupported()) {
+            return 0L;
+        }
+        try {
+            return Math.max(mx.getThreadCpuTime(thread.getId()), 0L);
+        } catch (UnsupportedOperationException e) {
+            return 0L;
+        }
+    }
+
+    private static final class Entry {
+        final int mailboxId;
+        final Object key;
+        final FutureTask<?> task;
+
+        Entry(int mailboxId, Object key, FutureTask<?> task) {
+            this.mailboxId = mailboxId;
+            this.key = key;
+            this.task = task;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Entry entry = take();
+                    if (entry == null) {
+                        break;
+                    }
+                    try {
+                        entry.task.run();
+                    } catch (Throwable t) { // FutureTask captures task failures; this is a last resort
+                        ZimbraLog.index.error("Index task failed mbox=%d", entry.mailboxId, t);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (IndexScheduler.this) {
+                    workers.remove(Thread.currentThread());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.MapMaker;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Global memory budget for the per-mailbox {@link MailItem} caches.
+ * <p>
+ * Every loaded mailbox registers its item cache here.  The budget is split evenly
+ * between the registered caches (but never below a per-mailbox floor), and each
+ * cache is a weighted LRU whose capacity follows its share.  A cache picks up a
+ * new share on its next write, so registering a mailbox is O(1); a timer resizes
+ * the caches of mailboxes that see no writes.
+ * <p>
+ * An item is weighed whenever it is put in a cache.  Committing a change puts
+ * the modified items again, so their weight follows their current size.
+ * <p>
+ * Caches are held weakly, so a mailbox that is garbage collected without being
+ * released stops counting against the budget once it is gone.
+ */
+public final class ItemCacheBudget {
+
+    /** Rough fixed cost of a {@link MailItem}, its {@link MailItem.UnderlyingData} and the map entry. */
+    private static final int ITEM_OVERHEAD = 512;
+
+    private final long budget;
+    private final long minimum;
+    private final Map<ConcurrentLinkedHashMap<Integer, MailItem>, Boolean> caches = new MapMaker().weakKeys().makeMap();
+    private volatile long share;
+    private final AtomicLong evictions = new AtomicLong();
+
+    ItemCacheBudget() {
+        this(LC.zimbra_mailbox_item_cache_budget_kb.longValue() * 1024L,
+                LC.zimbra_mailbox_item_cache_min_kb.longValue() * 1024L);
+    }
+
+    ItemCacheBudget(long budget, long minimum) {
+        this.budget = Math.max(budget, 1L);
+        this.minimum = Math.max(Math.min(minimum, this.budget), 1L);
+        this.share = this.budget;
+    }
+
+    /**
+     * Creates a weighted LRU map sized to the current share of the budget and
+     * counts it against the budget.
+     *
+     * @param listener notified when an item is evicted to stay within the share
+     */
+    ConcurrentLinkedHashMap<Integer, MailItem> register(final EvictionListener<Integer, MailItem> listener) {
+        ConcurrentLinkedHashMap<Integer, MailItem> map = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>()
+                .maximumWeightedCapacity(share).weigher(WEIGHER)
+                .listener(new EvictionListener<Integer, MailItem>() {
+                    @Override
+                    public void onEviction(Integer id, MailItem item) {
+                        evictions.incrementAndGet();
+                        ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_EVICTIONS.increment();
+                        listener.onEviction(id, item);
+                    }
+                }).build();
+        caches.put(map, Boolean.TRUE);
+        rebalance();
+        map.setCapacity(share);
+        return map;
+    }
+
+    /** Stops counting {@code map} against the budget. */
+    void unregister(ConcurrentLinkedHashMap<Integer, MailItem> map) {
+        if (caches.remove(map) != null) {
+            rebalance();
+        }
+    }
+
+    /** Shrinks or grows {@code map} to the current share if the share has changed since it was last adjusted. */
+    void adjust(ConcurrentLinkedHashMap<Integer, MailItem> map) {
+        long target = share;
+        if (map.capacity() != target) {
+            map.setCapacity(target);
+        }
+    }
+
+    /**
+     * Resizes every cache to the current share, so that the caches of mailboxes that see no writes give up their
+     * excess too.
+     */
+    void enforce() {
+        long target = share;
+        for (ConcurrentLinkedHashMap<Integer, MailItem> map : caches.keySet()) {
+            if (map.capacity() != target) {
+                map.setCapacity(target);
+            }
+        }
+    }
+
+    /** Starts the timer that calls {@link #enforce()} every {@code zimbra_mailbox_item_cache_rebalance_ms}. */
+    void startup() {
+        long interval = LC.zimbra_mailbox_item_cache_rebalance_ms.longValue();
+        if (interval > 0) {
+            Zimbra.sTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        enforce();
+                    } catch (Throwable t) { // don't let exceptions kill the timer
+                        if (t instanceof OutOfMemoryError) {
+                            Zimbra.halt("Caught out of memory error", t);
+                        }
+                        ZimbraLog.cache.warn("Unable to resize the item caches", t);
+                    }
+                }
+            }, interval, interval);
+        }
+    }
+
+    private void rebalance() {
+        int count = Math.max(caches.size(), 1);
+        share = Math.max(budget / count, minimum);
+    }
+
+    /** Returns the total budget in bytes. */
+    public long getBudget() {
+        return budget;
+    }
+
+    /** Returns the capacity in bytes currently granted to each mailbox. */
+    public long getShare() {
+        return share;
+    }
+
+    /** Returns the number of item caches counted against the budget. */
+    public int getCacheCount() {
+        return caches.size();
+    }
+
+    /** Returns the estimated number of bytes used by all item caches. */
+    public long getWeightedSize() {
+        long size = 0;
+        for (ConcurrentLinkedHashMap<Integer, MailItem> map : caches.keySet()) {
+            size += map.weightedSize();
+        }
+        return size;
+    }
+
+    /** Returns the number of items held by all item caches. */
+    public int getItemCount() {
+        int count = 0;
+        for (ConcurrentLinkedHashMap<Integer, MailItem> map : caches.keySet()) {
+            count += map.size();
+        }
+        return count;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    static final Weigher<MailItem> WEIGHER = new Weigher<MailItem>() {
+        @Override
+        public int weightOf(MailItem item) {
+            return weigh(item);
+        }
+    };
+
+    /**
+     * Estimates the heap footprint of a cached item.  The metadata string is
+     * dropped once it has been decoded, so custom metadata is counted from the
+     * decoded sections; that way the weight follows {@code setCustomData}.
+     */
+    static int weigh(MailItem item) {
+        MailItem.UnderlyingData data = item.mData;
+        if (data == null) {
+            return ITEM_OVERHEAD;
+        }
+        long chars = length(data.getSubject()) + length(data.name) + length(data.locator) + length(data.uuid)
+                + length(data.getBlobDigest()) + length(data.getPrevFolders()) + length(data.metadata);
+        if (item.mExtendedData != null) {
+            chars += item.mExtendedData.guessSize();
+        }
+        for (String tag : data.getTags()) {
+            chars += length(tag);
+        }
+        return (int) Math.min(ITEM_OVERHEAD + chars * 2, Integer.MAX_VALUE);
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+}
@@ -3475,7 +3475,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
 
 
     protected void saveMetadata() throws ServiceException {
-        saveMetadata(encodeMetadata().toString());
+        saveMetadata(encodeMetadata().toStorageString());
     }
 
     protected void saveMetadata(String metadata) throws ServiceException {
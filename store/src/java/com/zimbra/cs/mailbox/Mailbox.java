@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -54,6 +53,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMailbox.Options;
@@ -579,18 +579,44 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Weighted LRU cache of the mailbox's non-folder, non-tag items.  Its capacity is this mailbox's share of the
+     * server-wide {@link ItemCacheBudget}; the listener/galsync item count targets are still applied separately by
+     * {@link Mailbox#trimItemCache()}.
+     */
     private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
+        private final ConcurrentLinkedHashMap<Integer /* id */, MailItem> mapById;
         private final Map<String /* uuid */, Integer /* id */> uuid2id;
         private final Mailbox mbox;
+        private final ItemCacheBudget budget;
         private boolean isAlwaysOn = false;
 
-        public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
-            uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
+        public ItemCache(Mailbox mbox, ItemCacheBudget budget) {
             this.mbox = mbox;
+            this.budget = budget;
             this.isAlwaysOn = Zimbra.isAlwaysOn();
+            uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
+            if (isAlwaysOn) {
+                // items live in memcached; nothing here counts against the budget
+                mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(1).build();
+            } else {
+                mapById = budget.register(new EvictionListener<Integer, MailItem>() {
+                    @Override
+                    public void onEviction(Integer id, MailItem item) {
+                        String uuid = item.getUuid();
+                        if (uuid != null) {
+                            uuid2id.remove(uuid, id);
+                        }
+                    }
+                });
+            }
+        }
+
+        /** Stops counting this cache against the budget. */
+        void release() {
+            if (!isAlwaysOn) {
+                budget.unregister(mapById);
+            }
         }
 
         public void put(MailItem item) {
@@ -601,6 +627,7 @@ public class Mailbox {
                     ZimbraLog.mailbox.error("error while writing item to cache", e);
                 }
             } else {
+                budget.adjust(mapById);
                 int id = item.getId();
                 mapById.put(id, item);
                 String uuid = item.getUuid();
@@ -725,7 +752,7 @@ public class Mailbox {
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    private volatile ItemCache mItemCache;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
@@ -770,7 +797,7 @@ public class Mailbox {
     boolean requiresWriteLock() {
         //mailbox currently forced to use write lock due to one of the following
         //1. pending tag/flag reload; i.e. cache flush or initial mailbox load
-        //2. this is an always on node (distributed lock does not support read/write currently)
+        //2. this is an always on node (mailbox stats and folder/tag caches are reloaded by every transaction)
         //3. read/write disabled by LC for debugging
         return requiresWriteLock || Zimbra.isAlwaysOn() || !LC.zimbra_mailbox_lock_readwrite.booleanValue();
     }
@@ -1724,6 +1751,7 @@ public class Mailbox {
         assert recorder == null || write;
         assert !Thread.holdsLock(this) : "use MailboxLock";
         lock.lock(write);
+        lock.setOperation(recorder != null ? recorder.getOperation().name() : caller);
         if (!write && requiresWriteLock()) {
             //another call must have purged the cache.
             //the lock.lock() call should have resulted in write lock already
@@ -1765,11 +1793,11 @@ public class Mailbox {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
+        // the transaction keeps its own reference, so a concurrent releaseItemCache() won't pull it out from under us
+        ItemCache cache = mItemCache;
         if (cache == null) {
-            cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
+            cache = new ItemCache(this, MailboxManager.getItemCacheBudget());
+            mItemCache = cache;
             ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
         }
         currentChange().itemCache = cache;
@@ -1930,7 +1958,10 @@ public class Mailbox {
         if (currentChange().isActive()) {
             currentChange().itemCache.clear();
         } else {
-            mItemCache.clear();
+            ItemCache cache = mItemCache;
+            if (cache != null) {
+                cache.clear();
+            }
         }
         try {
             if (Zimbra.isAlwaysOn()) {
@@ -1941,6 +1972,19 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Drops this mailbox's item cache and stops counting it against the global {@link ItemCacheBudget}.  Called by
+     * {@link MailboxManager} when the mailbox is no longer held in memory; a transaction that is already running keeps
+     * using its own reference, and the next one starts with a fresh cache.
+     */
+    void releaseItemCache() {
+        ItemCache cache = mItemCache;
+        if (cache != null) {
+            mItemCache = null;
+            cache.release();
+        }
+    }
+
     void cache(MailItem item) throws ServiceException {
         if (item == null || item.isTagged(Flag.FlagInfo.UNCACHED)) {
             return;
@@ -2421,6 +2465,7 @@ public class Mailbox {
                     // remove all traces of the mailbox from the Mailbox cache
                     //   (so anyone asking for the Mailbox gets NO_SUCH_MBOX or creates a fresh new empty one with a different id)
                     MailboxManager.getInstance().markMailboxDeleted(this);
+                    ContactPrefixIndex.purge(getAccountId());
 
                     // attempt to nuke the store and index
                     try {
@@ -2732,7 +2777,7 @@ public class Mailbox {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -3641,6 +3686,26 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Stores the IMAP BODYSTRUCTURE and ENVELOPE computed for a message added before
+     * they were precomputed at delivery.  Nothing is stored if the message already
+     * has them or its content changed since {@code savedSequence}.
+     */
+    public void setImapStructure(int msgId, int savedSequence, String bodystructure, String envelope)
+    throws ServiceException {
+        boolean success = false;
+        try {
+            beginTransaction("setImapStructure", null);
+            Message msg = getMessageById(msgId);
+            if (msg.getSavedSequence() == savedSequence && msg.getImapBodyStructure() == null) {
+                msg.setImapStructure(bodystructure, envelope);
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     public List<Integer> getTombstones(int lastSync, Set<MailItem.Type> types) throws ServiceException {
         lock.lock(false);
         try {
@@ -9599,8 +9664,8 @@ public class Mailbox {
             // committed changes, so notify any listeners
             if (dirty != null && dirty.hasNotifications()) {
                 try {
-                    // try to get a copy of the changeset that *isn't* live
-                    dirty = snapshotModifications(dirty);
+                    // try to get a copy of the changeset that *isn't* live, and share it read-only with all listeners
+                    dirty = snapshotModifications(dirty).seal();
                 } catch (ServiceException e) {
                     ZimbraLog.mailbox.warn("error copying notifications; will notify with live set", e);
                 }
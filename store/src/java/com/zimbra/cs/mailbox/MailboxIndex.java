@@ -26,12 +26,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -72,9 +78,11 @@ import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
 import com.zimbra.cs.index.ZimbraIndexSearcher;
 import com.zimbra.cs.index.ZimbraQuery;
 import com.zimbra.cs.index.ZimbraQueryResults;
+import com.zimbra.cs.index.elasticsearch.ElasticSearchIndex;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.MailItem.UnderlyingData;
 import com.zimbra.cs.mailbox.Mailbox.IndexItemEntry;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -88,10 +96,13 @@ public final class MailboxIndex {
     private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
 
-    private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
-            LC.zimbra_index_threads.intValue(), LC.zimbra_index_threads.intValue(),
-            Long.MAX_VALUE, TimeUnit.NANOSECONDS, new SynchronousQueue<Runnable>(),
-            new ThreadFactoryBuilder().setNameFormat("Index-%d").setDaemon(true).build());
+    private static final long SEARCH_FLUSH_WAIT = LC.zimbra_index_search_flush_wait_ms.longValue();
+    private static final int REINDEX_PARTITIONS = LC.zimbra_reindex_partitions.intValue();
+    private static final int REINDEX_PARTITION_MIN_ITEMS = LC.zimbra_reindex_partition_min_items.intValue();
+
+    private static final IndexScheduler INDEX_SCHEDULER = new IndexScheduler("Index",
+            LC.zimbra_index_min_threads.intValue(), LC.zimbra_index_threads.intValue(),
+            LC.zimbra_index_queue_capacity.intValue(), LC.zimbra_index_cpu_budget_percent.intValue());
     // Re-index threads are created on demand basis. The number of threads are capped.
     private static final ExecutorService REINDEX_EXECUTOR = new ThreadPoolExecutor(
             0, LC.zimbra_reindex_threads.intValue(), 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
@@ -108,6 +119,10 @@ public final class MailboxIndex {
     // current compact-indexing operation for this mailbox, or NULL if a compact-index is not in progress.
     private volatile CompactIndexTask compactIndex;
     private volatile SetMultimap<MailItem.Type, Integer> deferredIds; // guarded by IndexHelper
+    // when the oldest item still deferred was deferred, or -1 if none is
+    private volatile long deferredSince = -1;
+    // items changed or deleted while a partitioned re-index is running, or null if none is; guarded by this
+    private Set<Integer> reIndexTouched;
     boolean indexingSuspended = false;
     int numMaybeIndexDeferredItemsCalls = 0;
 
@@ -126,7 +141,21 @@ public final class MailboxIndex {
      * Starts all index threads.
      */
     public static void startup() {
-        INDEX_EXECUTOR.prestartAllCoreThreads();
+        INDEX_SCHEDULER.start();
+    }
+
+    /**
+     * Returns the number of index tasks waiting for an index thread.
+     */
+    public static int getQueueDepth() {
+        return INDEX_SCHEDULER.getQueueDepth();
+    }
+
+    /**
+     * Returns the current number of index threads.
+     */
+    public static int getThreadCount() {
+        return INDEX_SCHEDULER.getThreadCount();
     }
 
     public static void shutdown() {
@@ -167,12 +196,7 @@ public final class MailboxIndex {
         Set<MailItem.Type> types = toIndexTypes(params.getTypes());
         // no need to index if the search doesn't involve Lucene
         if (!params.isQuick() && query.hasTextOperation() && getDeferredCount(types) > 0) {
-            try {
-                // don't wait if an indexing is in progress by other thread
-                indexDeferredItems(types, new BatchStatus(), false);
-            } catch (ServiceException e) {
-                ZimbraLog.index.error("Failed to index deferred items", e);
-            }
+            flushDeferredItems(types);
         }
         return search(query);
     }
@@ -260,11 +284,7 @@ public final class MailboxIndex {
     public boolean existsInContacts(Collection<InternetAddress> addrs) throws IOException {
         Set<MailItem.Type> types = EnumSet.of(MailItem.Type.CONTACT);
         if (getDeferredCount(types) > 0) {
-            try {
-                indexDeferredItems(types, new BatchStatus(), false);
-            } catch (ServiceException e) {
-                ZimbraLog.index.error("Failed to index deferred items", e);
-            }
+            flushDeferredItems(types);
         }
 
         ZimbraIndexSearcher searcher = indexStore.openSearcher();
@@ -300,14 +320,14 @@ public final class MailboxIndex {
      * is {@code 0}, all items are indexed immediately when they are added.
      */
     public int getBatchThreshold() {
-        if (indexStore instanceof LuceneIndex) {
+        if (indexStore instanceof LuceneIndex || indexStore instanceof ElasticSearchIndex) {
             try {
                 return mailbox.getAccount().getBatchedIndexingSize();
             } catch (ServiceException e) {
                 ZimbraLog.index.warn("Failed to get %s",Provisioning.A_zimbraBatchedIndexingSize, e);
             }
         }
-        return 0; // disable batch indexing for non Lucene index stores
+        return 0; // disable batch indexing for other index stores
     }
 
     void evict() {
@@ -322,13 +342,37 @@ public final class MailboxIndex {
     }
 
     /**
-     * Submits a task to {@link #INDEX_EXECUTOR}.
+     * Submits a task to the index threads, at the priority of delivered mail.
      *
      * @param task index task
-     * @throws RejectedExecutionException if all index threads are busy
+     * @throws RejectedExecutionException if the index queue is full
      */
     public void submit(IndexTask task) {
-        INDEX_EXECUTOR.submit(task);
+        INDEX_SCHEDULER.submit(mailbox.getId(), IndexScheduler.Priority.DELIVERY, null, task);
+    }
+
+    /**
+     * Indexes deferred items ahead of a search, before any queued delivery or re-index work. Waits up to
+     * {@link LC#zimbra_index_search_flush_wait_ms} for it, then lets the search go ahead on the index as it is.
+     */
+    private void flushDeferredItems(final Set<MailItem.Type> types) {
+        Future<?> flush = INDEX_SCHEDULER.submit(mailbox.getId(), IndexScheduler.Priority.SEARCH, null,
+                new IndexTask(mailbox) {
+            @Override
+            protected void exec() throws Exception {
+                // don't wait if an indexing is in progress by other thread
+                indexDeferredItems(types, new BatchStatus(), false);
+            }
+        });
+        try {
+            flush.get(SEARCH_FLUSH_WAIT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            ZimbraLog.index.info("Searching without waiting any longer for deferred items to be indexed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ZimbraLog.index.error("Failed to index deferred items", e.getCause());
+        }
     }
 
     void setIndexingSuspended( boolean suspended) {
@@ -362,9 +406,12 @@ public final class MailboxIndex {
         if ((lastFailedTime >= 0 && System.currentTimeMillis() - lastFailedTime > FAILURE_DELAY) ||
                 getDeferredCount(EnumSet.noneOf(MailItem.Type.class)) >= getBatchThreshold()) {
             try {
-                INDEX_EXECUTOR.submit(new BatchIndexTask());
+                // keyed by this index: a batch still queued for this mailbox will pick up the new items too
+                INDEX_SCHEDULER.submit(mailbox.getId(), IndexScheduler.Priority.DELIVERY, this, new BatchIndexTask());
             } catch (RejectedExecutionException e) {
-                ZimbraLog.index.warn("Skipping batch index because all index threads are busy");
+                ZimbraPerf.COUNTER_IDX_QUEUE_REJECTED.increment();
+                lastFailedTime = System.currentTimeMillis(); // retry after the failure delay even below the threshold
+                ZimbraLog.index.warn("Deferring batch index because the index queue is full");
             }
         }
     }
@@ -404,8 +451,17 @@ public final class MailboxIndex {
         lastFailedTime = -1; // reset
         try {
             long start = System.currentTimeMillis();
+            long since = deferredSince;
+            if (since >= 0) {
+                ZimbraPerf.COUNTER_IDX_DEFERRED_AGE.increment(start - since);
+            }
             Collection<Integer> ids = getDeferredIds(types);
             indexItemList(ids, status);
+            if (getDeferredCount(EnumSet.noneOf(MailItem.Type.class)) == 0) {
+                deferredSince = -1;
+            } else if (since >= 0) {
+                deferredSince = Math.max(since, start); // the rest was deferred during this batch, or failed in it
+            }
 
             long elapsed = System.currentTimeMillis() - start;
             ZimbraLog.index.info("Batch complete processed=%d,failed=%d,elapsed=%d (%.2f items/sec)",
@@ -566,22 +622,7 @@ public final class MailboxIndex {
          */
         void reIndex() throws ServiceException {
             if (ids == null) { // full re-index
-                mailbox.lock.lock();
-                try {
-                    ZimbraLog.index.info("Resetting DB index data");
-                    mailbox.resetIndex();
-                    ZimbraLog.index.info("Deleting index store data");
-                    try {
-                        indexStore.deleteIndex();
-                    } catch (IOException e) {
-                        throw ServiceException.FAILURE("Failed to delete index before re-index", e);
-                    }
-                    clearDeferredIds();
-                } finally {
-                    mailbox.lock.release();
-                }
-                ZimbraLog.index.info("Re-indexing all items");
-                indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), status, true);
+                reIndexAll(status, REINDEX_PARTITIONS, REINDEX_PARTITION_MIN_ITEMS);
                 // skipping the optimize!!
                 // Note: Lucene 3.5.0 highly discourage optimizing the index as
                 // it is horribly inefficient and very rarely justified. Please check the API doc for more details.
@@ -726,6 +767,58 @@ public final class MailboxIndex {
         if (ids.isEmpty()) {
             return;
         }
+        if (status instanceof ReIndexStatus) {
+            indexItemListAtReIndexPriority(ids, (ReIndexStatus) status);
+        } else {
+            indexItems(ids, status);
+        }
+    }
+
+    /**
+     * Hands re-index work to the index threads one transaction's worth of items at a time, waiting for each, so that
+     * searches and new mail never wait behind more than one such slice.
+     */
+    private void indexItemListAtReIndexPriority(Collection<Integer> ids, final ReIndexStatus status)
+            throws ServiceException {
+        List<Integer> all = new ArrayList<Integer>(ids);
+        for (int from = 0; from < all.size(); from += MAX_TX_ITEMS) {
+            final List<Integer> slice = all.subList(from, Math.min(from + MAX_TX_ITEMS, all.size()));
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws ServiceException {
+                    ZimbraLog.addMboxToContext(mailbox.getId());
+                    try {
+                        indexItems(slice, status);
+                    } finally {
+                        ZimbraLog.clearContext();
+                    }
+                    return null;
+                }
+            });
+            try {
+                awaitReIndexSlice(INDEX_SCHEDULER.submit(
+                        mailbox.getId(), IndexScheduler.Priority.REINDEX, null, task));
+            } catch (RejectedExecutionException e) {
+                throw ServiceException.INTERRUPTED("re-index interrupted");
+            }
+        }
+    }
+
+    private void awaitReIndexSlice(Future<?> slice) throws ServiceException {
+        try {
+            slice.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.INTERRUPTED("re-index interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw ServiceException.FAILURE("Failed to re-index items", e.getCause());
+        }
+    }
+
+    private void indexItems(Collection<Integer> ids, BatchStatus status) throws ServiceException {
 
         // we re-index 'chunks' of items -- up to a certain size or count
         List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
@@ -738,34 +831,9 @@ public final class MailboxIndex {
             // Fetch the item and generate the list of Lucene documents to index. Do this without holding the Mailbox
             // lock. Once we've accumulated a "chunk" of items, do a mailbox transaction to actually add them to the
             // index.
-            ZimbraLog.index.debug("Tokenizing id=%d", id);
-            MailItem item = null;
-            try {
-                mailbox.beginReadTransaction("IndexItemList-Fetch", null);
-                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
-            } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
-                try {
-                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
-                } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
-                    ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
-                    removeDeferredId(id);
-                    continue;
-                }
-            } catch (MailServiceException e) {
-                // fetch without metadata because reindex will regenerate metadata
-                if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
-                    UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
-                    ud.metadata = null; // ignore corrupted metadata
-                    item = mailbox.getItem(ud);
-                } else {
-                    throw e;
-                }
-            } catch (Exception e) {
-                ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
-                status.addFailed(1);
+            MailItem item = fetchItem(id, status);
+            if (item == null) {
                 continue;
-            } finally {
-                mailbox.endTransaction(item != null);
             }
             try {
                 chunk.add(new Mailbox.IndexItemEntry(item, item.generateIndexData()));
@@ -809,6 +877,284 @@ public final class MailboxIndex {
         }
     }
 
+    /**
+     * Fetches a deferred item for indexing.
+     *
+     * @return the item, or null if it no longer exists or failed to load
+     */
+    private MailItem fetchItem(int id, BatchStatus status) throws ServiceException {
+        ZimbraLog.index.debug("Tokenizing id=%d", id);
+        MailItem item = null;
+        try {
+            mailbox.beginReadTransaction("IndexItemList-Fetch", null);
+            item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
+        } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
+            try {
+                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
+            } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
+                ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
+                removeDeferredId(id);
+                return null;
+            }
+        } catch (MailServiceException e) {
+            // fetch without metadata because reindex will regenerate metadata
+            if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
+                UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
+                ud.metadata = null; // ignore corrupted metadata
+                item = mailbox.getItem(ud);
+            } else {
+                throw e;
+            }
+        } catch (Exception e) {
+            ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
+            status.addFailed(1);
+            return null;
+        } finally {
+            mailbox.endTransaction(item != null);
+        }
+        return item;
+    }
+
+    /**
+     * Deletes the index and re-indexes all items, in up to {@code maxPartitions} partitions of at least
+     * {@code minItems} items each.
+     */
+    @VisibleForTesting
+    void reIndexAll(ReIndexStatus status, int maxPartitions, int minItems) throws ServiceException {
+        mailbox.lock.lock();
+        try {
+            ZimbraLog.index.info("Resetting DB index data");
+            mailbox.resetIndex();
+            ZimbraLog.index.info("Deleting index store data");
+            try {
+                indexStore.deleteIndex();
+            } catch (IOException e) {
+                throw ServiceException.FAILURE("Failed to delete index before re-index", e);
+            }
+            clearDeferredIds();
+        } finally {
+            mailbox.lock.release();
+        }
+        ZimbraLog.index.info("Re-indexing all items");
+        if (maxPartitions > 1) {
+            reIndexPartitioned(status, maxPartitions, minItems);
+        } else {
+            indexDeferredItems(EnumSet.noneOf(MailItem.Type.class), status, true);
+        }
+    }
+
+    /**
+     * Re-indexes all deferred items into partitions of the index, built in parallel from consecutive ranges of item
+     * IDs on the index threads, then adds the partitions to the index at once. Falls back to indexing items chunk by
+     * chunk if the index store has no partitions, or there are too few items to be worth splitting.
+     * <p>
+     * Items changed or deleted meanwhile are tracked so that their documents are dropped from the partitions at the
+     * end; changed items are left deferred and indexed again.
+     */
+    private void reIndexPartitioned(ReIndexStatus status, int maxPartitions, int minItems) throws ServiceException {
+        indexLock.acquireUninterruptibly();
+        List<Indexer> partitions = new ArrayList<Indexer>();
+        try {
+            List<Integer> ids = new ArrayList<Integer>(getDeferredIds(EnumSet.noneOf(MailItem.Type.class)));
+            int count = Math.min(maxPartitions, ids.size() / Math.max(minItems, 1));
+            try {
+                for (int i = 0; i < count; i++) {
+                    Indexer partition = indexStore.openPartition(i);
+                    if (partition == null) {
+                        break;
+                    }
+                    partitions.add(partition);
+                }
+            } catch (IOException e) {
+                throw ServiceException.FAILURE("Failed to open index partition", e);
+            }
+            if (count < 2 || partitions.size() < count) {
+                closePartitions(partitions);
+                indexItemList(ids, status);
+                return;
+            }
+
+            Collections.sort(ids);
+            List<List<Integer>> ranges = new ArrayList<List<Integer>>(count);
+            List<List<Integer>> indexed = new ArrayList<List<Integer>>(count);
+            for (int i = 0; i < count; i++) {
+                ranges.add(ids.subList(ids.size() * i / count, ids.size() * (i + 1) / count));
+                indexed.add(new ArrayList<Integer>());
+            }
+            trackChanges();
+            status.setTotal(ids.size());
+            status.setPartitions(count);
+            ZimbraLog.index.info("Re-indexing %d items in %d partitions", ids.size(), count);
+
+            // one slice per partition at a time, so that each partition is written by a single thread
+            for (int from = 0; ; from += MAX_TX_ITEMS) {
+                List<Future<?>> round = new ArrayList<Future<?>>(count);
+                for (int i = 0; i < count; i++) {
+                    List<Integer> range = ranges.get(i);
+                    if (from < range.size()) {
+                        List<Integer> slice = range.subList(from, Math.min(from + MAX_TX_ITEMS, range.size()));
+                        round.add(INDEX_SCHEDULER.submit(mailbox.getId(), IndexScheduler.Priority.REINDEX, null,
+                                new FutureTask<Void>(new PartitionSliceTask(
+                                        slice, partitions.get(i), indexed.get(i), status))));
+                    }
+                }
+                if (round.isEmpty()) {
+                    break;
+                }
+                for (Future<?> slice : round) {
+                    awaitReIndexSlice(slice);
+                }
+                if (status.isCancelled()) {
+                    throw ServiceException.INTERRUPTED("cancelled");
+                }
+            }
+
+            try {
+                indexStore.addPartitions(partitions);
+            } catch (IOException e) {
+                throw ServiceException.FAILURE("Failed to add index partitions", e);
+            }
+            commitPartitions(indexed);
+        } catch (RejectedExecutionException e) {
+            throw ServiceException.INTERRUPTED("re-index interrupted");
+        } finally {
+            synchronized (this) {
+                reIndexTouched = null;
+            }
+            closePartitions(partitions);
+            indexLock.release();
+        }
+    }
+
+    /**
+     * Starts tracking the items changed or deleted until the partitions are committed.
+     */
+    @VisibleForTesting
+    synchronized void trackChanges() {
+        reIndexTouched = new HashSet<Integer>();
+    }
+
+    /**
+     * Marks the items of the partitions indexed, then drops the documents of the items changed or deleted since
+     * {@link #trackChanges()}. Each transaction takes the mailbox lock on its own, so that the mailbox stays
+     * accessible; items are only changed under the mailbox lock, so none can change between the check and the
+     * commit. Changed items have been deferred again, and are indexed once the caller releases the index lock.
+     */
+    @VisibleForTesting
+    void commitPartitions(List<List<Integer>> indexed) throws ServiceException {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (List<Integer> partition : indexed) {
+            ids.addAll(partition);
+        }
+        for (int from = 0; from < ids.size(); from += MAX_TX_ITEMS) {
+            List<Integer> chunk = new ArrayList<Integer>(ids.subList(from, Math.min(from + MAX_TX_ITEMS, ids.size())));
+            mailbox.lock.lock();
+            try {
+                synchronized (this) {
+                    chunk.removeAll(reIndexTouched);
+                }
+                if (chunk.isEmpty()) {
+                    continue;
+                }
+                boolean success = false;
+                try {
+                    mailbox.beginTransaction("ReIndex-Partitions", null);
+                    DbMailItem.setIndexIds(mailbox.getOperationConnection(), mailbox, chunk);
+                    for (Integer id : chunk) {
+                        MailItem item = mailbox.getCachedItem(id);
+                        if (item != null) {
+                            item.mData.indexId = id;
+                        }
+                    }
+                    success = true;
+                } finally {
+                    mailbox.endTransaction(success);
+                }
+                removeDeferredId(chunk);
+            } finally {
+                mailbox.lock.release();
+            }
+        }
+
+        // from here on, deletes go straight to the index that now holds the partitions
+        Set<Integer> touched;
+        synchronized (this) {
+            touched = reIndexTouched;
+            reIndexTouched = null;
+        }
+        if (!touched.isEmpty()) {
+            ZimbraLog.index.info("Dropping %d items changed during re-index", touched.size());
+            try {
+                Indexer indexer = indexStore.openIndexer();
+                try {
+                    indexer.deleteDocument(new ArrayList<Integer>(touched));
+                } finally {
+                    indexer.close();
+                }
+            } catch (IOException e) {
+                throw ServiceException.FAILURE("Failed to delete index documents of changed items", e);
+            }
+        }
+    }
+
+    private void closePartitions(List<Indexer> partitions) {
+        for (Indexer partition : partitions) {
+            try {
+                partition.close();
+            } catch (IOException e) {
+                ZimbraLog.index.warn("Failed to close index partition", e);
+            }
+        }
+        partitions.clear();
+    }
+
+    /**
+     * Indexes a slice of a partition's items into the partition.
+     */
+    private final class PartitionSliceTask implements Callable<Void> {
+        private final List<Integer> ids;
+        private final Indexer partition;
+        private final List<Integer> indexed;
+        private final ReIndexStatus status;
+
+        PartitionSliceTask(List<Integer> ids, Indexer partition, List<Integer> indexed, ReIndexStatus status) {
+            this.ids = ids;
+            this.partition = partition;
+            this.indexed = indexed;
+            this.status = status;
+        }
+
+        @Override
+        public Void call() throws ServiceException {
+            ZimbraLog.addMboxToContext(mailbox.getId());
+            try {
+                for (int id : ids) {
+                    if (status.isCancelled()) {
+                        return null;
+                    }
+                    status.addProcessed(1);
+                    MailItem item = fetchItem(id, status);
+                    if (item == null) {
+                        continue;
+                    }
+                    try {
+                        partition.addDocument(item.getFolder(), item, item.generateIndexData());
+                        indexed.add(id);
+                    } catch (MailItem.TemporaryIndexingException e) {
+                        ZimbraLog.index.warn("Temporary index failure id=%d", id, e);
+                        status.addFailed(1);
+                    } catch (IOException e) {
+                        ZimbraLog.index.warn("Failed to index item id=%d", id, e);
+                        status.addFailed(1);
+                    }
+                }
+            } finally {
+                ZimbraLog.clearContext();
+            }
+            return null;
+        }
+    }
+
     /**
      * Mailbox version (1.0,1.1)->1.2 Re-Index all contacts.
      */
@@ -872,6 +1218,9 @@ public final class MailboxIndex {
         if (ids.isEmpty()) {
             return;
         }
+        if (reIndexTouched != null) {
+            reIndexTouched.addAll(ids);
+        }
 
         Indexer indexer;
         try {
@@ -998,11 +1347,17 @@ public final class MailboxIndex {
     public static final class IndexStats {
         private final int maxDocs;
         private final int numDeletedDocs;
+        private final long mergeBacklogBytes;
 
         public IndexStats(int maxDocs, int numDeletedDocs) {
+            this(maxDocs, numDeletedDocs, 0L);
+        }
+
+        public IndexStats(int maxDocs, int numDeletedDocs, long mergeBacklogBytes) {
             super();
             this.maxDocs = maxDocs;
             this.numDeletedDocs = numDeletedDocs;
+            this.mergeBacklogBytes = mergeBacklogBytes;
         }
 
         public int getMaxDocs() {
@@ -1012,6 +1367,13 @@ public final class MailboxIndex {
         public int getNumDeletedDocs() {
             return numDeletedDocs;
         }
+
+        /**
+         * Returns the estimated bytes of background merges still pending for the index.
+         */
+        public long getMergeBacklogBytes() {
+            return mergeBacklogBytes;
+        }
     }
 
     public IndexStats getIndexStats() throws ServiceException {
@@ -1029,7 +1391,7 @@ public final class MailboxIndex {
             throw ServiceException.FAILURE("Failed to open Indexer", e);
         }
 
-        return new IndexStats(maxDocs, numDeletedDocs);
+        return new IndexStats(maxDocs, numDeletedDocs, indexStore.getMergeBacklogBytes());
     }
 
     /**
@@ -1224,6 +1586,9 @@ public final class MailboxIndex {
             DbConnection conn = DbPool.getConnection(mailbox);
             try {
                 deferredIds = DbMailItem.getIndexDeferredIds(conn, mailbox);
+                if (!deferredIds.isEmpty() && deferredSince < 0) {
+                    deferredSince = System.currentTimeMillis(); // deferred before this server knew of them
+                }
             } finally {
                 conn.closeQuietly();
             }
@@ -1255,6 +1620,9 @@ public final class MailboxIndex {
      * @param item item to index
      */
     synchronized void add(MailItem item) {
+        if (reIndexTouched != null) {
+            reIndexTouched.add(item.getId());
+        }
         switch (item.getIndexStatus()) {
             case NO:
                 return;
@@ -1270,6 +1638,9 @@ public final class MailboxIndex {
         }
 
         deferredIds.put(item.getType(), item.getId());
+        if (deferredSince < 0) {
+            deferredSince = System.currentTimeMillis();
+        }
         ZimbraLog.index.debug("deferredIds=%s", deferredIds);
     }
 
@@ -1290,6 +1661,7 @@ public final class MailboxIndex {
 
     synchronized void clearDeferredIds() {
         deferredIds = null;
+        deferredSince = -1;
     }
 
     /**
@@ -1355,12 +1727,14 @@ public final class MailboxIndex {
      * Re-index progress information. The counters are thread safe.
      */
     public static final class ReIndexStatus extends BatchStatus {
+        private final long startTime = System.currentTimeMillis();
         private volatile int total = -1;
-        private volatile int processed = 0;
-        private volatile int failed = 0;
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile int partitions = 1;
         private volatile boolean cancel = false;
 
-        private ReIndexStatus() {
+        ReIndexStatus() {
         }
 
         @Override
@@ -1368,17 +1742,22 @@ public final class MailboxIndex {
             total = value;
         }
 
+        void setPartitions(int value) {
+            partitions = value;
+        }
+
         @Override
         void addProcessed(int delta) {
-            processed += delta;
-            if (processed % 2000 == 0) {
-                ZimbraLog.index.info("Re-index progress %d/%d", processed, total);
+            int value = processed.addAndGet(delta);
+            if (value % 2000 == 0) {
+                ZimbraLog.index.info("Re-index progress %d/%d (%.1f items/sec, eta %d sec)",
+                        value, total, getThroughput(), getEta() / 1000);
             }
         }
 
         @Override
         void addFailed(int delta) {
-            failed += delta;
+            failed.addAndGet(delta);
         }
 
         @Override
@@ -1388,12 +1767,51 @@ public final class MailboxIndex {
 
         @Override
         public int getProcessed() {
-            return processed;
+            return processed.get();
         }
 
         @Override
         public int getFailed() {
-            return failed;
+            return failed.get();
+        }
+
+        /**
+         * Returns the number of index partitions built in parallel, 1 if the items are indexed one chunk at a time.
+         */
+        public int getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * Returns the number of items processed per second since the re-index started.
+         */
+        public double getThroughput() {
+            long elapsed = Math.max(System.currentTimeMillis() - startTime, 1L);
+            return getProcessed() * 1000.0 / elapsed;
+        }
+
+        /**
+         * Returns the estimated time to completion in milliseconds, or -1 if it is not known yet.
+         */
+        public long getEta() {
+            int done = getProcessed();
+            double throughput = getThroughput();
+            if (total < 0 || done == 0 || throughput <= 0) {
+                return -1L;
+            }
+            return (long) (Math.max(total - done, 0) * 1000.0 / throughput);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                .add("total", getTotal())
+                .add("processed", getProcessed())
+                .add("failed", getFailed())
+                .add("partitions", getPartitions())
+                .add("throughput", String.format("%.1f", getThroughput()))
+                .add("eta", getEta())
+                .toString();
         }
 
         void cancel() {
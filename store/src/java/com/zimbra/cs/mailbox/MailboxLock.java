@@ -28,6 +28,8 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.lock.DebugZLock;
+import com.zimbra.cs.mailbox.lock.DistributedMailboxLock;
+import com.zimbra.cs.mailbox.lock.LockStats;
 import com.zimbra.cs.mailbox.lock.ZLock;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.zookeeper.CuratorManager;
@@ -44,13 +46,19 @@ import com.zimbra.cs.zookeeper.CuratorManager;
 public final class MailboxLock {
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
     private InterProcessSemaphoreMutex dLock = null;
+    private DistributedMailboxLock rwLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
+    private final LockStats stats = LockStats.getInstance();
     private Mailbox mbox;
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
             try {
-                dLock = CuratorManager.getInstance().createLock(id);
+                if (LC.zimbra_mailbox_distributed_lock_readwrite.booleanValue()) {
+                    rwLock = CuratorManager.getInstance().createReadWriteLock(id);
+                } else {
+                    dLock = CuratorManager.getInstance().createLock(id);
+                }
             } catch (ServiceException se) {
                 ZimbraLog.mailbox.error("could not initialize distributed lock", se);
             }
@@ -59,8 +67,17 @@ public final class MailboxLock {
     }
 
     private void acquireDistributedLock(boolean write) throws ServiceException {
-        //TODO: consider read/write distributed lock
-        if (dLock != null && getHoldCount() == 1) {
+        if (rwLock != null && getHoldCount() == 1) {
+            boolean acquired;
+            try {
+                acquired = rwLock.acquire(write, LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new LockFailedException("could not acquire distributed lock", e);
+            }
+            if (!acquired) {
+                throw new LockFailedException("timeout waiting for distributed lock");
+            }
+        } else if (dLock != null && getHoldCount() == 1) {
             try {
                 dLock.acquire(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
             } catch (Exception e) {
@@ -70,8 +87,9 @@ public final class MailboxLock {
     }
 
     private void releaseDistributedLock(boolean write) {
-        //TODO: consider read/write distributed lock
-        if (dLock != null && getHoldCount() == 1) {
+        if (rwLock != null && getHoldCount() == 1) {
+            rwLock.release();
+        } else if (dLock != null && getHoldCount() == 1) {
             try {
                 dLock.release();
             } catch (Exception e) {
@@ -157,10 +175,19 @@ public final class MailboxLock {
         return zLock.hasQueuedThreads();
     }
 
+    /**
+     * Names the operation the current thread holds the lock for, used to break down lock statistics.  Only the first
+     * name given during the outermost hold counts.
+     */
+    void setOperation(String op) {
+        stats.setOperation(mbox.getId(), op);
+    }
+
     public void lock(boolean write) {
         write = write || mbox.requiresWriteLock();
         ZimbraLog.mailbox.trace("LOCK %s", (write ? "WRITE" : "READ"));
         assert(neverReadBeforeWrite(write));
+        long requested = stats.isEnabled() && getHoldCount() == 0 ? System.nanoTime() : 0;
         try {
             if (tryLock(write)) {
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
@@ -172,11 +199,15 @@ public final class MailboxLock {
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
+                    stats.failed();
                     release();
                     LockFailedException lfe = new LockFailedException("lockdb");
                     lfe.logStackTrace();
                     throw lfe;
                 }
+                if (requested != 0) {
+                    stats.acquired(mbox.getId(), write, requested);
+                }
                 return;
             }
             int queueLength = zLock.getQueueLength();
@@ -184,6 +215,7 @@ public final class MailboxLock {
                 // Too many threads are already waiting for the lock, can't let you queued. We don't want to log stack trace
                 // here because once requests back up, each new incoming request falls into here, which creates too much
                 // noise in the logs. Unless debug switch is enabled
+                stats.failed();
                 LockFailedException e = new LockFailedException("too many waiters: " + queueLength);
                 if (DebugConfig.debugMailboxLock) {
                     e.logStackTrace();
@@ -201,13 +233,18 @@ public final class MailboxLock {
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
+                    stats.failed();
                     release();
                     LockFailedException lfe = new LockFailedException("lockdb");
                     lfe.logStackTrace();
                     throw lfe;
                 }
+                if (requested != 0) {
+                    stats.acquired(mbox.getId(), write, requested);
+                }
                 return;
             }
+            stats.failed();
             LockFailedException e = new LockFailedException("timeout");
             e.logStackTrace();
             throw e;
@@ -233,6 +270,9 @@ public final class MailboxLock {
         //keep release in order so caller doesn't have to manage write/read flag
         ZimbraLog.mailbox.trace("RELEASE %s", (write ? "WRITE" : "READ"));
 
+        if (getHoldCount() == 1) {
+            stats.released(mbox.getId());
+        }
         releaseDistributedLock(write);
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
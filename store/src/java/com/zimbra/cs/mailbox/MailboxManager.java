@@ -139,6 +139,9 @@ public class MailboxManager {
      */
     private MailboxMap cache;
 
+    /** Memory budget shared by the item caches of all loaded mailboxes. */
+    private static final ItemCacheBudget itemCacheBudget = new ItemCacheBudget();
+
     public MailboxManager() throws ServiceException {
         DbConnection conn = null;
         synchronized (this) {
@@ -187,6 +190,10 @@ public class MailboxManager {
         return sInstance;
     }
 
+    public static ItemCacheBudget getItemCacheBudget() {
+        return itemCacheBudget;
+    }
+
     @VisibleForTesting
     public static void setInstance(MailboxManager mmgr) {
         sInstance = mmgr;
@@ -200,6 +207,7 @@ public class MailboxManager {
 
     public void startup() {
         MailboxIndex.startup();
+        itemCacheBudget.startup();
     }
 
     public void shutdown() {}
@@ -660,6 +668,7 @@ public class MailboxManager {
 
                     if (removeFromCache) {
                         mbox.purge(MailItem.Type.UNKNOWN);
+                        mbox.releaseItemCache();
                         // We're going to let the Mailbox drop out of the cache and eventually get GC'd.
                         // Some immediate cleanup is necessary though.
                         IndexStore index = mbox.index.getIndexStore();
@@ -935,6 +944,7 @@ public class MailboxManager {
             mailboxIds.remove(accountId);
             cache.remove(mailbox.getId());
         }
+        mailbox.releaseItemCache();
         notifyMailboxDeleted(accountId);
     }
 
@@ -1015,8 +1025,11 @@ public class MailboxManager {
                         return false;
 
                     Object obj = eldest.getValue();
-                    if (obj instanceof Mailbox)
+                    if (obj instanceof Mailbox) {
+                        // the mailbox may linger behind a SoftReference, but it no longer gets a share of the item cache budget
+                        ((Mailbox) obj).releaseItemCache();
                         obj = new SoftReference<Mailbox>((Mailbox) obj);
+                    }
                     mSoftMap.put(eldest.getKey(), obj);
                     return true;
                 }
@@ -1030,6 +1043,10 @@ public class MailboxManager {
         }
 
         @Override public void clear() {
+            for (Object obj : mHardMap.values()) {
+                if (obj instanceof Mailbox)
+                    ((Mailbox) obj).releaseItemCache();
+            }
             mHardMap.clear();
             mSoftMap.clear();
         }
@@ -37,11 +37,13 @@ import com.zimbra.common.calendar.ZCalendar.ICalTok;
 import com.zimbra.common.calendar.ZCalendar.ZProperty;
 import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.Color;
 import com.zimbra.common.mime.InternetAddress;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.zmime.ZMimeMessage;
@@ -51,6 +53,7 @@ import com.zimbra.cs.account.CalendarResource;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata.CustomMetadataList;
@@ -212,6 +215,9 @@ public class Message extends MailItem {
     private DraftInfo draftInfo;
     private ArrayList<CalendarItemInfo> calendarItemInfos;
     private String calendarIntendedFor;
+    // IMAP BODYSTRUCTURE and ENVELOPE, serialized when the message is added so that FETCH needn't parse the blob
+    private String imapBodyStructure;
+    private String imapEnvelope;
 
     Message(Mailbox mbox, UnderlyingData ud) throws ServiceException {
         this(mbox, ud, false);
@@ -453,6 +459,46 @@ public class Message extends MailItem {
         return getMimeMessage(true);
     }
 
+    /** Returns the IMAP {@code BODYSTRUCTURE} of the message, or {@code null} if it wasn't precomputed. */
+    public String getImapBodyStructure() {
+        return imapBodyStructure;
+    }
+
+    /** Returns the IMAP {@code ENVELOPE} of the message, or {@code null} if it wasn't precomputed. */
+    public String getImapEnvelope() {
+        return imapEnvelope;
+    }
+
+    /**
+     * Stores a BODYSTRUCTURE and ENVELOPE computed for a message delivered before
+     * they were precomputed.  This is derived data, so neither the modification
+     * sequence nor the change date is bumped.
+     */
+    void setImapStructure(String bodystructure, String envelope) throws ServiceException {
+        imapBodyStructure = bodystructure;
+        imapEnvelope = envelope;
+        DbMailItem.persistCounts(this, encodeMetadata());
+    }
+
+    /**
+     * Serializes the IMAP BODYSTRUCTURE and ENVELOPE from the same {@link MimeMessage}
+     * that {@link #getMimeMessage(boolean)} would return for the stored blob.
+     */
+    private static Pair<String, String> precomputeImapStructure(ParsedMessage pm, Account acct) {
+        MimeMessage mm = pm.getOriginalMessage();
+        if (mm == null || LC.imap_precomputed_structure_max_size.intValue() <= 0) {
+            return null;
+        }
+        if (mm instanceof ZMimeMessage && ZMimeMessage.usingZimbraParser()) {
+            try {
+                mm = new Mime.FixedMimeMessage(mm, acct);
+            } catch (MessagingException e) {
+                return null;
+            }
+        }
+        return ImapMessage.precomputeStructure(mm);
+    }
+
     /** Returns a JavaMail {@link javax.mail.internet.MimeMessage}
      *  encapsulating the message content.  If <tt>runConverters</tt> is
      *  <tt>true</tt>, TNEF and uuencoded attachments are expanded and their
@@ -592,7 +638,8 @@ public class Message extends MailItem {
         data.setFlags(flags & (Flag.FLAGS_MESSAGE | Flag.FLAGS_GENERIC));
         data.setTags(ntags);
         data.setSubject(pm.getNormalizedSubject());
-        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null).toString();
+        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null,
+                precomputeImapStructure(pm, acct)).toString();
         data.unreadCount = unread ? 1 : 0;
         data.contentChanged(mbox);
 
@@ -1470,9 +1517,14 @@ public class Message extends MailItem {
             mData.size = newSize;
         }
 
+        // the MIME structure may have changed
+        Pair<String, String> imapStructure = precomputeImapStructure(pm, acct);
+        imapBodyStructure = imapStructure == null ? null : imapStructure.getFirst();
+        imapEnvelope = imapStructure == null ? null : imapStructure.getSecond();
+
         // rewrite the DB row to reflect our new view
         saveData(new DbMailItem(mMailbox), encodeMetadata(mRGBColor, mMetaVersion, mVersion, mExtendedData, pm, fragment,
-                draftInfo, calendarItemInfos, calendarIntendedFor));
+                draftInfo, calendarItemInfos, calendarIntendedFor, imapStructure));
 
         if (parent instanceof VirtualConversation) {
             ((VirtualConversation) parent).recalculateMetadata(Collections.singletonList(this));
@@ -1526,6 +1578,8 @@ public class Message extends MailItem {
             }
         }
         calendarIntendedFor = meta.get(Metadata.FN_CAL_INTENDED_FOR, null);
+        imapBodyStructure = meta.get(Metadata.FN_IMAP_BODYSTRUCTURE, null);
+        imapEnvelope = meta.get(Metadata.FN_IMAP_ENVELOPE, null);
 
         Metadata draftMeta = meta.getMap(Metadata.FN_DRAFT, true);
         if (draftMeta != null) {
@@ -1547,19 +1601,22 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor,
+                imapBodyStructure, imapEnvelope);
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
-            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor,
+            Pair<String, String> imapStructure) {
         return encodeMetadata(new Metadata(), color, metaVersion, version, extended, pm.getSender(), pm.getRecipients(),
                 fragment, pm.getNormalizedSubject(), pm.getSubject(), dinfo,
-                calItemInfos, calIntendedFor);
+                calItemInfos, calIntendedFor, imapStructure == null ? null : imapStructure.getFirst(),
+                imapStructure == null ? null : imapStructure.getSecond());
     }
 
     static Metadata encodeMetadata(Metadata meta, Color color, int metaVersion, int version, CustomMetadataList extended, String sender,
             String recipients, String fragment, String subject, String rawSubj, DraftInfo dinfo,
-            List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            List<CalendarItemInfo> calItemInfos, String calIntendedFor, String imapBodyStructure, String imapEnvelope) {
         // try to figure out a simple way to make the raw subject from the normalized one
         String prefix = null;
         if (rawSubj == null || rawSubj.equals(subject)) {
@@ -1583,6 +1640,8 @@ public class Message extends MailItem {
             meta.put(Metadata.FN_CALITEM_IDS, mdList);
         }
         meta.put(Metadata.FN_CAL_INTENDED_FOR, calIntendedFor);
+        meta.put(Metadata.FN_IMAP_BODYSTRUCTURE, imapBodyStructure);
+        meta.put(Metadata.FN_IMAP_ENVELOPE, imapEnvelope);
 
         if (dinfo != null) {
             Metadata dmeta = new Metadata();
@@ -18,17 +18,22 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FrequencySketch;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.ZimbraLog;
@@ -52,15 +57,66 @@ public class MessageCache {
         MimeMessage expanded;
         Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
         long size = 0;
+        /** {@code true} while this node is held by its segment.  Guarded by the segment lock. */
+        boolean resident = false;
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
+    /**
+     * One stripe of the cache.  Each segment is an access-ordered map guarded by
+     * its own monitor, so lookups for different digests rarely contend.  Entry
+     * count and data size are bounded per segment.
+     */
+    private static final class Segment {
+        final int index;
+        final LinkedHashMap<String, CacheNode> map = new LinkedHashMap<String, CacheNode>(16, 0.75f, true);
+        /** Bytes of message data held by this segment.  Guarded by the segment lock. */
+        long dataSize = 0;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        final AtomicLong rejections = new AtomicLong();
+
+        Segment(int index) {
+            this.index = index;
+        }
+    }
+
+    /** Per-segment statistics, as reported to {@link ZimbraPerf}. */
+    public static final class SegmentStats {
+        public final int segment;
+        public final int entries;
+        public final long dataSize;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long rejections;
+
+        SegmentStats(int segment, int entries, long dataSize, long hits, long misses, long evictions, long rejections) {
+            this.segment = segment;
+            this.entries = entries;
+            this.dataSize = dataSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+        }
+    }
+
+    /** Segments mapping message digest to the corresponding message structure. */
+    private static final Segment[] sSegments = newSegments(LC.zimbra_message_cache_segments.intValue());
+    /** Off-heap tier holding raw message content, or {@code null} if disabled. */
+    private static final OffHeapMessageCache sOffHeap = OffHeapMessageCache.create();
+    /** Maximum number of items in the cache. */
     private static int sMaxCacheSize;
+    /** Maximum number of items in each segment. */
+    private static volatile int sMaxSegmentSize;
+    /** Maximum number of bytes of message data in each segment. */
+    private static volatile long sMaxSegmentDataSize;
+    /** TinyLFU admission filter, or {@code null} if new entries are always admitted. */
+    private static volatile FrequencySketch sSketch;
     /** Number of bytes of message data stored in the cache.  This value includes only
      * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static final AtomicLong sDataSize = new AtomicLong();
 
     static {
         try {
@@ -70,26 +126,74 @@ public class MessageCache {
         }
     }
 
+    private static Segment[] newSegments(int count) {
+        int size = 1;
+        while (size < count && size < 256) {
+            size <<= 1;
+        }
+        Segment[] segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment(i);
+        }
+        return segments;
+    }
+
     public static void loadSettings() throws ServiceException {
         sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+        int segments = sSegments.length;
+        sMaxSegmentSize = (sMaxCacheSize + segments - 1) / segments;
+        sMaxSegmentDataSize = Math.max(LC.zimbra_message_cache_max_data_size_kb.longValue() * 1024 / segments, 1);
+        sSketch = LC.zimbra_message_cache_admission_filter.booleanValue() && sMaxCacheSize > 0 ?
+                new FrequencySketch(sMaxCacheSize) : null;
+        ZimbraLog.cache.info("setting message cache size to %d (%d segments, admission filter %s)",
+                sMaxCacheSize, segments, sSketch != null ? "enabled" : "disabled");
+    }
+
+    private static Segment segmentFor(String digest) {
+        int h = digest.hashCode();
+        h ^= (h >>> 16);
+        return sSegments[h & (sSegments.length - 1)];
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
+        int size = 0;
+        for (Segment segment : sSegments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
         }
+        return size;
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
+        Segment segment = segmentFor(digest);
+        synchronized (segment) {
+            return segment.map.containsKey(digest);
         }
     }
 
     public static long getDataSize() {
-        return sDataSize;
+        return sDataSize.get();
+    }
+
+    /**
+     * Returns the statistics of each segment and resets the hit, miss, eviction
+     * and rejection counters.
+     */
+    public static List<SegmentStats> getSegmentStats() {
+        List<SegmentStats> stats = new ArrayList<SegmentStats>(sSegments.length);
+        for (Segment segment : sSegments) {
+            int entries;
+            long dataSize;
+            synchronized (segment) {
+                entries = segment.map.size();
+                dataSize = segment.dataSize;
+            }
+            stats.add(new SegmentStats(segment.index, entries, dataSize, segment.hits.getAndSet(0),
+                    segment.misses.getAndSet(0), segment.evictions.getAndSet(0), segment.rejections.getAndSet(0)));
+        }
+        return stats;
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,13 +228,17 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
+            Segment segment = segmentFor(digest);
+            synchronized (segment) {
+                CacheNode node = segment.map.remove(digest);
                 if (node != null) {
                     sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
+                    release(segment, node);
                 }
             }
+            if (sOffHeap != null) {
+                sOffHeap.remove(digest);
+            }
         }
     }
 
@@ -157,27 +265,42 @@ public class MessageCache {
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
+        Segment segment = segmentFor(digest);
+        synchronized (segment) {
+            cnode = segment.map.get(digest);
             if (cnode == null) {
                 newNode = true;
                 cnode = new CacheNode();
             }
         }
+        FrequencySketch sketch = sSketch;
+        if (sketch != null) {
+            sketch.increment(digest);
+        }
 
         try {
             if (cnode.message == null) {
-                sLog.debug("Loading MimeMessage for item %d.", item.getId());
                 cacheHit = false;
+                if (sOffHeap != null && sOffHeap.accepts(item.getSize())) {
+                    in = openOffHeap(item, digest);
+                }
+                if (in == null) {
+                    sLog.debug("Loading MimeMessage for item %d.", item.getId());
+                } else {
+                    sLog.debug("Loading MimeMessage for item %d from the off-heap cache.", item.getId());
+                }
                 try {
-                    in = fetchFromStore(item);
+                    if (in == null) {
+                        in = fetchFromStore(item);
+                    }
+                    // Off-heap content is streamed like content on disk: only the
+                    // headers and structure of the message are read onto the heap.
                     cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
                     if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
+                        // The node may already be resident if we're loading the message
+                        // for an existing node, so account for the data size through the
+                        // segment.
+                        resize(segment, cnode, item.getSize());
                     }
                 } finally {
                     ByteUtil.closeStream(in);
@@ -209,7 +332,7 @@ public class MessageCache {
                     //expand if the message has not yet been expanded or if the message is decrypted successfully
                     if (cnode.expanded == null || (decryptedMimeMessage != null && cnode.expanded != decryptedMimeMessage)) {
                         cacheHit = false;
-                        expandMessage(item, cnode, decryptedMimeMessage);
+                        expandMessage(item, segment, cnode, decryptedMimeMessage);
                     }
                 } catch (Exception e) {
                     // if the conversion bombs for any reason, revert to the original
@@ -219,7 +342,7 @@ public class MessageCache {
             }
 
             if (newNode) {
-                cacheItem(digest, cnode);
+                cacheItem(digest, cnode, false);
             }
         } catch (IOException e) {
             throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
@@ -232,9 +355,11 @@ public class MessageCache {
         if (cacheHit) {
             sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
+            segment.hits.incrementAndGet();
         } else {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
+            segment.misses.incrementAndGet();
         }
 
         if (expand) {
@@ -266,7 +391,7 @@ public class MessageCache {
         return false;
     }
 
-    private static void expandMessage(MailItem item, CacheNode cnode, MimeMessage decryptedMimeMessage)
+    private static void expandMessage(MailItem item, Segment segment, CacheNode cnode, MimeMessage decryptedMimeMessage)
         throws MessagingException, ServiceException {
         MimeMessage mimeToExpand = cnode.message;
         if (decryptedMimeMessage != null) {
@@ -286,8 +411,7 @@ public class MessageCache {
         expander.expand();
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
-            cnode.size *= 2;
+            resize(segment, cnode, cnode.size * 2);
         }
     }
 
@@ -329,6 +453,41 @@ public class MessageCache {
         return decryptedMimeMessage;
     }
 
+    /**
+     * Returns a stream over the item's content from the off-heap tier, copying the
+     * content there first on a miss, or {@code null} if it can't be cached off-heap.
+     */
+    private static InputStream openOffHeap(MailItem item, String digest) throws ServiceException, IOException {
+        final MailboxBlob mblob = item.getBlob();
+        if (mblob == null) {
+            return null;
+        }
+        OffHeapMessageCache.ContentSource source = new OffHeapMessageCache.ContentSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return StoreManager.getInstance().getContent(mblob);
+            }
+        };
+        InputStream in = sOffHeap.open(digest, source);
+        if (in != null) {
+            ZimbraPerf.COUNTER_MBOX_MSG_CACHE_OFFHEAP.increment(100);
+            return in;
+        }
+        ZimbraPerf.COUNTER_MBOX_MSG_CACHE_OFFHEAP.increment(0);
+        InputStream stored = fetchFromStore(item);
+        try {
+            if (!sOffHeap.put(digest, stored, (int) item.getSize())) {
+                return null;
+            }
+        } catch (IOException e) {
+            sLog.warn("Unable to copy content of item %d to the off-heap cache.", item.getId(), e);
+            return null;
+        } finally {
+            ByteUtil.closeStream(stored);
+        }
+        return sOffHeap.open(digest, source);
+    }
+
     /** For remote stores, we allow JavaMail to stream message content to
      *  a memory buffer when the messages are sufficiently small.  (For
      *  local stores, all cached messages are backed by disk.) */
@@ -348,6 +507,8 @@ public class MessageCache {
 
     /**
      * Public API that adds an existing <tt>MimeMessage</tt> to the cache.
+     * Explicitly cached messages bypass the admission filter, since the caller
+     * expects them to be read shortly.
      * @param digest the message digest
      * @param original the original message
      * @param expanded the expanded message
@@ -357,43 +518,92 @@ public class MessageCache {
         CacheNode cnode = new CacheNode();
         cnode.message = original;
         cnode.expanded = expanded;
-        cacheItem(digest, cnode);
+        cacheItem(digest, cnode, true);
     }
 
-    private static void cacheItem(String digest, CacheNode cnode) {
-        sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
+    private static void cacheItem(String digest, CacheNode cnode, boolean force) {
+        Segment segment = segmentFor(digest);
+        int maxSize = sMaxSegmentSize;
+        long maxDataSize = sMaxSegmentDataSize;
+        if (maxSize <= 0) {
+            return;
+        }
+        synchronized (segment) {
+            FrequencySketch sketch = sSketch;
+            if (!force && sketch != null && !segment.map.isEmpty() &&
+                    (segment.map.size() >= maxSize || segment.dataSize + cnode.size > maxDataSize)) {
+                // The segment is full.  Only admit the new message if it has been
+                // requested more often than the entry it would displace.
+                Map.Entry<String, CacheNode> eldest = segment.map.entrySet().iterator().next();
+                if (sketch.frequency(digest) <= sketch.frequency(eldest.getKey())) {
+                    sLog.debug("Not caching MimeMessage for digest %s: rejected by admission filter.", digest);
+                    segment.rejections.incrementAndGet();
+                    return;
+                }
+            }
+
+            sLog.debug("Caching MimeMessage for digest %s.", digest);
+            CacheNode previous = segment.map.put(digest, cnode);
+            if (previous != null && previous != cnode) {
+                release(segment, previous);
+            }
+            if (!cnode.resident) {
+                cnode.resident = true;
+                segment.dataSize += cnode.size;
+                sDataSize.addAndGet(cnode.size);
+            }
+
+            // trim the segment if needed
+            Iterator<Map.Entry<String, CacheNode>> it = segment.map.entrySet().iterator();
+            while ((segment.map.size() > maxSize || segment.dataSize > maxDataSize) && it.hasNext()) {
+                Map.Entry<String, CacheNode> entry = it.next();
+                if (entry.getValue() == cnode) {
+                    break;
                 }
+                sLog.debug("Pruning digest %s from the cache.", entry.getKey());
+                it.remove();
+                release(segment, entry.getValue());
+                segment.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Updates the data size of a node, accounting for it if the node is in the cache. */
+    private static void resize(Segment segment, CacheNode cnode, long size) {
+        synchronized (segment) {
+            long delta = size - cnode.size;
+            cnode.size = size;
+            if (cnode.resident) {
+                segment.dataSize += delta;
+                sDataSize.addAndGet(delta);
             }
         }
     }
 
+    /** Must be called with the segment lock held, after the node was removed from the map. */
+    private static void release(Segment segment, CacheNode cnode) {
+        if (cnode.resident) {
+            cnode.resident = false;
+            segment.dataSize -= cnode.size;
+            sDataSize.addAndGet(-cnode.size);
+        }
+    }
+
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
+        for (Segment segment : sSegments) {
+            synchronized (segment) {
+                for (Map.Entry<String, CacheNode> entry : segment.map.entrySet()) {
+                    CacheNode cacheNode = entry.getValue();
+                    try {
+                        if (Mime.isEncrypted(cacheNode.message.getContentType())
+                            && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                            cacheNode.smimeAccessInfo.remove(mboxId);
+                        }
+                    } catch (MessagingException e) {
+                        sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                            entry.getKey(), e);
                     }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
                 }
             }
         }
@@ -402,8 +612,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
+            Segment segment = segmentFor(digest);
+            synchronized (segment) {
+                CacheNode node = segment.map.get(digest);
                 if (node != null) {
                     return node.smimeAccessInfo.get(id);
                 }
@@ -26,6 +26,7 @@ import java.util.TreeMap;
 import org.apache.commons.codec.Charsets;
 
 import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.util.BEncoding;
@@ -72,7 +73,9 @@ public final class Metadata {
     public static final String FN_FRAGMENT         = "f";
     public static final String FN_FIRST            = "f";
     public static final String FN_FIELDS           = "fld";
+    public static final String FN_IMAP_BODYSTRUCTURE = "i4bs";
     public static final String FN_DELETED          = "i4d";
+    public static final String FN_IMAP_ENVELOPE    = "i4env";
     public static final String FN_DELETED_UNREAD   = "i4du";
     public static final String FN_RECENT           = "i4l";
     public static final String FN_RECENT_CUTOFF    = "i4r";
@@ -125,7 +128,9 @@ public final class Metadata {
 
     private final Integer associatedItemId;
 
-    Map<Object, Object> map;
+    private Map<Object, Object> map;
+    /** the compact encoded form, until the map is needed; top-level values are looked up in it directly */
+    private MetadataCodec.Index compact;
 
     public Metadata() {
         associatedItemId = null;
@@ -147,6 +152,14 @@ public final class Metadata {
             map = new HashMap<Object, Object>();
             return;
         }
+        if (MetadataCodec.isEncoded(encoded)) {
+            try {
+                compact = MetadataCodec.index(encoded);
+                return;
+            } catch (MetadataCodec.MetadataCodecException e) {
+                throw MailServiceException.INVALID_METADATA(encoded, e);
+            }
+        }
         try {
             try {
                 map = (Map) BEncoding.decode(encoded);
@@ -183,28 +196,41 @@ public final class Metadata {
         }
     }
 
+    /** Returns the underlying map, decoding the compact form first if necessary. */
+    Map<Object, Object> map() {
+        if (compact != null) {
+            map = MetadataCodec.decode(compact.encoded);
+            compact = null;
+        }
+        return map;
+    }
+
+    private Object lookup(String key) {
+        return compact != null ? compact.get(key) : map.get(key);
+    }
+
     public boolean containsKey(String key) {
-        return map.containsKey(key);
+        return compact != null ? compact.containsKey(key) : map.containsKey(key);
     }
 
     public int size() {
-        return map.size();
+        return compact != null ? compact.size() : map.size();
     }
 
     public boolean isEmpty() {
-        return map.isEmpty();
+        return size() == 0;
     }
 
     public Metadata copy(Metadata source) {
         if (source != null) {
-            map.putAll(source.map);
+            map().putAll(source.map());
         }
         return this;
     }
 
     public Map<String, ?> asMap()  {
         Map<String, Object> result = new HashMap<String, Object>();
-        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : map().entrySet()) {
             Object key = entry.getKey();
             Object value = entry.getValue();
             if (key == null || value == null) {
@@ -221,48 +247,48 @@ public final class Metadata {
     }
 
     public Metadata remove(String key) {
-        map.remove(key);
+        map().remove(key);
         return this;
     }
 
     public Metadata put(String key, Object value) {
         if (key != null && value != null) {
-            map.put(key, value);
+            map().put(key, value);
         }
         return this;
     }
 
     public Metadata put(String key, long value) {
         if (key != null) {
-            map.put(key, Long.valueOf(value));
+            map().put(key, Long.valueOf(value));
         }
         return this;
     }
 
     public Metadata put(String key, double value) {
         if (key != null) {
-            map.put(key, new Double(value));
+            map().put(key, new Double(value));
         }
         return this;
     }
 
     public Metadata put(String key, boolean value) {
         if (key != null) {
-            map.put(key, new Boolean(value));
+            map().put(key, new Boolean(value));
         }
         return this;
     }
 
     public Metadata put(String key, Metadata value) {
         if (key != null && value != null) {
-            map.put(key, value.map);
+            map().put(key, value.map());
         }
         return this;
     }
 
     public Metadata put(String key, MetadataList value) {
         if (key != null && value != null) {
-            map.put(key, value.list);
+            map().put(key, value.list);
         }
         return this;
     }
@@ -284,7 +310,7 @@ public final class Metadata {
     }
 
     public String get(String key, String defaultValue) {
-        Object value = map.get(key);
+        Object value = lookup(key);
         return value == null ? defaultValue : value.toString();
     }
 
@@ -318,7 +344,7 @@ public final class Metadata {
     }
 
     public MetadataList getList(String key, boolean nullOK) throws ServiceException {
-        Object value = map.get(key);
+        Object value = lookup(key);
         if (nullOK && value == null) {
             return null;
         }
@@ -335,7 +361,7 @@ public final class Metadata {
     }
 
     public Metadata getMap(String key, boolean nullable) throws ServiceException {
-        Object value = map.get(key);
+        Object value = lookup(key);
         if (nullable && value == null) {
             return null;
         }
@@ -355,9 +381,23 @@ public final class Metadata {
         return result;
     }
 
+    /**
+     * Returns the form in which modified items store their metadata: the legacy encoding unless the compact one has
+     * been turned on in localconfig.  {@link #Metadata(String)} reads either.
+     */
+    public String toStorageString() {
+        if (!LC.zimbra_metadata_compact_encoding.booleanValue()) {
+            return toString();
+        } else if (compact != null) {
+            return compact.encoded;
+        } else {
+            return MetadataCodec.encode(map);
+        }
+    }
+
     public String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
-        prettyEncode(sb, map, 0);
+        prettyEncode(sb, map(), 0);
         sb.setLength(sb.length() - 1);  // Remove the last newline.
         return sb.toString();
     }
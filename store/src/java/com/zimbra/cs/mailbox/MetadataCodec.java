@@ -0,0 +1,331 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact encoding of {@link Metadata}, written instead of the legacy {@code BEncoding} when an item's metadata is
+ * saved. The encoded form is still a {@code String}, so it fits the {@code metadata} column and every code path that
+ * passes metadata around, but every token is a single char:
+ * <ul>
+ *  <li>a header of {@link #MAGIC} followed by the format {@link #VERSION}</li>
+ *  <li>integers as zigzag varints, seven bits per char</li>
+ *  <li>strings as their length followed by their chars</li>
+ *  <li>keys as an index into a fixed dictionary of well-known keys, or inline if they aren't in the dictionary</li>
+ *  <li>maps and lists prefixed by their length in chars, so a lookup skips them without decoding them</li>
+ * </ul>
+ * A top-level value can be looked up in the encoded form without materializing the rest of the map, through the
+ * {@link Index} built once per {@link Metadata}.
+ * <p>
+ * The encoding uses control characters and characters above 0x7F, and older releases can't read it, so it's only
+ * written when {@code zimbra_metadata_compact_encoding} is turned on.
+ *
+ * @see Metadata#toStorageString()
+ */
+final class MetadataCodec {
+
+    /** can never start a {@code BEncoding} or {@code BlobMetaData} string */
+    static final char MAGIC = '\u0001';
+    static final char VERSION = '\u0001';
+
+    private static final char MAP = 'd';
+    private static final char LIST = 'l';
+    private static final char LONG = 'i';
+    private static final char STRING = 's';
+
+    /** The index of a key is persisted, so only ever append to this list. */
+    private static final String[] DICTIONARY = {
+        "a", "acl", "aclm", "ad", "aid", "ais", "ape", "aps", "att", "c", "cif", "comp", "cr", "ct", "d", "das", "wosd",
+        "de", "dee", "do", "dt", "ast", "en", "f", "fld", "i4d", "i4du", "i4l", "i4r", "id", "idnt", "inv", "l", "ld",
+        "lo", "lst", "lt", "mseq", "nc", "no", "p", "prt", "q", "r", "rd", "rev", "rid", "rl", "rp", "rs", "rt", "ruuid",
+        "s", "sd", "sg", "rem", "sz", "t", "tzm", "u", "ua", "unxt", "url", "v", "mdver", "ver", "vt", "ww", "X", "xd",
+        "b", "e", "g", "h", "i", "j", "k", "m", "n", "o", "w", "x", "y", "z", "ie", "ge"
+    };
+
+    private static final Map<String, Integer> KEY_INDEX = new HashMap<String, Integer>(DICTIONARY.length * 2);
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            KEY_INDEX.put(DICTIONARY[i], i + 1); // 0 marks an inline key
+        }
+    }
+
+    private MetadataCodec() {
+    }
+
+    static boolean isEncoded(String encoded) {
+        return encoded != null && encoded.length() > 1 && encoded.charAt(0) == MAGIC;
+    }
+
+    static String encode(Map<?, ?> map) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(MAGIC).append(VERSION);
+        return encodeValue(sb, map).toString();
+    }
+
+    private static StringBuilder encodeValue(StringBuilder sb, Object value) {
+        if (value instanceof Map) {
+            StringBuilder body = new StringBuilder();
+            int count = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    encodeKey(body, entry.getKey().toString());
+                    encodeValue(body, entry.getValue());
+                    count++;
+                }
+            }
+            encodeContainer(sb, MAP, count, body);
+        } else if (value instanceof List) {
+            StringBuilder body = new StringBuilder();
+            int count = 0;
+            for (Object item : (List<?>) value) {
+                if (item != null) {
+                    encodeValue(body, item);
+                    count++;
+                }
+            }
+            encodeContainer(sb, LIST, count, body);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            writeVarint(sb.append(LONG), (l << 1) ^ (l >> 63));
+        } else {
+            // like BEncoding, everything else (doubles, booleans...) is stored and read back as a string
+            writeString(sb.append(STRING), value.toString());
+        }
+        return sb;
+    }
+
+    private static void encodeContainer(StringBuilder sb, char type, int count, StringBuilder body) {
+        StringBuilder header = new StringBuilder(4);
+        writeVarint(header, count);
+        sb.append(type);
+        writeVarint(sb, header.length() + body.length());
+        sb.append(header).append(body);
+    }
+
+    private static void encodeKey(StringBuilder sb, String key) {
+        Integer index = KEY_INDEX.get(key);
+        if (index != null) {
+            writeVarint(sb, index);
+        } else {
+            writeString(writeVarint(sb, 0), key);
+        }
+    }
+
+    private static StringBuilder writeString(StringBuilder sb, String value) {
+        return writeVarint(sb, value.length()).append(value);
+    }
+
+    private static StringBuilder writeVarint(StringBuilder sb, long value) {
+        while ((value & ~0x7FL) != 0) {
+            sb.append((char) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        return sb.append((char) value);
+    }
+
+    /**
+     * Builds the index of the top-level values of an encoded string.  This walks the top-level map once, checking its
+     * structure but skipping over the values themselves.
+     */
+    static Index index(String encoded) throws MetadataCodecException {
+        if (!isEncoded(encoded)) {
+            throw new MetadataCodecException("not compact metadata");
+        } else if (encoded.charAt(1) != VERSION) {
+            throw new MetadataCodecException("unsupported compact metadata version " + (int) encoded.charAt(1));
+        }
+        Reader reader = new Reader(encoded, 2);
+        try {
+            if (reader.data.charAt(reader.pos++) != MAP) {
+                throw new MetadataCodecException("compact metadata is not a map");
+            }
+            long span = reader.readVarint();
+            if (span != encoded.length() - reader.pos) {
+                throw new MetadataCodecException("invalid map length");
+            }
+            int count = (int) reader.readVarint();
+            if (count < 0 || count > encoded.length()) {
+                throw new MetadataCodecException("invalid map size " + count);
+            }
+            String[] keys = new String[count];
+            int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = reader.readKey();
+                offsets[i] = reader.pos;
+                reader.skipValue();
+                if (reader.pos > encoded.length()) {
+                    throw new MetadataCodecException("truncated compact metadata");
+                }
+            }
+            if (reader.pos != encoded.length()) {
+                throw new MetadataCodecException("extra characters at end of compact metadata");
+            }
+            return new Index(encoded, keys, offsets);
+        } catch (RuntimeException e) {
+            throw new MetadataCodecException("truncated or corrupt compact metadata");
+        }
+    }
+
+    /** Decodes an encoded string into maps, lists, {@code Long}s and {@code String}s, like {@code BEncoding}. */
+    @SuppressWarnings("unchecked")
+    static Map<Object, Object> decode(String encoded) {
+        return (Map<Object, Object>) new Reader(encoded, 2).readValue();
+    }
+
+    /**
+     * The offsets of the top-level values of an encoded string, so that a single value can be decoded, or a key
+     * checked for, without touching the others.
+     */
+    static final class Index {
+        final String encoded;
+        private final String[] keys;
+        private final int[] offsets;
+
+        private Index(String encoded, String[] keys, int[] offsets) {
+            this.encoded = encoded;
+            this.keys = keys;
+            this.offsets = offsets;
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        boolean containsKey(String key) {
+            return indexOf(key) >= 0;
+        }
+
+        /**
+         * Decodes the value of a top-level key.
+         *
+         * @return the value, or null if there is no such key
+         */
+        Object get(String key) {
+            int i = indexOf(key);
+            return i < 0 ? null : new Reader(encoded, offsets[i]).readValue();
+        }
+
+        private int indexOf(String key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class Reader {
+        private final String data;
+        private int pos;
+
+        Reader(String data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                char c = data.charAt(pos++);
+                value |= (long) (c & 0x7F) << shift;
+                if ((c & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        String readString() {
+            int length = (int) readVarint();
+            String value = data.substring(pos, pos + length);
+            pos += length;
+            return value;
+        }
+
+        String readKey() {
+            int index = (int) readVarint();
+            return index == 0 ? readString() : DICTIONARY[index - 1];
+        }
+
+        Object readValue() {
+            char type = data.charAt(pos++);
+            switch (type) {
+                case MAP: {
+                    readVarint();
+                    int count = (int) readVarint();
+                    Map<Object, Object> map = new HashMap<Object, Object>(count * 4 / 3 + 1);
+                    for (int i = 0; i < count; i++) {
+                        String key = readKey();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                case LIST: {
+                    readVarint();
+                    int count = (int) readVarint();
+                    List<Object> list = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case LONG: {
+                    long zigzag = readVarint();
+                    return Long.valueOf((zigzag >>> 1) ^ -(zigzag & 1));
+                }
+                case STRING:
+                    return readString();
+                default:
+                    throw new IllegalStateException("invalid compact metadata type " + (int) type + " at " + (pos - 1));
+            }
+        }
+
+        void skipValue() {
+            char type = data.charAt(pos++);
+            switch (type) {
+                case MAP:
+                case LIST: {
+                    int span = (int) readVarint();
+                    pos += span;
+                    break;
+                }
+                case LONG:
+                    readVarint();
+                    break;
+                case STRING: {
+                    int length = (int) readVarint();
+                    pos += length;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("invalid compact metadata type " + (int) type + " at " + (pos - 1));
+            }
+        }
+    }
+
+    static final class MetadataCodecException extends Exception {
+        private static final long serialVersionUID = -5377146440224829391L;
+
+        MetadataCodecException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.internet.SharedInputStream;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Second tier of the {@link MessageCache} that keeps raw message content outside
+ * the Java heap.  Content is appended to a ring of fixed-size slabs, allocated
+ * either as direct buffers or as memory-mapped regions of a scratch file.  When
+ * the ring wraps around, the oldest slab is recycled and every entry stored in it
+ * is dropped.
+ * <p>
+ * Readers stream straight from the slab through a {@link SharedInputStream}, so a
+ * <tt>MimeMessage</tt> parsed from it keeps its body off-heap.  Every read checks
+ * that the slab hasn't been recycled; a stream whose slab has been recycled while
+ * it was still in use switches over to the {@link ContentSource} it was opened
+ * with, so a recycled slab can never be observed through a live message.
+ */
+final class OffHeapMessageCache {
+
+    /** Reopens the original content of an entry once its slab has been recycled. */
+    interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+    private static final class Entry {
+        final int slab;
+        final long generation;
+        final int offset;
+        final int length;
+
+        Entry(int slab, long generation, int offset, int length) {
+            this.slab = slab;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ByteBuffer[] slabs;
+    /** Incremented every time a slab is recycled.  Guarded by the slab's lock. */
+    private final long[] generations;
+    private final ReentrantReadWriteLock[] slabLocks;
+    /** Digests stored in each slab, used to clean up the index on recycle.  Guarded by {@code this}. */
+    private final List<List<String>> slabKeys;
+    private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+    private final int slabSize;
+    private final int maxEntrySize;
+    /** Index of the slab being appended to.  Guarded by {@code this}. */
+    private int current = 0;
+    /** Append position within the current slab.  Guarded by {@code this}. */
+    private int position = 0;
+
+    private OffHeapMessageCache(ByteBuffer[] slabs, int slabSize, int maxEntrySize) {
+        this.slabs = slabs;
+        this.slabSize = slabSize;
+        this.maxEntrySize = Math.min(maxEntrySize, slabSize);
+        generations = new long[slabs.length];
+        slabLocks = new ReentrantReadWriteLock[slabs.length];
+        slabKeys = new ArrayList<List<String>>(slabs.length);
+        for (int i = 0; i < slabs.length; i++) {
+            slabLocks[i] = new ReentrantReadWriteLock();
+            slabKeys.add(new ArrayList<String>());
+        }
+    }
+
+    /**
+     * Creates the off-heap tier from localconfig, or returns {@code null} if it is
+     * disabled or cannot be allocated.
+     */
+    static OffHeapMessageCache create() {
+        long totalSize = LC.zimbra_message_cache_offheap_size_mb.longValue() * 1024 * 1024;
+        int slabSize = LC.zimbra_message_cache_offheap_slab_size_mb.intValue() * 1024 * 1024;
+        int maxEntrySize = LC.zimbra_message_cache_offheap_max_entry_size_kb.intValue() * 1024;
+        if (totalSize <= 0 || slabSize <= 0 || maxEntrySize <= 0) {
+            return null;
+        }
+        int count = (int) Math.max(totalSize / slabSize, 2);
+        String path = LC.zimbra_message_cache_offheap_file.value();
+        try {
+            ByteBuffer[] slabs = new ByteBuffer[count];
+            if (path == null || path.isEmpty()) {
+                for (int i = 0; i < count; i++) {
+                    slabs[i] = ByteBuffer.allocateDirect(slabSize);
+                }
+            } else {
+                File file = new File(path);
+                file.delete();
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    FileChannel channel = raf.getChannel();
+                    for (int i = 0; i < count; i++) {
+                        slabs[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * slabSize, slabSize);
+                    }
+                } finally {
+                    // the mappings stay valid after the channel is closed
+                    raf.close();
+                }
+                file.deleteOnExit();
+            }
+            ZimbraLog.cache.info("allocated %d off-heap message cache slabs of %d bytes%s", count, slabSize,
+                    path == null || path.isEmpty() ? "" : " mapped from " + path);
+            return new OffHeapMessageCache(slabs, slabSize, maxEntrySize);
+        } catch (IOException e) {
+            ZimbraLog.cache.warn("unable to map off-heap message cache file %s; off-heap tier disabled", path, e);
+        } catch (OutOfMemoryError e) {
+            ZimbraLog.cache.warn("unable to allocate %d bytes of direct memory; off-heap tier disabled", totalSize);
+        }
+        return null;
+    }
+
+    /** Returns {@code true} if content of the given size can be stored. */
+    boolean accepts(long size) {
+        return size > 0 && size <= maxEntrySize;
+    }
+
+    boolean contains(String digest) {
+        return index.containsKey(digest);
+    }
+
+    int getSize() {
+        return index.size();
+    }
+
+    /**
+     * Returns a stream over the content stored for the digest, or {@code null}.  The
+     * source is used if the content is recycled while the stream is still in use.
+     */
+    InputStream open(String digest, ContentSource source) {
+        Entry entry = index.get(digest);
+        if (entry == null) {
+            return null;
+        }
+        ReentrantReadWriteLock.ReadLock lock = slabLocks[entry.slab].readLock();
+        lock.lock();
+        try {
+            if (generations[entry.slab] != entry.generation) {
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new EntryInputStream(entry, source, 0, entry.length);
+    }
+
+    /**
+     * Copies {@code length} bytes of content from the stream into the cache.  Returns
+     * {@code false} if the content was not stored.
+     */
+    boolean put(String digest, InputStream in, int length) throws IOException {
+        if (!accepts(length) || index.containsKey(digest)) {
+            return false;
+        }
+        int slab;
+        int offset;
+        long generation;
+        synchronized (this) {
+            if (position + length > slabSize) {
+                current = (current + 1) % slabs.length;
+                position = 0;
+                recycle(current);
+            }
+            slab = current;
+            offset = position;
+            generation = generations[slab];
+            position += length;
+            slabKeys.get(slab).add(digest);
+        }
+        // The region is ours; the read lock only keeps the slab from being recycled
+        // while we fill it.  No reader can see the region until the entry is published.
+        ReentrantReadWriteLock.ReadLock lock = slabLocks[slab].readLock();
+        lock.lock();
+        try {
+            if (generations[slab] != generation) {
+                return false;
+            }
+            ByteBuffer buf = slabs[slab].duplicate();
+            buf.limit(offset + length);
+            buf.position(offset);
+            byte[] chunk = new byte[Math.min(length, 8192)];
+            while (buf.hasRemaining()) {
+                int n = in.read(chunk, 0, Math.min(chunk.length, buf.remaining()));
+                if (n < 0) {
+                    throw new EOFException("expected " + length + " bytes, got " + buf.position() + " for " + digest);
+                }
+                buf.put(chunk, 0, n);
+            }
+            if (in.read() >= 0) {
+                ZimbraLog.cache.warn("content of %s is longer than %d bytes; not cached off-heap", digest, length);
+                return false;
+            }
+            index.put(digest, new Entry(slab, generation, offset, length));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(String digest) {
+        // The bytes stay in the slab until it is recycled.
+        index.remove(digest);
+    }
+
+    /** Must be called while holding the monitor. */
+    private void recycle(int slab) {
+        ReentrantReadWriteLock.WriteLock lock = slabLocks[slab].writeLock();
+        lock.lock();
+        try {
+            generations[slab]++;
+        } finally {
+            lock.unlock();
+        }
+        List<String> keys = slabKeys.get(slab);
+        for (String digest : keys) {
+            Entry entry = index.get(digest);
+            if (entry != null && entry.slab == slab) {
+                index.remove(digest, entry);
+            }
+        }
+        keys.clear();
+    }
+
+    /**
+     * Stream over the range [start, end) of an entry.  Reads go to the slab until it
+     * is recycled, and to the entry's {@link ContentSource} from then on.
+     */
+    private final class EntryInputStream extends InputStream implements SharedInputStream {
+        private final Entry entry;
+        private final ContentSource source;
+        private final int start;
+        private final int end;
+        private int pos;
+        private int mark;
+        private InputStream fallback;
+
+        EntryInputStream(Entry entry, ContentSource source, int start, int end) {
+            this.entry = entry;
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.pos = start;
+            this.mark = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= end) {
+                return -1;
+            }
+            if (fallback == null) {
+                ReentrantReadWriteLock.ReadLock lock = slabLocks[entry.slab].readLock();
+                lock.lock();
+                try {
+                    if (generations[entry.slab] == entry.generation) {
+                        return slabs[entry.slab].get(entry.offset + pos++) & 0xFF;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                openFallback();
+            }
+            int c = fallback.read();
+            if (c >= 0) {
+                pos++;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = Math.min(len, end - pos);
+            if (n <= 0) {
+                return -1;
+            }
+            if (fallback == null) {
+                ReentrantReadWriteLock.ReadLock lock = slabLocks[entry.slab].readLock();
+                lock.lock();
+                try {
+                    if (generations[entry.slab] == entry.generation) {
+                        ByteBuffer buf = slabs[entry.slab].duplicate();
+                        buf.position(entry.offset + pos);
+                        buf.get(b, off, n);
+                        pos += n;
+                        return n;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                openFallback();
+            }
+            n = fallback.read(b, off, n);
+            if (n > 0) {
+                pos += n;
+            }
+            return n;
+        }
+
+        private void openFallback() throws IOException {
+            ZimbraLog.cache.debug("off-heap message content was recycled while in use; reopening from the store");
+            fallback = source.open();
+            if (ByteUtil.skip(fallback, pos) != pos) {
+                throw new EOFException("stored content is shorter than " + pos + " bytes");
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            int skipped = (int) Math.min(n, end - pos);
+            if (fallback != null) {
+                skipped = (int) ByteUtil.skip(fallback, skipped);
+            }
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+            mark = pos;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            if (fallback != null) {
+                ByteUtil.closeStream(fallback);
+                fallback = null;
+            }
+            pos = mark;
+        }
+
+        @Override
+        public void close() {
+            ByteUtil.closeStream(fallback);
+            fallback = null;
+        }
+
+        @Override
+        public long getPosition() {
+            return pos - start;
+        }
+
+        @Override
+        public InputStream newStream(long from, long to) {
+            int newEnd = to < 0 ? end : (int) Math.min(start + to, end);
+            return new EntryInputStream(entry, source, (int) Math.min(start + from, newEnd), newEnd);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Cluster-wide read/write lock for a mailbox, built on the standard ZooKeeper shared lock recipe: each holder creates
+ * an ephemeral sequential node under the lock path; a reader waits for every earlier writer node to go away, a writer
+ * waits for every earlier node.
+ * <p>
+ * The lock is held per server, not per thread.  All local threads reading the mailbox share one read node, and the
+ * local {@link ZLock} is relied upon to serialize local writers.  When the last local user releases the lock, the node
+ * is kept (if hold caching is enabled) so that the next operation on this server doesn't go back to ZooKeeper.  A
+ * watch on the lock path tells us when another server queues a conflicting node, at which point an idle hold is given
+ * up right away and a busy one as soon as its last local user releases it.  New local users of a contended hold wait
+ * for it to be given up and queue behind the other server, so a busy server can't keep the lock to itself.
+ */
+public final class DistributedMailboxLock {
+    private static final String READ = "read-";
+    private static final String WRITE = "write-";
+
+    private enum Mode { NONE, READ, WRITE }
+
+    private final CuratorFramework client;
+    private final String path;
+    private final boolean cacheHold;
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition idle = stateLock.newCondition();
+    private final Object signal = new Object();
+    private final Watcher signalWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    };
+    private final Watcher contentionWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            checkContention();
+        }
+    };
+
+    private volatile Mode mode = Mode.NONE;
+    private volatile String node;
+    private int users;
+    private volatile boolean contended;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public DistributedMailboxLock(CuratorFramework client, String path, boolean cacheHold) {
+        this.client = client;
+        this.path = path;
+        this.cacheHold = cacheHold;
+    }
+
+    /**
+     * Acquires the lock for this server in read or write mode.  The caller must hold the corresponding local
+     * {@link ZLock}, so a write acquisition never overlaps another local user.
+     *
+     * @return false if the lock could not be acquired before the timeout
+     */
+    public boolean acquire(boolean write, long timeout, TimeUnit unit) throws Exception {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!stateLock.tryLock(timeout, unit)) {
+            return false;
+        }
+        try {
+            if (contended && mode != Mode.NONE) {
+                // Another server is queued behind us.  Don't extend the hold; let the local users still in it finish,
+                // give it up and queue again.  They already have the lock and don't depend on us, so this can't
+                // deadlock.
+                while (users > 0) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                    idle.awaitNanos(wait);
+                }
+                if (mode != Mode.NONE) {
+                    releaseNode();
+                }
+            }
+            if (mode == Mode.WRITE || (mode == Mode.READ && !write)) {
+                if (users++ == 0) {
+                    reused.incrementAndGet();
+                }
+                return true;
+            }
+            if (mode == Mode.READ) {
+                // upgrade; the local write lock guarantees nobody here is still reading
+                assert (users == 0);
+                releaseNode();
+            }
+            String created = client.create().creatingParentsIfNeeded().withProtection()
+                    .withMode(CreateMode.EPHEMERAL_SEQUENTIAL).forPath(path + "/" + (write ? WRITE : READ));
+            boolean success = false;
+            try {
+                success = awaitTurn(created, write, deadline);
+            } finally {
+                if (!success) {
+                    delete(created);
+                }
+            }
+            if (!success) {
+                return false;
+            }
+            node = created;
+            mode = write ? Mode.WRITE : Mode.READ;
+            users = 1;
+            contended = false;
+            acquired.incrementAndGet();
+            checkContention();
+            return true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Releases one local use of the lock.  The node stays in ZooKeeper while hold caching is enabled and no other
+     * server is waiting for it.
+     */
+    public void release() {
+        stateLock.lock();
+        try {
+            if (users == 0) {
+                ZimbraLog.mailbox.warn("release of distributed lock %s that is not held", path);
+                return;
+            }
+            if (--users == 0) {
+                if (!cacheHold || contended) {
+                    releaseNode();
+                }
+                idle.signalAll();
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private boolean awaitTurn(String created, boolean write, long deadline) throws Exception {
+        String name = created.substring(created.lastIndexOf('/') + 1);
+        while (true) {
+            List<String> children = sortedChildren();
+            int index = children.indexOf(name);
+            if (index < 0) {
+                throw new IllegalStateException("lock node " + created + " disappeared");
+            }
+            String blocker = null;
+            for (int i = index - 1; i >= 0; i--) {
+                if (write || children.get(i).contains(WRITE)) {
+                    blocker = children.get(i);
+                    break;
+                }
+            }
+            if (blocker == null) {
+                return true;
+            }
+            synchronized (signal) {
+                if (client.checkExists().usingWatcher(signalWatcher).forPath(path + "/" + blocker) == null) {
+                    continue;
+                }
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) {
+                    return false;
+                }
+                signal.wait(wait);
+            }
+        }
+    }
+
+    /**
+     * Re-arms the watch on the lock path and notes whether another server has queued a node that conflicts with our
+     * hold.  An idle hold is given up right away; a busy one is left for {@link #release()}.
+     */
+    private void checkContention() {
+        String held = node;
+        if (held == null) {
+            return;
+        }
+        String name = held.substring(held.lastIndexOf('/') + 1);
+        boolean conflict = false;
+        boolean lost = false;
+        try {
+            List<String> children = sort(client.getChildren().usingWatcher(contentionWatcher).forPath(path));
+            int index = children.indexOf(name);
+            if (index < 0) {
+                lost = true;
+            } else {
+                for (int i = index + 1; i < children.size(); i++) {
+                    if (mode == Mode.WRITE || children.get(i).contains(WRITE)) {
+                        conflict = true;
+                        break;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // can't tell whether we still own the node; don't hang on to it any longer than we have to
+            ZimbraLog.mailbox.debug("unable to check distributed lock %s", path, e);
+            lost = true;
+        }
+        contended = conflict || lost;
+        if (contended && stateLock.tryLock()) {
+            try {
+                if (users == 0 && held.equals(node)) {
+                    releaseNode();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        }
+    }
+
+    private void releaseNode() {
+        String held = node;
+        node = null;
+        mode = Mode.NONE;
+        contended = false;
+        if (held != null) {
+            delete(held);
+        }
+    }
+
+    private void delete(String znode) {
+        try {
+            client.delete().guaranteed().forPath(znode);
+        } catch (KeeperException.NoNodeException e) {
+            // session expired or somebody cleaned up after us
+        } catch (IllegalStateException e) {
+            // client already closed; the ephemeral node goes away with the session
+            ZimbraLog.mailbox.debug("unable to release distributed lock %s", znode, e);
+        } catch (Exception e) {
+            ZimbraLog.mailbox.warn("error while releasing distributed lock %s", znode, e);
+        }
+    }
+
+    private List<String> sortedChildren() throws Exception {
+        return sort(client.getChildren().forPath(path));
+    }
+
+    private static List<String> sort(List<String> children) {
+        List<String> sorted = new ArrayList<String>(children);
+        Collections.sort(sorted, SEQUENCE_ORDER);
+        return sorted;
+    }
+
+    /** Orders lock nodes by the sequence number ZooKeeper appended, ignoring the protection prefix and mode. */
+    private static final Comparator<String> SEQUENCE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            return sequence(a).compareTo(sequence(b));
+        }
+
+        private String sequence(String name) {
+            int dash = name.lastIndexOf('-');
+            return dash < 0 ? name : name.substring(dash + 1);
+        }
+    };
+
+    @VisibleForTesting
+    boolean isHeld() {
+        return node != null;
+    }
+
+    /** Returns the number of times the lock was acquired from ZooKeeper. */
+    public long getAcquireCount() {
+        return acquired.get();
+    }
+
+    /** Returns the number of times a cached hold was reused without going to ZooKeeper. */
+    public long getReuseCount() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox.lock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Low-overhead wait and hold time statistics for mailbox locks.
+ * <p>
+ * Only the outermost hold of a thread is timed.  Each hold costs two {@link System#nanoTime()} calls, a thread-local
+ * lookup and a handful of atomic increments on log2-bucketed histograms, one set per operation and one per mailbox.
+ * The slowest completed holds are kept in a small top-N list, and holds that are still in progress can be listed as
+ * well, which is what is needed to find the caller behind a {@code LockFailedException}.
+ * <p>
+ * Statistics cover the interval since the last call to {@link #drain()} (or {@link #drainSlowestHolders()} for the
+ * top-N list), which the stats dumper does once per CSV period.  The JMX view reads the current interval without
+ * resetting it.  At most {@code zimbra_mailbox_lock_stats_max_mailboxes} mailboxes are tracked per interval; when
+ * that many are present, the half with the least total hold time is dropped to make room.
+ */
+public final class LockStats implements LockStatsMBean {
+
+    /** Label used for holds whose caller never named an operation. */
+    public static final String UNKNOWN = "unknown";
+
+    private static final LockStats INSTANCE = new LockStats(LC.zimbra_mailbox_lock_stats_enabled.booleanValue(),
+            LC.zimbra_mailbox_lock_stats_top_holders.intValue(), LC.zimbra_mailbox_lock_stats_max_mailboxes.intValue());
+
+    private final boolean enabled;
+    private final int topN;
+    private final int maxMailboxes;
+    private volatile Interval interval;
+    private volatile TopHolders slowest = new TopHolders();
+    private final Set<Hold> active = Collections.newSetFromMap(new ConcurrentHashMap<Hold, Boolean>());
+    private final ThreadLocal<Deque<Hold>> holds = new ThreadLocal<Deque<Hold>>() {
+        @Override
+        protected Deque<Hold> initialValue() {
+            return new ArrayDeque<Hold>(2);
+        }
+    };
+    private final AtomicLong failures = new AtomicLong();
+
+    @VisibleForTesting
+    LockStats(boolean enabled, int topN, int maxMailboxes) {
+        this.enabled = enabled;
+        this.topN = Math.max(topN, 1);
+        this.maxMailboxes = Math.max(maxMailboxes, this.topN);
+        this.interval = new Interval(this.maxMailboxes);
+    }
+
+    public static LockStats getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Called when the current thread obtains its outermost hold on a mailbox lock, including the distributed lock if
+     * there is one.
+     *
+     * @param requested {@link System#nanoTime()} when the thread started waiting
+     */
+    public void acquired(int mailboxId, boolean write, long requested) {
+        acquired(mailboxId, write, requested, System.nanoTime());
+    }
+
+    @VisibleForTesting
+    void acquired(int mailboxId, boolean write, long requested, long now) {
+        if (!enabled) {
+            return;
+        }
+        Hold hold = new Hold(mailboxId, write, requested, now);
+        holds.get().push(hold);
+        active.add(hold);
+    }
+
+    /** Names the operation of the current thread's outermost hold on the mailbox, unless it already has a name. */
+    public void setOperation(int mailboxId, String op) {
+        if (!enabled || op == null) {
+            return;
+        }
+        Hold hold = find(mailboxId, false);
+        if (hold != null && hold.op == null) {
+            hold.op = op;
+        }
+    }
+
+    /** Called just before the current thread gives up its outermost hold on a mailbox lock. */
+    public void released(int mailboxId) {
+        released(mailboxId, System.nanoTime());
+    }
+
+    @VisibleForTesting
+    void released(int mailboxId, long now) {
+        if (!enabled) {
+            return;
+        }
+        Hold hold = find(mailboxId, true);
+        if (hold == null) {
+            return;
+        }
+        active.remove(hold);
+        long wait = hold.acquired - hold.requested;
+        long held = now - hold.acquired;
+        String op = hold.op == null ? UNKNOWN : hold.op;
+
+        Interval current = interval;
+        current.operation(op).record(wait, held);
+        current.mailbox(mailboxId).record(wait, held);
+        slowest.offer(new Holder(hold, op, wait, held), topN);
+    }
+
+    /** Records a lock attempt that failed with a timeout or because too many threads were waiting. */
+    public void failed() {
+        failures.incrementAndGet();
+    }
+
+    private Hold find(int mailboxId, boolean remove) {
+        Deque<Hold> stack = holds.get();
+        for (Iterator<Hold> i = stack.iterator(); i.hasNext(); ) {
+            Hold hold = i.next();
+            if (hold.mailboxId == mailboxId) {
+                if (remove) {
+                    i.remove();
+                }
+                return hold;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the per-operation and per-mailbox statistics for the current interval and starts a new one. */
+    public Snapshot drain() {
+        Interval previous = interval;
+        interval = new Interval(maxMailboxes);
+        return new Snapshot(previous, topN);
+    }
+
+    /** Returns the slowest holds completed in the current interval, longest first, and starts a new list. */
+    public List<Holder> drainSlowestHolders() {
+        TopHolders previous = slowest;
+        slowest = new TopHolders();
+        return previous.get();
+    }
+
+    /** Returns the statistics for the current interval without resetting them. */
+    public Snapshot peek() {
+        return new Snapshot(interval, topN);
+    }
+
+    /** Returns the holds that are still in progress, longest first. */
+    public List<Holder> getActiveHolders() {
+        long now = System.nanoTime();
+        List<Holder> result = new ArrayList<Holder>(active.size());
+        for (Hold hold : active) {
+            result.add(new Holder(hold, hold.op == null ? UNKNOWN : hold.op, hold.acquired - hold.requested,
+                    now - hold.acquired));
+        }
+        Collections.sort(result, Holder.SLOWEST_FIRST);
+        return result;
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public String[] getSlowestHolders() {
+        return toStrings(slowest.get());
+    }
+
+    @Override
+    public String[] getActiveHolderList() {
+        return toStrings(getActiveHolders());
+    }
+
+    @Override
+    public String[] getOperationStats() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Timings> entry : peek().operations.entrySet()) {
+            result.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String[] getBusiestMailboxes() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<Integer, Timings> entry : peek().busiestMailboxes()) {
+            result.add("mailbox " + entry.getKey() + ": " + entry.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public long getLockFailures() {
+        return getFailureCount();
+    }
+
+    private static String[] toStrings(List<Holder> holders) {
+        String[] result = new String[holders.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = holders.get(i).toString();
+        }
+        return result;
+    }
+
+    /** One outermost hold by one thread. */
+    private static final class Hold {
+        final int mailboxId;
+        final boolean write;
+        final long requested;
+        final long acquired;
+        final String thread = Thread.currentThread().getName();
+        final long startTime = System.currentTimeMillis();
+        volatile String op;
+
+        Hold(int mailboxId, boolean write, long requested, long acquired) {
+            this.mailboxId = mailboxId;
+            this.write = write;
+            this.requested = requested;
+            this.acquired = acquired;
+        }
+    }
+
+    /** Immutable description of a hold, for reporting. */
+    public static final class Holder {
+        public final int mailboxId;
+        public final String op;
+        public final boolean write;
+        public final String thread;
+        public final long startTime;
+        public final long waitMillis;
+        public final long holdMillis;
+
+        Holder(Hold hold, String op, long waitNanos, long holdNanos) {
+            this.mailboxId = hold.mailboxId;
+            this.op = op;
+            this.write = hold.write;
+            this.thread = hold.thread;
+            this.startTime = hold.startTime;
+            this.waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+            this.holdMillis = TimeUnit.NANOSECONDS.toMillis(holdNanos);
+        }
+
+        static final Comparator<Holder> SLOWEST_FIRST = new Comparator<Holder>() {
+            @Override
+            public int compare(Holder a, Holder b) {
+                return a.holdMillis < b.holdMillis ? 1 : a.holdMillis > b.holdMillis ? -1 : 0;
+            }
+        };
+
+        @Override
+        public String toString() {
+            return String.format("mailbox=%d op=%s mode=%s thread=%s wait=%dms hold=%dms", mailboxId, op,
+                    write ? "write" : "read", thread, waitMillis, holdMillis);
+        }
+    }
+
+    /**
+     * Histogram with power-of-two millisecond buckets: bucket 0 counts samples under 1ms, bucket {@code i} samples
+     * in {@code [2^(i-1), 2^i)} ms, and the last bucket everything longer.
+     */
+    public static final class Histogram {
+        static final int BUCKETS = 20;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+            long millis = micros / 1000;
+            int bucket = millis == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getAverageMillis() {
+            long n = count.get();
+            return n == 0 ? 0.0 : totalMicros.get() / 1000.0 / n;
+        }
+
+        public long getTotalMillis() {
+            return totalMicros.get() / 1000;
+        }
+
+        public double getMaxMillis() {
+            return maxMicros.get() / 1000.0;
+        }
+
+        /** Returns the upper bound, in ms, of the bucket that holds the given percentile. */
+        public long getPercentileMillis(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+    }
+
+    /** Wait and hold histograms for one operation or one mailbox. */
+    public static final class Timings {
+        public final Histogram wait = new Histogram();
+        public final Histogram hold = new Histogram();
+
+        void record(long waitNanos, long holdNanos) {
+            wait.record(waitNanos);
+            hold.record(holdNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d wait avg=%.2fms p99=%dms max=%.2fms hold avg=%.2fms p99=%dms max=%.2fms",
+                    hold.getCount(), wait.getAverageMillis(), wait.getPercentileMillis(99), wait.getMaxMillis(),
+                    hold.getAverageMillis(), hold.getPercentileMillis(99), hold.getMaxMillis());
+        }
+    }
+
+    /** Keeps the N slowest holds seen so far. */
+    private static final class TopHolders {
+        private final List<Holder> holders = new ArrayList<Holder>();
+        private volatile long threshold = -1;
+
+        void offer(Holder holder, int limit) {
+            if (holder.holdMillis <= threshold) {
+                return;
+            }
+            synchronized (this) {
+                holders.add(holder);
+                Collections.sort(holders, Holder.SLOWEST_FIRST);
+                if (holders.size() > limit) {
+                    holders.remove(holders.size() - 1);
+                }
+                if (holders.size() >= limit) {
+                    threshold = holders.get(holders.size() - 1).holdMillis;
+                }
+            }
+        }
+
+        synchronized List<Holder> get() {
+            return new ArrayList<Holder>(holders);
+        }
+    }
+
+    private static final class Interval {
+        final ConcurrentMap<String, Timings> operations = new ConcurrentHashMap<String, Timings>();
+        final ConcurrentMap<Integer, Timings> mailboxes = new ConcurrentHashMap<Integer, Timings>();
+        private final int maxMailboxes;
+
+        Interval(int maxMailboxes) {
+            this.maxMailboxes = maxMailboxes;
+        }
+
+        Timings operation(String op) {
+            Timings timings = operations.get(op);
+            if (timings == null) {
+                Timings created = new Timings();
+                timings = operations.putIfAbsent(op, created);
+                if (timings == null) {
+                    timings = created;
+                }
+            }
+            return timings;
+        }
+
+        Timings mailbox(int id) {
+            Timings timings = mailboxes.get(id);
+            if (timings == null) {
+                if (mailboxes.size() >= maxMailboxes) {
+                    trim();
+                }
+                Timings created = new Timings();
+                timings = mailboxes.putIfAbsent(id, created);
+                if (timings == null) {
+                    timings = created;
+                }
+            }
+            return timings;
+        }
+
+        /** Drops the half of the mailboxes with the least total hold time. */
+        private synchronized void trim() {
+            if (mailboxes.size() < maxMailboxes) {
+                return;
+            }
+            List<Map.Entry<Integer, Timings>> entries = new ArrayList<Map.Entry<Integer, Timings>>(mailboxes.entrySet());
+            Collections.sort(entries, BUSIEST_FIRST);
+            for (Map.Entry<Integer, Timings> entry : entries.subList(maxMailboxes / 2, entries.size())) {
+                mailboxes.remove(entry.getKey());
+            }
+        }
+    }
+
+    private static final Comparator<Map.Entry<Integer, Timings>> BUSIEST_FIRST =
+            new Comparator<Map.Entry<Integer, Timings>>() {
+        @Override
+        public int compare(Map.Entry<Integer, Timings> a, Map.Entry<Integer, Timings> b) {
+            long ta = a.getValue().hold.getTotalMillis();
+            long tb = b.getValue().hold.getTotalMillis();
+            return ta < tb ? 1 : ta > tb ? -1 : 0;
+        }
+    };
+
+    /** Statistics for one interval. */
+    public static final class Snapshot {
+        public final Map<String, Timings> operations;
+        public final Map<Integer, Timings> mailboxes;
+        private final int topN;
+
+        Snapshot(Interval interval, int topN) {
+            this.operations = interval.operations;
+            this.mailboxes = interval.mailboxes;
+            this.topN = topN;
+        }
+
+        /** Returns the N mailboxes whose lock was held the longest in total. */
+        public List<Map.Entry<Integer, Timings>> busiestMailboxes() {
+            List<Map.Entry<Integer, Timings>> entries = new ArrayList<Map.Entry<Integer, Timings>>(mailboxes.entrySet());
+            Collections.sort(entries, BUSIEST_FIRST);
+            return entries.size() > topN ? entries.subList(0, topN) : entries;
+        }
+    }
+}
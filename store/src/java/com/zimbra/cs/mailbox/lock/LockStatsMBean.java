@@ -0,0 +1,39 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox.lock;
+
+/**
+ * JMX view of {@link LockStats}.  Everything covers the current stats interval.
+ */
+public interface LockStatsMBean {
+
+    /** The slowest completed mailbox lock holds, longest first. */
+    String[] getSlowestHolders();
+
+    /** Mailbox lock holds that are still in progress, longest first. */
+    String[] getActiveHolderList();
+
+    /** Wait and hold times per operation. */
+    String[] getOperationStats();
+
+    /** Wait and hold times of the mailboxes whose lock was held the longest. */
+    String[] getBusiestMailboxes();
+
+    /** Number of lock attempts that failed since startup. */
+    long getLockFailures();
+}
@@ -0,0 +1,148 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.pop3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.server.TransferBufferPool;
+
+/**
+ * The places where a message sent for RETR differs from its raw bytes: lines that
+ * start with a '.' get another one, bare CRs and LFs become CRLF and the last line
+ * is terminated.  This is the encoding {@link Pop3Handler} applies byte by byte;
+ * knowing the edits up front lets a message that needs few of them be sent mostly
+ * straight from its blob file.
+ */
+final class DotStuffing {
+    private static final long DOT = 0, NEWLINE = 1;
+
+    // (position << 1) | kind, in file order
+    private final long[] edits;
+    private int count = 0;
+    private boolean terminateLastLine = false;
+
+    private DotStuffing(int maxEdits) {
+        edits = new long[maxEdits];
+    }
+
+    /**
+     * Scans the first {@code size} bytes of the channel.  Returns {@code null} if the
+     * message needs more than {@code maxEdits} edits.
+     */
+    static DotStuffing scan(FileChannel channel, long size, int maxEdits) throws IOException {
+        DotStuffing result = new DotStuffing(maxEdits);
+        TransferBufferPool pool = TransferBufferPool.getInstance();
+        ByteBuffer bb = pool.acquire();
+        try {
+            boolean startOfLine = true, pendingCR = false;
+            long pos = 0;
+            while (pos < size) {
+                bb.clear();
+                if (bb.remaining() > size - pos) {
+                    bb.limit((int) (size - pos));
+                }
+                if (channel.read(bb, pos) < 0) {
+                    throw new EOFException("unexpected end of file at offset " + pos);
+                }
+                bb.flip();
+                for (; bb.hasRemaining(); pos++) {
+                    byte c = bb.get();
+                    if (pendingCR) {
+                        pendingCR = false;
+                        if (c == '\n') {
+                            continue;
+                        } else if (!result.add(pos - 1, NEWLINE)) {
+                            return null;
+                        }
+                    }
+                    if (c == '\r') {
+                        pendingCR = true;
+                        startOfLine = true;
+                    } else if (c == '\n') {
+                        if (!result.add(pos, NEWLINE)) {
+                            return null;
+                        }
+                        startOfLine = true;
+                    } else {
+                        if (c == '.' && startOfLine && !result.add(pos, DOT)) {
+                            return null;
+                        }
+                        startOfLine = false;
+                    }
+                }
+            }
+            if (pendingCR) {
+                if (!result.add(size - 1, NEWLINE)) {
+                    return null;
+                }
+            } else if (!startOfLine) {
+                result.terminateLastLine = true;
+            }
+            return result;
+        } finally {
+            pool.release(bb);
+        }
+    }
+
+    private boolean add(long pos, long kind) {
+        if (count == edits.length) {
+            return false;
+        }
+        edits[count++] = (pos << 1) | kind;
+        return true;
+    }
+
+    /**
+     * Writes the first {@code size} bytes of the channel with the edits applied.  The
+     * caller writes the terminating "." line.
+     */
+    void writeTo(FileChannel channel, long size, NioOutputStream out) throws IOException {
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            long pos = edits[i] >>> 1;
+            out.transferFrom(channel, start, pos - start);
+            if ((edits[i] & 1) == DOT) {
+                out.write('.');
+                start = pos;
+            } else {
+                out.write(Pop3Handler.LINE_SEPARATOR);
+                start = pos + 1;
+            }
+        }
+        out.transferFrom(channel, start, size - start);
+        if (terminateLastLine) {
+            out.write(Pop3Handler.LINE_SEPARATOR);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(sb.length() == 0 ? "" : " ").append((edits[i] & 1) == DOT ? "DOT@" : "CRLF@").append(edits[i] >>> 1);
+        }
+        if (terminateLastLine) {
+            sb.append(sb.length() == 0 ? "" : " ").append("CRLF@END");
+        }
+        return sb.toString();
+    }
+}
@@ -17,17 +17,25 @@
 
 package com.zimbra.cs.pop3;
 
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.server.NioHandler;
 import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioOutputStream;
+import com.zimbra.cs.store.file.FileBlobStore;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.filter.codec.RecoverableProtocolDecoderException;
 
 final class NioPop3Handler extends Pop3Handler implements NioHandler {
+    // messages that need more edits than this for dot-stuffing and line endings
+    // are streamed rather than sent from their blob file
+    private static final int MAX_TRANSFER_EDITS = 64;
+
     private final NioConnection connection;
 
     NioPop3Handler(NioPop3Server server, NioConnection conn) {
@@ -108,6 +116,30 @@ final class NioPop3Handler extends Pop3Handler implements NioHandler {
         return connection.getLocalAddress();
     }
 
+    @Override
+    boolean transferMessage(Message msg) throws IOException, ServiceException {
+        long size = msg.getSize();
+        FileChannel channel = FileBlobStore.openUncompressed(msg.getBlob(), size);
+        if (channel == null) {
+            return false;
+        }
+        NioOutputStream nioutput = (NioOutputStream) output;
+        try {
+            DotStuffing stuffing = DotStuffing.scan(channel, size, MAX_TRANSFER_EDITS);
+            if (stuffing == null) {
+                return false;
+            }
+            sendOK("message follows", false);
+            stuffing.writeTo(channel, size, nioutput);
+            nioutput.write(TERMINATOR_BYTE);
+            nioutput.write(LINE_SEPARATOR);
+            nioutput.flush();
+        } finally {
+            nioutput.closeWhenWritten(channel);
+        }
+        return true;
+    }
+
     @Override
     void sendLine(String line, boolean flush) throws IOException {
         NioOutputStream nioutput = (NioOutputStream) output;
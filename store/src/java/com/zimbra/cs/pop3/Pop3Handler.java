@@ -56,7 +56,7 @@ abstract class Pop3Handler {
     static final byte[] LINE_SEPARATOR = {'\r', '\n'};
     private static final String TERMINATOR = ".";
     private static final int TERMINATOR_C = '.';
-    private static final byte[] TERMINATOR_BYTE = {'.'};
+    static final byte[] TERMINATOR_BYTE = {'.'};
 
     // Connection specific data
     final Pop3Config config;
@@ -353,7 +353,7 @@ abstract class Pop3Handler {
         sendResponse("+OK", response, true);
     }
 
-    private void sendOK(String response, boolean flush) throws IOException {
+    void sendOK(String response, boolean flush) throws IOException {
         sendResponse("+OK", response, flush);
     }
 
@@ -367,6 +367,15 @@ abstract class Pop3Handler {
 
     abstract void sendLine(String line, boolean flush) throws IOException;
 
+    /**
+     * Sends the OK response and the whole message straight from its blob file, if the
+     * connection supports it.  Returns {@code false} if nothing was sent and the
+     * message has to be streamed by {@link #sendMessage(InputStream, int)}.
+     */
+    boolean transferMessage(Message msg) throws IOException, ServiceException {
+        return false;
+    }
+
     /*
      * state:
      *   in a line
@@ -681,13 +690,15 @@ abstract class Pop3Handler {
             throw new Pop3CmdException("please specify a message");
         }
         Message m = mailbox.getMessage(msg);
-        InputStream is = null;
-        try {
-            is = m.getContentStream();
-            sendOK("message follows", false);
-            sendMessage(is, Integer.MAX_VALUE);
-        } finally {
-            ByteUtil.closeStream(is);
+        if (!transferMessage(m)) {
+            InputStream is = null;
+            try {
+                is = m.getContentStream();
+                sendOK("message follows", false);
+                sendMessage(is, Integer.MAX_VALUE);
+            } finally {
+                ByteUtil.closeStream(is);
+            }
         }
         mailbox.getPop3Msg(msg).setRetrieved(true);
     }
@@ -0,0 +1,187 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link DataOutput} that serializes into a heap buffer, without the per-byte
+ * synchronization of a {@link DataOutputStream} on top of a
+ * {@link java.io.ByteArrayOutputStream}.  Each thread reuses its buffer across
+ * instances, so serializing an op does not grow a fresh array from a few
+ * hundred bytes.  Big-endian, like {@link DataOutputStream}, so the
+ * serialized form is identical.
+ */
+final class BufferDataOutput implements DataOutput {
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    // buffer of the current thread; taken while in use, so a nested instance allocates its own
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>();
+
+    private ByteBuffer buf;
+
+    BufferDataOutput() {
+        buf = SCRATCH.get();
+        if (buf == null) {
+            buf = ByteBuffer.allocate(INITIAL_SIZE);
+        } else {
+            SCRATCH.remove();
+            buf.clear();
+        }
+    }
+
+    private ByteBuffer ensure(int n) {
+        if (buf == null) {
+            throw new IllegalStateException("closed");
+        }
+        if (buf.remaining() < n) {
+            long needed = (long) buf.position() + n;
+            int capacity = (int) Math.min(Math.max(needed, (long) buf.capacity() * 2), Integer.MAX_VALUE);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buf.flip();
+            grown.put(buf);
+            buf = grown;
+        }
+        return buf;
+    }
+
+    int size() {
+        return buf.position();
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /** Hands the buffer back for reuse by the next instance on this thread. */
+    void close() {
+        if (buf != null && buf.capacity() <= MAX_RETAINED_SIZE) {
+            SCRATCH.set(buf);
+        }
+        buf = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensure(1).put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensure(len).put(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        ensure(1).put((byte) (v ? 1 : 0));
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        ensure(1).put((byte) v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        ensure(2).putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        ensure(2).putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        ensure(4).putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        ensure(8).putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        ensure(4).putFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        ensure(8).putDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        int len = s.length();
+        ByteBuffer b = ensure(len);
+        for (int i = 0; i < len; i++) {
+            b.put((byte) s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        int len = s.length();
+        ByteBuffer b = ensure(len * 2);
+        for (int i = 0; i < len; i++) {
+            b.putChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        // modified UTF-8 with a two-byte length, as written by DataOutputStream
+        int len = s.length();
+        int utflen = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            utflen += c >= 0x0001 && c <= 0x007f ? 1 : (c > 0x07ff ? 3 : 2);
+        }
+        if (utflen > 65535) {
+            throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+        }
+        ByteBuffer b = ensure(utflen + 2);
+        b.putShort((short) utflen);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                b.put((byte) c);
+            } else if (c > 0x07ff) {
+                b.put((byte) (0xe0 | ((c >> 12) & 0x0f)));
+                b.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                b.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                b.put((byte) (0xc0 | ((c >> 6) & 0x1f)));
+                b.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link DataInput} that reads a file through a pooled direct buffer using
+ * positional reads on its channel.  Reading a {@link java.io.RandomAccessFile}
+ * directly costs one system call per primitive, which dominates the time it
+ * takes to replay a large redo log.  This class keeps its own file position
+ * and never moves the position of the underlying channel.
+ */
+final class ChannelDataInput implements DataInput {
+
+    private final FileChannel channel;
+    private final RedoBufferPool pool;
+    private ByteBuffer buf;     // acquired on first read; holds file data starting at bufStart
+    private long bufStart;
+
+    ChannelDataInput(FileChannel channel, long position, RedoBufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        this.bufStart = position;
+    }
+
+    long getFilePointer() {
+        return buf == null ? bufStart : bufStart + buf.position();
+    }
+
+    /** Moves to {@code pos}, discarding any buffered data. */
+    void seek(long pos) {
+        bufStart = pos;
+        if (buf != null) {
+            buf.clear();
+            buf.flip();
+        }
+    }
+
+    void close() {
+        if (buf != null) {
+            bufStart = getFilePointer();
+            pool.release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Makes at least {@code n} bytes available in the buffer, or as many as
+     * are left in the file.  Returns the number of bytes available.
+     */
+    private int fill(int n) throws IOException {
+        if (buf == null) {
+            buf = pool.acquire();
+            buf.flip();
+        }
+        if (buf.remaining() >= n) {
+            return buf.remaining();
+        }
+        bufStart += buf.position();
+        buf.compact();
+        while (buf.position() < n && buf.hasRemaining()) {
+            int read = channel.read(buf, bufStart + buf.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        return buf.remaining();
+    }
+
+    private ByteBuffer require(int n) throws IOException {
+        if (fill(n) < n) {
+            throw new EOFException();
+        }
+        return buf;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int available = fill(1);
+            if (available == 0) {
+                throw new EOFException();
+            }
+            int n = Math.min(available, len);
+            buf.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long pos = getFilePointer();
+        long skip = Math.max(Math.min((long) n, channel.size() - pos), 0);
+        if (buf != null && skip <= buf.remaining()) {
+            buf.position(buf.position() + (int) skip);
+        } else {
+            seek(pos + skip);
+        }
+        return (int) skip;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return require(1).get() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return require(1).get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return require(1).get() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return require(2).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return require(2).getShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return require(2).getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return require(4).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return require(8).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return require(4).getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return require(8).getDouble();
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        // one char per byte, up to CR, LF or CRLF, like RandomAccessFile.readLine()
+        StringBuilder line = new StringBuilder();
+        boolean eol = false;
+        while (!eol && fill(1) > 0) {
+            int c = buf.get() & 0xff;
+            if (c == '\n') {
+                eol = true;
+            } else if (c == '\r') {
+                eol = true;
+                if (fill(1) > 0 && buf.get(buf.position()) == '\n') {
+                    buf.get();
+                }
+            } else {
+                line.append((char) c);
+            }
+        }
+        return eol || line.length() > 0 ? line.toString() : null;
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.redolog;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Pool of fixed-size direct {@link ByteBuffer}s that redo logs are read through
+ * during replay.  Allocating direct buffers is expensive, so buffers are handed
+ * back with {@link #release} and reused.  Buffers are allocated on demand when
+ * the pool is empty, and at most {@code maxPooled} idle buffers are kept.
+ */
+public final class RedoBufferPool {
+
+    private static final RedoBufferPool INSTANCE = new RedoBufferPool(
+            Math.max(LC.zimbra_redolog_buffer_kb.intValue(), 4) * 1024,
+            Math.max(LC.zimbra_redolog_buffer_pool_size.intValue(), 0));
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public static RedoBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    public RedoBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns the number of idle buffers in the pool. */
+    public int getPooledCount() {
+        return pooled.get();
+    }
+
+    /** Returns a cleared direct buffer of {@link #getBufferSize()} bytes. */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /** Hands a buffer obtained from {@link #acquire} back to the pool. */
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect() || buf.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buf);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.common.util.ByteUtil;
 
@@ -46,6 +47,21 @@ public class RedoLogInput {
         mIN = raf;
     }
 
+    /**
+     * Reads the file through a pooled direct buffer, starting at
+     * <tt>position</tt>.  The position of the channel is left alone; use
+     * {@link #getFilePointer()} and {@link #seek(long)} instead.  Call
+     * {@link #close()} to give the buffer back.
+     */
+    public RedoLogInput(FileChannel channel, long position, String path) {
+        this(channel, position, path, RedoBufferPool.getInstance());
+    }
+
+    RedoLogInput(FileChannel channel, long position, String path, RedoBufferPool pool) {
+        mPath = path;
+        mIN = new ChannelDataInput(channel, position, pool);
+    }
+
     /**
      * Returns the path to the redo log file, or <tt>null</tt> if this object
      * reads from an <tt>InputStream</tt>. 
@@ -63,10 +79,36 @@ public class RedoLogInput {
         if (mIN instanceof RandomAccessFile) {
             RandomAccessFile file = (RandomAccessFile) mIN;
             return file.getFilePointer();
+        } else if (mIN instanceof ChannelDataInput) {
+            return ((ChannelDataInput) mIN).getFilePointer();
         }
         return -1;
     }
 
+    /**
+     * Moves to the given offset in the file.  Only supported when reading
+     * from a file.
+     */
+    public void seek(long pos) throws IOException {
+        if (mIN instanceof RandomAccessFile) {
+            ((RandomAccessFile) mIN).seek(pos);
+        } else if (mIN instanceof ChannelDataInput) {
+            ((ChannelDataInput) mIN).seek(pos);
+        } else {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Releases the read buffer, if any.  Does not close the underlying file
+     * or stream.
+     */
+    public void close() {
+        if (mIN instanceof ChannelDataInput) {
+            ((ChannelDataInput) mIN).close();
+        }
+    }
+
     public int skipBytes(int n) throws IOException { return mIN.skipBytes(n); }
     public void readFully(byte[] b) throws IOException { mIN.readFully(b); }
     public void readFully(byte[] b, int off, int len) throws IOException { mIN.readFully(b, off, len); }
@@ -30,6 +30,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -43,6 +44,7 @@ import com.zimbra.cs.redolog.op.AbortTxn;
 import com.zimbra.cs.redolog.op.Checkpoint;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.util.ParallelRedoPlayer;
 import com.zimbra.cs.util.Zimbra;
 import com.zimbra.znative.IO;
 
@@ -169,6 +171,22 @@ public class RedoLogManager {
         return new FileLogWriter(redoMgr, logfile, fsyncIntervalMS);
     }
 
+    /**
+     * Returns the player for crash recovery.  Uncommitted ops of different
+     * mailboxes are independent, so they are redone on a pool of threads
+     * unless only one is configured.
+     */
+    protected RedoPlayer createCrashRecoveryPlayer() {
+        int threads = LC.zimbra_redolog_crash_recovery_threads.intValue();
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        if (threads == 1)
+            return new RedoPlayer(true);
+        ZimbraLog.redolog.info("Running crash recovery with %d threads", threads);
+        return new ParallelRedoPlayer(true, false, false, false, threads,
+                LC.zimbra_redolog_crash_recovery_queue_capacity.intValue(), false);
+    }
+
     private void setInCrashRecovery(boolean b) {
         synchronized (mInCrashRecoveryGuard) {
             mInCrashRecovery = b;
@@ -221,7 +239,7 @@ public class RedoLogManager {
             try {
                 mLogWriter.open();
                 mRolloverMgr.initSequence(mLogWriter.getSequence());
-                RedoPlayer redoPlayer = new RedoPlayer(true);
+                RedoPlayer redoPlayer = createCrashRecoveryPlayer();
                 try {
                     numRecoveredOps = redoPlayer.runCrashRecovery(this, postStartupRecoveryOps);
                 } finally {
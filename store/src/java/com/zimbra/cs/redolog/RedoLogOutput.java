@@ -44,6 +44,35 @@ public class RedoLogOutput {
         mOUT = raf;
     }
 
+    /**
+     * Serializes into memory.  Retrieve the result with {@link #toByteArray()},
+     * then call {@link #close()} so the buffer can be reused.
+     */
+    public RedoLogOutput() {
+        mOUT = new BufferDataOutput();
+    }
+
+    /**
+     * Returns the bytes written so far.  Only supported by buffer-backed
+     * instances.
+     */
+    public byte[] toByteArray() {
+        if (!(mOUT instanceof BufferDataOutput)) {
+            throw new UnsupportedOperationException();
+        }
+        return ((BufferDataOutput) mOUT).toByteArray();
+    }
+
+    /**
+     * Hands back the buffer of a buffer-backed instance.  Does not close the
+     * underlying file or stream.
+     */
+    public void close() {
+        if (mOUT instanceof BufferDataOutput) {
+            ((BufferDataOutput) mOUT).close();
+        }
+    }
+
     public void write(byte[] b) throws IOException { mOUT.write(b); }
     public void writeBoolean(boolean v) throws IOException { mOUT.writeBoolean(v); }
     public void writeByte(byte v) throws IOException { mOUT.writeByte(v); }
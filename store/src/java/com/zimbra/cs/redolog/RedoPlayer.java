@@ -29,6 +29,7 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
@@ -61,6 +62,7 @@ public class RedoPlayer {
     private boolean mSkipDeleteOps;
     protected boolean handleMailboxConflict;
     protected ConcurrentMap<Integer, Integer> mailboxConflicts = new ConcurrentHashMap<Integer, Integer>();
+    private final AtomicLong mPlayedOps = new AtomicLong();
 
     public RedoPlayer(boolean writable) {
         this(writable, false, false, false, false);
@@ -117,6 +119,8 @@ public class RedoPlayer {
         FileLogReader logReader = new FileLogReader(logfile, mWritable);
         logReader.open();
         long lastPosition = 0;
+        long startPlayed = getPlayedOpCount();
+        long start = System.currentTimeMillis();
 
         // Read all ops in redo log, discarding those with commit/abort entries.
         try {
@@ -163,6 +167,15 @@ public class RedoPlayer {
         } finally {
             logReader.close();
         }
+        // everything in this file has been replayed once scanLog returns
+        awaitPlayback();
+        if (redoCommitted)
+            logThroughput("Replayed", getPlayedOpCount() - startPlayed, System.currentTimeMillis() - start, logfile.getName());
+    }
+
+    private static void logThroughput(String what, long ops, long elapsed, String source) {
+        ZimbraLog.redolog.info("%s %d ops from %s in %dms (%d ops/sec)", what, ops, source, elapsed,
+                elapsed > 0 ? ops * 1000 / elapsed : ops);
     }
 
     // used to detect/track if a commit/abort record is played back
@@ -355,6 +368,27 @@ public class RedoPlayer {
         } else {
             op.redo();
         }
+        opPlayed();
+    }
+
+    /**
+     * Waits until every op handed to {@link #playOp} or {@link #recoverOp}
+     * has been executed.  Ops are executed inline, so there is nothing to
+     * wait for in this class.
+     */
+    protected void awaitPlayback() throws ServiceException {
+    }
+
+    protected void opPlayed() {
+        mPlayedOps.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of ops executed by this player so far, whether or
+     * not they succeeded.
+     */
+    public long getPlayedOpCount() {
+        return mPlayedOps.get();
     }
     
     protected void redoOpWithMboxConflict(RedoableOp op) throws Exception {
@@ -418,6 +452,8 @@ public class RedoPlayer {
             return 0;
         }
 
+        long startPlayed = getPlayedOpCount();
+        long start = System.currentTimeMillis();
         synchronized (mOpsMapGuard) {
             Set entrySet = mOpsMap.entrySet();
             ZimbraLog.redolog.info("Redoing " + numOps + " uncommitted transactions");
@@ -433,33 +469,44 @@ public class RedoPlayer {
                     continue;
                 }
 
-                if (ZimbraLog.redolog.isInfoEnabled())
-                    ZimbraLog.redolog.info("REDOING: " + op);
-
-                boolean success = false;
-                try {
-                    op.redo();
-                    success = true;
-                } catch (Exception e) {
-                    ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
-                            "  Backend state of affected item is indeterminate." +
-                            "  Marking operation as aborted and moving on.", e);
-                } finally {
-                    if (success) {
-                        CommitTxn commit = new CommitTxn(op);
-                        redoLogMgr.logOnly(commit, true);
-                    } else {
-                        AbortTxn abort = new AbortTxn(op);
-                        redoLogMgr.logOnly(abort, true);
-                    }
-                }
+                recoverOp(redoLogMgr, op);
             }
+            awaitPlayback();
             mOpsMap.clear();
         }
+        logThroughput("Recovered", getPlayedOpCount() - startPlayed, System.currentTimeMillis() - start, redoLog.getName());
 
         return numOps;
     }
 
+    /**
+     * Redoes an uncommitted op during crash recovery and logs its commit or
+     * abort.  Failures are logged and the op is marked aborted.
+     */
+    protected void recoverOp(RedoLogManager redoLogMgr, RedoableOp op) {
+        if (ZimbraLog.redolog.isInfoEnabled())
+            ZimbraLog.redolog.info("REDOING: " + op);
+
+        boolean success = false;
+        try {
+            op.redo();
+            success = true;
+        } catch (Exception e) {
+            ZimbraLog.redolog.error("Redo failed for [" + op + "]." +
+                    "  Backend state of affected item is indeterminate." +
+                    "  Marking operation as aborted and moving on.", e);
+        } finally {
+            opPlayed();
+            if (success) {
+                CommitTxn commit = new CommitTxn(op);
+                redoLogMgr.logOnly(commit, true);
+            } else {
+                AbortTxn abort = new AbortTxn(op);
+                redoLogMgr.logOnly(abort, true);
+            }
+        }
+    }
+
     /**
      * Returns a copy of the pending ops map.
      * @return
@@ -65,9 +65,10 @@ public class FileLogReader {
     public synchronized void open() throws IOException {
         try {
             mRAF = new RandomAccessFile(mFile, mReadOnly ? "r" : "rw");
-            mIN = new RedoLogInput(mRAF, mFile.getPath());
             mHeader.read(mRAF);
             mHeaderRead = true;
+            // read ops through a pooled buffer rather than a system call per field
+            mIN = new RedoLogInput(mRAF.getChannel(), mRAF.getFilePointer(), mFile.getPath());
             mFileSizeAtOpen = mRAF.length();
         } catch (IOException e) {
             throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
@@ -76,6 +77,8 @@ public class FileLogReader {
 
     public synchronized void close() throws IOException {
         try {
+            if (mIN != null)
+                mIN.close();
             mRAF.close();
         } catch (IOException e) {
             throw new IOException("Error closing " + mFile.getAbsolutePath(), e);
@@ -92,7 +95,7 @@ public class FileLogReader {
     }
 
     public synchronized RedoableOp getNextOp() throws IOException {
-        long pos = mRAF.getFilePointer();
+        long pos = mIN.getFilePointer();
         if (pos == mFileSizeAtOpen) {
             // EOF reached.
             return null;
@@ -126,6 +129,7 @@ public class FileLogReader {
             mRAF.seek(currPos + 1);
             if (searchInRAF(RedoableOp.REDO_MAGIC.getBytes()))  {
                 currPos = mRAF.getFilePointer();
+                mIN.seek(currPos);
             } else {
                 String msg = String.format(
                         "Found %d junk bytes from offset 0x%08x to end of file, in redolog %s",
@@ -140,7 +144,7 @@ public class FileLogReader {
     }
 
     public synchronized long position() throws IOException {
-        return mRAF.getFilePointer();
+        return mIN.getFilePointer();
     }
 
     public synchronized long getLastOpStartOffset() throws IOException {
@@ -160,6 +164,7 @@ public class FileLogReader {
             hdr.setFileSize(size);
             hdr.write(mRAF);
             mRAF.seek(size);
+            mIN.seek(size);
         }
     }
 
@@ -27,15 +27,26 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ZimbraLog;
 
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.redolog.CommitId;
@@ -45,6 +56,7 @@ import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RolloverManager;
 import com.zimbra.cs.redolog.op.CommitTxn;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 /**
@@ -70,9 +82,6 @@ public class FileLogWriter implements LogWriter {
     // Synchronizes access to mRAF, mFileSize, mLogSeq, mFsyncSeq, mLogCount, and mFsyncCount.
     private final Object mLock = new Object();
 
-    // wait/notify between logger threads and fsync thread
-    private final Object mFsyncCond = new Object();
-
     private FileHeader mHeader;
     private long mFirstOpTstamp;
     private long mLastOpTstamp;
@@ -83,10 +92,10 @@ public class FileLogWriter implements LogWriter {
     private long mFileSize;
     private long mLastLogTime;
 
-    private long mFsyncIntervalMS;          // how many milliseconds fsync thread sleeps after each fync
+    private long mFsyncIntervalMS;          // longest time an asynchronously logged entry may go without fsync
     private boolean mFsyncDisabled;
 
-    private FsyncThread mFsyncer;   // fsync thread
+    private volatile GroupCommitThread mWriter;   // group commit thread
 
     private int mLogSeq;            // last item logged
     private int mFsyncSeq;          // last item fsynced
@@ -250,115 +259,132 @@ public class FileLogWriter implements LogWriter {
     /**
      * Log the supplied bytes.  Depending on the value of synchronous argument
      * and the setting of fsync interval, this method can do one of 3 things:
-     * 
+     *
      * case 1: !synchronous
-     * action: write() only; no flush/fsync
-     * 
+     * action: hand the entry to the group commit thread (or write() it when
+     * there is none); no fsync
+     *
      * case 2: synchronous && fsyncInterval > 0
-     * action: write(), then wait() until notified by fsync thread
-     * Current thread only calls write() on the RandomAccessFile, and blocks to
-     * wait for the next scheduled fsync.  Fsync thread periodically flushes
-     * the output stream and fsync's the file.  After each fsync, all waiting
-     * logger threads are notified to continue.  This method batches multiple
-     * log items before each fsync, and results in greater throughput than
-     * calling fsync after each log item because fsync to physical disk is
-     * a high-latency operation.
-     * 
+     * action: queue the entry, then wait until the group commit thread has
+     * written and fsync'ed it
+     * Logger threads append their entry to a lock-free queue and block.  The
+     * group commit thread drains everything queued so far, writes the batch
+     * with a single gathering write, fsyncs once, makes the commit callbacks
+     * and then releases all the waiting loggers.  Entries that arrive while
+     * an fsync is in progress form the next batch, so the batch size grows
+     * with load and with the latency of the disk, without a timer.
+     *
      * case 3: synchronous && fsyncInterval <= 0
      * action: write(), then fsync() in the current thread
-     * Fsync is required, but the sleep interval for fsync thread is 0.  We
+     * Fsync is required, but the group commit thread is disabled.  We
      * special case this condition to mean fsync should be done by the calling
      * thread.
      */
     @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
-        int seq;
-        boolean sameMboxAsLastOp = false;
+        byte[] bytes = ByteUtil.getContent(data, 1024, true);
+
+        GroupCommitThread writer = mWriter;
+        if (writer != null) {
+            Entry entry = new Entry(op, bytes, synchronous);
+            if (writer.submit(entry)) {
+                if (synchronous) {
+                    entry.await();
+                }
+                return;
+            }
+            // the thread is being stopped; let it finish what it has before writing inline
+            writer.awaitTermination();
+        }
 
         synchronized (mLock) {
             if (mRAF == null)
                 throw new IOException("Redolog file closed");
+            List<Entry> batch = new ArrayList<Entry>(1);
+            batch.add(new Entry(op, bytes, synchronous));
+            write(batch);
+        }
+
+        // cases 1 above
+        if (!synchronous)
+            return;
+
+        // case 3
+        fsync();
+    }
+
+    @Override public void flush() throws IOException {
+        GroupCommitThread writer = mWriter;
+        if (writer != null) {
+            // an empty synchronous entry returns once everything queued ahead of it is on disk
+            Entry barrier = new Entry(null, new byte[0], true);
+            if (writer.submit(barrier)) {
+                barrier.await();
+                return;
+            }
+            writer.awaitTermination();
+        }
+        fsync();
+    }
+
+    /**
+     * Appends a batch of entries to the file with a single gathering write,
+     * updating the header timestamps and queueing the commit callbacks in log
+     * order.  Caller must hold mLock.
+     *
+     * @return true if the batch has to be fsync'ed right away
+     */
+    private boolean write(List<Entry> batch) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long total = 0;
+        boolean fsyncNow = false;
+        for (int i = 0; i < buffers.length; i++) {
+            Entry entry = batch.get(i);
+            buffers[i] = ByteBuffer.wrap(entry.data);
+            total += entry.data.length;
+            fsyncNow |= entry.done != null;
+            if (entry.op == null)
+                continue;
 
             // Record first transaction in header.
-            long tstamp = op.getTimestamp();
+            long tstamp = entry.op.getTimestamp();
             mLastOpTstamp = Math.max(tstamp, mLastOpTstamp);
             if (mFirstOpTstamp == 0) {
-            	mFirstOpTstamp = tstamp;
+                mFirstOpTstamp = tstamp;
                 mHeader.setFirstOpTstamp(mFirstOpTstamp);
                 mHeader.setLastOpTstamp(mLastOpTstamp);
                 long pos = mRAF.getFilePointer();
                 mHeader.write(mRAF);
                 mRAF.seek(pos);
             }
-
             mLogSeq++;
             mLogCount++;
-            seq = mLogSeq;
-            int numRead;
-            byte[] buf = new byte[1024];
-            while ((numRead = data.read(buf)) >= 0) {
-                mRAF.write(buf, 0, numRead);
-                mFileSize += numRead;
-            }
-            data.close();
+        }
 
-            // We do this with log writer lock held, so the commits and any
-            // callbacks made on their behalf are truly in the correct order.
-            if (op instanceof CommitTxn) {
-                CommitTxn cmt = (CommitTxn) op;
+        FileChannel channel = mRAF.getChannel();
+        long written = 0;
+        while (written < total) {
+            written += channel.write(buffers);
+        }
+        mFileSize += total;
+        mLastLogTime = System.currentTimeMillis();
+
+        // Queue the callbacks only now that the commit records are in the file; the queue
+        // fsyncs by itself if it fills up.  Doing this with the log writer lock held keeps
+        // the commits and any callbacks made on their behalf in the correct order.
+        for (Entry entry : batch) {
+            if (entry.op instanceof CommitTxn) {
+                CommitTxn cmt = (CommitTxn) entry.op;
                 RedoCommitCallback cb = cmt.getCallback();
                 if (cb != null) {
                     long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
-                    CommitId cid = new CommitId(redoSeq, (CommitTxn) op);
-                    Notif notif = new Notif(cb, cid);
-                    // We queue it instead making the callback right away.
+                    CommitId cid = new CommitId(redoSeq, cmt);
                     // Call it only after the commit record has been fsynced.
-                    mCommitNotifyQueue.push(notif);
+                    mCommitNotifyQueue.push(new Notif(cb, cid));
+                    fsyncNow = true;
                 }
             }
-
-            mLastLogTime = System.currentTimeMillis();
-
-            sameMboxAsLastOp = mLastOpMboxId == op.getMailboxId();
-            mLastOpMboxId = op.getMailboxId();
-        }
-
-        // cases 1 above
-        if (!synchronous)
-            return;
-
-        if (mFsyncIntervalMS > 0) {
-            if (!sameMboxAsLastOp) {
-                // case 2
-                try {
-                    // wait for fsync thread to write this entry to disk
-                    synchronized (mFsyncCond) {
-                        mFsyncCond.wait(10000);
-                    }
-                } catch (InterruptedException e) {
-                    ZimbraLog.redolog.info("Thread interrupted during fsync");
-                }
-                synchronized (mLock) {
-                    // timed out, so fsync in this thread
-                    if (seq > mFsyncSeq)
-                        fsync();
-                }
-            } else {
-                // If this op is on same mailbox as last op, let's assume there's a thread issuing
-                // many updates on a single mailbox in a loop, such as when importing a large ics file.
-                // We don't want to pause for mFsyncIntervalMS between every op (because all writes
-                // to a single mailbox are synchronized), so fsync inline and return immediately.
-                fsync();
-            }
-        } else {
-            // case 3
-            fsync();
         }
-    }
-
-    private int mLastOpMboxId;
-
-    @Override public void flush() throws IOException {
-        fsync();
+        return fsyncNow;
     }
 
     private boolean mNoStat;
@@ -432,21 +458,23 @@ public class FileLogWriter implements LogWriter {
     }
 
     public synchronized void disableFsync() throws IOException {
-        fsync();
         stopFsyncThread();
+        fsync();
     }
 
     private synchronized void startFsyncThread() {
-        if (mFsyncer == null && mFsyncIntervalMS > 0) {
-            mFsyncer = new FsyncThread(mFsyncIntervalMS);
-            mFsyncer.start();
+        if (mWriter == null && mFsyncIntervalMS > 0) {
+            GroupCommitThread writer = new GroupCommitThread(mFsyncIntervalMS);
+            writer.start();
+            mWriter = writer;
         }
     }
 
     private synchronized void stopFsyncThread() {
-        if (mFsyncer != null) {
-            mFsyncer.stopThread();
-            mFsyncer = null;
+        GroupCommitThread writer = mWriter;
+        if (writer != null) {
+            writer.stopThread();
+            mWriter = null;
         }
     }
 
@@ -477,90 +505,210 @@ public class FileLogWriter implements LogWriter {
             synchronized (mLock) {
                 mFsyncSeq = seq;
             }
-            if (mFsyncIntervalMS > 0) {
-                synchronized (mFsyncCond) {
-                    mFsyncCond.notifyAll();
-                }
-            }
         }
     }
 
 
-    // Thread that calls fsync() periodically.  Threads that call log()
-    // will write the log entry and wait for this thread to signal them
-    // after sync to disk has occurred.  This way, there are fewer fsyncs
-    // than there are calls to log(), resulting in improved throughput.
-    private class FsyncThread extends Thread {
-        private long mSleepMS;
-        private Object mFsyncLock;  // synchronizes access to mRunning
-        private boolean mRunning;
+    // One log() call waiting to be written by the group commit thread.
+    private static class Entry {
+        final RedoableOp op;        // null for a flush barrier
+        final byte[] data;
+        final CountDownLatch done;  // null unless the logger waits for fsync
+        volatile IOException error;
+
+        Entry(RedoableOp op, byte[] data, boolean synchronous) {
+            this.op = op;
+            this.data = data;
+            this.done = synchronous ? new CountDownLatch(1) : null;
+        }
+
+        void complete(IOException e) {
+            error = e;
+            if (done != null)
+                done.countDown();
+        }
 
+        void await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // the entry is already queued; it is going to disk whether we wait or not
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (error != null)
+                throw new IOException("redo log write failed", error);
+        }
+    }
+
+    // Thread that writes queued log entries in batches.  Loggers append to a
+    // lock-free queue and unpark this thread; it drains whatever has been
+    // queued, writes it with one gathering write and calls fsync once for the
+    // whole batch, as soon as the batch is written.  There are therefore
+    // fewer fsyncs than there are calls to log(), resulting in improved
+    // throughput, without any logger waiting for a timer.
+    private class GroupCommitThread extends Thread {
+        private final Queue<Entry> mQueue = new ConcurrentLinkedQueue<Entry>();
+        private final long mMaxUnsyncedNanos;
+        private final int mMaxBatchBytes;
+        private volatile boolean mStopping;
+        private final CountDownLatch mDrained = new CountDownLatch(1);
+
+        private static final int MAX_BATCH_ENTRIES = 1024;
         private static final long MIN_SLEEP_MILLIS = 1;
-        private static final long MAX_SLEEP_MILLIS = 1000;  // never sleep longer than 1 seconds
+        private static final long MAX_SLEEP_MILLIS = 1000;  // never leave async entries unsynced longer than 1 second
 
-        public FsyncThread(long fsyncIntervalMS) {
-            super("FileLogWriter.FsyncThread-"+System.currentTimeMillis());
-            // Sanity check the sleep interval.
+        public GroupCommitThread(long fsyncIntervalMS) {
+            super("FileLogWriter.GroupCommitThread-" + System.currentTimeMillis());
+            setDaemon(true);
+            // Sanity check the interval.
+            long interval = fsyncIntervalMS;
             if (fsyncIntervalMS < MIN_SLEEP_MILLIS) {
-                ZimbraLog.redolog.warn("Invalid fsync thread sleep interval %dms; using %dms instead",
+                ZimbraLog.redolog.warn("Invalid fsync interval %dms; using %dms instead",
                         fsyncIntervalMS, MIN_SLEEP_MILLIS);
-                mSleepMS = MIN_SLEEP_MILLIS;
+                interval = MIN_SLEEP_MILLIS;
             } else if (fsyncIntervalMS > MAX_SLEEP_MILLIS) {
-                ZimbraLog.redolog.warn("Fsync thread sleep interval %ms is too long; using %dms instead",
+                ZimbraLog.redolog.warn("Fsync interval %dms is too long; using %dms instead",
                         fsyncIntervalMS, MAX_SLEEP_MILLIS);
-                mSleepMS = MAX_SLEEP_MILLIS;
-            } else {
-                mSleepMS = fsyncIntervalMS;
+                interval = MAX_SLEEP_MILLIS;
+            }
+            mMaxUnsyncedNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+            mMaxBatchBytes = Math.max(LC.zimbra_redolog_group_commit_max_batch_kb.intValue(), 1) * 1024;
+        }
+
+        /**
+         * Queues an entry.  Returns false if the thread is stopping and the
+         * entry was not queued, in which case the caller has to write it.
+         */
+        boolean submit(Entry entry) {
+            if (mStopping)
+                return false;
+            mQueue.offer(entry);
+            if (mStopping && mQueue.remove(entry)) {
+                // lost the race with stopThread(); nobody is going to pick this up
+                return false;
             }
-            mFsyncLock = new Object();
-            mRunning = true;
+            LockSupport.unpark(this);
+            return true;
         }
 
         @Override public void run() {
-            boolean running = true;
-        	ZimbraLog.redolog.info("Starting fsync thread with interval %d", mSleepMS);
-            while (running) {
-                // Sleep between fsyncs.
-                try {
-                	ZimbraLog.redolog.trace("Sleeping for %s", mSleepMS);
-                    Thread.sleep(mSleepMS);
-                	ZimbraLog.redolog.trace("Slept for %s running? %s", mSleepMS, mRunning);
-                } catch (InterruptedException e) {
-                    ZimbraLog.redolog.warn("Sync thread interrupted", e);
+            ZimbraLog.redolog.info("Starting group commit thread; async entries are fsynced within %dms",
+                    TimeUnit.NANOSECONDS.toMillis(mMaxUnsyncedNanos));
+            List<Entry> batch = new ArrayList<Entry>();
+            long unsyncedSince = 0;
+            while (true) {
+                Entry entry = mQueue.poll();
+                if (entry == null) {
+                    if (unsyncedSince != 0 && System.nanoTime() - unsyncedSince >= mMaxUnsyncedNanos) {
+                        commit(batch, true);
+                        unsyncedSince = 0;
+                        continue;
+                    }
+                    if (mStopping)
+                        break;
+                    if (unsyncedSince != 0)
+                        LockSupport.parkNanos(this, mMaxUnsyncedNanos - (System.nanoTime() - unsyncedSince));
+                    else
+                        LockSupport.park(this);
+                    continue;
                 }
-
-                try {
-                    fsync();    // do the sync
-                } catch (IOException e) {
-                    String message = "Error while fsyncing " + mFile.getAbsolutePath() + "; Aborting.";
-                    Zimbra.halt(message, e);
+                int bytes = 0;
+                do {
+                    batch.add(entry);
+                    bytes += entry.data.length;
+                } while (batch.size() < MAX_BATCH_ENTRIES && bytes < mMaxBatchBytes && (entry = mQueue.poll()) != null);
+
+                if (commit(batch, false)) {
+                    unsyncedSince = 0;
+                } else if (unsyncedSince == 0) {
+                    unsyncedSince = System.nanoTime();
                 }
+            }
+            ZimbraLog.redolog.info("group commit thread exiting");
+        }
 
-                synchronized (mFsyncLock) {
-                    running = mRunning;
+        /**
+         * Writes the batch and fsyncs if anybody in it is waiting, or if asked
+         * to.  Returns true if everything written so far has been fsynced.
+         */
+        private boolean commit(List<Entry> batch, boolean forceFsync) {
+            IOException error = null;
+            boolean synced = false;
+            try {
+                boolean fsyncNow;
+                if (batch.isEmpty()) {
+                    fsyncNow = false;
+                } else {
+                    synchronized (mLock) {
+                        if (mRAF == null)
+                            throw new IOException("Redolog file closed");
+                        fsyncNow = write(batch);
+                    }
+                }
+                if (fsyncNow || forceFsync) {
+                    fsync();
+                    synced = true;
+                    if (!batch.isEmpty())
+                        ZimbraPerf.COUNTER_REDO_GROUP_COMMIT.increment(batch.size());
                 }
+            } catch (IOException e) {
+                error = e;
             }
-            ZimbraLog.redolog.info("fsync thread exiting");
+            for (Entry entry : batch) {
+                entry.complete(error);
+            }
+            batch.clear();
+            if (error != null) {
+                String message = "Error while writing " + mFile.getAbsolutePath() + "; Aborting.";
+                Zimbra.halt(message, error);
+            }
+            return synced;
         }
 
-        // Stop the fsync thread.  Wait until the thread really stops.
+        // Stop the thread after it has written and fsynced everything queued.
+        // Wait until the thread really stops.
         public void stopThread() {
-            synchronized (mFsyncLock) {
-                mRunning = false;
-            }
+            mStopping = true;
+            LockSupport.unpark(this);
             try {
-            	while (isAlive()) {
-            		if (ZimbraLog.redolog.isTraceEnabled()) {
-            			ZimbraLog.redolog.trace("waiting for %s to finish. running? %s", getName(), mRunning);
-            		} else {
-            			ZimbraLog.redolog.info("waiting for %s to finish.", getName());
-            		}
-            		join(Constants.MILLIS_PER_MINUTE);
-            	}
-            	ZimbraLog.redolog.info("%s finished", getName());
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+                ZimbraLog.redolog.info("%s finished", getName());
             } catch (InterruptedException e) {
-                ZimbraLog.redolog.warn("InterruptedException while stopping FsyncThread", e);
+                ZimbraLog.redolog.warn("InterruptedException while stopping GroupCommitThread", e);
+            }
+            // pick up anything queued after the thread's last look at the queue
+            List<Entry> leftover = new ArrayList<Entry>();
+            Entry entry;
+            while ((entry = mQueue.poll()) != null) {
+                leftover.add(entry);
+            }
+            if (!leftover.isEmpty())
+                commit(leftover, true);
+            mDrained.countDown();
+        }
+
+        // Wait until everything queued before the thread was stopped is on disk.
+        void awaitTermination() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDrained.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
     }
 
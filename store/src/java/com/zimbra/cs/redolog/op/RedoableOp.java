@@ -21,7 +21,6 @@
 package com.zimbra.cs.redolog.op;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -410,14 +409,14 @@ public abstract class RedoableOp {
      * the result of {@link #getAdditionalDataStream()}.
      */
     private byte[] serializeToByteArray() throws IOException {
-        byte[] buf;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
-        RedoLogOutput out = new RedoLogOutput(baos);
-        serializeHeader(out);
-        serializeData(out);
-        buf = baos.toByteArray();
-        baos.close();
-        return buf;
+        RedoLogOutput out = new RedoLogOutput();
+        try {
+            serializeHeader(out);
+            serializeData(out);
+            return out.toByteArray();
+        } finally {
+            out.close();
+        }
     }
 
     /**
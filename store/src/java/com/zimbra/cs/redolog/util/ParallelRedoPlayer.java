@@ -18,14 +18,22 @@
 package com.zimbra.cs.redolog.util;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.RedoPlayer;
 import com.zimbra.cs.redolog.op.RedoableOp;
 import com.zimbra.cs.util.Zimbra;
 
+/**
+ * Replays ops on a pool of player threads.  Ops for the same mailbox always go
+ * to the same thread and are executed in log order; ops for different
+ * mailboxes run concurrently.  Ops that span mailboxes wait until every
+ * thread has drained its queue, then run on the calling thread.
+ */
 public class ParallelRedoPlayer extends RedoPlayer {
 
     private PlayerThread[] mPlayerThreads;
@@ -58,28 +66,72 @@ public class ParallelRedoPlayer extends RedoPlayer {
         ZimbraLog.redolog.debug("ParallelRedoPlayer shutdown complete");
     }
 
+    private static boolean isMultiMailboxOp(RedoableOp op) {
+        int mboxId = op.getMailboxId();
+        return mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID;
+    }
+
+    // Ops for the same mailbox must be played back in order.  To ensure that,
+    // all ops for the same mailbox are sent to the same player thread.  The
+    // ops are added to the thread's internal queue and played back in order.
+    // This assignment of ops to threads will result in uneven distribution.
+    private void enqueue(RedoTask task) {
+        int index = Math.abs(task.getOp().getMailboxId() % mPlayerThreads.length);
+        if (ZimbraLog.redolog.isDebugEnabled())
+            ZimbraLog.redolog.info("Enqueuing: " + task.getOp().toString());
+        try {
+            mPlayerThreads[index].enqueue(task);
+        } catch (InterruptedException e) {}
+    }
+
     @Override protected void playOp(RedoableOp op) throws Exception {
         checkError();
-        int mboxId = op.getMailboxId();
-        if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
-            // Multi-mailbox ops are executed by the main thread to prevent later ops
-            // that depend on this op's result aren't run out of order.
+        if (isMultiMailboxOp(op)) {
+            // Multi-mailbox ops (CreateVolume, StoreIncomingBlob, ...) are executed by the main
+            // thread once all earlier ops have finished, and before any later op is queued, so
+            // that ops on either side of them that depend on their result aren't run out of order.
+            barrier();
+            checkError();
             if (ZimbraLog.redolog.isDebugEnabled())
                 ZimbraLog.redolog.info("Executing: " + op.toString());
-            op.redo();
+            super.playOp(op);
         } else {
-            // Ops for the same mailbox must be played back in order.  To ensure that,
-            // all ops for the same mailbox are sent to the same player thread.  The
-            // ops are added to the thread's internal queue and played back in order.
-            // This assignment of ops to threads will result in uneven distribution.
-            int index = Math.abs(mboxId % mPlayerThreads.length);
-            PlayerThread player = mPlayerThreads[index];
-            RedoTask task = new RedoTask(op);
-            if (ZimbraLog.redolog.isDebugEnabled())
-                ZimbraLog.redolog.info("Enqueuing: " + op.toString());
+            enqueue(new RedoTask(op, null));
+        }
+    }
+
+    @Override protected void recoverOp(RedoLogManager redoLogMgr, RedoableOp op) {
+        if (isMultiMailboxOp(op)) {
+            barrier();
+            super.recoverOp(redoLogMgr, op);
+        } else {
+            enqueue(new RedoTask(op, redoLogMgr));
+        }
+    }
+
+    @Override protected void awaitPlayback() throws ServiceException {
+        barrier();
+        checkError();
+    }
+
+    /**
+     * Waits until every player thread has executed (or, after an error,
+     * discarded) all the tasks queued before this call.
+     */
+    private void barrier() {
+        CountDownLatch latch = new CountDownLatch(mPlayerThreads.length);
+        for (PlayerThread player : mPlayerThreads) {
             try {
-                player.enqueue(task);
-            } catch (InterruptedException e) {}
+                player.enqueue(new BarrierTask(latch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -108,8 +160,13 @@ public class ParallelRedoPlayer extends RedoPlayer {
 
     private static class RedoTask {
         private RedoableOp mOp;
-        public RedoTask(RedoableOp op)  { mOp = op; }
+        private RedoLogManager mRecoveryLogMgr;  // set for crash recovery of an uncommitted op
+        public RedoTask(RedoableOp op, RedoLogManager recoveryLogMgr) {
+            mOp = op;
+            mRecoveryLogMgr = recoveryLogMgr;
+        }
         public RedoableOp getOp()       { return mOp; }
+        public RedoLogManager getRecoveryLogManager() { return mRecoveryLogMgr; }
         public boolean isShutdownTask() { return false; }
     }
 
@@ -117,11 +174,23 @@ public class ParallelRedoPlayer extends RedoPlayer {
      * Special task to tell the queue drain thread to go away.
      */
     private static class ShutdownTask extends RedoTask {
-        public ShutdownTask() { super(null); }
+        public ShutdownTask() { super(null, null); }
         @Override
         public boolean isShutdownTask() { return true; }
     }
 
+    /**
+     * Special task that tells the caller of barrier() this thread has caught up.
+     */
+    private static class BarrierTask extends RedoTask {
+        private final CountDownLatch mLatch;
+        public BarrierTask(CountDownLatch latch) {
+            super(null, null);
+            mLatch = latch;
+        }
+        public void arrive() { mLatch.countDown(); }
+    }
+
     private class PlayerThread extends Thread {
         private BlockingQueue<RedoTask> mQueue;
 
@@ -157,6 +226,11 @@ public class ParallelRedoPlayer extends RedoPlayer {
                 if (task.isShutdownTask())
                     break;
 
+                if (task instanceof BarrierTask) {
+                    ((BarrierTask) task).arrive();
+                    continue;
+                }
+
                 if (hadError()) {
                     // If there was an error, keep consuming from the queue without executing anything.
                     // This thread must consume all tasks until shutdown task is received.  If this
@@ -166,6 +240,16 @@ public class ParallelRedoPlayer extends RedoPlayer {
                 }
 
                 RedoableOp op = task.getOp();
+                if (task.getRecoveryLogManager() != null) {
+                    try {
+                        ParallelRedoPlayer.super.recoverOp(task.getRecoveryLogManager(), op);
+                    } catch (OutOfMemoryError oome) {
+                        Zimbra.halt("Out of memory while executing redo op", oome);
+                    } catch (Throwable e) {
+                        ZimbraLog.redolog.error("Unable to recover redo op: " + op.toString(), e);
+                    }
+                    continue;
+                }
                 try {
                     if (ZimbraLog.redolog.isDebugEnabled()) {
                         ZimbraLog.redolog.info("Executing: " + op.toString());
@@ -181,6 +265,8 @@ public class ParallelRedoPlayer extends RedoPlayer {
                     ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
                     if (!ignoreReplayErrors())
                         raiseError(e);
+                } finally {
+                    opPlayed();
                 }
             }
         }
@@ -17,21 +17,37 @@
 
 package com.zimbra.cs.server;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.file.FileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ZimbraLog;
 
 public final class NioOutputStream extends OutputStream {
+    // filters that pass a FileRegion down the chain untouched; any other filter, e.g.
+    // "ssl" or "sasl", has to be handed the bytes
+    private static final Set<String> FILE_REGION_FILTERS = ImmutableSet.of("executer", "logger", "codec");
+
     private final IoSession session;
     private IoBuffer buf;
     private int maxScheduledBytes;
     private int maxWritePause;
+    private WriteFuture lastWrite;
 
     NioOutputStream(IoSession session, int chunkSize, int maxScheduleBytes, int maxWritePause) {
         this.session = session;
@@ -88,9 +104,102 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Writes {@code count} bytes of {@code channel} starting at {@code position}.  If
+     * none of the session's filters needs to see the bytes, they are sent as a
+     * {@link FileRegion} with {@link FileChannel#transferTo}, without being copied
+     * into the heap.  Otherwise, e.g. over TLS, they are read into pooled direct
+     * buffers.  The channel must stay open until the write has completed; see
+     * {@link #closeWhenWritten(Closeable)}.
+     */
+    public synchronized void transferFrom(FileChannel channel, long position, long count) throws IOException {
+        if (count <= 0) {
+            return;
+        }
+        flush();
+        if (isFileRegionSupported()) {
+            writeToSession(new DefaultFileRegion(channel, position, count));
+            return;
+        }
+        final TransferBufferPool pool = TransferBufferPool.getInstance();
+        long end = position + count;
+        while (position < end) {
+            final ByteBuffer bb = pool.acquire();
+            if (bb.remaining() > end - position) {
+                bb.limit((int) (end - position));
+            }
+            try {
+                while (bb.hasRemaining()) {
+                    if (channel.read(bb, position + bb.position()) < 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                pool.release(bb);
+                throw e;
+            }
+            if (bb.position() == 0) {
+                pool.release(bb);
+                throw new EOFException("unexpected end of file at offset " + position);
+            }
+            bb.flip();
+            position += bb.remaining();
+            writeToSession(IoBuffer.wrap(bb), new IoFutureListener<WriteFuture>() {
+                @Override
+                public void operationComplete(WriteFuture future) {
+                    pool.release(bb);
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes {@code c} once everything written so far has been sent, or failed to be.
+     */
+    public synchronized void closeWhenWritten(final Closeable c) {
+        if (lastWrite == null || lastWrite.isDone()) {
+            close(c);
+            return;
+        }
+        lastWrite.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture future) {
+                close(c);
+            }
+        });
+    }
+
+    private static void close(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            ZimbraLog.nio.debug("error closing %s", c, e);
+        }
+    }
+
+    private boolean isFileRegionSupported() {
+        if (!LC.nio_file_transfer_enabled.booleanValue()) {
+            return false;
+        }
+        for (IoFilterChain.Entry entry : session.getFilterChain().getAll()) {
+            if (!FILE_REGION_FILTERS.contains(entry.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private synchronized void writeToSession(Object output) throws IOException {
+        writeToSession(output, null);
+    }
+
+    private synchronized void writeToSession(Object output, IoFutureListener<WriteFuture> listener) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        lastWrite = future;
+        if (listener != null) {
+            future.addListener(listener);
+        }
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
@@ -0,0 +1,73 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * A bounded pool of direct buffers that message blobs are read into on their way to
+ * NIO clients.  At most {@code nio_transfer_buffer_pool_size} direct buffers are ever
+ * allocated; once they are all in use, {@link #acquire()} hands out heap buffers,
+ * which {@link #release(ByteBuffer)} drops.
+ */
+public final class TransferBufferPool {
+    private static final TransferBufferPool INSTANCE = new TransferBufferPool(
+            LC.nio_transfer_buffer_size.intValue(), LC.nio_transfer_buffer_pool_size.intValue());
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final BlockingQueue<ByteBuffer> pool;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    TransferBufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = Math.max(bufferSize, 1024);
+        this.maxBuffers = Math.max(maxBuffers, 0);
+        this.pool = new ArrayBlockingQueue<ByteBuffer>(Math.max(maxBuffers, 1));
+    }
+
+    public static TransferBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /** Returns a cleared buffer, direct unless the pool is exhausted. */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = pool.poll();
+        if (buf != null) {
+            buf.clear();
+            return buf;
+        }
+        if (allocated.incrementAndGet() <= maxBuffers) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        allocated.decrementAndGet();
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /** Returns a buffer obtained from {@link #acquire()} to the pool. */
+    public void release(ByteBuffer buf) {
+        if (buf.isDirect() && buf.capacity() == bufferSize) {
+            buf.clear();
+            pool.offer(buf);
+        }
+    }
+}
@@ -167,6 +167,11 @@ public final class ReIndex extends AdminDocumentHandler {
         prog.addAttribute(AdminConstants.A_NUM_SUCCEEDED, status.getProcessed() - status.getFailed());
         prog.addAttribute(AdminConstants.A_NUM_FAILED, status.getFailed());
         prog.addAttribute(AdminConstants.A_NUM_REMAINING, status.getTotal() - status.getProcessed());
+        prog.addAttribute(AdminConstants.A_ITEMS_PER_SEC, Math.round(status.getThroughput()));
+        long eta = status.getEta();
+        if (eta >= 0) {
+            prog.addAttribute(AdminConstants.A_ETA, eta / 1000);
+        }
     }
 
     @Override
@@ -25,7 +25,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.soap.Element;
@@ -44,13 +50,21 @@ import com.zimbra.cs.redolog.RedoLogProvider;
 public final class AllAccountsWaitSet extends WaitSetBase {
 
     private static Map<AllAccountsWaitSet, String> sAllAccountsWaitSets = new ConcurrentHashMap<AllAccountsWaitSet, String>();
+    // snapshot of sAllAccountsWaitSets for the commit path, replaced whenever a waitset is added or removed
+    private static volatile AllAccountsWaitSet[] waitSets = new AllAccountsWaitSet[0];
     private static volatile Set<MailItem.Type> interestTypes = EnumSet.noneOf(MailItem.Type.class);
 
+    private static final int JOURNAL_SIZE = LC.zimbra_waitset_journal_size.intValue();
+    // moves journaled commits into the waitsets, so that committing threads never wait on a waitset's monitor
+    private static final ExecutorService NOTIFIER = Executors.newFixedThreadPool(
+            Math.max(LC.zimbra_waitset_notify_threads.intValue(), 1),
+            new ThreadFactoryBuilder().setNameFormat("WaitSetNotify-%d").setDaemon(true).build());
+
     /** Callback from the Mailbox object when a transaction has completed in some Mailbox */
     public static final void mailboxChangeCommitted(String commitIdStr, String accountId,
             Set<MailItem.Type> changedTypes) {
         if (!Collections.disjoint(changedTypes, interestTypes)) {
-            for (AllAccountsWaitSet ws : sAllAccountsWaitSets.keySet()) {
+            for (AllAccountsWaitSet ws : waitSets) {
                 ws.onMailboxChangeCommitted(commitIdStr, accountId, changedTypes);
             }
         }
@@ -105,6 +119,7 @@ public final class AllAccountsWaitSet extends WaitSetBase {
         // add us to the global set of AllAccounts waitsets, update the global interest mask
         synchronized(sAllAccountsWaitSets) {
             sAllAccountsWaitSets.put(this, "");
+            waitSets = sAllAccountsWaitSets.keySet().toArray(new AllAccountsWaitSet[0]);
             if (ZimbraLog.session.isDebugEnabled()) {
                 ZimbraLog.session.debug("added: sAllAccountsWaitSets.size() = " + sAllAccountsWaitSets.size());
             }
@@ -134,23 +149,67 @@ public final class AllAccountsWaitSet extends WaitSetBase {
         // figure out if there is already data here
         mCb = cb;
         mCbSeqNo = lastKnownSeqNo;
+        drainJournal();
         trySendData();
 
         return new ArrayList<WaitSetError>();
     }
 
-    private synchronized void onMailboxChangeCommitted(String commitIdStr, String accountId,
-            Set<MailItem.Type> changedTypes) {
+    /**
+     * Journals the commit without taking this waitset's monitor, and makes sure a notifier thread picks it up.
+     */
+    private void onMailboxChangeCommitted(String commitIdStr, String accountId, Set<MailItem.Type> changedTypes) {
         if (!Collections.disjoint(changedTypes, defaultInterest)) {
+            journal.append(accountId, commitIdStr); // on overflow, the drain tells the client to resync
+            if (drainScheduled.compareAndSet(false, true)) {
+                try {
+                    NOTIFIER.execute(drainTask);
+                } catch (RejectedExecutionException e) {
+                    drainScheduled.set(false);
+                }
+            }
+        }
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false); // commits journaled from now on schedule another run
+            synchronized (AllAccountsWaitSet.this) {
+                drainJournal();
+                trySendData();
+            }
+        }
+    };
+
+    /**
+     * Moves journaled commits into the signalled accounts, or into the buffer while syncing at creation. If commits
+     * were dropped because the journal was full, the client is asked to resync instead, as it can no longer tell what
+     * changed.
+     */
+    private void drainJournal() {
+        assert(Thread.holdsLock(this));
+        journal.drain(journalReader);
+        if (journal.isOverflowed()) {
+            journal.drain(journalReader); // whatever was appended since is covered by the resync too
+            journal.clearOverflow();
+            ZimbraLog.session.warn("AllAccountsWaitSet %s fell more than %d commits behind, asking the client to resync",
+                    mWaitSetId, journal.capacity());
+            mCurrentErrors.add(new WaitSetError(mOwnerAccountId, WaitSetError.Type.RESYNC_REQUIRED));
+        }
+    }
+
+    private final ChangeJournal.Reader journalReader = new ChangeJournal.Reader() {
+        @Override
+        public void read(String accountId, String commitId) {
             if (mBufferedCommits != null) {
-                mBufferedCommits.add(new Pair<String/*acctId*/, String/*commitId*/>(accountId, commitIdStr));
+                mBufferedCommits.add(new Pair<String/*acctId*/, String/*commitId*/>(accountId, commitId));
             } else {
-                mNextSeqNo = commitIdStr;
+                mNextSeqNo = commitId;
                 mCurrentSignalledSessions.add(accountId);
-                trySendData();
             }
         }
-    }
+    };
 
     /**
      * Given a CommitId, bring this waitset into sync using the RedoLog system
@@ -199,6 +258,7 @@ public final class AllAccountsWaitSet extends WaitSetBase {
         // Step two, process any buffered changes that have happened since we were created
         //
         synchronized(this) {
+            drainJournal();
             for (Pair<String/*acctid*/,String/*commitId*/> p : mBufferedCommits) {
                 mCurrentSignalledSessions.add(p.getFirst());
                 mNextSeqNo = p.getSecond();
@@ -207,7 +267,7 @@ public final class AllAccountsWaitSet extends WaitSetBase {
             // no more buffering!
             mBufferedCommits = null;
 
-            if (mCurrentSignalledSessions.size() > 0) {
+            if (mCurrentSignalledSessions.size() > 0 || mCurrentErrors.size() > 0) {
                 trySendData();
             }
         }
@@ -235,6 +295,7 @@ public final class AllAccountsWaitSet extends WaitSetBase {
     Map<String, WaitSetAccount> destroy() {
         synchronized(sAllAccountsWaitSets) {
             sAllAccountsWaitSets.remove(this);
+            waitSets = sAllAccountsWaitSets.keySet().toArray(new AllAccountsWaitSet[0]);
             if (ZimbraLog.session.isDebugEnabled()) {
                 ZimbraLog.session.debug("removed: sAllAccountsWaitSets.size() = " + sAllAccountsWaitSets.size());
             }
@@ -251,6 +312,7 @@ public final class AllAccountsWaitSet extends WaitSetBase {
 
     @Override
     public synchronized void handleQuery(Element response) {
+        drainJournal();
         super.handleQuery(response);
 
         response.addAttribute(AdminConstants.A_CB_SEQ_NO, mCbSeqNo);
@@ -268,6 +330,10 @@ public final class AllAccountsWaitSet extends WaitSetBase {
     }
 
 
+    /** commits not yet picked up from the committing threads */
+    private final ChangeJournal journal = new ChangeJournal(JOURNAL_SIZE);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
     /** If non-null, then we're buffering the commits during creation */
     private List<Pair<String/*AccountId*/, String/*CommitId*/>> mBufferedCommits;
 
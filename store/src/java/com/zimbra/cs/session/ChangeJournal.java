@@ -0,0 +1,134 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.session;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer of (account ID, commit ID) pairs, appended by any number of committing threads without locking
+ * and drained by one thread at a time.
+ * <p>
+ * Each slot carries a sequence number that tells whether it is free for the append of a given position, or holds the
+ * entry of a given position for the reader. An append that finds the buffer full drops the entry and marks the journal
+ * overflowed, so that a reader that fell too far behind knows it missed changes.
+ */
+final class ChangeJournal {
+
+    interface Reader {
+        void read(String accountId, String commitId);
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequence;
+    private final String[] accountIds;
+    private final String[] commitIds;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0L; // only touched by the draining thread
+    private volatile boolean overflowed = false;
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    ChangeJournal(int capacity) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+        accountIds = new String[size];
+        commitIds = new String[size];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @return false if the journal is full, in which case it is marked overflowed
+     */
+    boolean append(String accountId, String commitId) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequence.get(index) - pos;
+            if (diff == 0L) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    accountIds[index] = accountId;
+                    commitIds[index] = commitId;
+                    sequence.set(index, pos + 1); // publish
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0L) { // the reader has not freed this slot yet
+                overflowed = true;
+                return false;
+            } else { // another thread took this position
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Hands all published entries to the reader in append order, and frees their slots. Stops at the first entry that
+     * is still being written. Callers must not drain concurrently.
+     *
+     * @return number of entries read
+     */
+    int drain(Reader reader) {
+        int count = 0;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequence.get(index) != head + 1) {
+                return count;
+            }
+            String accountId = accountIds[index];
+            String commitId = commitIds[index];
+            accountIds[index] = null;
+            commitIds[index] = null;
+            sequence.set(index, head + mask + 1); // free for the append one lap ahead
+            head++;
+            count++;
+            reader.read(accountId, commitId);
+        }
+    }
+
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Clears the overflow mark. Call after draining, once the reader has dealt with the lost entries.
+     */
+    void clearOverflow() {
+        overflowed = false;
+    }
+
+    /**
+     * Returns the approximate number of entries waiting to be drained.
+     */
+    int size() {
+        return (int) Math.max(tail.get() - head, 0L);
+    }
+}
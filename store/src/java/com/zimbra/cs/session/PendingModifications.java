@@ -26,8 +26,11 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -160,12 +163,133 @@ public final class PendingModifications {
      */
     public Set<MailItem.Type> changedTypes = EnumSet.noneOf(MailItem.Type.class);
 
-    public LinkedHashMap<ModificationKey, MailItem> created;
+    public Map<ModificationKey, MailItem> created;
     public Map<ModificationKey, Change> modified;
     public Map<ModificationKey, Change> deleted;
 
+    // Set by seal(). A sealed change set is shared by every session of the mailbox and must not change any more.
+    private volatile boolean sealed = false;
+    // Built from a sealed change set the first time an item or account is looked up in it.
+    private volatile ItemIndex index;
+
+    /**
+     * The item IDs a sealed change set touches, in sorted primitive arrays, so that sessions can check an item
+     * without boxing.
+     */
+    private static final class ItemIndex {
+        final int[] createdIds;
+        final int[] deletedIds;
+        final int[] modifiedIds;
+        final int[] modifiedReasons; // Change.* bitmask of the item at the same position in modifiedIds
+        final Set<String> accountIds = new HashSet<String>(2);
+
+        ItemIndex(PendingModifications pms) {
+            createdIds = index(pms.created, accountIds);
+            deletedIds = index(pms.deleted, accountIds);
+            modifiedIds = index(pms.modified, accountIds);
+            modifiedReasons = new int[modifiedIds.length];
+            if (pms.modified != null) {
+                for (Map.Entry<ModificationKey, Change> entry : pms.modified.entrySet()) {
+                    int pos = Arrays.binarySearch(modifiedIds, entry.getKey().getItemId());
+                    modifiedReasons[pos] |= entry.getValue().why; // same item ID in another account shares the slot
+                }
+            }
+        }
+
+        private static int[] index(Map<ModificationKey, ?> map, Set<String> accounts) {
+            if (map == null || map.isEmpty()) {
+                return new int[0];
+            }
+            int[] ids = new int[map.size()];
+            int i = 0;
+            for (ModificationKey key : map.keySet()) {
+                ids[i++] = key.getItemId();
+                accounts.add(key.getAccountId());
+            }
+            Arrays.sort(ids);
+            return ids;
+        }
+    }
+
     public PendingModifications() { }
 
+    /**
+     * Makes this change set immutable, so that it can be handed to any number of sessions without copying it.
+     * Sessions that need a different view filter it into a new change set, or read it through the item lookups.
+     *
+     * @return this
+     */
+    public PendingModifications seal() {
+        if (sealed) {
+            return this;
+        }
+        if (created != null) {
+            created = Collections.unmodifiableMap(created);
+        }
+        if (modified != null) {
+            modified = Collections.unmodifiableMap(modified);
+        }
+        if (deleted != null) {
+            deleted = Collections.unmodifiableMap(deleted);
+        }
+        changedTypes = Collections.unmodifiableSet(changedTypes);
+        sealed = true;
+        return this;
+    }
+
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    private void checkMutable() {
+        if (sealed) {
+            throw new IllegalStateException("sealed PendingModifications cannot be modified");
+        }
+    }
+
+    private ItemIndex index() {
+        if (!sealed) {
+            throw new IllegalStateException("PendingModifications not sealed");
+        }
+        ItemIndex result = index;
+        if (result == null) {
+            // racing threads build equal indexes; either one will do
+            index = result = new ItemIndex(this);
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the item was created in this sealed change set
+     */
+    public boolean isCreated(int itemId) {
+        return Arrays.binarySearch(index().createdIds, itemId) >= 0;
+    }
+
+    /**
+     * @return true if the item was deleted in this sealed change set
+     */
+    public boolean isDeleted(int itemId) {
+        return Arrays.binarySearch(index().deletedIds, itemId) >= 0;
+    }
+
+    /**
+     * @return true if the item was modified in this sealed change set
+     */
+    public boolean isModified(int itemId) {
+        return Arrays.binarySearch(index().modifiedIds, itemId) >= 0;
+    }
+
+    /**
+     * @return the {@link Change} bitmask of a modified item in this sealed change set, {@link Change#NONE} if the item
+     *         was not modified
+     */
+    public int getChangeReason(int itemId) {
+        ItemIndex idx = index();
+        int pos = Arrays.binarySearch(idx.modifiedIds, itemId);
+        return pos < 0 ? Change.NONE : idx.modifiedReasons[pos];
+    }
+
     public boolean hasNotifications() {
         return (deleted  != null && !deleted.isEmpty()) ||
                (created  != null && !created.isEmpty()) ||
@@ -182,6 +306,9 @@ public final class PendingModifications {
 
     public boolean overlapsWithAccount(String acctId) {
         acctId = acctId == null ? null : acctId.toLowerCase();
+        if (sealed) {
+            return index().accountIds.contains(acctId);
+        }
         if (deleted != null) {
             for (ModificationKey mkey : deleted.keySet()) {
                 if (mkey.getAccountId().equals(acctId))
@@ -205,6 +332,7 @@ public final class PendingModifications {
     }
 
     public void recordCreated(MailItem item) {
+        checkMutable();
         if (created == null) {
             created = new LinkedHashMap<ModificationKey, MailItem>();
         }
@@ -250,6 +378,7 @@ public final class PendingModifications {
     }
 
     private void delete(ModificationKey key, Change chg) {
+        checkMutable();
         if (created != null && created.remove(key) != null)
             return;
 
@@ -288,6 +417,7 @@ public final class PendingModifications {
 
     private void recordModified(ModificationKey key, Object item, int reason,
             Object preModifyObj, boolean snapshotItem) {
+        checkMutable();
         Change chg = null;
         if (created != null && created.containsKey(key)) {
             if (item instanceof MailItem) {
@@ -327,11 +457,14 @@ public final class PendingModifications {
     }
 
     PendingModifications add(PendingModifications other) {
+        checkMutable();
         changedTypes.addAll(other.changedTypes);
 
         if (other.deleted != null) {
             for (Map.Entry<ModificationKey, Change> entry : other.deleted.entrySet()) {
-                delete(entry.getKey(), entry.getValue());
+                Change chg = entry.getValue();
+                // copy, as merging may update the change, which may belong to a change set shared with other sessions
+                delete(entry.getKey(), new Change(chg.what, chg.why, chg.preModifyObj));
             }
         }
 
@@ -355,6 +488,7 @@ public final class PendingModifications {
     }
 
     public void clear()  {
+        checkMutable();
         created = null;
         deleted = null;
         modified = null;
@@ -461,7 +595,9 @@ public final class PendingModifications {
 
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(changedTypes);
+        EnumSet<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        types.addAll(changedTypes); // the same class whether or not this change set is sealed
+        oos.writeObject(types);
         oos.writeObject(metaCreated);
         oos.writeObject(metaModified);
         oos.writeObject(metaDeleted);
@@ -223,7 +223,7 @@ public class SoapSession extends Session {
 
             OperationContext octxt = new OperationContext(getAuthenticatedAccountId());
             PendingModifications filtered = new PendingModifications();
-            filtered.changedTypes = pms.changedTypes;
+            filtered.changedTypes.addAll(pms.changedTypes);
             if (pms.deleted != null && !pms.deleted.isEmpty()) {
                 filtered.recordDeleted(pms.deleted);
             }
@@ -384,7 +384,8 @@ public class SoapSession extends Session {
     class QueuedNotifications {
         /** ExternalEventNotifications are kept sequentially */
         List<ExternalEventNotification> mExternalNotifications;
-        PendingModifications mMailboxChanges;
+        /** sealed change sets are shared with the mailbox's other sessions and only merged when they're serialized */
+        private List<PendingModifications> mMailboxChanges;
         RemoteNotifications mRemoteChanges;
         boolean mHasLocalChanges;
 
@@ -400,7 +401,7 @@ public class SoapSession extends Session {
         }
 
         boolean hasNotifications(boolean localMailboxOnly) {
-            if (localMailboxOnly ? mHasLocalChanges : mMailboxChanges != null && mMailboxChanges.hasNotifications())
+            if (localMailboxOnly ? mHasLocalChanges : mMailboxChanges != null && !mMailboxChanges.isEmpty())
                 return true;
             if (!localMailboxOnly && mRemoteChanges != null && mRemoteChanges.hasNotifications())
                 return true;
@@ -410,8 +411,29 @@ public class SoapSession extends Session {
         }
 
         int getScaledNotificationCount() {
-            return (mMailboxChanges == null ? 0 : mMailboxChanges.getScaledNotificationCount()) +
-                   (mRemoteChanges == null  ? 0 : mRemoteChanges.getScaledNotificationCount());
+            // an upper bound, as the same item may be touched by more than one of the queued change sets
+            int count = 0;
+            if (mMailboxChanges != null) {
+                for (PendingModifications pms : mMailboxChanges) {
+                    count += pms.getScaledNotificationCount();
+                }
+            }
+            return count + (mRemoteChanges == null  ? 0 : mRemoteChanges.getScaledNotificationCount());
+        }
+
+        /** Returns all the queued mailbox changes as a single change set, merging them if necessary. */
+        PendingModifications getMailboxChanges() {
+            if (mMailboxChanges == null || mMailboxChanges.isEmpty()) {
+                return null;
+            } else if (mMailboxChanges.size() > 1) {
+                PendingModifications merged = new PendingModifications();
+                for (PendingModifications pms : mMailboxChanges) {
+                    merged.add(pms);
+                }
+                mMailboxChanges.clear();
+                mMailboxChanges.add(merged.seal());
+            }
+            return mMailboxChanges.get(0);
         }
 
         void addNotification(ExternalEventNotification extra) {
@@ -424,8 +446,15 @@ public class SoapSession extends Session {
             if (pms == null || !pms.hasNotifications())
                 return;
             if (mMailboxChanges == null)
-                mMailboxChanges = new PendingModifications();
-            mMailboxChanges.add(pms);
+                mMailboxChanges = new ArrayList<PendingModifications>(2);
+            if (pms.isSealed()) {
+                mMailboxChanges.add(pms);
+            } else {
+                // the caller still owns an unsealed change set and may go on to modify it
+                PendingModifications copy = new PendingModifications();
+                copy.add(pms);
+                mMailboxChanges.add(copy.seal());
+            }
             if (!mHasLocalChanges)
                 mHasLocalChanges |= pms.overlapsWithAccount(mAuthenticatedAccountId);
         }
@@ -1304,7 +1333,7 @@ public class SoapSession extends Session {
         synchronized (sentChanges) {
             for (QueuedNotifications notification : sentChanges) {
                 if (notification.hasNotifications()) {
-                    ret.add(notification.mMailboxChanges);
+                    ret.add(notification.getMailboxChanges());
                 }
             }
         }
@@ -1431,7 +1460,7 @@ public class SoapSession extends Session {
 
         boolean debug = ZimbraLog.session.isDebugEnabled();
 
-        PendingModifications pms = ntfn.mMailboxChanges;
+        PendingModifications pms = ntfn.getMailboxChanges();
         RemoteNotifications rns = ntfn.mRemoteChanges;
 
         Element eDeleted = eNotify.addUniqueElement(ZimbraNamespace.E_DELETED);
@@ -1564,9 +1593,10 @@ public class SoapSession extends Session {
         }
 
         // activities
-        if (activityCb != null && ntfn.mMailboxChanges != null) {
+        PendingModifications pms = ntfn.getMailboxChanges();
+        if (activityCb != null && pms != null) {
             try {
-                activityCb.putActivities(ntfn.mMailboxChanges, eNotify, ifmt);
+                activityCb.putActivities(pms, eNotify, ifmt);
             } catch (ServiceException e) {
                 ZimbraLog.soap.warn("logging activities", e);
             }
@@ -29,6 +29,7 @@ public class WaitSetError {
         NOT_IN_SET_DURING_REMOVE,
         NOT_IN_SET_DURING_UPDATE,
         MAILBOX_DELETED,
+        RESYNC_REQUIRED,
         ;
     }
 
@@ -0,0 +1,65 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.cs.mailbox.lock.LockStats;
+
+/**
+ * Writes the slowest mailbox lock holds of each stats period, longest first.
+ */
+public class MailboxLockHolderStats
+implements StatsDumperDataSource {
+
+    private final String filename;
+
+    public MailboxLockHolderStats(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getHeader() {
+        return "mailbox_id,op,mode,thread,start,wait_ms,hold_ms";
+    }
+
+    @Override
+    public Collection<String> getDataLines() {
+        List<LockStats.Holder> holders = LockStats.getInstance().drainSlowestHolders();
+        List<String> dataLines = new ArrayList<String>(holders.size());
+        for (LockStats.Holder holder : holders) {
+            dataLines.add(String.format("%d,%s,%s,%s,%d,%d,%d", holder.mailboxId, holder.op,
+                    holder.write ? "write" : "read", holder.thread.replace(',', ' '), holder.startTime,
+                    holder.waitMillis, holder.holdMillis));
+        }
+        return dataLines;
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.cs.mailbox.lock.LockStats;
+
+/**
+ * Writes mailbox lock wait and hold times, one line per operation and one per busiest mailbox.
+ */
+public class MailboxLockStats
+implements StatsDumperDataSource {
+
+    private final String filename;
+
+    public MailboxLockStats(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getHeader() {
+        return "type,name,count,wait_ms_avg,wait_ms_p99,wait_ms_max,hold_ms_avg,hold_ms_p99,hold_ms_max";
+    }
+
+    @Override
+    public Collection<String> getDataLines() {
+        LockStats.Snapshot snapshot = LockStats.getInstance().drain();
+        List<String> dataLines = new ArrayList<String>();
+        for (Map.Entry<String, LockStats.Timings> entry : snapshot.operations.entrySet()) {
+            dataLines.add(format("op", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<Integer, LockStats.Timings> entry : snapshot.busiestMailboxes()) {
+            dataLines.add(format("mailbox", entry.getKey().toString(), entry.getValue()));
+        }
+        return dataLines;
+    }
+
+    private static String format(String type, String name, LockStats.Timings timings) {
+        return String.format("%s,%s,%d,%.2f,%d,%.2f,%.2f,%d,%.2f", type, name, timings.hold.getCount(),
+                timings.wait.getAverageMillis(), timings.wait.getPercentileMillis(99), timings.wait.getMaxMillis(),
+                timings.hold.getAverageMillis(), timings.hold.getPercentileMillis(99), timings.hold.getMaxMillis());
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
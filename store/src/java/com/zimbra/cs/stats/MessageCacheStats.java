@@ -0,0 +1,65 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.cs.mailbox.MessageCache;
+
+/**
+ * Writes one line per {@link MessageCache} segment, so that uneven key
+ * distribution and admission filter behavior are visible in the stats.
+ */
+public class MessageCacheStats
+implements StatsDumperDataSource {
+
+    private final String filename;
+
+    public MessageCacheStats(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getHeader() {
+        return "segment,entries,data_size,hit,miss,eviction,rejected";
+    }
+
+    @Override
+    public Collection<String> getDataLines() {
+        List<MessageCache.SegmentStats> segments = MessageCache.getSegmentStats();
+        List<String> dataLines = new ArrayList<String>(segments.size());
+        for (MessageCache.SegmentStats stats : segments) {
+            dataLines.add(String.format("%d,%d,%d,%d,%d,%d,%d", stats.segment, stats.entries, stats.dataSize,
+                    stats.hits, stats.misses, stats.evictions, stats.rejections));
+        }
+        return dataLines;
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
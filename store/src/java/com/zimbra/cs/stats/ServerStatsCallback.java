@@ -24,6 +24,9 @@ import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.mailbox.ItemCacheBudget;
+import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
@@ -35,18 +38,28 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+
+        ItemCacheBudget items = MailboxManager.getItemCacheBudget();
+        data.put(ZimbraPerf.RTS_ITEM_CACHE_SIZE, items.getItemCount());
+        data.put(ZimbraPerf.RTS_ITEM_CACHE_KB, items.getWeightedSize() / 1024);
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
         data.put(ZimbraPerf.RTS_FD_CACHE_HIT_RATE, fdc.getHitRate());
+        data.put(ZimbraPerf.RTS_FD_CACHE_OPEN, fdc.getOpenCount());
         
         data.put(ZimbraPerf.RTS_ACL_CACHE_HIT_RATE, PermissionCache.getHitRate());
+
+        data.put(ZimbraPerf.RTS_IDX_QUEUE_DEPTH, MailboxIndex.getQueueDepth());
+        data.put(ZimbraPerf.RTS_IDX_THREADS, MailboxIndex.getThreadCount());
         
         Provisioning prov = Provisioning.getInstance();
         if (prov instanceof LdapProv) {
             LdapProv ldap = (LdapProv) prov;
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_SIZE, ldap.getAccountCacheSize());
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_HIT_RATE, ldap.getAccountCacheHitRate());
+            data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_REFRESH_RATE, ldap.getAccountCacheRefreshRate());
+            data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_MISS_RATE, ldap.getAccountCacheMissRate());
             data.put(ZimbraPerf.RTS_COS_CACHE_SIZE, ldap.getCosCacheSize());
             data.put(ZimbraPerf.RTS_COS_CACHE_HIT_RATE, ldap.getCosCacheHitRate());
             data.put(ZimbraPerf.RTS_DOMAIN_CACHE_SIZE, ldap.getDomainCacheSize());
@@ -52,6 +52,7 @@ import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.lock.LockStats;
 import com.zimbra.cs.util.MemoryStats;
 
 /**
@@ -118,12 +119,21 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Number of mail items held by the per-mailbox item caches")
+    public static final String RTS_ITEM_CACHE_SIZE = "item_cache_size";
+
+    @Description("Estimated memory (KB) used by the per-mailbox item caches")
+    public static final String RTS_ITEM_CACHE_KB = "item_cache_kb";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of open file descriptors that reference message content, including aged out ones still being read")
+    public static final String RTS_FD_CACHE_OPEN = "fd_cache_open";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -134,6 +144,12 @@ public class ZimbraPerf {
     @Description("LDAP account cache hit rate")
     public static final String RTS_ACCOUNT_CACHE_HIT_RATE = "account_cache_hit_rate";
 
+    @Description("Percentage of LDAP account cache lookups that found an account due to be reloaded")
+    public static final String RTS_ACCOUNT_CACHE_REFRESH_RATE = "account_cache_refresh_rate";
+
+    @Description("Percentage of LDAP account cache lookups that found no account")
+    public static final String RTS_ACCOUNT_CACHE_MISS_RATE = "account_cache_miss_rate";
+
     @Description("LDAP COS cache size")
     public static final String RTS_COS_CACHE_SIZE = "cos_cache_size";
 
@@ -176,6 +192,12 @@ public class ZimbraPerf {
     @Description("LDAP XMPP cache hit rate")
     public static final String RTS_XMPP_CACHE_HIT_RATE = "xmpp_cache_hit_rate";
 
+    @Description("Number of index tasks waiting for an index thread")
+    public static final String RTS_IDX_QUEUE_DEPTH = "idx_queue_depth";
+
+    @Description("Number of index threads")
+    public static final String RTS_IDX_THREADS = "idx_threads";
+
     // Accumulators.  To add a new accumulator, create a static instance here and
     // add it to sAccumulators.
     public static final Counter COUNTER_LMTP_RCVD_MSGS = new Counter();
@@ -189,7 +211,9 @@ public class ZimbraPerf {
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_OFFHEAP = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_ITEM_CACHE_EVICTIONS = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -201,8 +225,13 @@ public class ZimbraPerf {
     public static final Counter COUNTER_CALENDAR_CACHE_LRU_SIZE = new Counter();
     public static final Counter COUNTER_IDX_BYTES_WRITTEN = new Counter();
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
+    public static final StopWatch STOPWATCH_IDX_MERGE = new StopWatch();
+    public static final Counter COUNTER_IDX_DEFERRED_AGE = new Counter();
+    public static final Counter COUNTER_IDX_QUEUE_REJECTED = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_FD_CACHE_LOOKUP = new Counter();
+    public static final Counter COUNTER_REDO_GROUP_COMMIT = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
@@ -229,9 +258,11 @@ public class ZimbraPerf {
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
             RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_ITEM_CACHE_SIZE, RTS_ITEM_CACHE_KB,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE, RTS_FD_CACHE_OPEN,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
+            RTS_ACCOUNT_CACHE_REFRESH_RATE, RTS_ACCOUNT_CACHE_MISS_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
             RTS_DOMAIN_CACHE_SIZE, RTS_DOMAIN_CACHE_HIT_RATE,
             RTS_SERVER_CACHE_SIZE, RTS_SERVER_CACHE_HIT_RATE,
@@ -239,6 +270,7 @@ public class ZimbraPerf {
             RTS_ZIMLET_CACHE_SIZE, RTS_ZIMLET_CACHE_HIT_RATE,
             RTS_GROUP_CACHE_SIZE, RTS_GROUP_CACHE_HIT_RATE,
             RTS_XMPP_CACHE_SIZE, RTS_XMPP_CACHE_HIT_RATE,
+            RTS_IDX_QUEUE_DEPTH, RTS_IDX_THREADS,
             }
         );
 
@@ -287,9 +319,15 @@ public class ZimbraPerf {
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Off-heap message cache hit rate")
+    private static final String DC_MBOX_MSG_CACHE_OFFHEAP = "mbox_msg_cache_offheap";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Number of items evicted from the item caches to stay within the memory budget")
+    private static final String DC_MBOX_ITEM_CACHE_EVICTIONS = "mbox_item_cache_evictions";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -314,6 +352,15 @@ public class ZimbraPerf {
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Average time (us) to look up or open a file descriptor in the file descriptor cache")
+    private static final String DC_FD_CACHE_LOOKUP_US_AVG = "fd_cache_lookup_us_avg";
+
+    @Description("Number of redo log fsyncs made by the group commit thread")
+    private static final String DC_REDO_FSYNC_COUNT = "redo_fsync_count";
+
+    @Description("Average number of redo log entries written per group commit fsync")
+    private static final String DC_REDO_GROUP_COMMIT_AVG = "redo_group_commit_avg";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -335,6 +382,18 @@ public class ZimbraPerf {
     @Description("Average of idx_bytes_read")
     private static final String DC_IDX_BYTES_READ_AVG = "idx_bytes_read_avg";
 
+    @Description("Number of Lucene segment merges completed by the merge scheduler")
+    private static final String DC_IDX_MERGE_COUNT = "idx_merge_count";
+
+    @Description("Average duration of a Lucene segment merge in milliseconds")
+    private static final String DC_IDX_MERGE_MS_AVG = "idx_merge_ms_avg";
+
+    @Description("Average time in milliseconds the oldest deferred item of a mailbox waited to be indexed")
+    private static final String DC_IDX_DEFERRED_AGE_MS_AVG = "idx_deferred_age_ms_avg";
+
+    @Description("Number of batch index tasks turned away because the index queue was full")
+    private static final String DC_IDX_QUEUE_REJECTED = "idx_queue_rejected";
+
     @Description("Hit rate of calendar summary cache, counting cache hit from both memory and file")
     private static final String DC_CALCACHE_HIT = "calcache_hit";
 
@@ -358,7 +417,9 @@ public class ZimbraPerf {
                         new DeltaCalculator(STOPWATCH_MBOX_GET).setCountName(DC_MBOX_GET_COUNT).setAverageName(DC_MBOX_GET_MS_AVG),
                         new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                         new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_OFFHEAP).setAverageName(DC_MBOX_MSG_CACHE_OFFHEAP),
                         new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE_EVICTIONS).setTotalName(DC_MBOX_ITEM_CACHE_EVICTIONS),
                         new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT).setAverageName(DC_SOAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT).setAverageName(DC_POP_MS_AVG),
@@ -370,8 +431,13 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_CALENDAR_CACHE_LRU_SIZE).setAverageName(DC_CALCACHE_LRU_SIZE),
                         new DeltaCalculator(COUNTER_IDX_BYTES_WRITTEN).setTotalName(DC_IDX_BYTES_WRITTEN).setAverageName(DC_IDX_BYTES_WRITTTEN_AVG),
                         new DeltaCalculator(COUNTER_IDX_BYTES_READ).setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
+                        new DeltaCalculator(STOPWATCH_IDX_MERGE).setCountName(DC_IDX_MERGE_COUNT).setAverageName(DC_IDX_MERGE_MS_AVG),
+                        new DeltaCalculator(COUNTER_IDX_DEFERRED_AGE).setAverageName(DC_IDX_DEFERRED_AGE_MS_AVG),
+                        new DeltaCalculator(COUNTER_IDX_QUEUE_REJECTED).setTotalName(DC_IDX_QUEUE_REJECTED),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE).setAverageName(DC_BIS_SEEK_RATE),
+                        new DeltaCalculator(COUNTER_FD_CACHE_LOOKUP).setAverageName(DC_FD_CACHE_LOOKUP_US_AVG),
+                        new DeltaCalculator(COUNTER_REDO_GROUP_COMMIT).setCountName(DC_REDO_FSYNC_COUNT).setAverageName(DC_REDO_GROUP_COMMIT_AVG),
                         realtimeStats
                     }
         );
@@ -478,12 +544,18 @@ public class ZimbraPerf {
 
         ThreadStats threadStats = new ThreadStats("threads.csv");
         StatsDumper.schedule(threadStats, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(new MessageCacheStats("msgcache.csv"), CSV_DUMP_FREQUENCY);
+        if (LockStats.getInstance().isEnabled()) {
+            StatsDumper.schedule(new MailboxLockStats("mailboxlock.csv"), CSV_DUMP_FREQUENCY);
+            StatsDumper.schedule(new MailboxLockHolderStats("mailboxlock_holders.csv"), CSV_DUMP_FREQUENCY);
+        }
 
         // Initialize JMX
         MBeanServer jmxServer = ManagementFactory.getPlatformMBeanServer();
         jmxServerStats = new JmxServerStats();
         try {
             jmxServer.registerMBean(jmxServerStats, new ObjectName("ZimbraCollaborationSuite:type=ServerStats"));
+            jmxServer.registerMBean(LockStats.getInstance(), new ObjectName("ZimbraCollaborationSuite:type=MailboxLockStats"));
         } catch (Exception e) {
             ZimbraLog.perf.warn("Unable to register JMX interface.", e);
         }
@@ -21,63 +21,81 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
-import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Lookups go through a {@link ConcurrentLinkedHashMap}, so concurrent readers of
+ * different blobs don't contend on a single monitor.  Descriptors that are aged
+ * out are closed on a background thread, or by their last reader if they are
+ * still in use at that time.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
-    // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
-    private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
+    private static final ExecutorService CLOSER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("FileDescriptorCacheCloser").setDaemon(true).build());
+
+    // Sorted by last access time; evicted entries are handed to retire().
+    private final ConcurrentLinkedHashMap<String, SharedFile> mCache;
     private final FileCache<String> mUncompressedFileCache;
+    private final Executor mCloser;
     private final Counter mHitRate = new Counter();
+    // Number of open descriptors, including evicted ones that are still being read.
+    private final AtomicInteger mOpenCount = new AtomicInteger(0);
 
-    private class SharedFileInfo {
-        public String path;
-        public SharedFile file;
-
-        public SharedFileInfo(String path, SharedFile file) {
-            this.path = path;
-            this.file = file;
-        }
+    public FileDescriptorCache(FileCache<String> uncompressedCache) {
+        this(uncompressedCache, CLOSER);
     }
 
-    public FileDescriptorCache(FileCache<String> uncompressedCache) {
+    FileDescriptorCache(FileCache<String> uncompressedCache, Executor closer) {
         mUncompressedFileCache = uncompressedCache;
+        mCloser = closer;
+        mCache = new ConcurrentLinkedHashMap.Builder<String, SharedFile>()
+            .maximumWeightedCapacity(1000)
+            .concurrencyLevel(LC.zimbra_fd_cache_concurrency_level.intValue())
+            .listener(new EvictionListener<String, SharedFile>() {
+                @Override
+                public void onEviction(String path, SharedFile file) {
+                    sLog.debug("Pruning file descriptor for %s from the cache.", path);
+                    retire(path, file);
+                }
+            })
+            .build();
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
-        mMaxSize = maxSize;
+        mCache.setCapacity(maxSize);
         mHitRate.reset(); // Recalculate hit rate based on the new size.
-        pruneIfNecessary();
         return this;
     }
 
@@ -97,13 +115,14 @@ public class FileDescriptorCache
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-        while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
+    public void shutdown() {
+        for (Map.Entry<String, SharedFile> entry : mCache.entrySet()) {
             String path = entry.getKey();
             SharedFile file = entry.getValue();
-            iEntries.remove();
+            if (!mCache.remove(path, file)) {
+                continue;
+            }
+            file.retire();
             try {
                 boolean success = close(file, path);
                 if (!success)
@@ -124,36 +143,41 @@ public class FileDescriptorCache
         int numRead;
 
         try {
+            long start = System.nanoTime();
             file = getSharedFile(path, rawSize);
+            ZimbraPerf.COUNTER_FD_CACHE_LOOKUP.increment(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
             numRead = file.read(fileOffset, buf, bufferOffset, len);
         } finally {
             if (file != null) {
-               file.doneReading();
+                doneReading(path, file);
             }
         }
 
         return numRead;
     }
 
-    boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
+    /** Unregisters a reader obtained from {@link #getSharedFile}. */
+    @VisibleForTesting
+    void doneReading(String path, SharedFile file) {
+        if (file.doneReading()) {
+            // We were the last reader of a descriptor that has been aged out.
+            scheduleClose(path, file);
         }
     }
 
+    boolean contains(String path) {
+        return mCache.containsKey(path);
+    }
+
     /**
      * Returns the existing cache entry or creates a new one.  Implicitly
      * increments the number of readers for the <tt>SharedFile</tt>.
      */
-    private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
-
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
+    @VisibleForTesting
+    SharedFile getSharedFile(String path, long rawSize) throws IOException {
+        SharedFile sharedFile = mCache.get(path);
+        if (sharedFile != null && sharedFile.aboutToRead()) {
             sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
             mHitRate.increment(100);
             return sharedFile;
         }
@@ -181,126 +205,108 @@ public class FileDescriptorCache
             sLog.debug("Opening new file descriptor for %s.", path);
             sharedFile = new SharedFile(file);
         }
+        mOpenCount.incrementAndGet();
+        // Register as a reader before publishing, so that the descriptor can't be
+        // closed under us if it's aged out right away.
+        sharedFile.aboutToRead();
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
+        while (true) {
+            SharedFile existing = mCache.putIfAbsent(path, sharedFile);
+            if (existing == null) {
+                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
+                return sharedFile;
+            }
+            if (existing.aboutToRead()) {
                 sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
-                sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
+                sharedFile.doneReading();
+                if (sharedFile.closeIfUnused()) {
+                    mOpenCount.decrementAndGet();
+                }
+                return existing;
+            }
+            // The existing descriptor was closed after being aged out; replace it.
+            if (mCache.replace(path, existing, sharedFile)) {
                 sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
+                return sharedFile;
             }
         }
-        sharedFile.aboutToRead();
-        pruneIfNecessary();
-
-        return sharedFile;
     }
 
     /**
      * Closes the file descriptor and removes it from the cache.  Does nothing if the file
-     * descriptor is not in the cache.
+     * descriptor is not in the cache.  If the file is being read, it is closed by its
+     * last reader.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
-
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
+        SharedFile file = mCache.remove(path);
 
         if (file != null) {
-            boolean success = close(file, path);
-            if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+            file.retire();
+            close(file, path);
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
+    }
 
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
+    /**
+     * Marks a file that is no longer cached for closing, and closes it on the
+     * background thread.
+     */
+    private void retire(String path, SharedFile file) {
+        file.retire();
+        scheduleClose(path, file);
+    }
+
+    private void scheduleClose(final String path, final SharedFile file) {
+        mCloser.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close(file, path);
+                } catch (IOException e) {
+                    sLog.warn("Unable to close file descriptor for %s", path, e);
+                } catch (Throwable t) {
+                    sLog.error("Unexpected error closing file descriptor for %s", path, t);
+                }
+            }
+        });
     }
 
     /**
      * Close the file if it is not in use.
-     * @return true if the file is closed, false otherwise.
+     * @return true if the file was closed by this call, false if it is in use or was already closed.
      * @throws IOException if there is an error closing the file.
      */
     private boolean close(SharedFile file, String path) throws IOException {
-        if (file != null) {
-            sLog.debug("Closing file descriptor for %s, %s", path, file);
-
-            if (file.getNumReaders() == 0) {
-                file.close();
-                if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
-                    }
-                }
-                return true;
-            }
+        sLog.debug("Closing file descriptor for %s, %s", path, file);
+
+        if (!file.closeIfUnused()) {
             return false;
         }
-        return true;
-    }
-
-    private void quietCloseInactiveCache() {
-        synchronized (mInactiveCache) {
-            Iterator<SharedFileInfo> iter = mInactiveCache.iterator();
-            while (iter.hasNext()) {
-                SharedFileInfo info = iter.next();
-                try {
-                    boolean success = close(info.file, info.path);
-                    if (success)
-                        iter.remove();
-                } catch (IOException e) {
-                    ZimbraLog.store.warn("Unable to close file descriptor for " + info.path, e);
-                    iter.remove();
-                }
+        mOpenCount.decrementAndGet();
+        if (mUncompressedFileCache != null) {
+            if (!mCache.containsKey(path)) {
+                mUncompressedFileCache.remove(path);
+            } else {
+                sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
             }
         }
+        return true;
     }
 
-    public synchronized int getSize() {
+    public int getSize() {
         return mCache.size();
     }
 
-    public double getHitRate() {
-        return mHitRate.getAverage();
+    /**
+     * Returns the number of open file descriptors, including the ones that were
+     * aged out but are still being read.
+     */
+    public int getOpenCount() {
+        return mOpenCount.get();
     }
 
-    private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
-            return;
-
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
-            }
-        }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
-            String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
-            try {
-                boolean success = close(file, path);
-                if (!success) {
-                    mInactiveCache.add(new SharedFileInfo(path, file));
-                }
-            } catch (IOException e) {
-                ZimbraLog.store.warn("Unable to close file descriptor for " + path, e);
-            }
-        }
-
-        // Close if there are any SharedFiles in the inactive cache.
-        quietCloseInactiveCache();
+    public double getHitRate() {
+        return mHitRate.getAverage();
     }
 }
@@ -22,31 +22,54 @@ package com.zimbra.cs.store;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
- * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
- * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * Container for a file descriptor that is shared by multiple <tt>BlobInputStream</tt>
+ * objects.  Reads use positional {@link FileChannel} reads, so concurrent readers
+ * of the same file don't serialize on a lock or on the file pointer.
+ * <p>
+ * A thread that is interrupted while reading closes the channel for every reader.
+ * The first reader that finds the channel closed opens a new one, and the other
+ * readers retry on it; only the interrupted thread sees the error.
  */
 public class SharedFile {
 
-    private File mFile;
-    private RandomAccessFile mRAF;
-    private long mPos = 0;
-    
+    private static final int CLOSED = -1;
+
+    private final File mFile;
+    private volatile FileChannel mChannel;
+
+    /**
+     * Offset right after the last read.  Only used to report how many reads
+     * were not sequential; positional reads don't depend on it.
+     */
+    private final AtomicLong mPos = new AtomicLong(0);
+
     /**
      * Keep track of the number of threads that are reading from this file.
-     * We do this so that we don't delete a file that's being read on
-     * Windows (bug 43497).
+     * We do this so that we don't close or delete a file that's being read
+     * (bug 43497).  Set to {@link #CLOSED} once the file descriptor is closed,
+     * after which no new reader can be registered.
      */
-    private int mNumReaders;
-    
+    private final AtomicInteger mNumReaders = new AtomicInteger(0);
+
+    /** Set when the file is no longer in the cache and should be closed by its last reader. */
+    private volatile boolean mRetired = false;
+
     /**
      * Remember the file's length, in case we have an open file descriptor and the
      * uncompressed cache deletes this file from disk.
      */
-    private long mLength;
+    private final long mLength;
 
     /**
      * Creates a new <tt>SharedFile</tt> and opens the underlying
@@ -62,28 +85,36 @@ public class SharedFile {
         }
         mFile = file;
         mLength = file.length();
-        openIfNecessary();
+        mChannel = new RandomAccessFile(mFile, "r").getChannel();
     }
 
-    synchronized long getLength() {
+    long getLength() {
         return mLength;
     }
-    
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+
+    /**
+     * Reads up to <tt>len</tt> bytes starting at <tt>fileOffset</tt>.  The caller
+     * must have registered itself with {@link #aboutToRead}.
+     */
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        int numRead;
+        while (true) {
+            FileChannel channel = mChannel;
+            try {
+                numRead = channel.read(ByteBuffer.wrap(b, off, len), fileOffset);
+                break;
+            } catch (ClosedByInterruptException e) {
+                reopen(channel);
+                throw e;
+            } catch (ClosedChannelException e) {
+                // another reader was interrupted
+                reopen(channel);
+            }
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
-        if (seeked) {
+
+        long expected = mPos.getAndSet(numRead > 0 ? fileOffset + numRead : fileOffset);
+        if (expected != fileOffset) {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
         } else {
             ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
@@ -91,41 +122,78 @@ public class SharedFile {
         ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
         return numRead;
     }
-    
-    synchronized void aboutToRead() {
-        mNumReaders++;
-    }
-    
-    synchronized void doneReading() {
-        if (mNumReaders > 0) {
-            mNumReaders--;
+
+    /**
+     * Replaces a channel that was closed by an interrupt, unless another reader
+     * already did.
+     */
+    private synchronized void reopen(FileChannel closed) throws IOException {
+        if (mChannel == closed) {
+            ZimbraLog.store.debug("reopening %s after an interrupted read", mFile);
+            mChannel = new RandomAccessFile(mFile, "r").getChannel();
         }
     }
-    
-    synchronized int getNumReaders() {
-        return mNumReaders;
+
+    /**
+     * Registers a reader.
+     * @return <tt>false</tt> if the file descriptor has already been closed
+     */
+    boolean aboutToRead() {
+        while (true) {
+            int readers = mNumReaders.get();
+            if (readers == CLOSED) {
+                return false;
+            }
+            if (mNumReaders.compareAndSet(readers, readers + 1)) {
+                return true;
+            }
+        }
     }
-    
-    private synchronized void openIfNecessary()
-    throws IOException {
-        if (mRAF == null) {
-            if (!mFile.exists()) {
-                throw new IOException(mFile.getPath() + " does not exist.");
+
+    /**
+     * Unregisters a reader.
+     * @return <tt>true</tt> if this was the last reader of a retired file, which
+     *         should now be closed
+     */
+    boolean doneReading() {
+        while (true) {
+            int readers = mNumReaders.get();
+            if (readers <= 0) {
+                return false;
+            }
+            if (mNumReaders.compareAndSet(readers, readers - 1)) {
+                return readers == 1 && mRetired;
             }
-            mRAF = new RandomAccessFile(mFile, "r");
-            mPos = 0;
         }
     }
-    
-    synchronized void close()
+
+    int getNumReaders() {
+        return Math.max(mNumReaders.get(), 0);
+    }
+
+    /** Marks the file as no longer cached. */
+    void retire() {
+        mRetired = true;
+    }
+
+    boolean isClosed() {
+        return mNumReaders.get() == CLOSED;
+    }
+
+    /**
+     * Closes the file descriptor if no thread is reading from it.
+     * @return <tt>true</tt> if this call closed the file
+     */
+    boolean closeIfUnused()
     throws IOException {
-        if (mRAF != null) {
-            mRAF.close();
-            mPos = 0;
-            mRAF = null;
+        if (mNumReaders.compareAndSet(0, CLOSED)) {
+            mChannel.close();
+            return true;
         }
+        return false;
     }
-    
+
+    @Override
     public String toString() {
         return mFile.toString();
     }
@@ -17,8 +17,11 @@
 package com.zimbra.cs.store.file;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -423,6 +426,32 @@ public final class FileBlobStore extends StoreManager {
         return buf.toString();
     }
 
+    /**
+     * Opens the blob's file for reading if its data is stored uncompressed on a local
+     * volume and is {@code size} bytes long, so that it can be sent to a client as is.
+     * Returns {@code null} if the blob has to be read through {@link #getContent(MailboxBlob)}.
+     */
+    public static FileChannel openUncompressed(MailboxBlob mblob, long size) throws IOException {
+        if (!(mblob instanceof VolumeMailboxBlob)) {
+            return null;
+        }
+        VolumeBlob blob = ((VolumeMailboxBlob) mblob).getLocalBlob();
+        if (blob == null || blob.isCompressed()) {
+            return null;
+        }
+        FileChannel channel;
+        try {
+            channel = new FileInputStream(blob.getFile()).getChannel();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (channel.size() != size) {
+            channel.close();
+            return null;
+        }
+        return channel;
+    }
+
     private static void ensureDirExists(File dir) throws IOException {
         if (!FileUtil.mkdirs(dir)) {
             throw new IOException("Unable to create blob store directory " + dir.getAbsolutePath());
@@ -50,6 +50,7 @@ import com.zimbra.cs.db.Versions;
 import com.zimbra.cs.ephemeral.EphemeralStore;
 import com.zimbra.cs.ephemeral.LdapEphemeralStore;
 import com.zimbra.cs.extension.ExtensionUtil;
+import com.zimbra.cs.imap.ImapStructureBackfill;
 import com.zimbra.cs.iochannel.MessageChannel;
 import com.zimbra.cs.mailbox.MailboxIndex;
 import com.zimbra.cs.mailbox.MailboxManager;
@@ -328,6 +329,10 @@ public final class Zimbra {
                 PurgeThread.startup();
             }
 
+            if (app.supports(ImapStructureBackfill.class.getName())) {
+                ImapStructureBackfill.startup();
+            }
+
             if (app.supports(AutoProvisionThread.class.getName())) {
                 AutoProvisionThread.switchAutoProvThreadIfNecessary();
             }
@@ -404,6 +409,7 @@ public final class Zimbra {
 
         if (sIsMailboxd) {
             PurgeThread.shutdown();
+            ImapStructureBackfill.shutdown();
             AutoProvisionThread.shutdown();
         }
 
@@ -36,9 +36,11 @@ import org.apache.curator.x.discovery.ServiceInstance;
 import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
 
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.mailbox.lock.DistributedMailboxLock;
 
 public class CuratorManager {
 
@@ -50,6 +52,7 @@ public class CuratorManager {
     private static boolean initialized = false;
 
     private static final String LOCKS = "/locks/";
+    private static final String RWLOCKS = "/rwlocks/";
     private static final String DATA = "/data/";
     private static final String SERVICE = "/service";
 
@@ -113,6 +116,10 @@ public class CuratorManager {
         return new InterProcessSemaphoreMutex(client, LOCKS + id);
     }
 
+    public DistributedMailboxLock createReadWriteLock(String id) {
+        return new DistributedMailboxLock(client, RWLOCKS + id, LC.zimbra_mailbox_distributed_lock_cache.booleanValue());
+    }
+
     public void setData(String key, String value) throws Exception {
         byte[] data;
         try {
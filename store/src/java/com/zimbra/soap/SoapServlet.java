@@ -371,11 +371,18 @@ public class SoapServlet extends ZimbraServlet {
             envelope.output(out);
             out.flush();
         } else {
-            // serialize the envelope to a byte array and send the response with Content-Length header.
-            byte[] soapBytes = envelope.toUTF8();
-            resp.setContentLength(soapBytes.length);
-            resp.getOutputStream().write(soapBytes);
-            resp.getOutputStream().flush();
+            // serialize the envelope straight to UTF-8 bytes and send the response with Content-Length header.
+            BufferStream buffer = new BufferStream();
+            try {
+                ZimbraServletOutputStream out = new ZimbraServletOutputStream(buffer);
+                envelope.output(out);
+                out.flush();
+                resp.setContentLength((int) buffer.getSize());
+                buffer.copyTo(resp.getOutputStream());
+                resp.getOutputStream().flush();
+            } finally {
+                buffer.close();
+            }
         }
         envelope.destroy();
     }